@@ -64,11 +64,13 @@ import android.health.connect.aidl.IInsertRecordsResponseCallback;
 import android.health.connect.aidl.IMigrationCallback;
 import android.health.connect.aidl.IReadRecordsResponseCallback;
 import android.health.connect.aidl.IRecordTypeInfoResponseCallback;
+import android.health.connect.aidl.IStreamedReadRecordsResponseCallback;
 import android.health.connect.aidl.InsertRecordsResponseParcel;
 import android.health.connect.aidl.ReadRecordsResponseParcel;
 import android.health.connect.aidl.RecordIdFiltersParcel;
 import android.health.connect.aidl.RecordTypeInfoResponseParcel;
 import android.health.connect.aidl.RecordsParcel;
+import android.health.connect.aidl.StreamedReadRecordsResponseParcel;
 import android.health.connect.aidl.UpdatePriorityRequestParcel;
 import android.health.connect.changelog.ChangeLogTokenRequest;
 import android.health.connect.changelog.ChangeLogTokenResponse;
@@ -78,6 +80,7 @@ import android.health.connect.datatypes.AggregationType;
 import android.health.connect.datatypes.DataOrigin;
 import android.health.connect.datatypes.Record;
 import android.health.connect.exportimport.ScheduledExportSettings;
+import android.health.connect.internal.SharedMemoryPool;
 import android.health.connect.internal.datatypes.RecordInternal;
 import android.health.connect.internal.datatypes.utils.InternalExternalRecordConverter;
 import android.health.connect.migration.HealthConnectMigrationUiState;
@@ -326,6 +329,8 @@ public class HealthConnectManager {
     private final Context mContext;
     private final IHealthConnectService mService;
     private final InternalExternalRecordConverter mInternalExternalRecordConverter;
+    // Shared memory used to send large inserts and updates, reused across calls.
+    private final SharedMemoryPool mSharedMemoryPool = new SharedMemoryPool();
 
     /** @hide */
     HealthConnectManager(@NonNull Context context, @NonNull IHealthConnectService service) {
@@ -516,26 +521,32 @@ public class HealthConnectManager {
             records.forEach((record) -> record.getMetadata().setId(""));
             List<RecordInternal<?>> recordInternals =
                     records.stream().map(Record::toRecordInternal).collect(Collectors.toList());
-            mService.insertRecords(
-                    mContext.getAttributionSource(),
-                    new RecordsParcel(recordInternals),
-                    new IInsertRecordsResponseCallback.Stub() {
-                        @Override
-                        public void onResult(InsertRecordsResponseParcel parcel) {
-                            Binder.clearCallingIdentity();
-                            executor.execute(
-                                    () ->
-                                            callback.onResult(
-                                                    new InsertRecordsResponse(
-                                                            getRecordsWithUids(
-                                                                    records, parcel.getUids()))));
-                        }
+            // The service reads the records before the call returns, so their shared memory
+            // can be reused once it does.
+            try (RecordsParcel recordsParcel =
+                    new RecordsParcel(recordInternals, mSharedMemoryPool)) {
+                mService.insertRecords(
+                        mContext.getAttributionSource(),
+                        recordsParcel,
+                        new IInsertRecordsResponseCallback.Stub() {
+                            @Override
+                            public void onResult(InsertRecordsResponseParcel parcel) {
+                                Binder.clearCallingIdentity();
+                                executor.execute(
+                                        () ->
+                                                callback.onResult(
+                                                        new InsertRecordsResponse(
+                                                                getRecordsWithUids(
+                                                                        records,
+                                                                        parcel.getUids()))));
+                            }
 
-                        @Override
-                        public void onError(HealthConnectExceptionParcel exception) {
-                            returnError(executor, exception, callback);
-                        }
-                    });
+                            @Override
+                            public void onError(HealthConnectExceptionParcel exception) {
+                                returnError(executor, exception, callback);
+                            }
+                        });
+            }
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -1207,6 +1218,57 @@ public class HealthConnectManager {
         }
     }
 
+    /**
+     * API to read records based on {@link ReadRecordsRequestUsingFilters} or {@link
+     * ReadRecordsRequestUsingIds}, for callers that go through large amounts of records.
+     *
+     * <p>Works like {@link #readRecords}, but the service writes the records to shared memory while
+     * reading them from the database, and they are only converted to {@link Record} while
+     * iterating over the response. Neither side holds a list of the whole page, so this uses less
+     * memory for large pages. The returned {@link StreamedReadRecordsResponse} must be closed.
+     *
+     * @param request Read request based on {@link ReadRecordsRequestUsingFilters} or {@link
+     *     ReadRecordsRequestUsingIds}
+     * @param executor Executor on which to invoke the callback.
+     * @param callback Callback to receive result of performing this operation.
+     * @throws IllegalArgumentException if request page size set is more than 5000 in {@link
+     *     ReadRecordsRequestUsingFilters}
+     * @throws SecurityException if app without read or write permission tries to read.
+     * @hide
+     */
+    public <T extends Record> void readRecordsStreamed(
+            @NonNull ReadRecordsRequest<T> request,
+            @NonNull Executor executor,
+            @NonNull
+                    OutcomeReceiver<StreamedReadRecordsResponse<T>, HealthConnectException>
+                            callback) {
+        Objects.requireNonNull(request);
+        Objects.requireNonNull(executor);
+        Objects.requireNonNull(callback);
+        try {
+            mService.readRecordsStreamed(
+                    mContext.getAttributionSource(),
+                    request.toReadRecordsRequestParcel(),
+                    new IStreamedReadRecordsResponseCallback.Stub() {
+                        @Override
+                        public void onResult(StreamedReadRecordsResponseParcel parcel) {
+                            Binder.clearCallingIdentity();
+                            executor.execute(
+                                    () ->
+                                            callback.onResult(
+                                                    new StreamedReadRecordsResponse<>(parcel)));
+                        }
+
+                        @Override
+                        public void onError(HealthConnectExceptionParcel exception) {
+                            returnError(executor, exception, callback);
+                        }
+                    });
+        } catch (RemoteException remoteException) {
+            remoteException.rethrowFromSystemServer();
+        }
+    }
+
     /**
      * Updates {@code records} into the HealthConnect database. In case of an error or a permission
      * failure the HealthConnect service, {@link OutcomeReceiver#onError} will be invoked with a
@@ -1244,22 +1306,27 @@ public class HealthConnectManager {
                 }
             }
 
-            mService.updateRecords(
-                    mContext.getAttributionSource(),
-                    new RecordsParcel(recordInternals),
-                    new IEmptyResponseCallback.Stub() {
-                        @Override
-                        public void onResult() {
-                            Binder.clearCallingIdentity();
-                            executor.execute(() -> callback.onResult(null));
-                        }
+            // The service reads the records before the call returns, so their shared memory
+            // can be reused once it does.
+            try (RecordsParcel recordsParcel =
+                    new RecordsParcel(recordInternals, mSharedMemoryPool)) {
+                mService.updateRecords(
+                        mContext.getAttributionSource(),
+                        recordsParcel,
+                        new IEmptyResponseCallback.Stub() {
+                            @Override
+                            public void onResult() {
+                                Binder.clearCallingIdentity();
+                                executor.execute(() -> callback.onResult(null));
+                            }
 
-                        @Override
-                        public void onError(HealthConnectExceptionParcel exception) {
-                            Binder.clearCallingIdentity();
-                            callback.onError(exception.getHealthConnectException());
-                        }
-                    });
+                            @Override
+                            public void onError(HealthConnectExceptionParcel exception) {
+                                Binder.clearCallingIdentity();
+                                callback.onError(exception.getHealthConnectException());
+                            }
+                        });
+            }
         } catch (ArithmeticException
                 | ClassCastException
                 | IllegalArgumentException invalidArgumentException) {
@@ -43,10 +43,27 @@ public final class PageTokenWrapper {
     private static final int OFFSET_START_BIT = 45;
     private static final int TIMESTAMP_START_BIT = 1;
 
+    /**
+     * Row id tokens have the top bit of the offset set and the next one cleared. Offset tokens
+     * only have them once more than 2^17 records with the same start time have been returned, and
+     * offset tokens capped to the maximum offset have both bits set.
+     */
+    private static final long ROW_ID_TOKEN_MASK = 3L << 61;
+
+    private static final long ROW_ID_TOKEN_FLAG = 1L << 62;
+    private static final long MAX_ALLOWED_ROW_ID = (1L << 34) - 1;
+    private static final int ROW_ID_START_BIT = 1;
+    // Row id tokens keep the start time rounded down to 2^18 millis, about 4.4 minutes.
+    private static final int TIME_BUCKET_BITS = 18;
+    private static final long MAX_ALLOWED_TIME_BUCKET = MAX_ALLOWED_TIME_MILLIS >> TIME_BUCKET_BITS;
+    private static final int TIME_BUCKET_START_BIT = 35;
+
     private final boolean mIsAscending;
     private final long mTimeMillis;
     private final int mOffset;
+    private final long mRowId;
     private final boolean mIsTimestampSet;
+    private final boolean mIsRowIdSet;
     private final boolean mIsEmpty;
 
     /** isAscending stored in the page token. */
@@ -54,21 +71,42 @@ public final class PageTokenWrapper {
         return mIsAscending;
     }
 
-    /** Timestamp stored in the page token. */
+    /**
+     * Timestamp stored in the page token. For row id tokens, the start time of the record rounded
+     * down, see {@link #ofRowId}.
+     */
     public long timeMillis() {
         return mTimeMillis;
     }
 
+    /**
+     * Highest start time the record of a row id token can have, given the rounded start time
+     * stored in the page token.
+     */
+    public long maxTimeMillis() {
+        return mIsRowIdSet ? mTimeMillis + (1L << TIME_BUCKET_BITS) - 1 : mTimeMillis;
+    }
+
     /** Offset stored in the page token. */
     public int offset() {
         return mOffset;
     }
 
+    /** Row id of the last record of the previous page, stored in the page token. */
+    public long rowId() {
+        return mRowId;
+    }
+
     /** Whether or not the timestamp is set. */
     public boolean isTimestampSet() {
         return mIsTimestampSet;
     }
 
+    /** Whether or not the row id is set. */
+    public boolean isRowIdSet() {
+        return mIsRowIdSet;
+    }
+
     /** Whether or not the page token contains meaningful values. */
     public boolean isEmpty() {
         return mIsEmpty;
@@ -91,6 +129,27 @@ public final class PageTokenWrapper {
         return new PageTokenWrapper(isAscending, timeMillis, boundedOffset);
     }
 
+    /**
+     * Generate a page token for the records after the one with {@code rowId} and start time {@code
+     * timeMillis}, which was the last record of the previous page. {@code rowId} has to be
+     * non-negative and cannot exceed 2^34-1; {@code timeMillis} is bound as in {@link #of}.
+     *
+     * <p>The page is read from the position of that record in the ordering of the records, so
+     * unlike {@link #of} no records have to be skipped, however many share its start time.
+     *
+     * <p>Note that due to space constraints, only {@code timeMillis} rounded down to 2^18 millis is
+     * kept. The exact start time is read from the record, the rounded one is only used if the
+     * record has been deleted in the meantime.
+     */
+    public static PageTokenWrapper ofRowId(boolean isAscending, long timeMillis, long rowId) {
+        checkArgument(timeMillis >= 0, "timestamp can not be negative");
+        checkArgument(timeMillis <= MAX_ALLOWED_TIME_MILLIS, "timestamp too large");
+        checkArgument(rowId >= 0, "row id can not be negative");
+        checkArgument(rowId <= MAX_ALLOWED_ROW_ID, "row id too large");
+        long roundedTimeMillis = (timeMillis >> TIME_BUCKET_BITS) << TIME_BUCKET_BITS;
+        return new PageTokenWrapper(isAscending, roundedTimeMillis, rowId);
+    }
+
     /**
      * Generate a page token that contains only {@code isAscending} information. Timestamp and
      * offset are not set.
@@ -113,6 +172,12 @@ public final class PageTokenWrapper {
             return PageTokenWrapper.ofAscending(defaultIsAscending);
         }
         checkArgument(pageToken >= 0, "pageToken cannot be negative");
+        if ((pageToken & ROW_ID_TOKEN_MASK) == ROW_ID_TOKEN_FLAG) {
+            return PageTokenWrapper.ofRowId(
+                    getIsAscending(pageToken),
+                    getTimeBucket(pageToken) << TIME_BUCKET_BITS,
+                    getRowId(pageToken));
+        }
         return PageTokenWrapper.of(
                 getIsAscending(pageToken), getTimestamp(pageToken), getOffset(pageToken));
     }
@@ -133,6 +198,16 @@ public final class PageTokenWrapper {
         return (pageToken & mask) >> TIMESTAMP_START_BIT;
     }
 
+    /** Shifts bits in the given {@code pageToken} to retrieve row id information. */
+    private static long getRowId(long pageToken) {
+        return (pageToken >> ROW_ID_START_BIT) & MAX_ALLOWED_ROW_ID;
+    }
+
+    /** Shifts bits in the given {@code pageToken} to retrieve the rounded timestamp. */
+    private static long getTimeBucket(long pageToken) {
+        return (pageToken >> TIME_BUCKET_START_BIT) & MAX_ALLOWED_TIME_BUCKET;
+    }
+
     /** Shifts bits in the given {@code pageToken} to retrieve offset information. */
     private static int getOffset(long pageToken) {
         return (int) (pageToken >> OFFSET_START_BIT);
@@ -153,8 +228,21 @@ public final class PageTokenWrapper {
      * <li>Next 44 bits: timestamp, represents epoch time millis
      * <li>Next 18 bits: offset, represents number of records processed in the previous page
      * <li>Sign bit: not used for encoding, page token is a signed long
+     *
+     *     <p>Page tokens with a row id are structured as following instead:
+     * <li>Least significant bit: 0 = isAscending true, 1 = isAscending false
+     * <li>Next 34 bits: row id of the last record of the previous page
+     * <li>Next 26 bits: start time of that record, in units of 2^18 millis
+     * <li>Next 2 bits: 01, tells them apart from the tokens above
+     * <li>Sign bit: not used for encoding, page token is a signed long
      */
     public long encode() {
+        if (mIsRowIdSet) {
+            return ROW_ID_TOKEN_FLAG
+                    | ((mTimeMillis >> TIME_BUCKET_BITS) << TIME_BUCKET_START_BIT)
+                    | (mRowId << ROW_ID_START_BIT)
+                    | (mIsAscending ? 0 : 1);
+        }
         return mIsTimestampSet
                 ? ((long) mOffset << OFFSET_START_BIT)
                         | (mTimeMillis << TIMESTAMP_START_BIT)
@@ -173,6 +261,10 @@ public final class PageTokenWrapper {
             builder.append(", timeMillis = ").append(mTimeMillis);
             builder.append(", offset = ").append(mOffset);
         }
+        if (mIsRowIdSet) {
+            builder.append(", timeMillis = ").append(mTimeMillis);
+            builder.append(", rowId = ").append(mRowId);
+        }
         return builder.append("}").toString();
     }
 
@@ -183,20 +275,41 @@ public final class PageTokenWrapper {
         return mIsAscending == that.mIsAscending
                 && mTimeMillis == that.mTimeMillis
                 && mOffset == that.mOffset
+                && mRowId == that.mRowId
                 && mIsTimestampSet == that.mIsTimestampSet
+                && mIsRowIdSet == that.mIsRowIdSet
                 && mIsEmpty == that.mIsEmpty;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(mIsAscending, mOffset, mTimeMillis, mIsTimestampSet, mIsEmpty);
+        return Objects.hash(
+                mIsAscending,
+                mOffset,
+                mTimeMillis,
+                mRowId,
+                mIsTimestampSet,
+                mIsRowIdSet,
+                mIsEmpty);
     }
 
     private PageTokenWrapper(boolean isAscending, long timeMillis, int offset) {
         this.mIsAscending = isAscending;
         this.mTimeMillis = timeMillis;
         this.mOffset = offset;
+        this.mRowId = 0;
         this.mIsTimestampSet = true;
+        this.mIsRowIdSet = false;
+        this.mIsEmpty = false;
+    }
+
+    private PageTokenWrapper(boolean isAscending, long timeMillis, long rowId) {
+        this.mIsAscending = isAscending;
+        this.mTimeMillis = timeMillis;
+        this.mOffset = 0;
+        this.mRowId = rowId;
+        this.mIsTimestampSet = false;
+        this.mIsRowIdSet = true;
         this.mIsEmpty = false;
     }
 
@@ -204,7 +317,9 @@ public final class PageTokenWrapper {
         this.mIsAscending = isAscending;
         this.mTimeMillis = 0;
         this.mOffset = 0;
+        this.mRowId = 0;
         this.mIsTimestampSet = false;
+        this.mIsRowIdSet = false;
         this.mIsEmpty = false;
     }
 
@@ -212,7 +327,9 @@ public final class PageTokenWrapper {
         this.mIsAscending = true;
         this.mTimeMillis = 0;
         this.mOffset = 0;
+        this.mRowId = 0;
         this.mIsTimestampSet = false;
+        this.mIsRowIdSet = false;
         this.mIsEmpty = true;
     }
 }
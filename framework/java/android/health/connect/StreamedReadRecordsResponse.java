@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.health.connect;
+
+import android.annotation.NonNull;
+import android.health.connect.aidl.StreamedReadRecordsResponseParcel;
+import android.health.connect.datatypes.Record;
+import android.health.connect.internal.datatypes.RecordInternal;
+
+import java.util.Iterator;
+
+/**
+ * Response containing the Records for {@link HealthConnectManager#readRecordsStreamed}.
+ *
+ * <p>Unlike {@link ReadRecordsResponse}, the records are kept in shared memory and are only
+ * converted to {@link Record} while iterating over them, so a page of records is never held in
+ * memory as a list. The response must be closed once it's no longer needed.
+ *
+ * @param <T> the type of the Record for Read record Response
+ * @hide
+ */
+public final class StreamedReadRecordsResponse<T extends Record>
+        implements Iterable<T>, AutoCloseable {
+    private final StreamedReadRecordsResponseParcel mParcel;
+
+    /** @hide */
+    public StreamedReadRecordsResponse(@NonNull StreamedReadRecordsResponseParcel parcel) {
+        mParcel = parcel;
+    }
+
+    /** Returns the number of records in this response. */
+    public int getRecordCount() {
+        return mParcel.getRecordCount();
+    }
+
+    /**
+     * Returns a page token to read the next page of the result. -1 if there are no more pages
+     * available.
+     */
+    public long getNextPageToken() {
+        return mParcel.getPageToken();
+    }
+
+    /**
+     * Returns an iterator over the records of this response. Each call returns a new iterator
+     * starting from the first record.
+     */
+    @NonNull
+    @Override
+    public Iterator<T> iterator() {
+        Iterator<RecordInternal<?>> recordInternals = mParcel.iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return recordInternals.hasNext();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                return (T) recordInternals.next().toExternalRecord();
+            }
+        };
+    }
+
+    /** Releases the shared memory holding the records. */
+    @Override
+    public void close() {
+        mParcel.close();
+    }
+}
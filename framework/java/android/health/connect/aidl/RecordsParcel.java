@@ -20,12 +20,17 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.health.connect.HealthConnectManager;
 import android.health.connect.internal.ParcelUtils;
+import android.health.connect.internal.SharedMemoryPool;
 import android.health.connect.internal.datatypes.RecordInternal;
 import android.health.connect.internal.datatypes.utils.ParcelRecordConverter;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
 
-import java.lang.reflect.InvocationTargetException;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -33,9 +38,15 @@ import java.util.List;
  * A wrapper to carry a list of entries of type {@link RecordInternal} from and to {@link
  * HealthConnectManager}
  *
+ * <p>Records that don't fit in {@link ParcelUtils#IPC_PARCEL_LIMIT} are written to {@link
+ * SharedMemory} one by one, and read from it one by one, so that neither side copies the whole
+ * payload. The region holds, for each record, its record type and the length of its data as two
+ * ints, followed by the data written by {@link RecordInternal#writeToParcel}. The number of records
+ * and the number of bytes used are written to the parcel, next to the region.
+ *
  * @hide
  */
-public class RecordsParcel implements Parcelable {
+public class RecordsParcel implements Parcelable, AutoCloseable {
     @NonNull
     public static final Creator<RecordsParcel> CREATOR =
             new Creator<>() {
@@ -50,35 +61,53 @@ public class RecordsParcel implements Parcelable {
                 }
             };
 
+    // Size of the record type and data length that precede the data of each record.
+    @VisibleForTesting public static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final String SHARED_MEMORY_NAME = "RecordsParcelSharedMemory";
+
     private final List<RecordInternal<?>> mRecordInternals;
+    @Nullable private final SharedMemoryPool mSharedMemoryPool;
+    @Nullable private SharedMemory mPooledSharedMemory;
     private long mRecordsChunkSize;
     private List<Long> mRecordsSize;
 
-    @SuppressWarnings("NullAway.Init") // TODO(b/317029272): fix this suppression
     public RecordsParcel(@NonNull List<RecordInternal<?>> recordInternals) {
+        this(recordInternals, /* sharedMemoryPool= */ null);
+    }
+
+    /**
+     * Creates a parcel that takes its shared memory from {@code sharedMemoryPool}, and gives it
+     * back when the parcel is closed. The parcel must only be closed once the receiving side is
+     * done reading it, such as after the synchronous binder call it was passed to returns.
+     */
+    @SuppressWarnings("NullAway.Init") // TODO(b/317029272): fix this suppression
+    public RecordsParcel(
+            @NonNull List<RecordInternal<?>> recordInternals,
+            @Nullable SharedMemoryPool sharedMemoryPool) {
         mRecordInternals = recordInternals;
+        mSharedMemoryPool = sharedMemoryPool;
     }
 
     private RecordsParcel(@NonNull Parcel in) {
-        in = ParcelUtils.getParcelForSharedMemoryIfRequired(in);
+        mSharedMemoryPool = null;
+        int parcelType = in.readInt();
         int size = in.readInt();
         mRecordInternals = new ArrayList<>(size);
         mRecordsSize = new ArrayList<>(size);
+        if (parcelType == ParcelUtils.USING_SHARED_MEMORY) {
+            readFromSharedMemory(in, size);
+            return;
+        }
+
         long remainingParcelSize = in.dataAvail();
         mRecordsChunkSize = remainingParcelSize;
+        ParcelRecordConverter parcelRecordConverter = ParcelRecordConverter.getInstance();
         for (int i = 0; i < size; i++) {
             int identifier = in.readInt();
-            try {
-                mRecordInternals.add(ParcelRecordConverter.getInstance().getRecord(in, identifier));
-                // Calculating record size based on before and after values of parcel size.
-                mRecordsSize.add(remainingParcelSize - in.dataAvail());
-                remainingParcelSize = in.dataAvail();
-            } catch (InstantiationException
-                     | IllegalAccessException
-                     | NoSuchMethodException
-                     | InvocationTargetException e) {
-                throw new IllegalArgumentException();
-            }
+            mRecordInternals.add(parcelRecordConverter.getRecord(in, identifier));
+            // Calculating record size based on before and after values of parcel size.
+            mRecordsSize.add(remainingParcelSize - in.dataAvail());
+            remainingParcelSize = in.dataAvail();
         }
     }
 
@@ -87,9 +116,30 @@ public class RecordsParcel implements Parcelable {
         return 0;
     }
 
+    /**
+     * Writes the records to {@code dest}, or to shared memory once they grow past {@link
+     * ParcelUtils#IPC_PARCEL_LIMIT}. In the latter case only the records written so far are
+     * written again.
+     */
     @Override
     public void writeToParcel(@NonNull Parcel dest, int flags) {
-        ParcelUtils.putToRequiredMemory(dest, flags, this::writeToParcelInternal);
+        int start = dest.dataPosition();
+        dest.writeInt(ParcelUtils.USING_PARCEL);
+        dest.writeInt(mRecordInternals.size());
+        for (int i = 0; i < mRecordInternals.size(); i++) {
+            RecordInternal<?> recordInternal = mRecordInternals.get(i);
+            dest.writeInt(recordInternal.getRecordType());
+            recordInternal.writeToParcel(dest);
+
+            int written = dest.dataPosition() - start;
+            if (written > ParcelUtils.IPC_PARCEL_LIMIT) {
+                dest.setDataPosition(start);
+                dest.setDataSize(start);
+                long estimatedSize = (long) written * mRecordInternals.size() / (i + 1);
+                writeToSharedMemory(dest, flags, (int) Math.min(estimatedSize, Integer.MAX_VALUE));
+                return;
+            }
+        }
     }
 
     @NonNull
@@ -112,11 +162,128 @@ public class RecordsParcel implements Parcelable {
         return mRecordsChunkSize;
     }
 
-    private void writeToParcelInternal(@NonNull Parcel dest) {
-        dest.writeInt(mRecordInternals.size());
-        for (RecordInternal<?> recordInternal : mRecordInternals) {
-            dest.writeInt(recordInternal.getRecordType());
-            recordInternal.writeToParcel(dest);
+    /** Gives the shared memory this parcel was written to back to its pool, if it has one. */
+    @Override
+    public void close() {
+        if (mPooledSharedMemory != null && mSharedMemoryPool != null) {
+            mSharedMemoryPool.release(mPooledSharedMemory);
+            mPooledSharedMemory = null;
+        }
+    }
+
+    private void writeToSharedMemory(@NonNull Parcel dest, int flags, int estimatedSize) {
+        Parcel recordParcel = Parcel.obtain();
+        SharedMemory sharedMemory = acquireSharedMemory(estimatedSize);
+        ByteBuffer buffer = mapReadWrite(sharedMemory);
+        try {
+            for (RecordInternal<?> recordInternal : mRecordInternals) {
+                recordParcel.setDataSize(0);
+                recordParcel.setDataPosition(0);
+                recordInternal.writeToParcel(recordParcel);
+                byte[] recordData = recordParcel.marshall();
+
+                int requiredSize = RECORD_HEADER_SIZE + recordData.length;
+                if (buffer.remaining() < requiredSize) {
+                    SharedMemory largerSharedMemory =
+                            acquireSharedMemory(
+                                    Math.max(
+                                            2 * sharedMemory.getSize(),
+                                            buffer.position() + requiredSize));
+                    ByteBuffer largerBuffer = mapReadWrite(largerSharedMemory);
+                    buffer.flip();
+                    largerBuffer.put(buffer);
+                    SharedMemory.unmap(buffer);
+                    releaseSharedMemory(sharedMemory);
+                    sharedMemory = largerSharedMemory;
+                    buffer = largerBuffer;
+                }
+                buffer.putInt(recordInternal.getRecordType());
+                buffer.putInt(recordData.length);
+                buffer.put(recordData);
+            }
+
+            dest.writeInt(ParcelUtils.USING_SHARED_MEMORY);
+            dest.writeInt(mRecordInternals.size());
+            dest.writeInt(buffer.position());
+            sharedMemory.writeToParcel(dest, flags);
+        } finally {
+            SharedMemory.unmap(buffer);
+            recordParcel.recycle();
+            if (mSharedMemoryPool != null) {
+                close();
+                mPooledSharedMemory = sharedMemory;
+            } else {
+                sharedMemory.close();
+            }
+        }
+    }
+
+    private void readFromSharedMemory(@NonNull Parcel in, int size) {
+        int dataSize = in.readInt();
+        mRecordsChunkSize = dataSize;
+        ParcelRecordConverter parcelRecordConverter = ParcelRecordConverter.getInstance();
+        Parcel recordParcel = Parcel.obtain();
+        try (SharedMemory sharedMemory = SharedMemory.CREATOR.createFromParcel(in)) {
+            ByteBuffer buffer = sharedMemory.mapReadOnly();
+            try {
+                if (dataSize < 0 || dataSize > buffer.capacity()) {
+                    throw new IllegalArgumentException("Invalid size of records: " + dataSize);
+                }
+                buffer.limit(dataSize);
+                byte[] recordData = new byte[0];
+                for (int i = 0; i < size; i++) {
+                    int identifier = buffer.getInt();
+                    int length = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) {
+                        throw new IllegalArgumentException("Invalid size of record: " + length);
+                    }
+                    if (recordData.length < length) {
+                        recordData = new byte[length];
+                    }
+                    buffer.get(recordData, 0, length);
+
+                    recordParcel.setDataSize(0);
+                    recordParcel.unmarshall(recordData, 0, length);
+                    recordParcel.setDataPosition(0);
+                    mRecordInternals.add(parcelRecordConverter.getRecord(recordParcel, identifier));
+                    mRecordsSize.add((long) RECORD_HEADER_SIZE + length);
+                }
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+        } catch (ErrnoException e) {
+            throw new RuntimeException(e);
+        } finally {
+            recordParcel.recycle();
+        }
+    }
+
+    @NonNull
+    private SharedMemory acquireSharedMemory(int minSize) {
+        if (mSharedMemoryPool != null) {
+            return mSharedMemoryPool.acquire(minSize);
+        }
+        try {
+            return SharedMemory.create(SHARED_MEMORY_NAME, SharedMemoryPool.getRegionSize(minSize));
+        } catch (ErrnoException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void releaseSharedMemory(@NonNull SharedMemory sharedMemory) {
+        if (mSharedMemoryPool != null) {
+            mSharedMemoryPool.release(sharedMemory);
+        } else {
+            sharedMemory.close();
+        }
+    }
+
+    @NonNull
+    private static ByteBuffer mapReadWrite(@NonNull SharedMemory sharedMemory) {
+        try {
+            return sharedMemory.mapReadWrite();
+        } catch (ErrnoException e) {
+            throw new RuntimeException(e);
         }
     }
 }
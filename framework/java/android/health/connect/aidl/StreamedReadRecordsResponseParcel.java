@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.health.connect.aidl;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.health.connect.HealthConnectManager;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.utils.ParcelRecordConverter;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A parcel to carry response to {@link HealthConnectManager#readRecordsStreamed}.
+ *
+ * <p>The records are written to {@link SharedMemory} one by one while they are read from the
+ * database, see {@link Writer}, and are only converted back to {@link RecordInternal} when the
+ * client iterates over them. Each record is stored as its record type, the length of its data, and
+ * the data written by {@link RecordInternal#writeToParcel}. The type and length are written by
+ * {@link Parcel#writeInt}, in native byte order.
+ *
+ * @hide
+ */
+public class StreamedReadRecordsResponseParcel implements Parcelable, AutoCloseable {
+    @NonNull
+    public static final Creator<StreamedReadRecordsResponseParcel> CREATOR =
+            new Creator<>() {
+                @Override
+                public StreamedReadRecordsResponseParcel createFromParcel(Parcel in) {
+                    return new StreamedReadRecordsResponseParcel(in);
+                }
+
+                @Override
+                public StreamedReadRecordsResponseParcel[] newArray(int size) {
+                    return new StreamedReadRecordsResponseParcel[size];
+                }
+            };
+
+    private static final String SHARED_MEMORY_NAME = "StreamedRecordsSharedMemory";
+    // Size of the record type and data length that precede the data of each record.
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    @Nullable private final SharedMemory mSharedMemory;
+    private final int mRecordCount;
+    private final int mDataSize;
+    private final long mPageToken;
+    @Nullable private ByteBuffer mBuffer;
+
+    private StreamedReadRecordsResponseParcel(
+            @Nullable SharedMemory sharedMemory, int recordCount, int dataSize, long pageToken) {
+        mSharedMemory = sharedMemory;
+        mRecordCount = recordCount;
+        mDataSize = dataSize;
+        mPageToken = pageToken;
+    }
+
+    private StreamedReadRecordsResponseParcel(@NonNull Parcel in) {
+        mPageToken = in.readLong();
+        mRecordCount = in.readInt();
+        mDataSize = in.readInt();
+        mSharedMemory = mRecordCount > 0 ? SharedMemory.CREATOR.createFromParcel(in) : null;
+    }
+
+    /** Returns a response with no records. */
+    @NonNull
+    public static StreamedReadRecordsResponseParcel empty(long pageToken) {
+        return new StreamedReadRecordsResponseParcel(
+                /* sharedMemory= */ null, /* recordCount= */ 0, /* dataSize= */ 0, pageToken);
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /** Returns the number of bytes used by the records. */
+    public int getDataSize() {
+        return mDataSize;
+    }
+
+    public long getPageToken() {
+        return mPageToken;
+    }
+
+    /**
+     * Returns an iterator that converts the records to {@link RecordInternal} one at a time.
+     *
+     * <p>The records are only valid until this parcel is closed.
+     */
+    @NonNull
+    public Iterator<RecordInternal<?>> iterator() {
+        return new RecordIterator(getBuffer());
+    }
+
+    @Override
+    public void close() {
+        if (mBuffer != null) {
+            SharedMemory.unmap(mBuffer);
+            mBuffer = null;
+        }
+        if (mSharedMemory != null) {
+            mSharedMemory.close();
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return mSharedMemory != null ? CONTENTS_FILE_DESCRIPTOR : 0;
+    }
+
+    @Override
+    public void writeToParcel(@NonNull Parcel dest, int flags) {
+        dest.writeLong(mPageToken);
+        dest.writeInt(mRecordCount);
+        dest.writeInt(mDataSize);
+        if (mSharedMemory != null) {
+            mSharedMemory.writeToParcel(dest, flags);
+        }
+    }
+
+    @NonNull
+    private synchronized ByteBuffer getBuffer() {
+        if (mSharedMemory == null) {
+            return ByteBuffer.allocate(0);
+        }
+        if (mBuffer == null) {
+            try {
+                mBuffer = mSharedMemory.mapReadOnly();
+            } catch (ErrnoException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return mBuffer.duplicate();
+    }
+
+    private final class RecordIterator implements Iterator<RecordInternal<?>> {
+        private final ByteBuffer mRecordsBuffer;
+        private final ParcelRecordConverter mParcelRecordConverter =
+                ParcelRecordConverter.getInstance();
+        private byte[] mRecordData = new byte[0];
+        private int mNextIndex;
+
+        RecordIterator(@NonNull ByteBuffer recordsBuffer) {
+            mRecordsBuffer = recordsBuffer.order(ByteOrder.nativeOrder());
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNextIndex < mRecordCount;
+        }
+
+        @Override
+        public RecordInternal<?> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int recordType = mRecordsBuffer.getInt();
+            int length = mRecordsBuffer.getInt();
+            if (mRecordData.length < length) {
+                mRecordData = new byte[length];
+            }
+            mRecordsBuffer.get(mRecordData, 0, length);
+            mNextIndex++;
+
+            Parcel recordParcel = Parcel.obtain();
+            try {
+                recordParcel.unmarshall(mRecordData, 0, length);
+                recordParcel.setDataPosition(0);
+                return mParcelRecordConverter.getRecord(recordParcel, recordType);
+            } finally {
+                recordParcel.recycle();
+            }
+        }
+    }
+
+    /**
+     * Writes records to a {@link SharedMemory} region as they are produced, without keeping a list
+     * of them. The region starts small and is doubled in size whenever it runs out of space.
+     *
+     * <p>Records and their headers are written to one reused {@link Parcel}, which is copied to
+     * the region once it holds {@link #BATCH_SIZE} bytes, rather than marshalling each record to
+     * its own array.
+     */
+    public static final class Writer implements AutoCloseable {
+        private static final int INITIAL_CAPACITY = 64 * 1024;
+        private static final int BATCH_SIZE = 32 * 1024;
+
+        private final Parcel mBatchParcel = Parcel.obtain();
+        @Nullable private SharedMemory mSharedMemory;
+        @Nullable private ByteBuffer mBuffer;
+        private int mRecordCount;
+
+        /** Appends {@code record} to the shared memory. */
+        public void append(@NonNull RecordInternal<?> record) {
+            int start = mBatchParcel.dataPosition();
+            mBatchParcel.writeInt(record.getRecordType());
+            // Length of the record data, written once it's known.
+            mBatchParcel.writeInt(0);
+            record.writeToParcel(mBatchParcel);
+            int end = mBatchParcel.dataPosition();
+            mBatchParcel.setDataPosition(start + Integer.BYTES);
+            mBatchParcel.writeInt(end - start - RECORD_HEADER_SIZE);
+            mBatchParcel.setDataPosition(end);
+            mRecordCount++;
+
+            if (end >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        public int getRecordCount() {
+            return mRecordCount;
+        }
+
+        /**
+         * Returns a parcel with the records appended so far. The shared memory is handed over to
+         * the returned parcel, and this writer can't be used anymore.
+         */
+        @NonNull
+        public StreamedReadRecordsResponseParcel finish(long pageToken) {
+            flush();
+            if (mSharedMemory == null || mBuffer == null) {
+                return empty(pageToken);
+            }
+            int dataSize = mBuffer.position();
+            SharedMemory.unmap(mBuffer);
+            mBuffer = null;
+            if (!mSharedMemory.setProtect(OsConstants.PROT_READ)) {
+                throw new IllegalStateException("Failed to make the records read only");
+            }
+            StreamedReadRecordsResponseParcel parcel =
+                    new StreamedReadRecordsResponseParcel(
+                            mSharedMemory, mRecordCount, dataSize, pageToken);
+            mSharedMemory = null;
+            return parcel;
+        }
+
+        @Override
+        public void close() {
+            mBatchParcel.recycle();
+            if (mBuffer != null) {
+                SharedMemory.unmap(mBuffer);
+                mBuffer = null;
+            }
+            if (mSharedMemory != null) {
+                mSharedMemory.close();
+                mSharedMemory = null;
+            }
+        }
+
+        /** Copies the records written to {@link #mBatchParcel} to the shared memory. */
+        private void flush() {
+            if (mBatchParcel.dataPosition() == 0) {
+                return;
+            }
+            byte[] batchData = mBatchParcel.marshall();
+            ensureCapacity(batchData.length).put(batchData);
+            mBatchParcel.setDataSize(0);
+            mBatchParcel.setDataPosition(0);
+        }
+
+        @NonNull
+        private ByteBuffer ensureCapacity(int size) {
+            if (mBuffer != null && mBuffer.remaining() >= size) {
+                return mBuffer;
+            }
+
+            int used = mBuffer == null ? 0 : mBuffer.position();
+            int capacity = mBuffer == null ? INITIAL_CAPACITY : mBuffer.capacity();
+            while (capacity - used < size) {
+                capacity *= 2;
+            }
+            try {
+                SharedMemory sharedMemory = SharedMemory.create(SHARED_MEMORY_NAME, capacity);
+                ByteBuffer buffer = sharedMemory.mapReadWrite();
+                if (mBuffer != null) {
+                    mBuffer.flip();
+                    buffer.put(mBuffer);
+                    SharedMemory.unmap(mBuffer);
+                    mSharedMemory.close();
+                }
+                mSharedMemory = sharedMemory;
+                mBuffer = buffer;
+                return buffer;
+            } catch (ErrnoException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -88,7 +88,8 @@ public final class ParcelUtils {
                 }
             } else {
                 dest.writeInt(USING_PARCEL);
-                parcelRunnable.writeToParcel(dest);
+                // Copy what was already written instead of writing it again.
+                dest.appendFrom(dataParcel, 0, dataParcelSize);
             }
         } finally {
             dataParcel.recycle();
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.health.connect.internal;
+
+import android.annotation.NonNull;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Keeps {@link SharedMemory} regions that were used to send data to the service, so that the next
+ * call can write into them instead of creating and mapping new regions.
+ *
+ * <p>A region must only be released once the receiving side can't read it anymore, which is the
+ * case once a synchronous binder call that took it returns, if the receiver reads it while it is
+ * unparcelled.
+ *
+ * @hide
+ */
+public final class SharedMemoryPool {
+    @VisibleForTesting public static final int MIN_REGION_SIZE = 64 * 1024;
+    // Regions are kept as long as the client keeps its HealthConnectManager, so only a few small
+    // enough ones are kept. Most inserts and updates are split in chunks of at most a few MB.
+    @VisibleForTesting public static final int MAX_POOLED_BYTES = 4 * 1024 * 1024;
+    private static final String SHARED_MEMORY_NAME = "RecordsParcelSharedMemory";
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArrayDeque<SharedMemory> mRegions = new ArrayDeque<>();
+
+    @GuardedBy("mLock")
+    private int mPooledBytes;
+
+    /**
+     * Returns a region of at least {@code minSize} bytes, reusing a released region if there is
+     * one big enough. Sizes of new regions are rounded up to a power of two so that they fit more
+     * of the following calls.
+     */
+    @NonNull
+    public SharedMemory acquire(int minSize) {
+        synchronized (mLock) {
+            Iterator<SharedMemory> iterator = mRegions.iterator();
+            while (iterator.hasNext()) {
+                SharedMemory region = iterator.next();
+                if (region.getSize() >= minSize) {
+                    iterator.remove();
+                    mPooledBytes -= region.getSize();
+                    return region;
+                }
+            }
+        }
+
+        return create(getRegionSize(minSize));
+    }
+
+    /**
+     * Gives {@code region} back to the pool, or closes it if the pool is full. The protection of
+     * the region must not have been reduced, as it can't be restored.
+     */
+    public void release(@NonNull SharedMemory region) {
+        synchronized (mLock) {
+            if (mPooledBytes + region.getSize() <= MAX_POOLED_BYTES) {
+                mRegions.addFirst(region);
+                mPooledBytes += region.getSize();
+                return;
+            }
+        }
+        region.close();
+    }
+
+    /** Closes all regions in the pool. */
+    public void clear() {
+        synchronized (mLock) {
+            for (SharedMemory region : mRegions) {
+                region.close();
+            }
+            mRegions.clear();
+            mPooledBytes = 0;
+        }
+    }
+
+    @VisibleForTesting
+    public int getPooledBytes() {
+        synchronized (mLock) {
+            return mPooledBytes;
+        }
+    }
+
+    /** Returns the smallest power of two that is at least {@code minSize} and the minimum size. */
+    public static int getRegionSize(int minSize) {
+        if (minSize <= MIN_REGION_SIZE) {
+            return MIN_REGION_SIZE;
+        }
+        int size = Integer.highestOneBit(minSize);
+        return size == minSize || size == 1 << 30 ? minSize : size << 1;
+    }
+
+    @NonNull
+    private static SharedMemory create(int size) {
+        try {
+            return SharedMemory.create(SHARED_MEMORY_NAME, size);
+        } catch (ErrnoException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -21,10 +21,6 @@ import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.internal.datatypes.RecordInternal;
 import android.os.Parcel;
 
-import java.lang.reflect.InvocationTargetException;
-import java.util.Map;
-import java.util.Objects;
-
 /**
  * A helper class used to create {@link RecordInternal} objects using its bundle.
  *
@@ -34,11 +30,10 @@ public final class ParcelRecordConverter {
     @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
     private static volatile ParcelRecordConverter sParcelRecordConverter = null;
 
-    private final Map<Integer, Class<? extends RecordInternal<?>>> mDataTypeClassMap;
+    private final RecordMapper mRecordMapper;
 
     private ParcelRecordConverter() {
-        // Add any new data type here to facilitate its conversion.
-        mDataTypeClassMap = RecordMapper.getInstance().getRecordIdToInternalRecordClassMap();
+        mRecordMapper = RecordMapper.getInstance();
     }
 
     @NonNull
@@ -50,15 +45,15 @@ public final class ParcelRecordConverter {
         return sParcelRecordConverter;
     }
 
-    /** Returns a record for {@code bundle}, assuming it is of type represented by {@code type} */
+    /**
+     * Returns a record for {@code bundle}, assuming it is of type represented by {@code type}
+     *
+     * @throws IllegalArgumentException if {@code type} is unknown.
+     */
     @NonNull
     public RecordInternal<?> getRecord(
-            @NonNull Parcel parcel, @RecordTypeIdentifier.RecordType int type)
-            throws InstantiationException, IllegalAccessException, NoSuchMethodException,
-                    InvocationTargetException {
-        Class<? extends RecordInternal<?>> recordClass = mDataTypeClassMap.get(type);
-        Objects.requireNonNull(recordClass);
-        RecordInternal<?> recordInternal = recordClass.getConstructor().newInstance();
+            @NonNull Parcel parcel, @RecordTypeIdentifier.RecordType int type) {
+        RecordInternal<?> recordInternal = mRecordMapper.newInternalRecord(type);
         recordInternal.populateUsing(parcel);
         return recordInternal;
     }
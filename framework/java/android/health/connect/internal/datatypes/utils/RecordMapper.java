@@ -101,6 +101,7 @@ import android.health.connect.internal.datatypes.WheelchairPushesRecordInternal;
 import android.util.ArrayMap;
 
 import java.util.Map;
+import java.util.function.Supplier;
 
 /** @hide */
 public final class RecordMapper {
@@ -111,6 +112,7 @@ public final class RecordMapper {
 
     private final Map<Integer, Class<? extends RecordInternal<?>>>
             mRecordIdToInternalRecordClassMap;
+    private final Map<Integer, Supplier<RecordInternal<?>>> mRecordIdToInternalRecordFactoryMap;
     private final Map<Integer, Class<? extends Record>> mRecordIdToExternalRecordClassMap;
     private final Map<Class<? extends Record>, Integer> mExternalRecordClassToRecordIdMap;
 
@@ -218,6 +220,104 @@ public final class RecordMapper {
                 RecordTypeIdentifier.RECORD_TYPE_SKIN_TEMPERATURE,
                 SkinTemperatureRecordInternal.class);
 
+        mRecordIdToInternalRecordFactoryMap = new ArrayMap<>(NUM_ENTRIES);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_STEPS, StepsRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_HEART_RATE, HeartRateRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_FLOORS_CLIMBED, FloorsClimbedRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_HYDRATION, HydrationRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_ACTIVE_CALORIES_BURNED,
+                ActiveCaloriesBurnedRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_ELEVATION_GAINED,
+                ElevationGainedRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_WHEELCHAIR_PUSHES,
+                WheelchairPushesRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_TOTAL_CALORIES_BURNED,
+                TotalCaloriesBurnedRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_DISTANCE, DistanceRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_BASAL_METABOLIC_RATE,
+                BasalMetabolicRateRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_CYCLING_PEDALING_CADENCE,
+                CyclingPedalingCadenceRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_POWER, PowerRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_NUTRITION, NutritionRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_SPEED, SpeedRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_STEPS_CADENCE, StepsCadenceRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_BODY_WATER_MASS, BodyWaterMassRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_HEART_RATE_VARIABILITY_RMSSD,
+                HeartRateVariabilityRmssdRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_MENSTRUATION_PERIOD,
+                MenstruationPeriodRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_INTERMENSTRUAL_BLEEDING,
+                IntermenstrualBleedingRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_VO2_MAX, Vo2MaxRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_SEXUAL_ACTIVITY,
+                SexualActivityRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_RESTING_HEART_RATE,
+                RestingHeartRateRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_WEIGHT, WeightRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_OXYGEN_SATURATION,
+                OxygenSaturationRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_RESPIRATORY_RATE,
+                RespiratoryRateRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_BODY_TEMPERATURE,
+                BodyTemperatureRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_BONE_MASS, BoneMassRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_BLOOD_PRESSURE, BloodPressureRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_BODY_FAT, BodyFatRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_BLOOD_GLUCOSE, BloodGlucoseRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_BASAL_BODY_TEMPERATURE,
+                BasalBodyTemperatureRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_OVULATION_TEST, OvulationTestRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_MENSTRUATION_FLOW,
+                MenstruationFlowRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_CERVICAL_MUCUS, CervicalMucusRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_HEIGHT, HeightRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_LEAN_BODY_MASS, LeanBodyMassRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_EXERCISE_SESSION,
+                ExerciseSessionRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_SLEEP_SESSION, SleepSessionRecordInternal::new);
+        mRecordIdToInternalRecordFactoryMap.put(
+                RecordTypeIdentifier.RECORD_TYPE_SKIN_TEMPERATURE,
+                SkinTemperatureRecordInternal::new);
+
         mRecordIdToExternalRecordClassMap = new ArrayMap<>(NUM_ENTRIES);
         mRecordIdToExternalRecordClassMap.put(
                 RecordTypeIdentifier.RECORD_TYPE_STEPS, StepsRecord.class);
@@ -330,6 +430,23 @@ public final class RecordMapper {
         return mRecordIdToInternalRecordClassMap;
     }
 
+    /**
+     * Returns a new, empty {@link RecordInternal} of {@code recordType}.
+     *
+     * <p>Records are created through constructor references rather than reflection, as this runs
+     * for every record that is read or unparceled.
+     *
+     * @throws IllegalArgumentException if {@code recordType} is unknown.
+     */
+    @NonNull
+    public RecordInternal<?> newInternalRecord(@RecordTypeIdentifier.RecordType int recordType) {
+        Supplier<RecordInternal<?>> factory = mRecordIdToInternalRecordFactoryMap.get(recordType);
+        if (factory == null) {
+            throw new IllegalArgumentException("Unknown record type: " + recordType);
+        }
+        return factory.get();
+    }
+
     @NonNull
     public Map<Integer, Class<? extends Record>> getRecordIdToExternalRecordClassMap() {
         return mRecordIdToExternalRecordClassMap;
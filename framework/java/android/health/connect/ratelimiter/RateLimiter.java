@@ -17,26 +17,27 @@
 package android.health.connect.ratelimiter;
 
 import android.annotation.IntDef;
+import android.annotation.NonNull;
 import android.health.connect.HealthConnectException;
 
-import com.android.internal.annotations.GuardedBy;
-
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.time.Duration;
-import java.time.Instant;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Basic rate limiter that assigns a fixed request rate quota. If no quota has previously been noted
  * (e.g. first request scenario), the full quota for each window will be immediately granted.
  *
+ * <p>Each quota is a token bucket that refills at the rate of its max quota per window. It is
+ * stored as a single long: the time at which the bucket is full again, in nanoseconds since {@link
+ * #TIME_ORIGIN_NANOS}. A time in the past means a full bucket, and spending {@code cost} moves the
+ * time forward by the time it takes to refill {@code cost}. This makes acquiring a quota a
+ * compare-and-set of that long, without locks and without allocations.
+ *
  * @hide
  */
 public final class RateLimiter {
@@ -46,32 +47,53 @@ public final class RateLimiter {
     public static final String RECORD_SIZE_LIMIT_IN_BYTES = "record_size_limit_in_bytes";
     private static final int DEFAULT_API_CALL_COST = 1;
 
-    private static final ReentrantReadWriteLock sLockAcrossAppQuota = new ReentrantReadWriteLock();
-    private static final Map<Integer, Quota> sQuotaBucketToAcrossAppsRemainingMemoryQuota =
-            new HashMap<>();
-
-    private static final Map<Integer, Map<Integer, Quota>> sUserIdToQuotasMap = new HashMap<>();
-
-    private static final ConcurrentMap<Integer, Integer> sLocks = new ConcurrentHashMap<>();
-
-    private static final Map<Integer, Float> QUOTA_BUCKET_TO_MAX_ROLLING_QUOTA_MAP =
-            new HashMap<>();
+    private static final int QUOTA_BUCKET_COUNT =
+            QuotaBucket.QUOTA_BUCKET_DATA_PUSH_LIMIT_ACROSS_APPS_15M + 1;
+    private static final long WINDOW_15M_NANOS = TimeUnit.MINUTES.toNanos(15);
+    private static final long WINDOW_24H_NANOS = TimeUnit.HOURS.toNanos(24);
+    // Stored times are relative to this, so that the initial value 0 means a full bucket.
+    private static final long TIME_ORIGIN_NANOS = System.nanoTime() - 1;
+
+    private static final int[] NO_QUOTA_BUCKETS = {};
+    private static final int[] READ_FOREGROUND_QUOTA_BUCKETS = {
+        QuotaBucket.QUOTA_BUCKET_READS_PER_15M_FOREGROUND,
+        QuotaBucket.QUOTA_BUCKET_READS_PER_24H_FOREGROUND
+    };
+    private static final int[] READ_BACKGROUND_QUOTA_BUCKETS = {
+        QuotaBucket.QUOTA_BUCKET_READS_PER_15M_BACKGROUND,
+        QuotaBucket.QUOTA_BUCKET_READS_PER_24H_BACKGROUND
+    };
+    private static final int[] WRITE_FOREGROUND_QUOTA_BUCKETS = {
+        QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_FOREGROUND,
+        QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_FOREGROUND
+    };
+    private static final int[] WRITE_BACKGROUND_QUOTA_BUCKETS = {
+        QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_BACKGROUND,
+        QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND
+    };
+    private static final int[] MEMORY_BACKGROUND_QUOTA_BUCKETS = {
+        QuotaBucket.QUOTA_BUCKET_DATA_PUSH_LIMIT_PER_APP_15M
+    };
+    private static final int[] ACROSS_APPS_QUOTA_BUCKETS = {
+        QuotaBucket.QUOTA_BUCKET_DATA_PUSH_LIMIT_ACROSS_APPS_15M
+    };
+
+    private static final UidQuotas sUidQuotas = new UidQuotas(QUOTA_BUCKET_COUNT);
+    private static volatile AtomicLongArray sAcrossAppsQuotas =
+            new AtomicLongArray(QUOTA_BUCKET_COUNT);
+
+    // Indexed by quota bucket, NaN for buckets without a configured max quota. Replaced as a whole
+    // when the configuration changes.
+    private static volatile float[] sMaxRollingQuotas = getUnconfiguredMaxRollingQuotas();
     private static final Map<String, Integer> QUOTA_BUCKET_TO_MAX_MEMORY_QUOTA_MAP =
-            new HashMap<>();
-    private static final ReentrantReadWriteLock sLock = new ReentrantReadWriteLock();
+            new ConcurrentHashMap<>();
 
-    @GuardedBy("sLock")
-    private static boolean sRateLimiterEnabled;
+    private static volatile boolean sRateLimiterEnabled;
 
     public static void tryAcquireApiCallQuota(
             int uid, @QuotaCategory.Type int quotaCategory, boolean isInForeground) {
-        sLock.readLock().lock();
-        try {
-            if (!sRateLimiterEnabled) {
-                return;
-            }
-        } finally {
-            sLock.readLock().unlock();
+        if (!sRateLimiterEnabled) {
+            return;
         }
         if (quotaCategory == QuotaCategory.QUOTA_CATEGORY_UNDEFINED) {
             throw new IllegalArgumentException("Quota category not defined.");
@@ -82,12 +104,11 @@ public final class RateLimiter {
             return;
         }
 
-        synchronized (getLockObject(uid)) {
-            spendApiCallResourcesIfAvailable(
-                    uid,
-                    getAffectedAPIQuotaBuckets(quotaCategory, isInForeground),
-                    DEFAULT_API_CALL_COST);
-        }
+        acquire(
+                sUidQuotas.get(uid),
+                getAffectedAPIQuotaBuckets(quotaCategory, isInForeground),
+                DEFAULT_API_CALL_COST,
+                getNow());
     }
 
     public static void tryAcquireApiCallQuota(
@@ -95,13 +116,8 @@ public final class RateLimiter {
             @QuotaCategory.Type int quotaCategory,
             boolean isInForeground,
             long memoryCost) {
-        sLock.readLock().lock();
-        try {
-            if (!sRateLimiterEnabled) {
-                return;
-            }
-        } finally {
-            sLock.readLock().unlock();
+        if (!sRateLimiterEnabled) {
+            return;
         }
         if (quotaCategory == QuotaCategory.QUOTA_CATEGORY_UNDEFINED) {
             throw new IllegalArgumentException("Quota category not defined.");
@@ -114,30 +130,35 @@ public final class RateLimiter {
         if (quotaCategory != QuotaCategory.QUOTA_CATEGORY_WRITE) {
             throw new IllegalArgumentException("Quota category must be QUOTA_CATEGORY_WRITE.");
         }
-        sLockAcrossAppQuota.writeLock().lock();
+
+        AtomicLongArray uidQuotas = sUidQuotas.get(uid);
+        AtomicLongArray acrossAppsQuotas = sAcrossAppsQuotas;
+        int[] acrossAppsQuotaBuckets =
+                isInForeground ? NO_QUOTA_BUCKETS : ACROSS_APPS_QUOTA_BUCKETS;
+        int[] apiQuotaBuckets = getAffectedAPIQuotaBuckets(quotaCategory, isInForeground);
+        int[] memoryQuotaBuckets = getAffectedMemoryQuotaBuckets(quotaCategory, isInForeground);
+        long now = getNow();
+
+        // Quotas acquired before a quota that is exceeded are given back, so that nothing is spent
+        // unless all quotas are available.
+        acquire(acrossAppsQuotas, acrossAppsQuotaBuckets, memoryCost, now);
         try {
-            synchronized (getLockObject(uid)) {
-                spendApiAndMemoryResourcesIfAvailable(
-                        uid,
-                        getAffectedAPIQuotaBuckets(quotaCategory, isInForeground),
-                        getAffectedMemoryQuotaBuckets(quotaCategory, isInForeground),
-                        DEFAULT_API_CALL_COST,
-                        memoryCost,
-                        isInForeground);
+            acquire(uidQuotas, apiQuotaBuckets, DEFAULT_API_CALL_COST, now);
+            try {
+                acquire(uidQuotas, memoryQuotaBuckets, memoryCost, now);
+            } catch (RateLimiterException e) {
+                release(uidQuotas, apiQuotaBuckets, DEFAULT_API_CALL_COST, apiQuotaBuckets.length);
+                throw e;
             }
-        } finally {
-            sLockAcrossAppQuota.writeLock().unlock();
+        } catch (RateLimiterException e) {
+            release(acrossAppsQuotas, acrossAppsQuotaBuckets, memoryCost, 1);
+            throw e;
         }
     }
 
     public static void checkMaxChunkMemoryUsage(long memoryCost) {
-        sLock.readLock().lock();
-        try {
-            if (!sRateLimiterEnabled) {
-                return;
-            }
-        } finally {
-            sLock.readLock().unlock();
+        if (!sRateLimiterEnabled) {
+            return;
         }
         long memoryLimit = getConfiguredMaxApiMemoryQuota(CHUNK_SIZE_LIMIT_IN_BYTES);
         if (memoryCost > memoryLimit) {
@@ -151,13 +172,8 @@ public final class RateLimiter {
     }
 
     public static void checkMaxRecordMemoryUsage(long memoryCost) {
-        sLock.readLock().lock();
-        try {
-            if (!sRateLimiterEnabled) {
-                return;
-            }
-        } finally {
-            sLock.readLock().unlock();
+        if (!sRateLimiterEnabled) {
+            return;
         }
         long memoryLimit = getConfiguredMaxApiMemoryQuota(RECORD_SIZE_LIMIT_IN_BYTES);
         if (memoryCost > memoryLimit) {
@@ -171,193 +187,109 @@ public final class RateLimiter {
     }
 
     public static void clearCache() {
-        sUserIdToQuotasMap.clear();
-        sQuotaBucketToAcrossAppsRemainingMemoryQuota.clear();
+        sUidQuotas.clear();
+        sAcrossAppsQuotas = new AtomicLongArray(QUOTA_BUCKET_COUNT);
     }
 
     public static void updateMaxRollingQuotaMap(
             Map<Integer, Integer> quotaBucketToMaxRollingQuotaMap) {
-
-        for (Integer key : quotaBucketToMaxRollingQuotaMap.keySet()) {
-            QUOTA_BUCKET_TO_MAX_ROLLING_QUOTA_MAP.put(
-                    key, (float) quotaBucketToMaxRollingQuotaMap.get(key));
+        float[] maxRollingQuotas = sMaxRollingQuotas.clone();
+        for (Map.Entry<Integer, Integer> entry : quotaBucketToMaxRollingQuotaMap.entrySet()) {
+            int quotaBucket = entry.getKey();
+            if (quotaBucket > QuotaBucket.QUOTA_BUCKET_UNDEFINED
+                    && quotaBucket < QUOTA_BUCKET_COUNT) {
+                maxRollingQuotas[quotaBucket] = entry.getValue();
+            }
         }
+        sMaxRollingQuotas = maxRollingQuotas;
     }
 
     public static void updateMemoryQuotaMap(Map<String, Integer> quotaBucketToMaxMemoryQuotaMap) {
-        for (String key : quotaBucketToMaxMemoryQuotaMap.keySet()) {
-            QUOTA_BUCKET_TO_MAX_MEMORY_QUOTA_MAP.put(key, quotaBucketToMaxMemoryQuotaMap.get(key));
-        }
+        QUOTA_BUCKET_TO_MAX_MEMORY_QUOTA_MAP.putAll(quotaBucketToMaxMemoryQuotaMap);
     }
 
     public static void updateEnableRateLimiterFlag(boolean enableRateLimiter) {
-        sLock.writeLock().lock();
-        try {
-            sRateLimiterEnabled = enableRateLimiter;
-        } finally {
-            sLock.writeLock().unlock();
-        }
-    }
-
-    @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
-    private static Object getLockObject(int uid) {
-        sLocks.putIfAbsent(uid, uid);
-        return sLocks.get(uid);
-    }
-
-    private static void spendApiCallResourcesIfAvailable(
-            int uid, List<Integer> quotaBuckets, int cost) {
-        Map<Integer, Float> quotaBucketToAvailableQuotaMap =
-                getQuotaBucketToAvailableQuotaMap(uid, quotaBuckets);
-        checkIfResourcesAreAvailable(quotaBucketToAvailableQuotaMap, quotaBuckets, cost);
-        spendAvailableResources(uid, quotaBucketToAvailableQuotaMap, quotaBuckets, cost);
+        sRateLimiterEnabled = enableRateLimiter;
     }
 
-    private static void spendApiAndMemoryResourcesIfAvailable(
-            int uid,
-            List<Integer> apiQuotaBuckets,
-            List<Integer> memoryQuotaBuckets,
-            int cost,
-            long memoryCost,
-            boolean isInForeground) {
-        Map<Integer, Float> apiQuotaBucketToAvailableQuotaMap =
-                getQuotaBucketToAvailableQuotaMap(uid, apiQuotaBuckets);
-        Map<Integer, Float> memoryQuotaBucketToAvailableQuotaMap =
-                getQuotaBucketToAvailableQuotaMap(uid, memoryQuotaBuckets);
-        if (!isInForeground) {
-            hasSufficientQuota(
-                    getAvailableQuota(
-                            QuotaBucket.QUOTA_BUCKET_DATA_PUSH_LIMIT_ACROSS_APPS_15M,
-                            getQuota(QuotaBucket.QUOTA_BUCKET_DATA_PUSH_LIMIT_ACROSS_APPS_15M)),
-                    memoryCost,
-                    QuotaBucket.QUOTA_BUCKET_DATA_PUSH_LIMIT_ACROSS_APPS_15M);
-        }
-        checkIfResourcesAreAvailable(apiQuotaBucketToAvailableQuotaMap, apiQuotaBuckets, cost);
-        checkIfResourcesAreAvailable(
-                memoryQuotaBucketToAvailableQuotaMap, memoryQuotaBuckets, memoryCost);
-        if (!isInForeground) {
-            spendAvailableResources(
-                    getQuota(QuotaBucket.QUOTA_BUCKET_DATA_PUSH_LIMIT_ACROSS_APPS_15M),
-                    QuotaBucket.QUOTA_BUCKET_DATA_PUSH_LIMIT_ACROSS_APPS_15M,
-                    memoryCost);
-        }
-        spendAvailableResources(uid, apiQuotaBucketToAvailableQuotaMap, apiQuotaBuckets, cost);
-        spendAvailableResources(
-                uid, memoryQuotaBucketToAvailableQuotaMap, memoryQuotaBuckets, memoryCost);
-    }
-
-    @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
-    private static void checkIfResourcesAreAvailable(
-            Map<Integer, Float> quotaBucketToAvailableQuotaMap,
-            List<Integer> quotaBuckets,
-            long cost) {
-        for (@QuotaBucket.Type int quotaBucket : quotaBuckets) {
-            hasSufficientQuota(quotaBucketToAvailableQuotaMap.get(quotaBucket), cost, quotaBucket);
-        }
-    }
-
-    private static void spendAvailableResources(Quota quota, Integer quotaBucket, long memoryCost) {
-        quota.setRemainingQuota(getAvailableQuota(quotaBucket, quota) - memoryCost);
-        quota.setLastUpdatedTime(Instant.now());
-    }
-
-    @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
-    private static void spendAvailableResources(
-            int uid,
-            Map<Integer, Float> quotaBucketToAvailableQuotaMap,
-            List<Integer> quotaBuckets,
-            long cost) {
-        for (@QuotaBucket.Type int quotaBucket : quotaBuckets) {
-            spendResources(uid, quotaBucket, quotaBucketToAvailableQuotaMap.get(quotaBucket), cost);
+    /**
+     * Spends {@code cost} from each of {@code quotaBuckets} in {@code quotas}, or throws if one of
+     * them doesn't have enough quota left, in which case nothing is spent.
+     */
+    private static void acquire(
+            @NonNull AtomicLongArray quotas, @NonNull int[] quotaBuckets, long cost, long now) {
+        for (int i = 0; i < quotaBuckets.length; i++) {
+            int quotaBucket = quotaBuckets[i];
+            float maxQuota = getConfiguredMaxRollingQuota(quotaBucket);
+            long windowNanos = getWindowNanos(quotaBucket);
+            long costNanos = getCostNanos(maxQuota, windowNanos, cost);
+            while (true) {
+                long fullTime = quotas.get(quotaBucket);
+                long startTime = Math.max(fullTime, now);
+                if (costNanos > windowNanos - (startTime - now)) {
+                    release(quotas, quotaBuckets, cost, i);
+                    throw new RateLimiterException(
+                            "API call quota exceeded, availableQuota: "
+                                    + getAvailableQuota(maxQuota, windowNanos, startTime - now)
+                                    + " requested: "
+                                    + cost,
+                            quotaBucket,
+                            maxQuota);
+                }
+                if (quotas.compareAndSet(quotaBucket, fullTime, startTime + costNanos)) {
+                    break;
+                }
+            }
         }
     }
 
-    @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
-    private static void spendResources(
-            int uid, @QuotaBucket.Type int quotaBucket, float availableQuota, long cost) {
-        sUserIdToQuotasMap
-                .get(uid)
-                .put(quotaBucket, new Quota(Instant.now(), availableQuota - cost));
-    }
-
-    private static Map<Integer, Float> getQuotaBucketToAvailableQuotaMap(
-            int uid, List<Integer> quotaBuckets) {
-        return quotaBuckets.stream()
-                .collect(
-                        Collectors.toMap(
-                                quotaBucket -> quotaBucket,
-                                quotaBucket ->
-                                        getAvailableQuota(
-                                                quotaBucket, getQuota(uid, quotaBucket))));
-    }
-
-    private static void hasSufficientQuota(
-            float availableQuota, long cost, @QuotaBucket.Type int quotaBucket) {
-        if (availableQuota < cost) {
-            throw new RateLimiterException(
-                    "API call quota exceeded, availableQuota: "
-                            + availableQuota
-                            + " requested: "
-                            + cost,
+    /** Gives back {@code cost} to the first {@code count} of {@code quotaBuckets}. */
+    private static void release(
+            @NonNull AtomicLongArray quotas, @NonNull int[] quotaBuckets, long cost, int count) {
+        for (int i = 0; i < count && i < quotaBuckets.length; i++) {
+            int quotaBucket = quotaBuckets[i];
+            quotas.getAndAdd(
                     quotaBucket,
-                    getConfiguredMaxRollingQuota(quotaBucket));
+                    -getCostNanos(
+                            getConfiguredMaxRollingQuota(quotaBucket),
+                            getWindowNanos(quotaBucket),
+                            cost));
         }
     }
 
-    private static float getAvailableQuota(@QuotaBucket.Type int quotaBucket, Quota quota) {
-        Instant lastUpdatedTime = quota.getLastUpdatedTime();
-        Instant currentTime = Instant.now();
-        Duration timeSinceLastQuotaSpend = Duration.between(lastUpdatedTime, currentTime);
-        Duration window = getWindowDuration(quotaBucket);
-        float accumulated =
-                timeSinceLastQuotaSpend.toMillis()
-                        * (getConfiguredMaxRollingQuota(quotaBucket) / (float) window.toMillis());
-        // Cannot accumulate more than the configured max quota.
-        return Math.min(
-                quota.getRemainingQuota() + accumulated, getConfiguredMaxRollingQuota(quotaBucket));
-    }
-
-    private static Quota getQuota(int uid, @QuotaBucket.Type int quotaBucket) {
-        // Handles first request scenario.
-        if (!sUserIdToQuotasMap.containsKey(uid)) {
-            sUserIdToQuotasMap.put(uid, new HashMap<>());
+    /** Returns the time it takes to refill {@code cost}, capped to more than a whole window. */
+    private static long getCostNanos(float maxQuota, long windowNanos, long cost) {
+        if (cost <= 0) {
+            return 0;
         }
-        Map<Integer, Quota> packageQuotas = sUserIdToQuotasMap.get(uid);
-        Quota quota = packageQuotas.get(quotaBucket);
-        if (quota == null) {
-            quota = getInitialQuota(quotaBucket);
+        if (maxQuota <= 0 || cost > maxQuota) {
+            return windowNanos + 1;
         }
-        return quota;
+        return (long) (cost * (windowNanos / (double) maxQuota));
     }
 
-    private static Quota getQuota(@QuotaBucket.Type int quotaBucket) {
-        // Handles first request scenario.
-        if (!sQuotaBucketToAcrossAppsRemainingMemoryQuota.containsKey(quotaBucket)) {
-            sQuotaBucketToAcrossAppsRemainingMemoryQuota.put(
-                    quotaBucket,
-                    new Quota(Instant.now(), getConfiguredMaxRollingQuota(quotaBucket)));
-        }
-        return sQuotaBucketToAcrossAppsRemainingMemoryQuota.get(quotaBucket);
+    private static float getAvailableQuota(float maxQuota, long windowNanos, long refillNanos) {
+        return maxQuota * (windowNanos - refillNanos) / windowNanos;
     }
 
-    private static Quota getInitialQuota(@QuotaBucket.Type int bucket) {
-        return new Quota(Instant.now(), getConfiguredMaxRollingQuota(bucket));
+    private static long getNow() {
+        return System.nanoTime() - TIME_ORIGIN_NANOS;
     }
 
-    private static Duration getWindowDuration(@QuotaBucket.Type int quotaBucket) {
+    private static long getWindowNanos(@QuotaBucket.Type int quotaBucket) {
         switch (quotaBucket) {
             case QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND:
             case QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_FOREGROUND:
             case QuotaBucket.QUOTA_BUCKET_READS_PER_24H_BACKGROUND:
             case QuotaBucket.QUOTA_BUCKET_READS_PER_24H_FOREGROUND:
-                return Duration.ofHours(24);
+                return WINDOW_24H_NANOS;
             case QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_BACKGROUND:
             case QuotaBucket.QUOTA_BUCKET_READS_PER_15M_FOREGROUND:
             case QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_FOREGROUND:
             case QuotaBucket.QUOTA_BUCKET_READS_PER_15M_BACKGROUND:
             case QuotaBucket.QUOTA_BUCKET_DATA_PUSH_LIMIT_ACROSS_APPS_15M:
             case QuotaBucket.QUOTA_BUCKET_DATA_PUSH_LIMIT_PER_APP_15M:
-                return Duration.ofMinutes(15);
+                return WINDOW_15M_NANOS;
             case QuotaBucket.QUOTA_BUCKET_UNDEFINED:
                 throw new IllegalArgumentException("Invalid quota bucket.");
         }
@@ -365,44 +297,42 @@ public final class RateLimiter {
     }
 
     private static float getConfiguredMaxRollingQuota(@QuotaBucket.Type int quotaBucket) {
-        if (!QUOTA_BUCKET_TO_MAX_ROLLING_QUOTA_MAP.containsKey(quotaBucket)) {
+        float maxQuota = sMaxRollingQuotas[quotaBucket];
+        if (Float.isNaN(maxQuota)) {
             throw new IllegalArgumentException(
                     "Max quota not found for quotaBucket: " + quotaBucket);
         }
-        return QUOTA_BUCKET_TO_MAX_ROLLING_QUOTA_MAP.get(quotaBucket);
+        return maxQuota;
     }
 
     private static int getConfiguredMaxApiMemoryQuota(String quotaBucket) {
-        if (!QUOTA_BUCKET_TO_MAX_MEMORY_QUOTA_MAP.containsKey(quotaBucket)) {
+        Integer maxQuota = QUOTA_BUCKET_TO_MAX_MEMORY_QUOTA_MAP.get(quotaBucket);
+        if (maxQuota == null) {
             throw new IllegalArgumentException(
                     "Max quota not found for quotaBucket: " + quotaBucket);
         }
-        return QUOTA_BUCKET_TO_MAX_MEMORY_QUOTA_MAP.get(quotaBucket);
+        return maxQuota;
+    }
+
+    @NonNull
+    private static float[] getUnconfiguredMaxRollingQuotas() {
+        float[] maxRollingQuotas = new float[QUOTA_BUCKET_COUNT];
+        Arrays.fill(maxRollingQuotas, Float.NaN);
+        return maxRollingQuotas;
     }
 
-    private static List<Integer> getAffectedAPIQuotaBuckets(
+    @NonNull
+    private static int[] getAffectedAPIQuotaBuckets(
             @QuotaCategory.Type int quotaCategory, boolean isInForeground) {
         switch (quotaCategory) {
             case QuotaCategory.QUOTA_CATEGORY_READ:
-                if (isInForeground) {
-                    return List.of(
-                            QuotaBucket.QUOTA_BUCKET_READS_PER_15M_FOREGROUND,
-                            QuotaBucket.QUOTA_BUCKET_READS_PER_24H_FOREGROUND);
-                } else {
-                    return List.of(
-                            QuotaBucket.QUOTA_BUCKET_READS_PER_15M_BACKGROUND,
-                            QuotaBucket.QUOTA_BUCKET_READS_PER_24H_BACKGROUND);
-                }
+                return isInForeground
+                        ? READ_FOREGROUND_QUOTA_BUCKETS
+                        : READ_BACKGROUND_QUOTA_BUCKETS;
             case QuotaCategory.QUOTA_CATEGORY_WRITE:
-                if (isInForeground) {
-                    return List.of(
-                            QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_FOREGROUND,
-                            QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_FOREGROUND);
-                } else {
-                    return List.of(
-                            QuotaBucket.QUOTA_BUCKET_WRITES_PER_15M_BACKGROUND,
-                            QuotaBucket.QUOTA_BUCKET_WRITES_PER_24H_BACKGROUND);
-                }
+                return isInForeground
+                        ? WRITE_FOREGROUND_QUOTA_BUCKETS
+                        : WRITE_BACKGROUND_QUOTA_BUCKETS;
             case QuotaCategory.QUOTA_CATEGORY_UNDEFINED:
             case QuotaCategory.QUOTA_CATEGORY_UNMETERED:
                 throw new IllegalArgumentException("Invalid quota category.");
@@ -410,15 +340,12 @@ public final class RateLimiter {
         throw new IllegalArgumentException("Invalid quota category.");
     }
 
-    private static List<Integer> getAffectedMemoryQuotaBuckets(
+    @NonNull
+    private static int[] getAffectedMemoryQuotaBuckets(
             @QuotaCategory.Type int quotaCategory, boolean isInForeground) {
         switch (quotaCategory) {
             case QuotaCategory.QUOTA_CATEGORY_WRITE:
-                if (isInForeground) {
-                    return List.of();
-                } else {
-                    return List.of(QuotaBucket.QUOTA_BUCKET_DATA_PUSH_LIMIT_PER_APP_15M);
-                }
+                return isInForeground ? NO_QUOTA_BUCKETS : MEMORY_BACKGROUND_QUOTA_BUCKETS;
             case QuotaCategory.QUOTA_CATEGORY_READ:
             case QuotaCategory.QUOTA_CATEGORY_UNDEFINED:
             case QuotaCategory.QUOTA_CATEGORY_UNMETERED:
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.health.connect.ratelimiter;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Quota states of each uid, as used in {@link RateLimiter}.
+ *
+ * <p>Uids are spread over a fixed number of stripes. Looking up a uid that was seen before takes no
+ * lock and allocates nothing, and adding a new uid only locks its stripe.
+ *
+ * @hide
+ */
+final class UidQuotas {
+    // Must be a power of two. App uids of a user are consecutive, so they spread evenly.
+    private static final int STRIPE_COUNT = 64;
+
+    private final int mQuotaCount;
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+
+    /** @param quotaCount the number of quota states kept for each uid */
+    UidQuotas(int quotaCount) {
+        mQuotaCount = quotaCount;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /** Returns the quota states of {@code uid}, which are all 0 for a new uid. */
+    @NonNull
+    AtomicLongArray get(int uid) {
+        Stripe stripe = mStripes[uid & (STRIPE_COUNT - 1)];
+        AtomicLongArray quotas = stripe.find(uid);
+        return quotas != null ? quotas : stripe.add(uid, mQuotaCount);
+    }
+
+    /** Forgets the quota states of all uids. */
+    void clear() {
+        for (Stripe stripe : mStripes) {
+            stripe.clear();
+        }
+    }
+
+    private static final class Stripe {
+        private static final Entry[] EMPTY = new Entry[0];
+
+        // Replaced as a whole when a uid is added, so that it can be read without locking.
+        private volatile Entry[] mEntries = EMPTY;
+
+        @Nullable
+        AtomicLongArray find(int uid) {
+            for (Entry entry : mEntries) {
+                if (entry.mUid == uid) {
+                    return entry.mQuotas;
+                }
+            }
+            return null;
+        }
+
+        @NonNull
+        synchronized AtomicLongArray add(int uid, int quotaCount) {
+            AtomicLongArray quotas = find(uid);
+            if (quotas != null) {
+                return quotas;
+            }
+
+            Entry[] entries = mEntries;
+            Entry[] newEntries = new Entry[entries.length + 1];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            newEntries[entries.length] = new Entry(uid, new AtomicLongArray(quotaCount));
+            mEntries = newEntries;
+            return newEntries[entries.length].mQuotas;
+        }
+
+        synchronized void clear() {
+            mEntries = EMPTY;
+        }
+    }
+
+    private static final class Entry {
+        final int mUid;
+        final AtomicLongArray mQuotas;
+
+        Entry(int uid, AtomicLongArray quotas) {
+            mUid = uid;
+            mQuotas = quotas;
+        }
+    }
+}
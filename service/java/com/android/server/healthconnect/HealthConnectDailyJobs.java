@@ -22,17 +22,20 @@ import static com.android.server.healthconnect.HealthConnectDailyService.EXTRA_J
 import static com.android.server.healthconnect.HealthConnectDailyService.EXTRA_USER_ID;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.annotation.UserIdInt;
 import android.app.job.JobInfo;
 import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
 import android.content.ComponentName;
 import android.content.Context;
+import android.os.CancellationSignal;
 import android.os.PersistableBundle;
 import android.os.UserHandle;
 
 import com.android.server.healthconnect.logging.DailyLoggingService;
 import com.android.server.healthconnect.storage.AutoDeleteService;
+import com.android.server.healthconnect.storage.TransactionManager;
 
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
@@ -43,6 +46,7 @@ public class HealthConnectDailyJobs {
     private static final int MIN_JOB_ID = HealthConnectDailyJobs.class.hashCode();
     private static final long JOB_RUN_INTERVAL = TimeUnit.DAYS.toMillis(1);
     private static final String HEALTH_CONNECT_NAMESPACE = "HEALTH_CONNECT_DAILY_JOB";
+    @Nullable private static volatile CancellationSignal sCancellationSignal;
 
     public static void schedule(@NonNull Context context, @UserIdInt int userId) {
         ComponentName componentName = new ComponentName(context, HealthConnectDailyService.class);
@@ -71,7 +75,19 @@ public class HealthConnectDailyJobs {
 
     public static void execute(@NonNull Context context, JobParameters params) {
         int userId = params.getExtras().getInt(EXTRA_USER_ID, /* defaultValue= */ DEFAULT_INT);
-        AutoDeleteService.startAutoDelete(context);
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        sCancellationSignal = cancellationSignal;
+        AutoDeleteService.startAutoDelete(context, cancellationSignal);
+        // Auto delete can leave a large write-ahead log behind, fold it back while idle.
+        TransactionManager.getInitialisedInstance().checkpointWal();
         DailyLoggingService.logDailyMetrics(context, UserHandle.getUserHandleForUid(userId));
     }
+
+    /** Stops the long running parts of the daily job that is being executed, if any. */
+    public static void stop() {
+        CancellationSignal cancellationSignal = sCancellationSignal;
+        if (cancellationSignal != null) {
+            cancellationSignal.cancel();
+        }
+    }
 }
@@ -97,7 +97,8 @@ public class HealthConnectDailyService extends JobService {
             case PERIODIC_EXPORT_JOB_NAME:
                 HealthConnectThreadScheduler.scheduleInternalTask(
                         () -> {
-                            ExportImportJobs.executePeriodicExportJob(getApplicationContext());
+                            ExportImportJobs.executePeriodicExportJob(
+                                    getApplicationContext(), params);
                             jobFinished(params, false);
                         });
                 return true;
@@ -108,9 +109,18 @@ public class HealthConnectDailyService extends JobService {
         return false;
     }
 
-    /** Called when job needs to be stopped. Don't do anything here and let the job be killed. */
+    /**
+     * Called when job needs to be stopped. Only asks the daily job and the periodic export job to
+     * stop their long running parts, others are left to be killed.
+     */
     @Override
     public boolean onStopJob(@NonNull JobParameters params) {
+        String jobName = params.getExtras().getString(EXTRA_JOB_NAME_KEY);
+        if (HC_DAILY_JOB.equals(jobName)) {
+            HealthConnectDailyJobs.stop();
+        } else if (PERIODIC_EXPORT_JOB_NAME.equals(jobName)) {
+            ExportImportJobs.stopPeriodicExportJob();
+        }
         return false;
     }
 
@@ -26,6 +26,8 @@ import android.util.ArraySet;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.WalCheckpointPolicy;
 
 import java.time.Duration;
 import java.util.HashMap;
@@ -126,6 +128,19 @@ public class HealthConnectDeviceConfigManager implements DeviceConfig.OnProperti
     public static final String ENABLE_AGGREGATION_SOURCE_CONTROLS_FLAG =
             "aggregation_source_controls_enable";
 
+    @VisibleForTesting
+    public static final String WAL_AUTO_CHECKPOINT_PAGES_FLAG = "wal_auto_checkpoint_pages";
+
+    @VisibleForTesting public static final String WAL_CHECKPOINT_MODE_FLAG = "wal_checkpoint_mode";
+
+    @VisibleForTesting
+    public static final String FOREGROUND_READ_THREADS_FLAG = "foreground_read_threads";
+
+    @VisibleForTesting
+    public static final String FOREGROUND_WRITE_THREADS_FLAG = "foreground_write_threads";
+
+    @VisibleForTesting public static final String BACKGROUND_THREADS_FLAG = "background_threads";
+
     private static final boolean SESSION_DATATYPE_DEFAULT_FLAG_VALUE = true;
     private static final boolean EXERCISE_ROUTE_DEFAULT_FLAG_VALUE = true;
     private static final boolean EXERCISE_ROUTES_READ_ALL_DEFAULT_FLAG_VALUE = true;
@@ -178,6 +193,22 @@ public class HealthConnectDeviceConfigManager implements DeviceConfig.OnProperti
     @VisibleForTesting
     public static final boolean ENABLE_AGGREGATION_SOURCE_CONTROLS_DEFAULT_FLAG_VALUE = true;
 
+    @VisibleForTesting
+    public static final int WAL_AUTO_CHECKPOINT_PAGES_DEFAULT_FLAG_VALUE =
+            WalCheckpointPolicy.DEFAULT_AUTO_CHECKPOINT_PAGES;
+
+    @VisibleForTesting
+    public static final int WAL_CHECKPOINT_MODE_DEFAULT_FLAG_VALUE =
+            WalCheckpointPolicy.CHECKPOINT_MODE_TRUNCATE;
+
+    @VisibleForTesting public static final int FOREGROUND_READ_THREADS_DEFAULT_FLAG_VALUE = 2;
+    @VisibleForTesting public static final int FOREGROUND_WRITE_THREADS_DEFAULT_FLAG_VALUE = 1;
+    @VisibleForTesting public static final int BACKGROUND_THREADS_DEFAULT_FLAG_VALUE = 2;
+
+    // Upper bound for the thread pool sizes, so that a bad flag value can't exhaust the
+    // connection pool of the database or the threads of system_server.
+    private static final int MAX_THREADS_PER_POOL = 8;
+
     @SuppressWarnings("NullAway.Init") // TODO(b/317029272): fix this suppression
     private static HealthConnectDeviceConfigManager sDeviceConfigManager;
 
@@ -306,6 +337,41 @@ public class HealthConnectDeviceConfigManager implements DeviceConfig.OnProperti
     @GuardedBy("mLock")
     private boolean mAggregationSourceControlsEnabled = true;
 
+    @GuardedBy("mLock")
+    private int mWalAutoCheckpointPages =
+            DeviceConfig.getInt(
+                    HEALTH_FITNESS_NAMESPACE,
+                    WAL_AUTO_CHECKPOINT_PAGES_FLAG,
+                    WAL_AUTO_CHECKPOINT_PAGES_DEFAULT_FLAG_VALUE);
+
+    @GuardedBy("mLock")
+    private int mWalCheckpointMode =
+            DeviceConfig.getInt(
+                    HEALTH_FITNESS_NAMESPACE,
+                    WAL_CHECKPOINT_MODE_FLAG,
+                    WAL_CHECKPOINT_MODE_DEFAULT_FLAG_VALUE);
+
+    @GuardedBy("mLock")
+    private int mForegroundReadThreads =
+            DeviceConfig.getInt(
+                    HEALTH_FITNESS_NAMESPACE,
+                    FOREGROUND_READ_THREADS_FLAG,
+                    FOREGROUND_READ_THREADS_DEFAULT_FLAG_VALUE);
+
+    @GuardedBy("mLock")
+    private int mForegroundWriteThreads =
+            DeviceConfig.getInt(
+                    HEALTH_FITNESS_NAMESPACE,
+                    FOREGROUND_WRITE_THREADS_FLAG,
+                    FOREGROUND_WRITE_THREADS_DEFAULT_FLAG_VALUE);
+
+    @GuardedBy("mLock")
+    private int mBackgroundThreads =
+            DeviceConfig.getInt(
+                    HEALTH_FITNESS_NAMESPACE,
+                    BACKGROUND_THREADS_FLAG,
+                    BACKGROUND_THREADS_DEFAULT_FLAG_VALUE);
+
     @NonNull
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
     public static void initializeInstance(Context context) {
@@ -346,6 +412,11 @@ public class HealthConnectDeviceConfigManager implements DeviceConfig.OnProperti
         sFlagsToTrack.add(BACKGROUND_READ_FEATURE_FLAG);
         sFlagsToTrack.add(HISTORY_READ_FEATURE_FLAG);
         sFlagsToTrack.add(ENABLE_AGGREGATION_SOURCE_CONTROLS_FLAG);
+        sFlagsToTrack.add(WAL_AUTO_CHECKPOINT_PAGES_FLAG);
+        sFlagsToTrack.add(WAL_CHECKPOINT_MODE_FLAG);
+        sFlagsToTrack.add(FOREGROUND_READ_THREADS_FLAG);
+        sFlagsToTrack.add(FOREGROUND_WRITE_THREADS_FLAG);
+        sFlagsToTrack.add(BACKGROUND_THREADS_FLAG);
     }
 
     /** Returns if operations with exercise route are enabled. */
@@ -547,6 +618,56 @@ public class HealthConnectDeviceConfigManager implements DeviceConfig.OnProperti
         }
     }
 
+    /** Returns the checkpoint policy for the write-ahead log of the database. */
+    @NonNull
+    public WalCheckpointPolicy getWalCheckpointPolicy() {
+        mLock.readLock().lock();
+        try {
+            int checkpointMode = mWalCheckpointMode;
+            if (checkpointMode < WalCheckpointPolicy.CHECKPOINT_MODE_PASSIVE
+                    || checkpointMode > WalCheckpointPolicy.CHECKPOINT_MODE_TRUNCATE) {
+                checkpointMode = WAL_CHECKPOINT_MODE_DEFAULT_FLAG_VALUE;
+            }
+            return new WalCheckpointPolicy(mWalAutoCheckpointPages, checkpointMode);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Returns the number of threads running read requests of foreground apps. */
+    public int getForegroundReadThreads() {
+        mLock.readLock().lock();
+        try {
+            return clampThreads(mForegroundReadThreads);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Returns the number of threads running other requests of foreground apps. */
+    public int getForegroundWriteThreads() {
+        mLock.readLock().lock();
+        try {
+            return clampThreads(mForegroundWriteThreads);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Returns the number of threads running requests of background apps. */
+    public int getBackgroundThreads() {
+        mLock.readLock().lock();
+        try {
+            return clampThreads(mBackgroundThreads);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    private static int clampThreads(int threads) {
+        return Math.max(1, Math.min(threads, MAX_THREADS_PER_POOL));
+    }
+
     /** Updates rate limiting quota values. */
     public void updateRateLimiterValues() {
         Map<Integer, Integer> quotaBucketToMaxRollingQuotaMap = new HashMap<>();
@@ -756,10 +877,53 @@ public class HealthConnectDeviceConfigManager implements DeviceConfig.OnProperti
                         break;
                     case ENABLE_AGGREGATION_SOURCE_CONTROLS_FLAG:
                         mAggregationSourceControlsEnabled = true;
+                        break;
+                    case WAL_AUTO_CHECKPOINT_PAGES_FLAG:
+                        mWalAutoCheckpointPages =
+                                properties.getInt(
+                                        WAL_AUTO_CHECKPOINT_PAGES_FLAG,
+                                        WAL_AUTO_CHECKPOINT_PAGES_DEFAULT_FLAG_VALUE);
+                        break;
+                    case WAL_CHECKPOINT_MODE_FLAG:
+                        mWalCheckpointMode =
+                                properties.getInt(
+                                        WAL_CHECKPOINT_MODE_FLAG,
+                                        WAL_CHECKPOINT_MODE_DEFAULT_FLAG_VALUE);
+                        break;
+                    case FOREGROUND_READ_THREADS_FLAG:
+                        mForegroundReadThreads =
+                                properties.getInt(
+                                        FOREGROUND_READ_THREADS_FLAG,
+                                        FOREGROUND_READ_THREADS_DEFAULT_FLAG_VALUE);
+                        break;
+                    case FOREGROUND_WRITE_THREADS_FLAG:
+                        mForegroundWriteThreads =
+                                properties.getInt(
+                                        FOREGROUND_WRITE_THREADS_FLAG,
+                                        FOREGROUND_WRITE_THREADS_DEFAULT_FLAG_VALUE);
+                        break;
+                    case BACKGROUND_THREADS_FLAG:
+                        mBackgroundThreads =
+                                properties.getInt(
+                                        BACKGROUND_THREADS_FLAG,
+                                        BACKGROUND_THREADS_DEFAULT_FLAG_VALUE);
+                        break;
                 }
             } finally {
                 mLock.writeLock().unlock();
             }
         }
+
+        if (changedFlags.contains(WAL_AUTO_CHECKPOINT_PAGES_FLAG)
+                || changedFlags.contains(WAL_CHECKPOINT_MODE_FLAG)) {
+            TransactionManager.getInitialisedInstance()
+                    .setWalCheckpointPolicy(getWalCheckpointPolicy());
+        }
+
+        if (changedFlags.contains(FOREGROUND_READ_THREADS_FLAG)
+                || changedFlags.contains(FOREGROUND_WRITE_THREADS_FLAG)
+                || changedFlags.contains(BACKGROUND_THREADS_FLAG)) {
+            HealthConnectThreadScheduler.updatePoolSizes(this);
+        }
     }
 }
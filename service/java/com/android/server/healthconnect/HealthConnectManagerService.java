@@ -90,6 +90,10 @@ public class HealthConnectManagerService extends SystemService {
                 TransactionManager.getInstance(
                         new HealthConnectUserContext(mContext, mCurrentForegroundUser));
         HealthConnectDeviceConfigManager.initializeInstance(context);
+        mTransactionManager.setWalCheckpointPolicy(
+                HealthConnectDeviceConfigManager.getInitialisedInstance().getWalCheckpointPolicy());
+        HealthConnectThreadScheduler.updatePoolSizes(
+                HealthConnectDeviceConfigManager.getInitialisedInstance());
         mMigrationBroadcastScheduler =
                 new MigrationBroadcastScheduler(mCurrentForegroundUser.getIdentifier());
         final MigrationStateManager migrationStateManager =
@@ -17,10 +17,13 @@
 package com.android.server.healthconnect;
 
 import android.annotation.NonNull;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -40,6 +43,10 @@ public final class HealthConnectRoundRobinScheduler {
     @GuardedBy("mLock")
     private boolean mPauseScheduler;
 
+    // Number of tasks currently running per uid, uids without running tasks are absent.
+    @GuardedBy("mLock")
+    private final Map<Integer, Integer> mRunningTaskCounts = new ArrayMap<>();
+
     @SuppressWarnings("NullAway.Init") // TODO(b/317029272): fix this suppression
     @GuardedBy("mLock")
     private Integer mLastKeyUsed;
@@ -66,34 +73,59 @@ public final class HealthConnectRoundRobinScheduler {
         }
     }
 
+    /**
+     * Returns the next task to run. Apps take turns, and with multiple worker threads, apps which
+     * have no task running go first, so that one app can't occupy all workers while others wait.
+     */
     @NonNull
     Runnable getNextTask() {
         synchronized (mLock) {
+            List<Map.Entry<Integer, Queue<Runnable>>> entries = new ArrayList<>(mTasks.size());
             if (mLastKeyUsed == null) {
-                mLastKeyUsed = mTasks.firstKey();
-            }
-
-            Map.Entry<Integer, Queue<Runnable>> entry = mTasks.higherEntry(mLastKeyUsed);
-            while (entry != null && entry.getValue().isEmpty()) {
-                mTasks.remove(entry.getKey());
-                entry = mTasks.higherEntry(entry.getKey());
+                entries.addAll(mTasks.entrySet());
+            } else {
+                entries.addAll(mTasks.tailMap(mLastKeyUsed, /* inclusive= */ false).entrySet());
+                entries.addAll(mTasks.headMap(mLastKeyUsed, /* inclusive= */ true).entrySet());
             }
 
-            if (entry == null) {
-                // Reached the end, no tasks found. Reset to first entry and try again.
-                entry = mTasks.firstEntry();
-                while (entry != null && entry.getValue().isEmpty()) {
+            Map.Entry<Integer, Queue<Runnable>> nextEntry = null;
+            Map.Entry<Integer, Queue<Runnable>> idleEntry = null;
+            for (Map.Entry<Integer, Queue<Runnable>> entry : entries) {
+                if (entry.getValue().isEmpty()) {
                     mTasks.remove(entry.getKey());
-                    entry = mTasks.higherEntry(entry.getKey());
+                    continue;
+                }
+                if (nextEntry == null) {
+                    nextEntry = entry;
+                }
+                if (!mRunningTaskCounts.containsKey(entry.getKey())) {
+                    idleEntry = entry;
+                    break;
                 }
             }
 
-            if (entry != null) {
-                mLastKeyUsed = entry.getKey();
-                return entry.getValue().poll();
+            Map.Entry<Integer, Queue<Runnable>> entry = idleEntry != null ? idleEntry : nextEntry;
+            if (entry == null) {
+                throw new InternalError("Task scheduled but none found");
             }
 
-            throw new InternalError("Task scheduled but none found");
+            int uid = entry.getKey();
+            Runnable task = entry.getValue().poll();
+            mLastKeyUsed = uid;
+            mRunningTaskCounts.merge(uid, 1, Integer::sum);
+            return () -> {
+                try {
+                    task.run();
+                } finally {
+                    onTaskFinished(uid);
+                }
+            };
+        }
+    }
+
+    private void onTaskFinished(int uid) {
+        synchronized (mLock) {
+            mRunningTaskCounts.computeIfPresent(uid, (key, count) -> count == 1 ? null : count - 1);
         }
     }
 
@@ -101,6 +133,7 @@ public final class HealthConnectRoundRobinScheduler {
         synchronized (mLock) {
             mPauseScheduler = true;
             mTasks.clear();
+            mRunningTaskCounts.clear();
         }
     }
 }
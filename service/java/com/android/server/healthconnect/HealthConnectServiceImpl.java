@@ -78,12 +78,14 @@ import android.health.connect.aidl.IInsertRecordsResponseCallback;
 import android.health.connect.aidl.IMigrationCallback;
 import android.health.connect.aidl.IReadRecordsResponseCallback;
 import android.health.connect.aidl.IRecordTypeInfoResponseCallback;
+import android.health.connect.aidl.IStreamedReadRecordsResponseCallback;
 import android.health.connect.aidl.InsertRecordsResponseParcel;
 import android.health.connect.aidl.ReadRecordsRequestParcel;
 import android.health.connect.aidl.ReadRecordsResponseParcel;
 import android.health.connect.aidl.RecordIdFiltersParcel;
 import android.health.connect.aidl.RecordTypeInfoResponseParcel;
 import android.health.connect.aidl.RecordsParcel;
+import android.health.connect.aidl.StreamedReadRecordsResponseParcel;
 import android.health.connect.aidl.UpdatePriorityRequestParcel;
 import android.health.connect.changelog.ChangeLogTokenRequest;
 import android.health.connect.changelog.ChangeLogTokenResponse;
@@ -131,6 +133,7 @@ import com.android.server.healthconnect.migration.PriorityMigrationHelper;
 import com.android.server.healthconnect.permission.DataPermissionEnforcer;
 import com.android.server.healthconnect.permission.FirstGrantTimeManager;
 import com.android.server.healthconnect.permission.HealthConnectPermissionHelper;
+import com.android.server.healthconnect.storage.AggregationResultCache;
 import com.android.server.healthconnect.storage.AutoDeleteService;
 import com.android.server.healthconnect.storage.ScheduledExportSettingsStorage;
 import com.android.server.healthconnect.storage.TransactionManager;
@@ -144,7 +147,6 @@ import com.android.server.healthconnect.storage.datatypehelpers.DeviceInfoHelper
 import com.android.server.healthconnect.storage.datatypehelpers.HealthDataCategoryPriorityHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.MigrationEntityHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
-import com.android.server.healthconnect.storage.request.AggregateTransactionRequest;
 import com.android.server.healthconnect.storage.request.DeleteTransactionRequest;
 import com.android.server.healthconnect.storage.request.ReadTransactionRequest;
 import com.android.server.healthconnect.storage.request.UpsertTransactionRequest;
@@ -449,7 +451,6 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
             @NonNull AttributionSource attributionSource, @NonNull RecordsParcel recordsParcel) {
         Trace.traceBegin(TRACE_TAG_INSERT_SUBTASKS, TAG_INSERT.concat("PostInsertTasks"));
 
-        ActivityDateHelper.getInstance().insertRecordDate(recordsParcel.getRecords());
         Set<Integer> recordsTypesInsertedSet =
                 recordsParcel.getRecords().stream()
                         .map(RecordInternal::getRecordType)
@@ -542,11 +543,11 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                                                     .collect(Collectors.toList()));
                         }
                         callback.onResult(
-                                new AggregateTransactionRequest(
+                                AggregationResultCache.getInstance()
+                                        .getOrCompute(
                                                 attributionSource.getPackageName(),
                                                 request,
-                                                startDateAccess)
-                                        .getAggregateDataResponseParcel());
+                                                startDateAccess));
                         logger.setDataTypesFromRecordTypes(recordTypesToTest)
                                 .setHealthDataServiceApiStatusSuccess();
                     } catch (SQLiteException sqLiteException) {
@@ -575,7 +576,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                holdsDataManagementPermission);
+                holdsDataManagementPermission,
+                /* isReadOnly= */ true);
     }
 
     /**
@@ -594,7 +596,35 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
             @NonNull ReadRecordsRequestParcel request,
             @NonNull IReadRecordsResponseCallback callback) {
         checkParamsNonNull(attributionSource, request, callback);
+        readRecordsInternal(attributionSource, request, new ListReadRecordsResponder(callback));
+    }
 
+    /**
+     * Read records {@code recordsParcel} from HealthConnect database, writing them to shared
+     * memory as they are read from the cursor.
+     *
+     * @param request ReadRecordsRequestParcel is parcel for the request object containing {@link
+     *     RecordIdFiltersParcel}.
+     * @param callback Callback to receive result of performing this operation. The records are
+     *     returned in {@link StreamedReadRecordsResponseParcel}. In case of an error or a
+     *     permission failure the HealthConnect service, {@link
+     *     IStreamedReadRecordsResponseCallback#onError} will be invoked with a {@link
+     *     HealthConnectExceptionParcel}.
+     */
+    @Override
+    public void readRecordsStreamed(
+            @NonNull AttributionSource attributionSource,
+            @NonNull ReadRecordsRequestParcel request,
+            @NonNull IStreamedReadRecordsResponseCallback callback) {
+        checkParamsNonNull(attributionSource, request, callback);
+        readRecordsInternal(
+                attributionSource, request, new StreamedReadRecordsResponder(callback));
+    }
+
+    private void readRecordsInternal(
+            @NonNull AttributionSource attributionSource,
+            @NonNull ReadRecordsRequestParcel request,
+            @NonNull ReadRecordsResponder responder) {
         final int uid = Binder.getCallingUid();
         final int pid = Binder.getCallingPid();
         final UserHandle userHandle = Binder.getCallingUserHandle();
@@ -698,26 +728,10 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                                         "Read requested is not for a single record type");
                             }
 
-                            List<RecordInternal<?>> records;
-                            long pageToken;
-                            if (request.getRecordIdFiltersParcel() != null) {
-                                records =
-                                        mTransactionManager.readRecordsByIds(
-                                                readTransactionRequest);
-                                pageToken = DEFAULT_LONG;
-                            } else {
-                                Pair<List<RecordInternal<?>>, PageTokenWrapper>
-                                        readRecordsResponse =
-                                                mTransactionManager.readRecordsAndPageToken(
-                                                        readTransactionRequest);
-                                records = readRecordsResponse.first;
-                                pageToken = readRecordsResponse.second.encode();
-                            }
-                            logger.setNumberOfRecords(records.size());
-
-                            if (Constants.DEBUG) {
-                                Slog.d(TAG, "pageToken: " + pageToken);
-                            }
+                            logger.setNumberOfRecords(
+                                    responder.read(
+                                            readTransactionRequest,
+                                            request.getRecordIdFiltersParcel() != null));
 
                             final List<Integer> recordTypes =
                                     Collections.singletonList(request.getRecordType());
@@ -733,14 +747,17 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                                         .addAccessLog(callingPackageName, recordTypes, READ);
                                 Trace.traceEnd(TRACE_TAG_READ_SUBTASKS);
                             }
-                            callback.onResult(
-                                    new ReadRecordsResponseParcel(
-                                            new RecordsParcel(records), pageToken));
-                            if (requiresLogging) {
-                                logRecordTypeSpecificReadMetrics(records, callingPackageName);
+                            responder.sendResult();
+                            List<RecordInternal<?>> records = responder.getRecords();
+                            if (records != null) {
+                                if (requiresLogging) {
+                                    logRecordTypeSpecificReadMetrics(records, callingPackageName);
+                                }
+                                logger.setDataTypesFromRecordInternals(records);
+                            } else {
+                                logger.setDataTypesFromRecordTypes(recordTypes);
                             }
-                            logger.setDataTypesFromRecordInternals(records)
-                                    .setHealthDataServiceApiStatusSuccess();
+                            logger.setHealthDataServiceApiStatusSuccess();
                         } catch (TypeNotPresentException exception) {
                             // All the requested package names are not present, so simply
                             // return an empty list
@@ -749,10 +766,7 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                                 if (Constants.DEBUG) {
                                     Slog.d(TAG, "No app info recorded for " + callingPackageName);
                                 }
-                                callback.onResult(
-                                        new ReadRecordsResponseParcel(
-                                                new RecordsParcel(new ArrayList<>()),
-                                                DEFAULT_LONG));
+                                responder.sendEmptyResult();
                                 logger.setHealthDataServiceApiStatusSuccess();
                             } else {
                                 logger.setHealthDataServiceApiStatusError(
@@ -763,35 +777,34 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     } catch (SQLiteException sqLiteException) {
                         logger.setHealthDataServiceApiStatusError(HealthConnectException.ERROR_IO);
                         Slog.e(TAG, "SQLiteException: ", sqLiteException);
-                        tryAndThrowException(
-                                callback, sqLiteException, HealthConnectException.ERROR_IO);
+                        responder.sendError(sqLiteException, HealthConnectException.ERROR_IO);
                     } catch (SecurityException securityException) {
                         logger.setHealthDataServiceApiStatusError(ERROR_SECURITY);
                         Slog.e(TAG, "SecurityException: ", securityException);
-                        tryAndThrowException(callback, securityException, ERROR_SECURITY);
+                        responder.sendError(securityException, ERROR_SECURITY);
                     } catch (IllegalStateException illegalStateException) {
                         logger.setHealthDataServiceApiStatusError(ERROR_INTERNAL);
                         Slog.e(TAG, "IllegalStateException: ", illegalStateException);
-                        tryAndThrowException(callback, illegalStateException, ERROR_INTERNAL);
+                        responder.sendError(illegalStateException, ERROR_INTERNAL);
                     } catch (HealthConnectException healthConnectException) {
                         logger.setHealthDataServiceApiStatusError(
                                 healthConnectException.getErrorCode());
                         Slog.e(TAG, "HealthConnectException: ", healthConnectException);
-                        tryAndThrowException(
-                                callback,
-                                healthConnectException,
-                                healthConnectException.getErrorCode());
+                        responder.sendError(
+                                healthConnectException, healthConnectException.getErrorCode());
                     } catch (Exception e) {
                         logger.setHealthDataServiceApiStatusError(ERROR_INTERNAL);
                         Slog.e(TAG, "Exception: ", e);
-                        tryAndThrowException(callback, e, ERROR_INTERNAL);
+                        responder.sendError(e, ERROR_INTERNAL);
                     } finally {
+                        responder.close();
                         Trace.traceEnd(TRACE_TAG_READ);
                         logger.build().log();
                     }
                 },
                 uid,
-                holdsDataManagementPermission);
+                holdsDataManagementPermission,
+                /* isReadOnly= */ true);
     }
 
     private void maybeEnforceOnlyCallingPackageDataRequested(
@@ -870,14 +883,6 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                         logRecordTypeSpecificUpsertMetrics(
                                 recordInternals, attributionSource.getPackageName());
                         logger.setDataTypesFromRecordInternals(recordInternals);
-                        // Update activity dates table
-                        HealthConnectThreadScheduler.scheduleInternalTask(
-                                () ->
-                                        ActivityDateHelper.getInstance()
-                                                .reSyncByRecordTypeIds(
-                                                        recordInternals.stream()
-                                                                .map(RecordInternal::getRecordType)
-                                                                .toList()));
                     } catch (SecurityException securityException) {
                         logger.setHealthDataServiceApiStatusError(ERROR_SECURITY);
                         tryAndThrowException(callback, securityException, ERROR_SECURITY);
@@ -989,7 +994,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                false);
+                false,
+                /* isReadOnly= */ true);
     }
 
     /**
@@ -1121,7 +1127,8 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                     }
                 },
                 uid,
-                false);
+                false,
+                /* isReadOnly= */ true);
     }
 
     /**
@@ -2187,8 +2194,7 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
                 MigrationEntityHelper.getInstance(),
                 RecordHelperProvider.getInstance(),
                 HealthDataCategoryPriorityHelper.getInstance(),
-                PriorityMigrationHelper.getInstance(),
-                ActivityDateHelper.getInstance());
+                PriorityMigrationHelper.getInstance());
     }
 
     private void enforceCallingPackageBelongsToUid(String packageName, int callingUid) {
@@ -2394,7 +2400,6 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
         if (recordTypeIdsToDelete != null && !recordTypeIdsToDelete.isEmpty()) {
             AppInfoHelper.getInstance()
                     .syncAppInfoRecordTypesUsed(new HashSet<>(recordTypeIdsToDelete));
-            ActivityDateHelper.getInstance().reSyncByRecordTypeIds(recordTypeIdsToDelete);
         }
         Trace.traceEnd(TRACE_TAG_DELETE_SUBTASKS);
     }
@@ -2579,9 +2584,165 @@ final class HealthConnectServiceImpl extends IHealthConnectService.Stub {
         }
     }
 
+    private static void tryAndThrowException(
+            @NonNull IStreamedReadRecordsResponseCallback callback,
+            @NonNull Exception exception,
+            @HealthConnectException.ErrorCode int errorCode) {
+        try {
+            callback.onError(
+                    new HealthConnectExceptionParcel(
+                            new HealthConnectException(errorCode, exception.toString())));
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to send result to the callback", e);
+        }
+    }
+
     private static void checkParamsNonNull(Object... params) {
         for (Object param : params) {
             Objects.requireNonNull(param);
         }
     }
+
+    /** Reads the records of a read request and sends them in the format of the called API. */
+    private interface ReadRecordsResponder {
+        /** Reads the records of {@code request} and returns the number of records read. */
+        int read(@NonNull ReadTransactionRequest request, boolean readByIds);
+
+        /** Sends the records read by {@link #read} to the caller. */
+        void sendResult() throws RemoteException;
+
+        /** Sends a response without records to the caller. */
+        void sendEmptyResult() throws RemoteException;
+
+        void sendError(
+                @NonNull Exception exception, @HealthConnectException.ErrorCode int errorCode);
+
+        /** Returns the records read by {@link #read}, or null if they were not kept in memory. */
+        @Nullable
+        List<RecordInternal<?>> getRecords();
+
+        /** Releases the resources held for the response. */
+        void close();
+    }
+
+    /** Reads all the records into a list and sends them in a {@link RecordsParcel}. */
+    private final class ListReadRecordsResponder implements ReadRecordsResponder {
+        private final IReadRecordsResponseCallback mCallback;
+        private List<RecordInternal<?>> mRecords = List.of();
+        private long mPageToken = DEFAULT_LONG;
+
+        ListReadRecordsResponder(@NonNull IReadRecordsResponseCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public int read(@NonNull ReadTransactionRequest request, boolean readByIds) {
+            if (readByIds) {
+                mRecords = mTransactionManager.readRecordsByIds(request);
+            } else {
+                Pair<List<RecordInternal<?>>, PageTokenWrapper> readRecordsResponse =
+                        mTransactionManager.readRecordsAndPageToken(request);
+                mRecords = readRecordsResponse.first;
+                mPageToken = readRecordsResponse.second.encode();
+            }
+            if (Constants.DEBUG) {
+                Slog.d(TAG, "pageToken: " + mPageToken);
+            }
+            return mRecords.size();
+        }
+
+        @Override
+        public void sendResult() throws RemoteException {
+            mCallback.onResult(
+                    new ReadRecordsResponseParcel(new RecordsParcel(mRecords), mPageToken));
+        }
+
+        @Override
+        public void sendEmptyResult() throws RemoteException {
+            mCallback.onResult(
+                    new ReadRecordsResponseParcel(
+                            new RecordsParcel(new ArrayList<>()), DEFAULT_LONG));
+        }
+
+        @Override
+        public void sendError(
+                @NonNull Exception exception, @HealthConnectException.ErrorCode int errorCode) {
+            tryAndThrowException(mCallback, exception, errorCode);
+        }
+
+        @Override
+        public List<RecordInternal<?>> getRecords() {
+            return mRecords;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    /**
+     * Writes the records to shared memory as they are read from the cursor and sends them in a
+     * {@link StreamedReadRecordsResponseParcel}.
+     */
+    private final class StreamedReadRecordsResponder implements ReadRecordsResponder {
+        private final IStreamedReadRecordsResponseCallback mCallback;
+        @Nullable private StreamedReadRecordsResponseParcel.Writer mWriter;
+        private long mPageToken = DEFAULT_LONG;
+
+        StreamedReadRecordsResponder(@NonNull IStreamedReadRecordsResponseCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public int read(@NonNull ReadTransactionRequest request, boolean readByIds) {
+            StreamedReadRecordsResponseParcel.Writer writer =
+                    new StreamedReadRecordsResponseParcel.Writer();
+            mWriter = writer;
+            if (readByIds) {
+                mTransactionManager.readRecordsByIds(request).forEach(writer::append);
+            } else {
+                mPageToken =
+                        mTransactionManager.readRecordsAndPageToken(request, writer::append)
+                                .encode();
+            }
+            if (Constants.DEBUG) {
+                Slog.d(TAG, "pageToken: " + mPageToken);
+            }
+            return writer.getRecordCount();
+        }
+
+        @Override
+        public void sendResult() throws RemoteException {
+            // The file descriptor of the shared memory is duplicated when written to the binder
+            // transaction, so it can be closed once the callback returns.
+            try (StreamedReadRecordsResponseParcel parcel =
+                    Objects.requireNonNull(mWriter).finish(mPageToken)) {
+                mCallback.onResult(parcel);
+            }
+        }
+
+        @Override
+        public void sendEmptyResult() throws RemoteException {
+            mCallback.onResult(StreamedReadRecordsResponseParcel.empty(DEFAULT_LONG));
+        }
+
+        @Override
+        public void sendError(
+                @NonNull Exception exception, @HealthConnectException.ErrorCode int errorCode) {
+            tryAndThrowException(mCallback, exception, errorCode);
+        }
+
+        /** Type specific read metrics are skipped, as the records are not kept in memory. */
+        @Nullable
+        @Override
+        public List<RecordInternal<?>> getRecords() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            if (mWriter != null) {
+                mWriter.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect;
+
+import android.annotation.NonNull;
+import android.os.SystemClock;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size {@link ThreadPoolExecutor} for one lane of {@link HealthConnectThreadScheduler},
+ * which keeps track of how long tasks wait in its queue.
+ *
+ * @hide
+ */
+final class HealthConnectThreadPoolExecutor extends ThreadPoolExecutor {
+    private static final long KEEP_ALIVE_TIME_SECONDS = 60L;
+
+    private final String mName;
+    private final AtomicLong mStartedTaskCount = new AtomicLong();
+    private final AtomicLong mTotalWaitTimeMillis = new AtomicLong();
+    private final AtomicLong mMaxWaitTimeMillis = new AtomicLong();
+
+    HealthConnectThreadPoolExecutor(@NonNull String name, int numThreads) {
+        super(
+                numThreads,
+                numThreads,
+                KEEP_ALIVE_TIME_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        mName = name;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        super.execute(new QueuedTask(command, SystemClock.elapsedRealtime()));
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable) {
+        super.beforeExecute(thread, runnable);
+        if (runnable instanceof QueuedTask queuedTask) {
+            long waitTimeMillis = SystemClock.elapsedRealtime() - queuedTask.mQueuedTimeMillis;
+            mStartedTaskCount.incrementAndGet();
+            mTotalWaitTimeMillis.addAndGet(waitTimeMillis);
+            mMaxWaitTimeMillis.accumulateAndGet(waitTimeMillis, Math::max);
+        }
+    }
+
+    /**
+     * Changes the number of threads. Queued tasks are picked up by new threads right away, while
+     * removed threads finish their current task first.
+     */
+    void setNumThreads(int numThreads) {
+        if (numThreads > getMaximumPoolSize()) {
+            setMaximumPoolSize(numThreads);
+            setCorePoolSize(numThreads);
+        } else {
+            setCorePoolSize(numThreads);
+            setMaximumPoolSize(numThreads);
+        }
+    }
+
+    /** Returns a snapshot of the metrics of this lane. */
+    @NonNull
+    LaneStats getStats() {
+        long startedTaskCount = mStartedTaskCount.get();
+        return new LaneStats(
+                mName,
+                getMaximumPoolSize(),
+                getActiveCount(),
+                getQueue().size(),
+                startedTaskCount,
+                startedTaskCount == 0 ? 0 : mTotalWaitTimeMillis.get() / startedTaskCount,
+                mMaxWaitTimeMillis.get());
+    }
+
+    private static final class QueuedTask implements Runnable {
+        private final Runnable mTask;
+        private final long mQueuedTimeMillis;
+
+        QueuedTask(Runnable task, long queuedTimeMillis) {
+            mTask = task;
+            mQueuedTimeMillis = queuedTimeMillis;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+    }
+
+    /** Metrics of a lane of {@link HealthConnectThreadScheduler}. */
+    static final class LaneStats {
+        private final String mName;
+        private final int mNumThreads;
+        private final int mActiveTaskCount;
+        private final int mQueuedTaskCount;
+        private final long mStartedTaskCount;
+        private final long mAverageWaitTimeMillis;
+        private final long mMaxWaitTimeMillis;
+
+        LaneStats(
+                @NonNull String name,
+                int numThreads,
+                int activeTaskCount,
+                int queuedTaskCount,
+                long startedTaskCount,
+                long averageWaitTimeMillis,
+                long maxWaitTimeMillis) {
+            mName = name;
+            mNumThreads = numThreads;
+            mActiveTaskCount = activeTaskCount;
+            mQueuedTaskCount = queuedTaskCount;
+            mStartedTaskCount = startedTaskCount;
+            mAverageWaitTimeMillis = averageWaitTimeMillis;
+            mMaxWaitTimeMillis = maxWaitTimeMillis;
+        }
+
+        @NonNull
+        String getName() {
+            return mName;
+        }
+
+        int getNumThreads() {
+            return mNumThreads;
+        }
+
+        int getActiveTaskCount() {
+            return mActiveTaskCount;
+        }
+
+        /** Returns the number of tasks waiting for a thread. */
+        int getQueuedTaskCount() {
+            return mQueuedTaskCount;
+        }
+
+        long getStartedTaskCount() {
+            return mStartedTaskCount;
+        }
+
+        /** Returns the average time tasks waited for a thread, since the lane was created. */
+        long getAverageWaitTimeMillis() {
+            return mAverageWaitTimeMillis;
+        }
+
+        /** Returns the longest time a task waited for a thread, since the lane was created. */
+        long getMaxWaitTimeMillis() {
+            return mMaxWaitTimeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return mName
+                    + ": threads="
+                    + mNumThreads
+                    + ", active="
+                    + mActiveTaskCount
+                    + ", queued="
+                    + mQueuedTaskCount
+                    + ", started="
+                    + mStartedTaskCount
+                    + ", avgWaitMs="
+                    + mAverageWaitTimeMillis
+                    + ", maxWaitMs="
+                    + mMaxWaitTimeMillis;
+        }
+    }
+}
@@ -25,25 +25,30 @@ import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 /**
  * A scheduler class to schedule task on the most relevant thread-pool.
  *
+ * <p>Requests of foreground apps run on separate read and write lanes. The database runs in WAL
+ * mode, so reads run concurrently with each other and with the single writer, and a slow
+ * aggregation no longer holds up writes. Requests of background apps share one lane, in which
+ * {@link HealthConnectRoundRobinScheduler} takes turns between apps.
+ *
  * @hide
  */
 public final class HealthConnectThreadScheduler {
     private static final int NUM_EXECUTOR_THREADS_INTERNAL_BACKGROUND = 1;
-    private static final long KEEP_ALIVE_TIME_INTERNAL_BACKGROUND = 60L;
-    private static final int NUM_EXECUTOR_THREADS_BACKGROUND = 1;
-    private static final long KEEP_ALIVE_TIME_BACKGROUND = 60L;
-    private static final int NUM_EXECUTOR_THREADS_FOREGROUND = 1;
-    private static final long KEEP_ALIVE_TIME_SHARED = 60L;
     private static final int NUM_EXECUTOR_THREADS_CONTROLLER = 1;
-    private static final long KEEP_ALIVE_TIME_CONTROLLER = 60L;
+
+    // Sizes of the configurable lanes, see HealthConnectDeviceConfigManager.
+    private static volatile int sNumExecutorThreadsBackground =
+            HealthConnectDeviceConfigManager.BACKGROUND_THREADS_DEFAULT_FLAG_VALUE;
+    private static volatile int sNumExecutorThreadsForegroundRead =
+            HealthConnectDeviceConfigManager.FOREGROUND_READ_THREADS_DEFAULT_FLAG_VALUE;
+    private static volatile int sNumExecutorThreadsForeground =
+            HealthConnectDeviceConfigManager.FOREGROUND_WRITE_THREADS_DEFAULT_FLAG_VALUE;
 
     // Scheduler to run the tasks in a RR fashion based on client package names.
     private static final HealthConnectRoundRobinScheduler
@@ -53,76 +58,48 @@ public final class HealthConnectThreadScheduler {
 
     // Executor to run HC background tasks
     @VisibleForTesting
-    static volatile ThreadPoolExecutor sBackgroundThreadExecutor =
-            new ThreadPoolExecutor(
-                    NUM_EXECUTOR_THREADS_BACKGROUND,
-                    NUM_EXECUTOR_THREADS_BACKGROUND,
-                    KEEP_ALIVE_TIME_BACKGROUND,
-                    TimeUnit.SECONDS,
-                    new LinkedBlockingQueue<>());
+    static volatile HealthConnectThreadPoolExecutor sBackgroundThreadExecutor =
+            new HealthConnectThreadPoolExecutor("background", sNumExecutorThreadsBackground);
 
     // Executor to run HC background tasks
     @VisibleForTesting
-    static volatile ThreadPoolExecutor sInternalBackgroundExecutor =
-            new ThreadPoolExecutor(
-                    NUM_EXECUTOR_THREADS_INTERNAL_BACKGROUND,
-                    NUM_EXECUTOR_THREADS_INTERNAL_BACKGROUND,
-                    KEEP_ALIVE_TIME_INTERNAL_BACKGROUND,
-                    TimeUnit.SECONDS,
-                    new LinkedBlockingQueue<>());
+    static volatile HealthConnectThreadPoolExecutor sInternalBackgroundExecutor =
+            new HealthConnectThreadPoolExecutor(
+                    "internal", NUM_EXECUTOR_THREADS_INTERNAL_BACKGROUND);
+
+    // Executor to run HC read only tasks for clients
+    @VisibleForTesting
+    static volatile HealthConnectThreadPoolExecutor sForegroundReadExecutor =
+            new HealthConnectThreadPoolExecutor(
+                    "foreground_read", sNumExecutorThreadsForegroundRead);
 
     // Executor to run HC tasks for clients
     @VisibleForTesting
-    static volatile ThreadPoolExecutor sForegroundExecutor =
-            new ThreadPoolExecutor(
-                    NUM_EXECUTOR_THREADS_FOREGROUND,
-                    NUM_EXECUTOR_THREADS_FOREGROUND,
-                    KEEP_ALIVE_TIME_SHARED,
-                    TimeUnit.SECONDS,
-                    new LinkedBlockingQueue<>());
+    static volatile HealthConnectThreadPoolExecutor sForegroundExecutor =
+            new HealthConnectThreadPoolExecutor("foreground", sNumExecutorThreadsForeground);
 
     // Executor to run HC controller tasks
     @VisibleForTesting
-    static volatile ThreadPoolExecutor sControllerExecutor =
-            new ThreadPoolExecutor(
-                    NUM_EXECUTOR_THREADS_CONTROLLER,
-                    NUM_EXECUTOR_THREADS_CONTROLLER,
-                    KEEP_ALIVE_TIME_CONTROLLER,
-                    TimeUnit.SECONDS,
-                    new LinkedBlockingQueue<>());
+    static volatile HealthConnectThreadPoolExecutor sControllerExecutor =
+            new HealthConnectThreadPoolExecutor("controller", NUM_EXECUTOR_THREADS_CONTROLLER);
 
     public static void resetThreadPools() {
         sInternalBackgroundExecutor =
-                new ThreadPoolExecutor(
-                        NUM_EXECUTOR_THREADS_INTERNAL_BACKGROUND,
-                        NUM_EXECUTOR_THREADS_INTERNAL_BACKGROUND,
-                        KEEP_ALIVE_TIME_INTERNAL_BACKGROUND,
-                        TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<>());
+                new HealthConnectThreadPoolExecutor(
+                        "internal", NUM_EXECUTOR_THREADS_INTERNAL_BACKGROUND);
 
         sBackgroundThreadExecutor =
-                new ThreadPoolExecutor(
-                        NUM_EXECUTOR_THREADS_BACKGROUND,
-                        NUM_EXECUTOR_THREADS_BACKGROUND,
-                        KEEP_ALIVE_TIME_BACKGROUND,
-                        TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<>());
+                new HealthConnectThreadPoolExecutor("background", sNumExecutorThreadsBackground);
+
+        sForegroundReadExecutor =
+                new HealthConnectThreadPoolExecutor(
+                        "foreground_read", sNumExecutorThreadsForegroundRead);
 
         sForegroundExecutor =
-                new ThreadPoolExecutor(
-                        NUM_EXECUTOR_THREADS_FOREGROUND,
-                        NUM_EXECUTOR_THREADS_FOREGROUND,
-                        KEEP_ALIVE_TIME_SHARED,
-                        TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<>());
+                new HealthConnectThreadPoolExecutor("foreground", sNumExecutorThreadsForeground);
 
         sControllerExecutor =
-                new ThreadPoolExecutor(
-                        NUM_EXECUTOR_THREADS_CONTROLLER,
-                        NUM_EXECUTOR_THREADS_CONTROLLER,
-                        KEEP_ALIVE_TIME_CONTROLLER,
-                        TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<>());
+                new HealthConnectThreadPoolExecutor("controller", NUM_EXECUTOR_THREADS_CONTROLLER);
         HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.resume();
     }
 
@@ -131,10 +108,36 @@ public final class HealthConnectThreadScheduler {
 
         sInternalBackgroundExecutor.shutdownNow();
         sBackgroundThreadExecutor.shutdownNow();
+        sForegroundReadExecutor.shutdownNow();
         sForegroundExecutor.shutdownNow();
         sControllerExecutor.shutdownNow();
     }
 
+    /**
+     * Resizes the configurable lanes to the values of {@code deviceConfigManager}. Internal and
+     * controller tasks stay on a single thread each, as callers rely on them running in order.
+     */
+    static void updatePoolSizes(@NonNull HealthConnectDeviceConfigManager deviceConfigManager) {
+        sNumExecutorThreadsBackground = deviceConfigManager.getBackgroundThreads();
+        sNumExecutorThreadsForegroundRead = deviceConfigManager.getForegroundReadThreads();
+        sNumExecutorThreadsForeground = deviceConfigManager.getForegroundWriteThreads();
+
+        sBackgroundThreadExecutor.setNumThreads(sNumExecutorThreadsBackground);
+        sForegroundReadExecutor.setNumThreads(sNumExecutorThreadsForegroundRead);
+        sForegroundExecutor.setNumThreads(sNumExecutorThreadsForeground);
+    }
+
+    /** Returns the queue depth and wait time metrics of all lanes. */
+    @NonNull
+    static List<HealthConnectThreadPoolExecutor.LaneStats> getLaneStats() {
+        return List.of(
+                sForegroundReadExecutor.getStats(),
+                sForegroundExecutor.getStats(),
+                sBackgroundThreadExecutor.getStats(),
+                sControllerExecutor.getStats(),
+                sInternalBackgroundExecutor.getStats());
+    }
+
     /** Schedules the task on the executor dedicated for performing internal tasks */
     public static void scheduleInternalTask(Runnable task) {
         safeExecute(sInternalBackgroundExecutor, getSafeRunnable(task));
@@ -147,6 +150,22 @@ public final class HealthConnectThreadScheduler {
 
     /** Schedules the task on the best possible executor based on the parameters */
     static void schedule(Context context, @NonNull Runnable task, int uid, boolean isController) {
+        schedule(context, task, uid, isController, /* isReadOnly= */ false);
+    }
+
+    /**
+     * Schedules the task on the best possible executor based on the parameters.
+     *
+     * @param isReadOnly whether the task mostly reads the database, in which case a foreground
+     *     task runs on the read lane. Incidental writes, such as access logs, are fine as SQLite
+     *     serializes them with other writers.
+     */
+    static void schedule(
+            Context context,
+            @NonNull Runnable task,
+            int uid,
+            boolean isController,
+            boolean isReadOnly) {
         if (isController) {
             safeExecute(sControllerExecutor, getSafeRunnable(task));
             return;
@@ -154,7 +173,7 @@ public final class HealthConnectThreadScheduler {
 
         if (isUidInForeground(context, uid)) {
             safeExecute(
-                    sForegroundExecutor,
+                    isReadOnly ? sForegroundReadExecutor : sForegroundExecutor,
                     getSafeRunnable(
                             () -> {
                                 if (!isUidInForeground(context, uid)) {
@@ -163,31 +182,25 @@ public final class HealthConnectThreadScheduler {
                                     // only be used by the foreground app and since the request of
                                     // this task is no longer in foreground we don't want it to
                                     // consume foreground resource anymore.
-                                    HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.addTask(
-                                            uid, task);
-                                    safeExecute(
-                                            sBackgroundThreadExecutor,
-                                            () ->
-                                                    HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER
-                                                            .getNextTask()
-                                                            .run());
+                                    scheduleBackgroundTask(uid, task);
                                     return;
                                 }
 
                                 task.run();
                             }));
         } else {
-            HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.addTask(uid, task);
-            safeExecute(
-                    sBackgroundThreadExecutor,
-                    getSafeRunnable(
-                            () ->
-                                    HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER
-                                            .getNextTask()
-                                            .run()));
+            scheduleBackgroundTask(uid, task);
         }
     }
 
+    private static void scheduleBackgroundTask(int uid, @NonNull Runnable task) {
+        HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.addTask(uid, task);
+        safeExecute(
+                sBackgroundThreadExecutor,
+                getSafeRunnable(
+                        () -> HEALTH_CONNECT_BACKGROUND_ROUND_ROBIN_SCHEDULER.getNextTask().run()));
+    }
+
     private static boolean isUidInForeground(Context context, int uid) {
         ActivityManager activityManager = context.getSystemService(ActivityManager.class);
         Objects.requireNonNull(activityManager);
@@ -18,7 +18,6 @@ package com.android.server.healthconnect.backuprestore;
 
 import static android.health.connect.Constants.DEFAULT_INT;
 import static android.health.connect.Constants.DEFAULT_LONG;
-import static android.health.connect.Constants.DEFAULT_PAGE_SIZE;
 import static android.health.connect.HealthConnectDataState.RESTORE_ERROR_FETCHING_DATA;
 import static android.health.connect.HealthConnectDataState.RESTORE_ERROR_NONE;
 import static android.health.connect.HealthConnectDataState.RESTORE_ERROR_UNKNOWN;
@@ -31,7 +30,6 @@ import static android.health.connect.HealthConnectManager.DATA_DOWNLOAD_FAILED;
 import static android.health.connect.HealthConnectManager.DATA_DOWNLOAD_RETRY;
 import static android.health.connect.HealthConnectManager.DATA_DOWNLOAD_STARTED;
 import static android.health.connect.HealthConnectManager.DATA_DOWNLOAD_STATE_UNKNOWN;
-import static android.health.connect.PageTokenWrapper.EMPTY_PAGE_TOKEN;
 
 import static com.android.server.healthconnect.backuprestore.BackupRestore.BackupRestoreJobService.EXTRA_JOB_NAME_KEY;
 import static com.android.server.healthconnect.backuprestore.BackupRestore.BackupRestoreJobService.EXTRA_USER_ID;
@@ -52,14 +50,11 @@ import android.content.Context;
 import android.content.ContextWrapper;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.health.connect.HealthConnectDataState;
 import android.health.connect.HealthConnectException;
 import android.health.connect.HealthConnectManager.DataDownloadState;
-import android.health.connect.PageTokenWrapper;
-import android.health.connect.ReadRecordsRequestUsingFilters;
 import android.health.connect.aidl.IDataStagingFinishedCallback;
-import android.health.connect.datatypes.Record;
-import android.health.connect.internal.datatypes.RecordInternal;
 import android.health.connect.internal.datatypes.utils.RecordMapper;
 import android.health.connect.restore.BackupFileNamesSet;
 import android.health.connect.restore.StageRemoteDataException;
@@ -73,7 +68,6 @@ import android.text.format.DateUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
-import android.util.Pair;
 import android.util.Slog;
 
 import com.android.internal.annotations.GuardedBy;
@@ -83,15 +77,15 @@ import com.android.server.healthconnect.migration.MigrationStateManager;
 import com.android.server.healthconnect.permission.FirstGrantTimeManager;
 import com.android.server.healthconnect.permission.GrantTimeXmlHelper;
 import com.android.server.healthconnect.permission.UserGrantTimeState;
+import com.android.server.healthconnect.storage.AggregationResultCache;
+import com.android.server.healthconnect.storage.DatabaseSnapshot;
 import com.android.server.healthconnect.storage.HealthConnectDatabase;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.DeviceInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
-import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
-import com.android.server.healthconnect.storage.request.ReadTransactionRequest;
-import com.android.server.healthconnect.storage.request.UpsertTransactionRequest;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 import com.android.server.healthconnect.utils.FilesUtil;
 import com.android.server.healthconnect.utils.RunnableWithThrowable;
@@ -108,7 +102,6 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.util.Collections;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -208,7 +201,6 @@ public final class BackupRestore {
 
     private final StagedDatabaseContext mStagedDbContext;
     private final Context mContext;
-    private final Map<Long, String> mStagedPackageNamesByAppIds = new ArrayMap<>();
     private final Object mMergingLock = new Object();
 
     @GuardedBy("mMergingLock")
@@ -366,12 +358,23 @@ public final class BackupRestore {
         var backupFilesByFileNames = getBackupFilesByFileNames(userHandle);
         pfdsByFileName.forEach(
                 (fileName, pfd) -> {
-                    @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
-                    Path sourceFilePath = backupFilesByFileNames.get(fileName).toPath();
                     try (FileOutputStream outputStream =
                             new FileOutputStream(pfd.getFileDescriptor())) {
-                        Files.copy(sourceFilePath, outputStream);
-                    } catch (IOException | SecurityException e) {
+                        if (STAGED_DATABASE_NAME.equals(fileName)) {
+                            // The database is written to while it is backed up, so copying its
+                            // file could copy a torn state.
+                            new DatabaseSnapshot(
+                                            TransactionManager.getInitialisedInstance()
+                                                    .getDatabasePath(),
+                                            getBackupDataDirectoryForUser(
+                                                    userHandle.getIdentifier()))
+                                    .writeTo(outputStream);
+                        } else {
+                            @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
+                            Path sourceFilePath = backupFilesByFileNames.get(fileName).toPath();
+                            Files.copy(sourceFilePath, outputStream);
+                        }
+                    } catch (IOException | SecurityException | SQLiteException e) {
                         Slog.e(TAG, "Failed to send " + fileName + " for backup", e);
                     } finally {
                         try {
@@ -637,9 +640,6 @@ public final class BackupRestore {
     private Map<String, File> getBackupFilesByFileNames(UserHandle userHandle) {
         ArrayMap<String, File> backupFilesByFileNames = new ArrayMap<>();
 
-        File databasePath = TransactionManager.getInitialisedInstance().getDatabasePath();
-        backupFilesByFileNames.put(STAGED_DATABASE_NAME, databasePath);
-
         File backupDataDir = getBackupDataDirectoryForUser(userHandle.getIdentifier());
         backupDataDir.mkdirs();
         File grantTimeFile = new File(backupDataDir, GRANT_TIME_FILE_NAME);
@@ -1016,148 +1016,84 @@ public final class BackupRestore {
             // present in the staged db.
 
             // We are sure to migrate the db now, so prepare
-            prepInternalDataPerStagedDb();
+            Map<Long, Long> appInfoIds = prepInternalDataPerStagedDb();
+            Map<Long, Long> deviceInfoIds;
+            try (Cursor cursor =
+                    read(new ReadTableRequest(DeviceInfoHelper.getInstance().getTableName()))) {
+                deviceInfoIds = DeviceInfoHelper.getInstance().getOrInsertDeviceInfoIds(cursor);
+            }
 
-            // Go through each record type and migrate all records of that type.
-            var recordTypeMap = RecordMapper.getInstance().getRecordIdToExternalRecordClassMap();
-            for (var recordTypeMapEntry : recordTypeMap.entrySet()) {
-                mergeRecordsOfType(recordTypeMapEntry.getKey(), recordTypeMapEntry.getValue());
+            // Go through each record type and copy all the records of that type which weren't
+            // merged yet, resuming a merge that was interrupted.
+            try (StagedDatabaseMerger merger =
+                    new StagedDatabaseMerger(
+                            getStagedDatabase().getWritableDatabase(),
+                            TransactionManager.getInitialisedInstance().getDatabasePath())) {
+                merger.setAppInfoIds(appInfoIds);
+                merger.setDeviceInfoIds(deviceInfoIds);
+                for (int recordType :
+                        RecordMapper.getInstance().getRecordIdToExternalRecordClassMap().keySet()) {
+                    merger.mergeTable(
+                            RecordHelperProvider.getInstance()
+                                    .getRecordHelper(recordType)
+                                    .getCreateTableRequest());
+                }
             }
+            // Merged records don't have change logs.
+            AggregationResultCache.getInstance().clear();
 
             Slog.i(TAG, "Sync app info records after restored data merge.");
             AppInfoHelper.getInstance().syncAppInfoRecordTypesUsed();
 
             // Delete the staged db as we are done merging.
             Slog.i(TAG, "Deleting staged db after merging.");
+            getStagedDatabase().close();
             mStagedDbContext.deleteDatabase(STAGED_DATABASE_NAME);
             mStagedDatabase = null;
         }
     }
 
-    private <T extends Record> void mergeRecordsOfType(int recordType, Class<T> recordTypeClass) {
-        RecordHelper<?> recordHelper =
-                RecordHelperProvider.getInstance().getRecordHelper(recordType);
-        // Read all the records of the given type from the staged db and insert them into the
-        // existing healthconnect db.
-        PageTokenWrapper token = EMPTY_PAGE_TOKEN;
-        do {
-            var recordsToMergeAndToken = getRecordsToMerge(recordTypeClass, token, recordHelper);
-            if (recordsToMergeAndToken.first.isEmpty()) {
-                break;
-            }
-            Slog.d(TAG, "Found record to merge: " + recordsToMergeAndToken.first.getClass());
-            // Using null package name for making insertion for two reasons:
-            // 1. we don't want to update the logs for this package.
-            // 2. we don't want to update the package name in the records as they already have the
-            //    correct package name.
-            UpsertTransactionRequest upsertTransactionRequest =
-                    new UpsertTransactionRequest(
-                            null /* packageName */,
-                            recordsToMergeAndToken.first,
-                            mContext,
-                            true /* isInsertRequest */,
-                            true /* skipPackageNameAndLogs */);
-            TransactionManager.getInitialisedInstance()
-                    .insertAll(upsertTransactionRequest.getUpsertRequests());
-
-            token = recordsToMergeAndToken.second;
-        } while (!token.isEmpty());
-
-        // Once all the records of this type have been merged we can delete the table.
-
-        // Passing -1 for startTime and endTime as we don't want to have time based filtering in the
-        // final query.
-        Slog.d(TAG, "Deleting table for: " + recordTypeClass);
-        @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
-        DeleteTableRequest deleteTableRequest =
-                recordHelper.getDeleteTableRequest(
-                        null /* packageFilters */,
-                        DEFAULT_LONG /* startTime */,
-                        DEFAULT_LONG /* endTime */,
-                        false /* useLocalTimeFilter */);
-        getStagedDatabase().getWritableDatabase().execSQL(deleteTableRequest.getDeleteCommand());
-    }
-
-    private <T extends Record> Pair<List<RecordInternal<?>>, PageTokenWrapper> getRecordsToMerge(
-            Class<T> recordTypeClass, PageTokenWrapper requestToken, RecordHelper<?> recordHelper) {
-        ReadRecordsRequestUsingFilters<T> readRecordsRequest =
-                new ReadRecordsRequestUsingFilters.Builder<>(recordTypeClass)
-                        .setPageSize(2000)
-                        .setPageToken(requestToken.encode())
-                        .build();
-
-        Set<String> grantedExtraReadPermissions =
-                Set.copyOf(recordHelper.getExtraReadPermissions());
-
-        // Working with startDateAccess of -1 as we don't want to have time based filtering in the
-        // query.
-        @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
-        ReadTransactionRequest readTransactionRequest =
-                new ReadTransactionRequest(
-                        null,
-                        readRecordsRequest.toReadRecordsRequestParcel(),
-                        // Avoid time based filtering.
-                        /* startDateAccessMillis= */ DEFAULT_LONG,
-                        /* enforceSelfRead= */ false,
-                        grantedExtraReadPermissions,
-                        // Make sure foreground only types get included in the response.
-                        /* isInForeground= */ true);
-
-        List<RecordInternal<?>> recordInternalList;
-        PageTokenWrapper token;
-        ReadTableRequest readTableRequest = readTransactionRequest.getReadRequests().get(0);
-        try (Cursor cursor = read(readTableRequest)) {
-            Pair<List<RecordInternal<?>>, PageTokenWrapper> readResult =
-                    recordHelper.getNextInternalRecordsPageAndToken(
-                            cursor,
-                            readTransactionRequest.getPageSize().orElse(DEFAULT_PAGE_SIZE),
-                            requireNonNull(readTransactionRequest.getPageToken()),
-                            mStagedPackageNamesByAppIds);
-            recordInternalList = readResult.first;
-            token = readResult.second;
-            populateInternalRecordsWithExtraData(recordInternalList, readTableRequest);
-        }
-        return Pair.create(recordInternalList, token);
-    }
-
     private Cursor read(ReadTableRequest request) {
         synchronized (mMergingLock) {
-            return getStagedDatabase()
-                    .getReadableDatabase()
-                    .rawQuery(request.getReadCommand(), null);
+            return request.getReadStatement().query(getStagedDatabase().getReadableDatabase());
 
         }
     }
 
-    private void populateInternalRecordsWithExtraData(
-            List<RecordInternal<?>> records, ReadTableRequest request) {
-        if (request.getExtraReadRequests() == null) {
-            return;
-        }
-        for (ReadTableRequest extraDataRequest : request.getExtraReadRequests()) {
-            Cursor cursorExtraData = read(extraDataRequest);
-            request.getRecordHelper()
-                    .updateInternalRecordsWithExtraFields(
-                            records, cursorExtraData, extraDataRequest.getTableName());
-        }
-    }
-
-    private void prepInternalDataPerStagedDb() {
+    /**
+     * Adds the apps of the staged db that aren't installed, and returns the app info ids of the
+     * staged apps, keyed by their ids in the staged db.
+     */
+    private Map<Long, Long> prepInternalDataPerStagedDb() {
+        Map<Long, Long> appInfoIds = new ArrayMap<>();
         try (Cursor cursor = read(new ReadTableRequest(AppInfoHelper.TABLE_NAME))) {
             while (cursor.moveToNext()) {
                 long rowId = getCursorLong(cursor, RecordHelper.PRIMARY_COLUMN_NAME);
                 String packageName = getCursorString(cursor, AppInfoHelper.PACKAGE_COLUMN_NAME);
                 String appName = getCursorString(cursor, AppInfoHelper.APPLICATION_COLUMN_NAME);
                 byte[] icon = getCursorBlob(cursor, AppInfoHelper.APP_ICON_COLUMN_NAME);
-                mStagedPackageNamesByAppIds.put(rowId, packageName);
 
                 // If this package is not installed on the target device and is not present in the
                 // health db, then fill the health db with the info from source db.
                 AppInfoHelper.getInstance()
                         .addOrUpdateAppInfoIfNotInstalled(
                                 mContext, packageName, appName, icon, false /* onlyReplace */);
+
+                long appInfoId = AppInfoHelper.getInstance().getAppInfoId(packageName);
+                if (appInfoId == DEFAULT_LONG) {
+                    try {
+                        appInfoId =
+                                AppInfoHelper.getInstance()
+                                        .getOrInsertAppInfoId(packageName, mContext);
+                    } catch (IllegalArgumentException e) {
+                        Slog.e(TAG, "Not merging the records of " + packageName, e);
+                        continue;
+                    }
+                }
+                appInfoIds.put(rowId, appInfoId);
             }
         }
+        return appInfoIds;
     }
 
     @VisibleForTesting
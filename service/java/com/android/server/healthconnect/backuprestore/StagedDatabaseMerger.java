@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.backuprestore;
+
+import static android.health.connect.Constants.PARENT_KEY;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.LAST_MODIFIED_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.PRIMARY_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.UUID_COLUMN_NAME;
+
+import android.annotation.NonNull;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Slog;
+
+import com.android.server.healthconnect.storage.request.CreateTableRequest;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the records of a staged database into the HealthConnect database with set based
+ * statements, by attaching the HealthConnect database to the connection of the staged one.
+ *
+ * <p>Each record table is copied in chunks of staged rows, one transaction per chunk. A transaction
+ * can't be atomic across two databases when one of them is in WAL mode, so the chunk transaction
+ * only writes to the HealthConnect database, and the last merged staged row id is saved in the
+ * staged database after it committed. An interrupted merge resumes after the last saved chunk,
+ * which may redo the chunk after it. Redoing a chunk that was merged doesn't change anything.
+ *
+ * <p>A record whose uuid is already present replaces the existing one, with its child rows, if its
+ * client record version is higher. Otherwise the existing record and its child rows are kept.
+ * Records that duplicate another existing record (same dedupe hash) aren't copied, and don't
+ * replace an existing record. The app and device info ids of the copied records are remapped
+ * through temporary tables.
+ *
+ * @hide
+ */
+final class StagedDatabaseMerger implements AutoCloseable {
+    static final int DEFAULT_CHUNK_SIZE = 2000;
+
+    private static final String TAG = "HealthConnectStagedMerge";
+    private static final String SCHEMA_NAME = "hc";
+    private static final String PROGRESS_TABLE_NAME = "restore_merge_progress_table";
+    private static final String TABLE_NAME_COLUMN_NAME = "table_name";
+    private static final String LAST_ROW_ID_COLUMN_NAME = "last_row_id";
+    private static final String APP_INFO_ID_MAP_TABLE_NAME = "app_info_id_map";
+    private static final String DEVICE_INFO_ID_MAP_TABLE_NAME = "device_info_id_map";
+    private static final String DEVICE_INFO_ID_COLUMN_NAME = "device_info_id";
+    private static final String STAGED_ID_COLUMN_NAME = "staged_id";
+    private static final String ID_COLUMN_NAME = "id";
+    private static final String REPLACED_ROW_IDS_TABLE_NAME = "replaced_row_ids";
+    private static final String CLIENT_RECORD_VERSION_COLUMN_NAME = "client_record_version";
+    private static final String DEDUPE_HASH_COLUMN_NAME = "dedupe_hash";
+
+    private final SQLiteDatabase mStagedDb;
+    private final int mChunkSize;
+
+    /**
+     * Attaches {@code databaseFile} to {@code stagedDb}, which must not be in a transaction. Both
+     * databases must have the same schema version.
+     */
+    StagedDatabaseMerger(@NonNull SQLiteDatabase stagedDb, @NonNull File databaseFile) {
+        this(stagedDb, databaseFile, DEFAULT_CHUNK_SIZE);
+    }
+
+    StagedDatabaseMerger(
+            @NonNull SQLiteDatabase stagedDb, @NonNull File databaseFile, int chunkSize) {
+        mStagedDb = stagedDb;
+        mChunkSize = chunkSize;
+        mStagedDb.execSQL(
+                "ATTACH DATABASE ? AS " + SCHEMA_NAME,
+                new Object[] {databaseFile.getAbsolutePath()});
+        mStagedDb.execSQL(
+                "CREATE TABLE IF NOT EXISTS main."
+                        + PROGRESS_TABLE_NAME
+                        + " ("
+                        + TABLE_NAME_COLUMN_NAME
+                        + " TEXT PRIMARY KEY, "
+                        + LAST_ROW_ID_COLUMN_NAME
+                        + " INTEGER NOT NULL)");
+        createIdMapTable(APP_INFO_ID_MAP_TABLE_NAME);
+        createIdMapTable(DEVICE_INFO_ID_MAP_TABLE_NAME);
+        mStagedDb.execSQL(
+                "CREATE TEMP TABLE IF NOT EXISTS "
+                        + REPLACED_ROW_IDS_TABLE_NAME
+                        + " ("
+                        + PRIMARY_COLUMN_NAME
+                        + " INTEGER PRIMARY KEY)");
+    }
+
+    /**
+     * Sets the app info ids of the HealthConnect database, keyed by the app info ids of the staged
+     * database. Records of apps without an id aren't merged.
+     */
+    void setAppInfoIds(@NonNull Map<Long, Long> appInfoIds) {
+        setIds(APP_INFO_ID_MAP_TABLE_NAME, appInfoIds);
+    }
+
+    /**
+     * Sets the device info ids of the HealthConnect database, keyed by the device info ids of the
+     * staged database. Records of devices without an id are merged without a device.
+     */
+    void setDeviceInfoIds(@NonNull Map<Long, Long> deviceInfoIds) {
+        setIds(DEVICE_INFO_ID_MAP_TABLE_NAME, deviceInfoIds);
+    }
+
+    /**
+     * Copies the records of the table of {@code request}, and the rows of its child tables, which
+     * weren't merged yet.
+     *
+     * @return the number of records that were copied or replaced.
+     */
+    long mergeTable(@NonNull CreateTableRequest request) {
+        String tableName = request.getTableName();
+        long lastRowId = getLastMergedRowId(tableName);
+        long mergedCount = 0;
+
+        List<SQLiteStatement> statements = new ArrayList<>();
+        try {
+            SQLiteStatement clearReplacedRowIds =
+                    compile("DELETE FROM temp." + REPLACED_ROW_IDS_TABLE_NAME, statements);
+            SQLiteStatement findReplacedRowIds =
+                    compile(getFindReplacedRowIdsSql(tableName), statements);
+            SQLiteStatement upsertRecords = compile(getUpsertRecordsSql(tableName), statements);
+            List<SQLiteStatement> deleteChildren = new ArrayList<>();
+            List<SQLiteStatement> insertChildren = new ArrayList<>();
+            for (CreateTableRequest childRequest : request.getChildTableRequests()) {
+                deleteChildren.add(
+                        compile(getDeleteChildrenSql(childRequest.getTableName()), statements));
+                insertChildren.add(
+                        compile(
+                                getInsertChildrenSql(tableName, childRequest.getTableName()),
+                                statements));
+            }
+            SQLiteStatement saveProgress =
+                    compile(
+                            "INSERT OR REPLACE INTO main."
+                                    + PROGRESS_TABLE_NAME
+                                    + " ("
+                                    + TABLE_NAME_COLUMN_NAME
+                                    + ", "
+                                    + LAST_ROW_ID_COLUMN_NAME
+                                    + ") VALUES (?, ?)",
+                            statements);
+
+            long chunkEnd;
+            while ((chunkEnd = getChunkEnd(tableName, lastRowId)) > lastRowId) {
+                mStagedDb.beginTransaction();
+                try {
+                    // Rows inserted by this chunk get row ids above the current maximum, and rows
+                    // replaced by it are listed in a temp table. This tells their child rows apart
+                    // from the ones of records that were kept.
+                    long maxRowId =
+                            DatabaseUtils.longForQuery(
+                                    mStagedDb,
+                                    "SELECT IFNULL(MAX("
+                                            + PRIMARY_COLUMN_NAME
+                                            + "), 0) FROM "
+                                            + SCHEMA_NAME
+                                            + "."
+                                            + tableName,
+                                    null);
+
+                    clearReplacedRowIds.executeUpdateDelete();
+                    findReplacedRowIds.bindLong(1, lastRowId);
+                    findReplacedRowIds.bindLong(2, chunkEnd);
+                    findReplacedRowIds.executeUpdateDelete();
+                    for (SQLiteStatement deleteChildRows : deleteChildren) {
+                        deleteChildRows.executeUpdateDelete();
+                    }
+
+                    upsertRecords.bindLong(1, Instant.now().toEpochMilli());
+                    upsertRecords.bindLong(2, lastRowId);
+                    upsertRecords.bindLong(3, chunkEnd);
+                    mergedCount += upsertRecords.executeUpdateDelete();
+
+                    for (SQLiteStatement insertChildRows : insertChildren) {
+                        insertChildRows.bindLong(1, lastRowId);
+                        insertChildRows.bindLong(2, chunkEnd);
+                        insertChildRows.bindLong(3, maxRowId);
+                        insertChildRows.executeUpdateDelete();
+                    }
+                    mStagedDb.setTransactionSuccessful();
+                } finally {
+                    mStagedDb.endTransaction();
+                }
+
+                // Saved only once the chunk committed, so the progress never gets ahead of the
+                // merged records.
+                saveProgress.bindString(1, tableName);
+                saveProgress.bindLong(2, chunkEnd);
+                saveProgress.executeInsert();
+                lastRowId = chunkEnd;
+            }
+        } finally {
+            statements.forEach(SQLiteStatement::close);
+        }
+
+        Slog.i(TAG, "Merged " + mergedCount + " records into " + tableName);
+        return mergedCount;
+    }
+
+    /** Detaches the HealthConnect database. The merge progress stays in the staged database. */
+    @Override
+    public void close() {
+        mStagedDb.execSQL("DROP TABLE IF EXISTS temp." + APP_INFO_ID_MAP_TABLE_NAME);
+        mStagedDb.execSQL("DROP TABLE IF EXISTS temp." + DEVICE_INFO_ID_MAP_TABLE_NAME);
+        mStagedDb.execSQL("DROP TABLE IF EXISTS temp." + REPLACED_ROW_IDS_TABLE_NAME);
+        mStagedDb.execSQL("DETACH DATABASE " + SCHEMA_NAME);
+    }
+
+    private long getLastMergedRowId(@NonNull String tableName) {
+        return DatabaseUtils.longForQuery(
+                mStagedDb,
+                "SELECT IFNULL(MAX("
+                        + LAST_ROW_ID_COLUMN_NAME
+                        + "), 0) FROM main."
+                        + PROGRESS_TABLE_NAME
+                        + " WHERE "
+                        + TABLE_NAME_COLUMN_NAME
+                        + " = ?",
+                new String[] {tableName});
+    }
+
+    /** Returns the last staged row id of the chunk after {@code lastRowId}, or 0 if none. */
+    private long getChunkEnd(@NonNull String tableName, long lastRowId) {
+        return DatabaseUtils.longForQuery(
+                mStagedDb,
+                "SELECT IFNULL(MAX("
+                        + PRIMARY_COLUMN_NAME
+                        + "), 0) FROM (SELECT "
+                        + PRIMARY_COLUMN_NAME
+                        + " FROM main."
+                        + tableName
+                        + " WHERE "
+                        + PRIMARY_COLUMN_NAME
+                        + " > ? ORDER BY "
+                        + PRIMARY_COLUMN_NAME
+                        + " LIMIT ?)",
+                new String[] {String.valueOf(lastRowId), String.valueOf(mChunkSize)});
+    }
+
+    /**
+     * Returns the statement listing the row ids of the existing records that the records of a chunk
+     * replace, which binds the staged row ids after which and up to which records are copied.
+     */
+    @NonNull
+    private String getFindReplacedRowIdsSql(@NonNull String tableName) {
+        return "INSERT INTO temp."
+                + REPLACED_ROW_IDS_TABLE_NAME
+                + " SELECT p."
+                + PRIMARY_COLUMN_NAME
+                + " FROM main."
+                + tableName
+                + " AS s INNER JOIN temp."
+                + APP_INFO_ID_MAP_TABLE_NAME
+                + " AS a ON s."
+                + APP_INFO_ID_COLUMN_NAME
+                + " = a."
+                + STAGED_ID_COLUMN_NAME
+                + " INNER JOIN "
+                + SCHEMA_NAME
+                + "."
+                + tableName
+                + " AS p ON s."
+                + UUID_COLUMN_NAME
+                + " = p."
+                + UUID_COLUMN_NAME
+                + " WHERE s."
+                + PRIMARY_COLUMN_NAME
+                + " > ?1 AND s."
+                + PRIMARY_COLUMN_NAME
+                + " <= ?2 AND "
+                + getReplaceCondition(tableName, "s", "p");
+    }
+
+    /**
+     * Returns the statement copying the records of a chunk, which binds the last modified time
+     * and the staged row ids after which and up to which records are copied.
+     */
+    @NonNull
+    private String getUpsertRecordsSql(@NonNull String tableName) {
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        StringBuilder assignments = new StringBuilder();
+        for (String column : getColumnNames(tableName)) {
+            String value =
+                    switch (column) {
+                        case PRIMARY_COLUMN_NAME -> null;
+                        case APP_INFO_ID_COLUMN_NAME -> "a." + ID_COLUMN_NAME;
+                        case DEVICE_INFO_ID_COLUMN_NAME -> "d." + ID_COLUMN_NAME;
+                        case LAST_MODIFIED_TIME_COLUMN_NAME -> "?1";
+                        default -> "s." + column;
+                    };
+            if (value != null) {
+                columns.append(columns.length() == 0 ? "" : ", ").append(column);
+                values.append(values.length() == 0 ? "" : ", ").append(value);
+                if (!column.equals(UUID_COLUMN_NAME)) {
+                    assignments
+                            .append(assignments.length() == 0 ? "" : ", ")
+                            .append(column)
+                            .append(" = excluded.")
+                            .append(column);
+                }
+            }
+        }
+
+        // The last ON CONFLICT clause skips records that conflict on other unique columns than
+        // the uuid, such as the dedupe hash.
+        return "INSERT INTO "
+                + SCHEMA_NAME
+                + "."
+                + tableName
+                + " ("
+                + columns
+                + ") SELECT "
+                + values
+                + " FROM main."
+                + tableName
+                + " AS s INNER JOIN temp."
+                + APP_INFO_ID_MAP_TABLE_NAME
+                + " AS a ON s."
+                + APP_INFO_ID_COLUMN_NAME
+                + " = a."
+                + STAGED_ID_COLUMN_NAME
+                + " LEFT JOIN temp."
+                + DEVICE_INFO_ID_MAP_TABLE_NAME
+                + " AS d ON s."
+                + DEVICE_INFO_ID_COLUMN_NAME
+                + " = d."
+                + STAGED_ID_COLUMN_NAME
+                + " WHERE s."
+                + PRIMARY_COLUMN_NAME
+                + " > ?2 AND s."
+                + PRIMARY_COLUMN_NAME
+                + " <= ?3 ON CONFLICT ("
+                + UUID_COLUMN_NAME
+                + ") DO UPDATE SET "
+                + assignments
+                + " WHERE "
+                + getReplaceCondition(tableName, "excluded", tableName)
+                + " ON CONFLICT DO NOTHING";
+    }
+
+    /**
+     * Returns the condition that the record {@code newAlias} replaces the existing record {@code
+     * existingAlias} with the same uuid: its client record version is higher, and it doesn't
+     * duplicate another existing record.
+     */
+    @NonNull
+    private static String getReplaceCondition(
+            @NonNull String tableName, @NonNull String newAlias, @NonNull String existingAlias) {
+        return newAlias
+                + "."
+                + CLIENT_RECORD_VERSION_COLUMN_NAME
+                + " > "
+                + existingAlias
+                + "."
+                + CLIENT_RECORD_VERSION_COLUMN_NAME
+                + " AND NOT EXISTS (SELECT 1 FROM "
+                + SCHEMA_NAME
+                + "."
+                + tableName
+                + " AS o WHERE o."
+                + DEDUPE_HASH_COLUMN_NAME
+                + " = "
+                + newAlias
+                + "."
+                + DEDUPE_HASH_COLUMN_NAME
+                + " AND o."
+                + UUID_COLUMN_NAME
+                + " != "
+                + newAlias
+                + "."
+                + UUID_COLUMN_NAME
+                + ")";
+    }
+
+    /** Returns the statement deleting the child rows of the records that a chunk replaces. */
+    @NonNull
+    private static String getDeleteChildrenSql(@NonNull String tableName) {
+        return "DELETE FROM "
+                + SCHEMA_NAME
+                + "."
+                + tableName
+                + " WHERE "
+                + PARENT_KEY
+                + " IN (SELECT "
+                + PRIMARY_COLUMN_NAME
+                + " FROM temp."
+                + REPLACED_ROW_IDS_TABLE_NAME
+                + ")";
+    }
+
+    /**
+     * Returns the statement copying the child rows of the records of a chunk that were inserted or
+     * replaced, which binds the staged row ids after which and up to which records are copied, and
+     * the maximum row id of the parent table before the records were inserted.
+     */
+    @NonNull
+    private String getInsertChildrenSql(
+            @NonNull String parentTableName, @NonNull String tableName) {
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (String column : getColumnNames(tableName)) {
+            String value =
+                    switch (column) {
+                        case PRIMARY_COLUMN_NAME -> null;
+                        case PARENT_KEY -> "p." + PRIMARY_COLUMN_NAME;
+                        default -> "c." + column;
+                    };
+            if (value != null) {
+                columns.append(columns.length() == 0 ? "" : ", ").append(column);
+                values.append(values.length() == 0 ? "" : ", ").append(value);
+            }
+        }
+
+        return "INSERT INTO "
+                + SCHEMA_NAME
+                + "."
+                + tableName
+                + " ("
+                + columns
+                + ") SELECT "
+                + values
+                + " FROM main."
+                + tableName
+                + " AS c INNER JOIN main."
+                + parentTableName
+                + " AS s ON c."
+                + PARENT_KEY
+                + " = s."
+                + PRIMARY_COLUMN_NAME
+                + " INNER JOIN "
+                + SCHEMA_NAME
+                + "."
+                + parentTableName
+                + " AS p ON s."
+                + UUID_COLUMN_NAME
+                + " = p."
+                + UUID_COLUMN_NAME
+                + " WHERE s."
+                + PRIMARY_COLUMN_NAME
+                + " > ?1 AND s."
+                + PRIMARY_COLUMN_NAME
+                + " <= ?2 AND (p."
+                + PRIMARY_COLUMN_NAME
+                + " > ?3 OR p."
+                + PRIMARY_COLUMN_NAME
+                + " IN (SELECT "
+                + PRIMARY_COLUMN_NAME
+                + " FROM temp."
+                + REPLACED_ROW_IDS_TABLE_NAME
+                + "))";
+    }
+
+    /** Returns the stored columns of {@code tableName} in the HealthConnect database. */
+    @NonNull
+    private List<String> getColumnNames(@NonNull String tableName) {
+        List<String> columnNames = new ArrayList<>();
+        // table_info doesn't return generated columns, which can't be inserted.
+        try (Cursor cursor =
+                mStagedDb.rawQuery(
+                        "PRAGMA " + SCHEMA_NAME + ".table_info(" + tableName + ")", null)) {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columnNames.add(cursor.getString(nameIndex));
+            }
+        }
+        if (columnNames.isEmpty()) {
+            throw new IllegalStateException("Table not found: " + tableName);
+        }
+        return columnNames;
+    }
+
+    private void createIdMapTable(@NonNull String tableName) {
+        mStagedDb.execSQL(
+                "CREATE TEMP TABLE IF NOT EXISTS "
+                        + tableName
+                        + " ("
+                        + STAGED_ID_COLUMN_NAME
+                        + " INTEGER PRIMARY KEY, "
+                        + ID_COLUMN_NAME
+                        + " INTEGER NOT NULL)");
+    }
+
+    private void setIds(@NonNull String tableName, @NonNull Map<Long, Long> ids) {
+        mStagedDb.beginTransaction();
+        try {
+            mStagedDb.execSQL("DELETE FROM temp." + tableName);
+            try (SQLiteStatement insert =
+                    mStagedDb.compileStatement(
+                            "INSERT INTO temp."
+                                    + tableName
+                                    + " ("
+                                    + STAGED_ID_COLUMN_NAME
+                                    + ", "
+                                    + ID_COLUMN_NAME
+                                    + ") VALUES (?, ?)")) {
+                for (Map.Entry<Long, Long> entry : ids.entrySet()) {
+                    insert.bindLong(1, entry.getKey());
+                    insert.bindLong(2, entry.getValue());
+                    insert.executeInsert();
+                }
+            }
+            mStagedDb.setTransactionSuccessful();
+        } finally {
+            mStagedDb.endTransaction();
+        }
+    }
+
+    @NonNull
+    private SQLiteStatement compile(
+            @NonNull String sql, @NonNull List<SQLiteStatement> statements) {
+        SQLiteStatement statement = mStagedDb.compileStatement(sql);
+        statements.add(statement);
+        return statement;
+    }
+}
@@ -16,16 +16,23 @@
 
 package com.android.server.healthconnect.exportimport;
 
+import static android.health.connect.Constants.DEFAULT_INT;
+
 import android.app.job.JobInfo;
+import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
 import android.content.ComponentName;
 import android.content.Context;
+import android.os.CancellationSignal;
 import android.os.PersistableBundle;
+import android.os.UserHandle;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.healthconnect.HealthConnectDailyService;
+import com.android.server.healthconnect.storage.ScheduledExportSettingsStorage;
 
 import java.time.Duration;
 import java.util.Objects;
@@ -42,6 +49,8 @@ public class ExportImportJobs {
 
     public static final String PERIODIC_EXPORT_JOB_NAME = "periodic_export_job";
 
+    @Nullable private static volatile CancellationSignal sCancellationSignal;
+
     /** Schedule the periodic export job. */
     public static void schedulePeriodicExportJob(Context context, int userId) {
         ComponentName componentName = new ComponentName(context, HealthConnectDailyService.class);
@@ -64,8 +73,20 @@ public class ExportImportJobs {
     }
 
     /** Execute the periodic export job. */
-    public static void executePeriodicExportJob(@NonNull Context context) {
-        // TODO(b/325599089): Check if export is enabled, and call ExportManager.export().
+    public static void executePeriodicExportJob(
+            @NonNull Context context, @NonNull JobParameters params) {
+        if (ScheduledExportSettingsStorage.getScheduledExportPeriodInDays() <= 0) {
+            // Export is not enabled.
+            return;
+        }
+        int userId =
+                params.getExtras()
+                        .getInt(
+                                HealthConnectDailyService.EXTRA_USER_ID,
+                                /* defaultValue= */ DEFAULT_INT);
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        sCancellationSignal = cancellationSignal;
+        new ExportManager().exportLocally(UserHandle.of(userId), cancellationSignal);
 
         // TODO(b/325599089): Do we need an additional periodic / one-off task to make sure a single
         //  export completes? We need to test if JobScheduler will call the job again if jobFinished
@@ -74,4 +95,12 @@ public class ExportImportJobs {
         // TODO(b/325599089): Consider if we need to do any checkpointing here in case the job
         //  doesn't complete and we need to pick it up again.
     }
+
+    /** Cancels the export of the periodic export job that is being executed, if any. */
+    public static void stopPeriodicExportJob() {
+        CancellationSignal cancellationSignal = sCancellationSignal;
+        if (cancellationSignal != null) {
+            cancellationSignal.cancel();
+        }
+    }
 }
@@ -17,17 +17,21 @@
 package com.android.server.healthconnect.exportimport;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.sqlite.SQLiteException;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
 import android.os.UserHandle;
 import android.util.Slog;
 
+import com.android.server.healthconnect.storage.DatabaseSnapshot;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.utils.FilesUtil;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
 
 /**
  * Class that manages export related tasks. In this context, export means to make an encrypted copy
@@ -43,6 +47,15 @@ public class ExportManager {
     // TODO(b/325599879): Change visibility once there is a wrapper.
     /** Writes the backup data into a local file. */
     public String exportLocally(@NonNull UserHandle userHandle) {
+        return exportLocally(userHandle, /* cancellationSignal= */ null);
+    }
+
+    /**
+     * Writes the backup data into a local file. The file is deleted if the export is canceled
+     * through {@code cancellationSignal}, or fails.
+     */
+    public String exportLocally(
+            @NonNull UserHandle userHandle, @Nullable CancellationSignal cancellationSignal) {
         Slog.d(TAG, "Incoming request to make a local copy for export");
 
         File exportDir =
@@ -55,19 +68,34 @@ public class ExportManager {
         ParcelFileDescriptor pfd;
         try {
             exportFile.createNewFile();
-            pfd = ParcelFileDescriptor.open(exportFile, ParcelFileDescriptor.MODE_WRITE_ONLY);
+            pfd =
+                    ParcelFileDescriptor.open(
+                            exportFile,
+                            ParcelFileDescriptor.MODE_WRITE_ONLY
+                                    | ParcelFileDescriptor.MODE_TRUNCATE);
+            boolean exported = false;
             try (FileOutputStream outputStream = new FileOutputStream(pfd.getFileDescriptor())) {
-                Files.copy(
-                        TransactionManager.getInitialisedInstance().getDatabasePath().toPath(),
-                        outputStream);
-            } catch (IOException | SecurityException e) {
+                // The database is written to while it is exported, so copying its file could copy
+                // a torn state.
+                new DatabaseSnapshot(
+                                TransactionManager.getInitialisedInstance().getDatabasePath(),
+                                exportDir)
+                        .setCancellationSignal(cancellationSignal)
+                        .writeTo(outputStream);
+                exported = true;
+            } catch (IOException | SecurityException | SQLiteException e) {
                 Slog.e(TAG, "Failed to send data for export", e);
+            } catch (OperationCanceledException e) {
+                Slog.i(TAG, "Export canceled");
             } finally {
                 try {
                     pfd.close();
                 } catch (IOException e) {
                     Slog.e(TAG, "Failed to close stream for export", e);
                 }
+                if (!exported) {
+                    exportFile.delete();
+                }
             }
         } catch (IOException e) {
             Slog.e(TAG, "Failed to create file for export", e);
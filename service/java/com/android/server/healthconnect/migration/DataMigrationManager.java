@@ -33,9 +33,9 @@ import android.os.UserHandle;
 import com.android.internal.annotations.GuardedBy;
 import com.android.server.healthconnect.permission.FirstGrantTimeManager;
 import com.android.server.healthconnect.permission.HealthConnectPermissionHelper;
+import com.android.server.healthconnect.storage.AggregationResultCache;
 import com.android.server.healthconnect.storage.AutoDeleteService;
 import com.android.server.healthconnect.storage.TransactionManager;
-import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.DeviceInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.HealthDataCategoryPriorityHelper;
@@ -69,7 +69,6 @@ public final class DataMigrationManager {
     private final RecordHelperProvider mRecordHelperProvider;
     private final PriorityMigrationHelper mPriorityMigrationHelper;
     private final HealthDataCategoryPriorityHelper mHealthDataCategoryPriorityHelper;
-    private final ActivityDateHelper mActivityDateHelper;
 
     public DataMigrationManager(
             @NonNull Context userContext,
@@ -81,8 +80,7 @@ public final class DataMigrationManager {
             @NonNull MigrationEntityHelper migrationEntityHelper,
             @NonNull RecordHelperProvider recordHelperProvider,
             @NonNull HealthDataCategoryPriorityHelper healthDataCategoryPriorityHelper,
-            @NonNull PriorityMigrationHelper priorityMigrationHelper,
-            @NonNull ActivityDateHelper activityDateHelper) {
+            @NonNull PriorityMigrationHelper priorityMigrationHelper) {
         mUserContext = userContext;
         mTransactionManager = transactionManager;
         mPermissionHelper = permissionHelper;
@@ -93,7 +91,6 @@ public final class DataMigrationManager {
         mRecordHelperProvider = recordHelperProvider;
         mHealthDataCategoryPriorityHelper = healthDataCategoryPriorityHelper;
         mPriorityMigrationHelper = priorityMigrationHelper;
-        mActivityDateHelper = activityDateHelper;
     }
 
     /**
@@ -113,6 +110,8 @@ public final class DataMigrationManager {
                             }
                         }
                     });
+            // Migrated records don't have change logs.
+            AggregationResultCache.getInstance().clear();
         }
     }
 
@@ -147,11 +146,8 @@ public final class DataMigrationManager {
     @GuardedBy("sLock")
     private void migrateRecord(
             @NonNull SQLiteDatabase db, @NonNull RecordMigrationPayload payload) {
-        long recordRowId = mTransactionManager.insertOrIgnore(db, parseRecord(payload));
-        if (recordRowId != -1) {
-            mTransactionManager.insertOrIgnore(
-                    db, mActivityDateHelper.getUpsertTableRequest(payload.getRecordInternal()));
-        }
+        // Activity dates are counted by triggers on the record tables.
+        mTransactionManager.insertOrIgnore(db, parseRecord(payload));
     }
 
     @NonNull
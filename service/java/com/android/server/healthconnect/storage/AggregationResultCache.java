@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.health.connect.aidl.AggregateDataRequestParcel;
+import android.health.connect.aidl.AggregateDataResponseParcel;
+import android.health.connect.datatypes.AggregationType;
+import android.health.connect.internal.datatypes.utils.AggregationTypeIdMapper;
+import android.util.ArrayMap;
+import android.util.LruCache;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.healthconnect.HealthConnectDeviceConfigManager;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
+import com.android.server.healthconnect.storage.request.AggregateTransactionRequest;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+
+import java.time.Duration;
+import java.time.Period;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Caches the responses of recent aggregation requests.
+ *
+ * <p>Each entry is tagged with the latest change log row id at the time it was computed, and is
+ * only reused while no newer change log exists for the record types it aggregates. Priority lists
+ * are part of the cache key, so changing priorities never returns a stale entry. Writes that don't
+ * add change logs must call {@link #clear()}.
+ *
+ * @hide
+ */
+public final class AggregationResultCache {
+    @VisibleForTesting static final int MAX_ENTRIES = 32;
+
+    @SuppressWarnings("NullAway.Init") // TODO(b/317029272): fix this suppression
+    private static volatile AggregationResultCache sAggregationResultCache;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final LruCache<Key, Entry> mEntries = new LruCache<>(MAX_ENTRIES);
+
+    /** Incremented by {@link #clear()}, so that results computed before it are not cached. */
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    @GuardedBy("mLock")
+    private long mHitCount;
+
+    @GuardedBy("mLock")
+    private long mMissCount;
+
+    @GuardedBy("mLock")
+    private long mInvalidationCount;
+
+    @VisibleForTesting
+    AggregationResultCache() {}
+
+    /**
+     * Returns the response to {@code request}, from the cache if no record it aggregates has
+     * changed since it was computed.
+     */
+    @NonNull
+    public AggregateDataResponseParcel getOrCompute(
+            @NonNull String packageName,
+            @NonNull AggregateDataRequestParcel request,
+            long startDateAccess) {
+        List<Integer> recordTypes = getRecordTypesToTrack(request);
+        Key key = new Key(packageName, request, startDateAccess);
+        Entry entry;
+        long generation;
+        synchronized (mLock) {
+            entry = mEntries.get(key);
+            generation = mGeneration;
+        }
+
+        if (entry != null) {
+            if (!ChangeLogsHelper.getInstance().hasChangeLogsAfter(entry.mRowId, recordTypes)) {
+                synchronized (mLock) {
+                    mHitCount++;
+                }
+                return entry.mResponse;
+            }
+            synchronized (mLock) {
+                mInvalidationCount++;
+                if (mEntries.get(key) == entry) {
+                    mEntries.remove(key);
+                }
+            }
+        }
+
+        // Read before aggregating, so that a write racing with the aggregation invalidates it.
+        long rowId = ChangeLogsHelper.getInstance().getLatestRowId();
+        AggregateDataResponseParcel response =
+                new AggregateTransactionRequest(packageName, request, startDateAccess)
+                        .getAggregateDataResponseParcel();
+        synchronized (mLock) {
+            mMissCount++;
+            if (generation == mGeneration) {
+                mEntries.put(key, new Entry(response, rowId));
+            }
+        }
+        return response;
+    }
+
+    /** Drops all entries, for writes that change records without adding change logs. */
+    public void clear() {
+        synchronized (mLock) {
+            mGeneration++;
+            mEntries.evictAll();
+        }
+    }
+
+    /** Returns the number of requests answered from the cache. */
+    public long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    /** Returns the number of requests that had to be aggregated. */
+    public long getMissCount() {
+        synchronized (mLock) {
+            return mMissCount;
+        }
+    }
+
+    /** Returns the number of cached entries dropped because their records changed. */
+    public long getInvalidationCount() {
+        synchronized (mLock) {
+            return mInvalidationCount;
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "AggregationResultCache{size="
+                    + mEntries.size()
+                    + ", hits="
+                    + mHitCount
+                    + ", misses="
+                    + mMissCount
+                    + ", invalidations="
+                    + mInvalidationCount
+                    + "}";
+        }
+    }
+
+    @NonNull
+    public static AggregationResultCache getInstance() {
+        if (sAggregationResultCache == null) {
+            synchronized (AggregationResultCache.class) {
+                if (sAggregationResultCache == null) {
+                    sAggregationResultCache = new AggregationResultCache();
+                }
+            }
+        }
+        return sAggregationResultCache;
+    }
+
+    /**
+     * Returns the record types whose change logs invalidate the response to {@code request}, or
+     * null if any change does, as derived aggregations read records of other types.
+     */
+    @Nullable
+    private static List<Integer> getRecordTypesToTrack(AggregateDataRequestParcel request) {
+        List<Integer> recordTypes = new ArrayList<>();
+        for (int aggregateId : request.getAggregateIds()) {
+            for (int recordType :
+                    AggregationTypeIdMapper.getInstance()
+                            .getAggregationTypeFor(aggregateId)
+                            .getApplicableRecordTypeIds()) {
+                if (StorageUtils.isDerivedType(recordType)) {
+                    return null;
+                }
+                recordTypes.add(recordType);
+            }
+        }
+        return recordTypes;
+    }
+
+    private static final class Entry {
+        private final AggregateDataResponseParcel mResponse;
+        private final long mRowId;
+
+        Entry(AggregateDataResponseParcel response, long rowId) {
+            mResponse = response;
+            mRowId = rowId;
+        }
+    }
+
+    /** A request normalized so that equivalent requests share an entry. */
+    private static final class Key {
+        private final String mPackageName;
+        private final long mStartTime;
+        private final long mEndTime;
+        private final boolean mUseLocalTimeFilter;
+        private final int[] mAggregateIds;
+        private final List<String> mPackageFilters;
+        @Nullable private final Period mPeriod;
+        @Nullable private final Duration mDuration;
+        private final long mStartDateAccess;
+        private final Map<Integer, List<Long>> mPriorityLists = new ArrayMap<>();
+        private final boolean mAggregationSourceControlsEnabled;
+
+        Key(String packageName, AggregateDataRequestParcel request, long startDateAccess) {
+            mPackageName = packageName;
+            mStartTime = request.getStartTime();
+            mEndTime = request.getEndTime();
+            mUseLocalTimeFilter = request.useLocalTimeFilter();
+            mAggregateIds = request.getAggregateIds().clone();
+            Arrays.sort(mAggregateIds);
+            List<String> packageFilters = new ArrayList<>(request.getPackageFilters());
+            packageFilters.sort(null);
+            mPackageFilters = packageFilters;
+            mPeriod = request.getPeriod();
+            mDuration = request.getDuration();
+            mStartDateAccess = startDateAccess;
+
+            for (int aggregateId : mAggregateIds) {
+                AggregationType<?> aggregationType =
+                        AggregationTypeIdMapper.getInstance().getAggregationTypeFor(aggregateId);
+                for (int recordType : aggregationType.getApplicableRecordTypeIds()) {
+                    if (StorageUtils.supportsPriority(
+                                    recordType, aggregationType.getAggregateOperationType())
+                            || StorageUtils.isDerivedType(recordType)) {
+                        mPriorityLists.put(
+                                recordType,
+                                List.copyOf(StorageUtils.getAppIdPriorityList(recordType)));
+                    }
+                }
+            }
+            mAggregationSourceControlsEnabled =
+                    !mPriorityLists.isEmpty()
+                            && HealthConnectDeviceConfigManager.getInitialisedInstance()
+                                    .isAggregationSourceControlsEnabled();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key other)) {
+                return false;
+            }
+            return mStartTime == other.mStartTime
+                    && mEndTime == other.mEndTime
+                    && mUseLocalTimeFilter == other.mUseLocalTimeFilter
+                    && mStartDateAccess == other.mStartDateAccess
+                    && mAggregationSourceControlsEnabled == other.mAggregationSourceControlsEnabled
+                    && mPackageName.equals(other.mPackageName)
+                    && Arrays.equals(mAggregateIds, other.mAggregateIds)
+                    && mPackageFilters.equals(other.mPackageFilters)
+                    && Objects.equals(mPeriod, other.mPeriod)
+                    && Objects.equals(mDuration, other.mDuration)
+                    && mPriorityLists.equals(other.mPriorityLists);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(
+                    mPackageName,
+                    mStartTime,
+                    mEndTime,
+                    mUseLocalTimeFilter,
+                    Arrays.hashCode(mAggregateIds),
+                    mPackageFilters,
+                    mPeriod,
+                    mDuration,
+                    mStartDateAccess,
+                    mPriorityLists,
+                    mAggregationSourceControlsEnabled);
+        }
+    }
+}
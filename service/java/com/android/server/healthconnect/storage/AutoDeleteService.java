@@ -18,20 +18,26 @@ package com.android.server.healthconnect.storage;
 
 import android.annotation.NonNull;
 import android.content.Context;
+import android.health.connect.Constants;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.util.Slog;
 
 import com.android.server.healthconnect.storage.datatypehelpers.AccessLogsHelper;
-import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.HealthDataCategoryPriorityHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.PreferenceHelper;
-import com.android.server.healthconnect.storage.request.DeleteTableRequest;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 
+import com.google.common.annotations.VisibleForTesting;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A service that is run periodically to handle deletion of stale entries in HC DB.
@@ -41,8 +47,14 @@ import java.util.List;
 public class AutoDeleteService {
     private static final String AUTO_DELETE_DURATION_RECORDS_KEY =
             "auto_delete_duration_records_key";
+    // The record type whose stale records are being deleted, while a run is in progress.
+    private static final String AUTO_DELETE_RECORDS_CHECKPOINT_KEY =
+            "auto_delete_records_checkpoint_key";
     private static final String TAG = "HealthConnectAutoDelete";
 
+    /** The maximum number of records deleted in one transaction. */
+    @VisibleForTesting public static final int RECORD_DELETE_BATCH_SIZE = 1000;
+
     /** Gets auto delete period for automatically deleting record entries */
     public static int getRecordRetentionPeriodInDays() {
         String result =
@@ -58,18 +70,23 @@ public class AutoDeleteService {
                 .insertOrReplacePreference(AUTO_DELETE_DURATION_RECORDS_KEY, String.valueOf(days));
     }
 
-    /** Starts the Auto Deletion process. */
-    public static void startAutoDelete(@NonNull Context context) {
+    /**
+     * Starts the Auto Deletion process.
+     *
+     * <p>Once {@code cancellationSignal} is canceled, stale records stop being deleted after the
+     * current batch. The next run continues with the record type that was being deleted.
+     */
+    public static void startAutoDelete(
+            @NonNull Context context, @NonNull CancellationSignal cancellationSignal) {
         try {
             // Only do transactional operations here - as this job might get cancelled for several
             // reasons, such as: User switch, low battery etc.
-            deleteStaleRecordEntries();
+            deleteStaleRecordEntries(cancellationSignal);
             deleteStaleChangeLogEntries();
+            compactChangeLogEntries(cancellationSignal);
             deleteStaleAccessLogEntries();
             // Update the recordTypesUsed by packages if required after the deletion of records.
             AppInfoHelper.getInstance().syncAppInfoRecordTypesUsed();
-            // Re-sync activity dates table
-            ActivityDateHelper.getInstance().reSyncForAllRecords();
             // Sync health data priority list table
             HealthDataCategoryPriorityHelper.getInstance().reSyncHealthDataPriorityTable(context);
         } catch (Exception e) {
@@ -78,33 +95,111 @@ public class AutoDeleteService {
         }
     }
 
-    private static void deleteStaleRecordEntries() {
+    private static void deleteStaleRecordEntries(@NonNull CancellationSignal cancellationSignal) {
         String recordAutoDeletePeriodString =
                 PreferenceHelper.getInstance().getPreference(AUTO_DELETE_DURATION_RECORDS_KEY);
         int recordAutoDeletePeriod =
                 recordAutoDeletePeriodString == null
                         ? 0
                         : Integer.parseInt(recordAutoDeletePeriodString);
-        if (recordAutoDeletePeriod != 0) {
-            // 0 represents that no period is set,to delete only if not 0 else don't do anything
-            List<DeleteTableRequest> deleteTableRequests = new ArrayList<>();
-            RecordHelperProvider.getInstance()
-                    .getRecordHelpers()
-                    .values()
-                    .forEach(
-                            (recordHelper) -> {
-                                DeleteTableRequest request =
-                                        recordHelper.getDeleteRequestForAutoDelete(
-                                                recordAutoDeletePeriod);
-                                deleteTableRequests.add(request);
-                            });
-            try {
-                TransactionManager.getInitialisedInstance()
-                        .deleteWithoutChangeLogs(deleteTableRequests);
-            } catch (Exception exception) {
-                Slog.e(TAG, "Auto delete for records failed", exception);
-                // Don't rethrow as that will crash system_server
+        if (recordAutoDeletePeriod == 0) {
+            // 0 represents that no period is set, to delete only if not 0 else don't do anything
+            return;
+        }
+
+        Map<Integer, RecordHelper<?>> recordHelpers =
+                RecordHelperProvider.getInstance().getRecordHelpers();
+        List<Integer> recordTypes = new ArrayList<>(recordHelpers.keySet());
+        Collections.sort(recordTypes);
+
+        // Continue with the record type where a previous run was stopped, if any, so that a run
+        // that keeps being stopped doesn't keep deleting from the same tables only.
+        String checkpoint =
+                PreferenceHelper.getInstance().getPreference(AUTO_DELETE_RECORDS_CHECKPOINT_KEY);
+        int firstIndex = 0;
+        if (checkpoint != null) {
+            int checkpointIndex = recordTypes.indexOf(Integer.parseInt(checkpoint));
+            firstIndex = Math.max(checkpointIndex, 0);
+        }
+
+        try {
+            for (int i = 0; i < recordTypes.size(); i++) {
+                int recordType = recordTypes.get((firstIndex + i) % recordTypes.size());
+                if (cancellationSignal.isCanceled()) {
+                    Slog.i(TAG, "Auto delete for records stopped before record type " + recordType);
+                    return;
+                }
+                PreferenceHelper.getInstance()
+                        .insertOrReplacePreference(
+                                AUTO_DELETE_RECORDS_CHECKPOINT_KEY, String.valueOf(recordType));
+                deleteStaleRecords(
+                        recordHelpers.get(recordType), recordAutoDeletePeriod, cancellationSignal);
             }
+            PreferenceHelper.getInstance().removeKey(AUTO_DELETE_RECORDS_CHECKPOINT_KEY);
+        } catch (Exception exception) {
+            Slog.e(TAG, "Auto delete for records failed", exception);
+            // Don't rethrow as that will crash system_server
+        }
+    }
+
+    /**
+     * Deletes the stale records of one record type, oldest first, in batches of {@link
+     * #RECORD_DELETE_BATCH_SIZE} records. Each batch is a transaction of its own, so that other
+     * writers get the database in between, and a stopped run keeps what was deleted.
+     */
+    private static void deleteStaleRecords(
+            @NonNull RecordHelper<?> recordHelper,
+            int recordAutoDeletePeriod,
+            @NonNull CancellationSignal cancellationSignal) {
+        TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
+        int recordType = recordHelper.getRecordIdentifier();
+        long deletedCount = 0;
+        int batchCount = 0;
+        long maxBatchTimeMillis = 0;
+        long startTimeMillis = SystemClock.elapsedRealtime();
+        int batchDeletedCount;
+        do {
+            long batchStartTimeMillis = SystemClock.elapsedRealtime();
+            batchDeletedCount =
+                    transactionManager.deleteBatchWithoutChangeLogs(
+                            recordHelper.getDeleteStatementForAutoDelete(
+                                    recordAutoDeletePeriod, RECORD_DELETE_BATCH_SIZE));
+            long batchTimeMillis = SystemClock.elapsedRealtime() - batchStartTimeMillis;
+            if (batchDeletedCount > 0) {
+                // These deletes don't add change logs, so cached aggregations can't see them.
+                AggregationResultCache.getInstance().clear();
+            }
+            deletedCount += batchDeletedCount;
+            batchCount++;
+            maxBatchTimeMillis = Math.max(maxBatchTimeMillis, batchTimeMillis);
+            if (Constants.DEBUG) {
+                Slog.d(
+                        TAG,
+                        "Deleted "
+                                + batchDeletedCount
+                                + " records of type "
+                                + recordType
+                                + " in "
+                                + batchTimeMillis
+                                + " ms");
+            }
+        } while (batchDeletedCount >= RECORD_DELETE_BATCH_SIZE
+                && !cancellationSignal.isCanceled());
+
+        if (deletedCount > 0) {
+            Slog.i(
+                    TAG,
+                    "Deleted "
+                            + deletedCount
+                            + " stale records of type "
+                            + recordType
+                            + " in "
+                            + batchCount
+                            + " batches, "
+                            + (SystemClock.elapsedRealtime() - startTimeMillis)
+                            + " ms in total, "
+                            + maxBatchTimeMillis
+                            + " ms for the longest batch");
         }
     }
 
@@ -116,12 +211,35 @@ public class AutoDeleteService {
                                     ChangeLogsHelper.getInstance().getDeleteRequestForAutoDelete(),
                                     ChangeLogsRequestHelper.getInstance()
                                             .getDeleteRequestForAutoDelete()));
+            // Cached aggregations are only checked against newer change logs, which doesn't work
+            // for entries computed before the oldest change log that is kept.
+            AggregationResultCache.getInstance().clear();
         } catch (Exception exception) {
             Slog.e(TAG, "Auto delete for Change logs failed", exception);
             // Don't rethrow as that will crash system_server
         }
     }
 
+    private static void compactChangeLogEntries(@NonNull CancellationSignal cancellationSignal) {
+        try {
+            long startTimeMillis = SystemClock.elapsedRealtime();
+            int removedCount =
+                    ChangeLogsHelper.getInstance().compactChangeLogs(cancellationSignal);
+            if (removedCount > 0) {
+                Slog.i(
+                        TAG,
+                        "Removed "
+                                + removedCount
+                                + " superseded uuids from change logs in "
+                                + (SystemClock.elapsedRealtime() - startTimeMillis)
+                                + " ms");
+            }
+        } catch (Exception exception) {
+            Slog.e(TAG, "Compaction of change logs failed", exception);
+            // Don't rethrow as that will crash system_server
+        }
+    }
+
     private static void deleteStaleAccessLogEntries() {
         try {
             TransactionManager.getInitialisedInstance()
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a transactionally consistent copy of a database to a stream, while the database is in
+ * use.
+ *
+ * <p>The copy is made with {@code VACUUM INTO} on a separate read-only connection. It reads the
+ * database as of one read transaction, including committed pages that are still in the
+ * write-ahead log, and doesn't block writers, which only can't checkpoint past it. The copy is
+ * written to a temporary file next to the destination first, as {@code VACUUM INTO} needs a file
+ * name, and then streamed out.
+ *
+ * @hide
+ */
+public final class DatabaseSnapshot {
+    private static final String SNAPSHOT_FILE_PREFIX = "healthconnect_snapshot";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Receives the progress of {@link #writeTo}. */
+    public interface ProgressListener {
+        /**
+         * Called after each chunk of the snapshot is written.
+         *
+         * @param bytesWritten bytes of the snapshot written so far, before compression.
+         * @param totalBytes size of the snapshot, before compression.
+         */
+        void onProgress(long bytesWritten, long totalBytes);
+    }
+
+    private final File mDatabaseFile;
+    private final File mTempDir;
+    private boolean mCompressed;
+    @Nullable private ProgressListener mProgressListener;
+    @Nullable private CancellationSignal mCancellationSignal;
+
+    /**
+     * @param databaseFile the database to copy.
+     * @param tempDir where to create the temporary copy, which should be on the same file system
+     *     as the database.
+     */
+    public DatabaseSnapshot(@NonNull File databaseFile, @NonNull File tempDir) {
+        mDatabaseFile = Objects.requireNonNull(databaseFile);
+        mTempDir = Objects.requireNonNull(tempDir);
+    }
+
+    /** Compresses the snapshot with gzip. Not compressed by default. */
+    @NonNull
+    public DatabaseSnapshot setCompressed(boolean compressed) {
+        mCompressed = compressed;
+        return this;
+    }
+
+    @NonNull
+    public DatabaseSnapshot setProgressListener(@Nullable ProgressListener progressListener) {
+        mProgressListener = progressListener;
+        return this;
+    }
+
+    /** Stops {@link #writeTo} with an {@link OperationCanceledException} once canceled. */
+    @NonNull
+    public DatabaseSnapshot setCancellationSignal(@Nullable CancellationSignal cancellationSignal) {
+        mCancellationSignal = cancellationSignal;
+        return this;
+    }
+
+    /**
+     * Writes a snapshot of the database to {@code outputStream}, which is left open.
+     *
+     * @throws OperationCanceledException if canceled, in which case only part of the snapshot may
+     *     have been written.
+     */
+    public void writeTo(@NonNull OutputStream outputStream) throws IOException {
+        mTempDir.mkdirs();
+        File snapshotFile = File.createTempFile(SNAPSHOT_FILE_PREFIX, ".db", mTempDir);
+        try {
+            createSnapshot(snapshotFile);
+            if (mCompressed) {
+                GZIPOutputStream compressedStream =
+                        new GZIPOutputStream(outputStream, BUFFER_SIZE);
+                copy(snapshotFile, compressedStream);
+                compressedStream.finish();
+            } else {
+                copy(snapshotFile, outputStream);
+            }
+            outputStream.flush();
+        } finally {
+            snapshotFile.delete();
+        }
+    }
+
+    private void createSnapshot(@NonNull File snapshotFile) {
+        try (SQLiteDatabase db =
+                        SQLiteDatabase.openDatabase(
+                                mDatabaseFile,
+                                new SQLiteDatabase.OpenParams.Builder()
+                                        .addOpenFlags(SQLiteDatabase.OPEN_READONLY)
+                                        .build());
+                // VACUUM INTO doesn't return rows, but running it as a query lets it be canceled.
+                Cursor cursor =
+                        db.rawQuery(
+                                "VACUUM INTO ?",
+                                new String[] {snapshotFile.getAbsolutePath()},
+                                mCancellationSignal)) {
+            cursor.getCount();
+        }
+    }
+
+    private void copy(@NonNull File snapshotFile, @NonNull OutputStream outputStream)
+            throws IOException {
+        long totalBytes = snapshotFile.length();
+        long bytesWritten = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream inputStream = new FileInputStream(snapshotFile)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                if (mCancellationSignal != null) {
+                    mCancellationSignal.throwIfCanceled();
+                }
+                outputStream.write(buffer, 0, read);
+                bytesWritten += read;
+                if (mProgressListener != null) {
+                    mProgressListener.onProgress(bytesWritten, totalBytes);
+                }
+            }
+        }
+    }
+}
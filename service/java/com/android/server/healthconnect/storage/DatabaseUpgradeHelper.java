@@ -21,8 +21,11 @@ import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_
 import android.annotation.NonNull;
 import android.database.sqlite.SQLiteDatabase;
 
+import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.AggregationRollupHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.SkinTemperatureRecordHelper;
+import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 
 import java.util.function.Consumer;
@@ -32,6 +35,10 @@ final class DatabaseUpgradeHelper {
     public static final int DB_VERSION_UUID_BLOB = 9;
     public static final int DB_VERSION_GENERATED_LOCAL_TIME = 10;
     public static final int DB_VERSION_SKIN_TEMPERATURE = 11;
+    public static final int DB_VERSION_TIME_RANGE_INDEXES = 12;
+    public static final int DB_VERSION_PACKED_SERIES_SAMPLES = 13;
+    public static final int DB_VERSION_AGGREGATION_ROLLUPS = 14;
+    public static final int DB_VERSION_ACTIVITY_DATE_COUNTS = 15;
 
     static void onUpgrade(
             @NonNull SQLiteDatabase db,
@@ -51,6 +58,41 @@ final class DatabaseUpgradeHelper {
                             RECORD_TYPE_SKIN_TEMPERATURE)
                     .applySkinTemperatureUpgrade(db);
         }
+        if (oldVersion < DB_VERSION_TIME_RANGE_INDEXES) {
+            // Created within the upgrade transaction, so the indexes exist once the version is
+            // bumped, even if the upgrade is interrupted.
+            applyTimeRangeIndexesUpgrade(db);
+        }
+        if (oldVersion < DB_VERSION_PACKED_SERIES_SAMPLES) {
+            // Reads and aggregations only look at the packed samples from this version on, so the
+            // existing samples have to be moved before the database is used.
+            forEachRecordHelper(it -> it.applyPackedSeriesSamplesUpgrade(db));
+        }
+        if (oldVersion < DB_VERSION_AGGREGATION_ROLLUPS) {
+            // Aggregations read the rollups as soon as the table exists, so they are computed
+            // before the database is used.
+            AggregationRollupHelper.getInstance().applyAggregationRollupsUpgrade(db);
+        }
+        if (oldVersion < DB_VERSION_ACTIVITY_DATE_COUNTS) {
+            // Activity dates aren't resynced anymore, so they are recounted before records change.
+            ActivityDateHelper.getInstance().applyActivityDateCountsUpgrade(db);
+        }
+    }
+
+    /**
+     * Creates the time range indexes declared by all record helpers, including the ones on their
+     * child tables.
+     */
+    static void applyTimeRangeIndexesUpgrade(@NonNull SQLiteDatabase db) {
+        forEachRecordHelper(it -> createIndexes(db, it.getCreateTableRequest()));
+    }
+
+    private static void createIndexes(
+            @NonNull SQLiteDatabase db, @NonNull CreateTableRequest request) {
+        request.getCreateIndexStatements().forEach(db::execSQL);
+        for (CreateTableRequest childRequest : request.getChildTableRequests()) {
+            createIndexes(db, childRequest);
+        }
     }
 
     private static void forEachRecordHelper(Consumer<RecordHelper<?>> action) {
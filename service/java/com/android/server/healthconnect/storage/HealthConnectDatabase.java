@@ -17,14 +17,19 @@
 package com.android.server.healthconnect.storage;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Slog;
 
 import com.android.server.healthconnect.migration.PriorityMigrationHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AccessLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.AggregationRollupHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper;
@@ -46,14 +51,24 @@ import java.util.List;
  * Class to maintain the health connect DB. Actual operations are performed by {@link
  * TransactionManager}
  *
+ * <p>The database runs in write-ahead log mode. The framework then keeps one primary connection for
+ * writes and a bounded pool of read-only connections, so reads are not blocked by an open write
+ * transaction.
+ *
  * @hide
  */
 public class HealthConnectDatabase extends SQLiteOpenHelper {
     private static final String TAG = "HealthConnectDatabase";
-    private static final int DATABASE_VERSION = 11;
+    private static final int DATABASE_VERSION = 15;
     private static final String DEFAULT_DATABASE_NAME = "healthconnect.db";
+    private static final String WAL_FILE_SUFFIX = "-wal";
+    // Pooled reader connections are released after being idle for this long.
+    private static final long IDLE_CONNECTION_TIMEOUT_MILLIS = 30_000;
     @NonNull private final Collection<RecordHelper<?>> mRecordHelpers;
     private final Context mContext;
+    private final WalCheckpointStats mWalCheckpointStats = new WalCheckpointStats();
+    private volatile WalCheckpointPolicy mWalCheckpointPolicy = WalCheckpointPolicy.DEFAULT;
+    @Nullable private volatile SQLiteDatabase mOpenDatabase;
 
     public HealthConnectDatabase(@NonNull Context context) {
         this(context, DEFAULT_DATABASE_NAME);
@@ -63,6 +78,8 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         super(context, databaseName, null, DATABASE_VERSION);
         mRecordHelpers = RecordHelperProvider.getInstance().getRecordHelpers().values();
         mContext = context;
+        setWriteAheadLoggingEnabled(true);
+        setIdleConnectionTimeout(IDLE_CONNECTION_TIMEOUT_MILLIS);
     }
 
     @Override
@@ -70,6 +87,8 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         for (CreateTableRequest createTableRequest : getCreateTableRequests()) {
             createTable(db, createTableRequest);
         }
+        AggregationRollupHelper.getInstance().createTriggers(db);
+        ActivityDateHelper.getInstance().createTriggers(db);
     }
 
     @Override
@@ -82,6 +101,16 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         // Enforce FK constraints for DB writes as we want to enforce FK constraints on DB write.
         // This is also required for when we delete entries, for cascade to work
         db.setForeignKeyConstraintsEnabled(true);
+        // Applied to every pooled connection, including ones opened later.
+        db.execPerConnectionSQL(mWalCheckpointPolicy.getAutoCheckpointCommand(), null);
+        // Each record type has its own tables and statements, the default cache of 25 prepared
+        // statements per connection is too small to keep them all.
+        db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+    }
+
+    @Override
+    public void onOpen(@NonNull SQLiteDatabase db) {
+        mOpenDatabase = db;
     }
 
     @Override
@@ -93,6 +122,61 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         return mContext.getDatabasePath(getDatabaseName());
     }
 
+    /** Returns the write-ahead log file that sits next to the database file. */
+    public File getWalPath() {
+        return new File(getDatabasePath().getPath() + WAL_FILE_SUFFIX);
+    }
+
+    /** Returns the stats of explicit checkpoints run on this database. */
+    @NonNull
+    public WalCheckpointStats getWalCheckpointStats() {
+        return mWalCheckpointStats;
+    }
+
+    /**
+     * Updates the checkpoint policy. The auto checkpoint threshold is applied to all open
+     * connections straight away if the database is already open, otherwise when it is opened.
+     */
+    void setWalCheckpointPolicy(@NonNull WalCheckpointPolicy policy) {
+        if (policy.equals(mWalCheckpointPolicy)) {
+            return;
+        }
+        mWalCheckpointPolicy = policy;
+        SQLiteDatabase db = mOpenDatabase;
+        if (db != null && db.isOpen()) {
+            db.execPerConnectionSQL(policy.getAutoCheckpointCommand(), null);
+        }
+    }
+
+    /**
+     * Copies the content of the write-ahead log back into the database file, using the mode of the
+     * current {@link WalCheckpointPolicy}.
+     *
+     * <p>Must not be called inside a transaction.
+     *
+     * @return whether the checkpoint completed without being blocked.
+     */
+    boolean checkpoint(@NonNull SQLiteDatabase db) {
+        long startTime = SystemClock.elapsedRealtime();
+        try (Cursor cursor = db.rawQuery(mWalCheckpointPolicy.getCheckpointCommand(), null)) {
+            if (!cursor.moveToFirst()) {
+                return false;
+            }
+            boolean busy = cursor.getInt(0) != 0;
+            long logFrames = cursor.getLong(1);
+            long checkpointedFrames = cursor.getLong(2);
+            mWalCheckpointStats.onCheckpoint(
+                    busy,
+                    logFrames,
+                    checkpointedFrames,
+                    SystemClock.elapsedRealtime() - startTime);
+            if (busy) {
+                Slog.w(TAG, "WAL checkpoint was blocked, " + mWalCheckpointStats);
+            }
+            return !busy;
+        }
+    }
+
     void dropAllTables(SQLiteDatabase db) {
         List<String> allTables =
                 getCreateTableRequests().stream().map(CreateTableRequest::getTableName).toList();
@@ -108,6 +192,7 @@ public class HealthConnectDatabase extends SQLiteOpenHelper {
         requests.add(DeviceInfoHelper.getInstance().getCreateTableRequest());
         requests.add(AppInfoHelper.getInstance().getCreateTableRequest());
         requests.add(ActivityDateHelper.getInstance().getCreateTableRequest());
+        requests.add(AggregationRollupHelper.getInstance().getCreateTableRequest());
         requests.add(ChangeLogsHelper.getInstance().getCreateTableRequest());
         requests.add(ChangeLogsRequestHelper.getInstance().getCreateTableRequest());
         requests.add(HealthDataCategoryPriorityHelper.getInstance().getCreateTableRequest());
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_ABORT;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_FAIL;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_IGNORE;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_NONE;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_REPLACE;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_ROLLBACK;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.ArrayMap;
+
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Caches compiled INSERT statements for the lifetime of a write transaction.
+ *
+ * <p>Statements are keyed by table, conflict algorithm and the set of columns present in the
+ * {@link UpsertTableRequest}, so all rows of the same shape reuse one {@link SQLiteStatement} and
+ * only rebind their values. Write transactions run on the primary connection, so this is
+ * effectively a cache for that connection.
+ *
+ * <p>Not thread safe. Create one per transaction and close it before the transaction ends.
+ *
+ * @hide
+ */
+final class InsertStatementCache implements AutoCloseable {
+    // Used as the conflict algorithm of upsert statements, which have no OR clause.
+    private static final int UPSERT = -1;
+
+    private final SQLiteDatabase mDb;
+    // Most tables only ever see one or two column sets, so a linear scan per table is enough.
+    private final ArrayMap<String, List<CachedStatement>> mStatementsByTable = new ArrayMap<>();
+    @Nullable private SQLiteStatement mLastInsertRowIdStatement;
+
+    InsertStatementCache(@NonNull SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Inserts the row described by {@code request}.
+     *
+     * @return the row ID of the newly inserted row, or -1 if no row was inserted, e.g. because of
+     *     {@link SQLiteDatabase#CONFLICT_IGNORE}.
+     * @throws android.database.SQLException if the insert fails, e.g. on a constraint violation.
+     */
+    long insert(@NonNull UpsertTableRequest request, int conflictAlgorithm) {
+        return bind(request, conflictAlgorithm).executeInsert();
+    }
+
+    /**
+     * Inserts the row described by {@code request}, or updates the existing row if the insert
+     * conflicts on {@link UpsertTableRequest#getUpsertConflictColumn()} and the update condition of
+     * the request holds. The statements of a table are cached assuming that all its requests use
+     * the same conflict column and update condition.
+     *
+     * @return the row ID of the inserted or updated row, or -1 if the existing row was kept.
+     * @throws android.database.SQLException if the upsert fails, e.g. on a conflict on another
+     *     unique column.
+     */
+    long upsert(@NonNull UpsertTableRequest request) {
+        try {
+            return bind(request, UPSERT).simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            // The update condition didn't hold, so no row was returned.
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the row ID of the last row inserted on this connection, ignoring rows inserted by
+     * triggers.
+     */
+    long getLastInsertRowId() {
+        if (mLastInsertRowIdStatement == null) {
+            mLastInsertRowIdStatement = mDb.compileStatement("SELECT last_insert_rowid()");
+        }
+        return mLastInsertRowIdStatement.simpleQueryForLong();
+    }
+
+    @Override
+    public void close() {
+        if (mLastInsertRowIdStatement != null) {
+            mLastInsertRowIdStatement.close();
+            mLastInsertRowIdStatement = null;
+        }
+        for (int i = 0; i < mStatementsByTable.size(); i++) {
+            for (CachedStatement cached : mStatementsByTable.valueAt(i)) {
+                cached.mStatement.close();
+            }
+        }
+        mStatementsByTable.clear();
+    }
+
+    @NonNull
+    private SQLiteStatement bind(@NonNull UpsertTableRequest request, int conflictAlgorithm) {
+        ContentValues values = request.getContentValues();
+        CachedStatement cached = getOrCompile(request, values, conflictAlgorithm);
+        SQLiteStatement statement = cached.mStatement;
+        statement.clearBindings();
+        for (int i = 0; i < cached.mColumns.length; i++) {
+            bind(statement, i + 1, values.get(cached.mColumns[i]));
+        }
+        return statement;
+    }
+
+    @NonNull
+    private CachedStatement getOrCompile(
+            @NonNull UpsertTableRequest request,
+            @NonNull ContentValues values,
+            int conflictAlgorithm) {
+        String table = request.getTable();
+        List<CachedStatement> statements = mStatementsByTable.get(table);
+        if (statements == null) {
+            statements = new ArrayList<>(1);
+            mStatementsByTable.put(table, statements);
+        }
+        for (int i = 0; i < statements.size(); i++) {
+            CachedStatement cached = statements.get(i);
+            if (cached.matches(values, conflictAlgorithm)) {
+                return cached;
+            }
+        }
+
+        Set<String> columnSet = values.keySet();
+        String[] columns = columnSet.toArray(new String[0]);
+        String command =
+                conflictAlgorithm == UPSERT
+                        ? getUpsertCommand(request, columns)
+                        : getInsertCommand(table, columns, conflictAlgorithm);
+        CachedStatement cached =
+                new CachedStatement(mDb.compileStatement(command), columns, conflictAlgorithm);
+        statements.add(cached);
+        return cached;
+    }
+
+    @NonNull
+    private static String getInsertCommand(
+            @NonNull String table, @NonNull String[] columns, int conflictAlgorithm) {
+        StringBuilder builder = new StringBuilder("INSERT");
+        builder.append(getConflictClause(conflictAlgorithm)).append(" INTO ").append(table);
+        if (columns.length == 0) {
+            // Same as SQLiteDatabase#insert with empty values.
+            return builder.append(" DEFAULT VALUES").toString();
+        }
+        builder.append(" (").append(String.join(", ", columns)).append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        return builder.append(")").toString();
+    }
+
+    @NonNull
+    private static String getUpsertCommand(
+            @NonNull UpsertTableRequest request, @NonNull String[] columns) {
+        String conflictColumn = Objects.requireNonNull(request.getUpsertConflictColumn());
+        List<String> assignments = new ArrayList<>(columns.length);
+        for (String column : columns) {
+            if (!column.equals(conflictColumn)) {
+                assignments.add(column + " = excluded." + column);
+            }
+        }
+
+        StringBuilder builder =
+                new StringBuilder(getInsertCommand(request.getTable(), columns, CONFLICT_NONE))
+                        .append(" ON CONFLICT(")
+                        .append(conflictColumn)
+                        .append(")");
+        if (assignments.isEmpty()) {
+            builder.append(" DO NOTHING");
+        } else {
+            builder.append(" DO UPDATE SET ").append(String.join(", ", assignments));
+            String updateCondition = request.getUpsertUpdateCondition();
+            if (updateCondition != null) {
+                builder.append(" WHERE ").append(updateCondition);
+            }
+        }
+        return builder.append(" RETURNING ").append(request.getRowIdColName()).toString();
+    }
+
+    @NonNull
+    private static String getConflictClause(int conflictAlgorithm) {
+        return switch (conflictAlgorithm) {
+            case CONFLICT_NONE -> "";
+            case CONFLICT_ROLLBACK -> " OR ROLLBACK";
+            case CONFLICT_ABORT -> " OR ABORT";
+            case CONFLICT_FAIL -> " OR FAIL";
+            case CONFLICT_IGNORE -> " OR IGNORE";
+            case CONFLICT_REPLACE -> " OR REPLACE";
+            default -> throw new IllegalArgumentException(
+                    "Unknown conflict algorithm: " + conflictAlgorithm);
+        };
+    }
+
+    private static void bind(@NonNull SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof byte[] bytes) {
+            statement.bindBlob(index, bytes);
+        } else if (value instanceof Long
+                || value instanceof Integer
+                || value instanceof Short
+                || value instanceof Byte) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Boolean bool) {
+            statement.bindLong(index, bool ? 1 : 0);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    private static final class CachedStatement {
+        private final SQLiteStatement mStatement;
+        private final String[] mColumns;
+        private final int mConflictAlgorithm;
+
+        CachedStatement(SQLiteStatement statement, String[] columns, int conflictAlgorithm) {
+            mStatement = statement;
+            mColumns = columns;
+            mConflictAlgorithm = conflictAlgorithm;
+        }
+
+        boolean matches(ContentValues values, int conflictAlgorithm) {
+            if (mConflictAlgorithm != conflictAlgorithm || values.size() != mColumns.length) {
+                return false;
+            }
+            for (String column : mColumns) {
+                if (!values.containsKey(column)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
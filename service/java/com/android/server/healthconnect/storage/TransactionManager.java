@@ -24,6 +24,7 @@ import static android.health.connect.PageTokenWrapper.EMPTY_PAGE_TOKEN;
 import static com.android.internal.util.Preconditions.checkArgument;
 import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
 import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.PRIMARY_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.request.UpsertTableRequest.INVALID_ROW_ID;
 
 import static com.google.common.collect.Iterables.getOnlyElement;
 
@@ -40,6 +41,8 @@ import android.health.connect.Constants;
 import android.health.connect.HealthConnectException;
 import android.health.connect.PageTokenWrapper;
 import android.health.connect.internal.datatypes.RecordInternal;
+import android.os.Build;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Pair;
 import android.util.Slog;
@@ -55,6 +58,7 @@ import com.android.server.healthconnect.storage.request.ReadTransactionRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTransactionRequest;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+import com.android.server.healthconnect.storage.utils.SqlStatement;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -66,7 +70,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * A class to handle all the DB transaction request from the clients. {@link TransactionManager}
@@ -84,6 +88,7 @@ public final class TransactionManager {
     private static volatile TransactionManager sTransactionManager;
 
     private volatile HealthConnectDatabase mHealthConnectDatabase;
+    private volatile WalCheckpointPolicy mWalCheckpointPolicy = WalCheckpointPolicy.DEFAULT;
     private UserHandle mUserHandle;
 
     private TransactionManager(@NonNull HealthConnectUserContext context) {
@@ -95,9 +100,9 @@ public final class TransactionManager {
     public void onUserUnlocked(@NonNull HealthConnectUserContext healthConnectUserContext) {
         if (!mUserHandleToDatabaseMap.containsKey(
                 healthConnectUserContext.getCurrentUserHandle())) {
-            mUserHandleToDatabaseMap.put(
-                    healthConnectUserContext.getCurrentUserHandle(),
-                    new HealthConnectDatabase(healthConnectUserContext));
+            HealthConnectDatabase database = new HealthConnectDatabase(healthConnectUserContext);
+            database.setWalCheckpointPolicy(mWalCheckpointPolicy);
+            mUserHandleToDatabaseMap.put(healthConnectUserContext.getCurrentUserHandle(), database);
         }
 
         mHealthConnectDatabase =
@@ -120,17 +125,17 @@ public final class TransactionManager {
 
         final SQLiteDatabase db = getWritableDb();
         db.beginTransaction();
-        try {
+        try (InsertStatementCache statements = new InsertStatementCache(db)) {
             for (UpsertTableRequest upsertRequest : request.getUpsertRequests()) {
-                insertOrReplaceRecord(db, upsertRequest);
+                insertOrReplaceRecord(db, statements, upsertRequest);
             }
             for (UpsertTableRequest insertRequestsForChangeLog :
                     request.getInsertRequestsForChangeLogs()) {
-                insertRecord(db, insertRequestsForChangeLog);
+                insertRecord(statements, insertRequestsForChangeLog);
             }
 
             for (UpsertTableRequest insertRequestsForAccessLogs : request.getAccessLogs()) {
-                insertRecord(db, insertRequestsForAccessLogs);
+                insertRecord(statements, insertRequestsForAccessLogs);
             }
 
             db.setTransactionSuccessful();
@@ -145,9 +150,9 @@ public final class TransactionManager {
     public void insertAll(@NonNull List<UpsertTableRequest> requests) throws SQLiteException {
         final SQLiteDatabase db = getWritableDb();
         db.beginTransaction();
-        try {
+        try (InsertStatementCache statements = new InsertStatementCache(db)) {
             for (UpsertTableRequest request : requests) {
-                insertOrIgnore(db, request);
+                insertOrIgnore(statements, request);
             }
             db.setTransactionSuccessful();
         } finally {
@@ -162,7 +167,16 @@ public final class TransactionManager {
      */
     public void insertOrReplaceAll(@NonNull List<UpsertTableRequest> upsertTableRequests)
             throws SQLiteException {
-        insertAll(upsertTableRequests, this::insertOrReplaceRecord);
+        final SQLiteDatabase db = getWritableDb();
+        db.beginTransaction();
+        try (InsertStatementCache statements = new InsertStatementCache(db)) {
+            for (UpsertTableRequest upsertTableRequest : upsertTableRequests) {
+                insertOrReplaceRecord(db, statements, upsertTableRequest);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /**
@@ -174,9 +188,9 @@ public final class TransactionManager {
     public void insertOrIgnoreOnConflict(@NonNull List<UpsertTableRequest> upsertTableRequests) {
         final SQLiteDatabase db = getWritableDb();
         db.beginTransaction();
-        try {
+        try (InsertStatementCache statements = new InsertStatementCache(db)) {
             upsertTableRequests.forEach(
-                    (upsertTableRequest) -> insertOrIgnore(db, upsertTableRequest));
+                    (upsertTableRequest) -> insertOrIgnore(statements, upsertTableRequest));
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
@@ -203,7 +217,7 @@ public final class TransactionManager {
                     Delete request needs UUID before the entry can be
                     deleted, fetch and set it in {@code request}
                     */
-                    try (Cursor cursor = db.rawQuery(deleteTableRequest.getReadCommand(), null)) {
+                    try (Cursor cursor = deleteTableRequest.getReadStatement().query(db)) {
                         int numberOfUuidsToDelete = 0;
                         while (cursor.moveToNext()) {
                             numberOfUuidsToDelete++;
@@ -225,11 +239,13 @@ public final class TransactionManager {
                     }
                 }
                 numberOfRecordsDeleted += deleteTableRequest.getTotalNumberOfRecordsDeleted();
-                db.execSQL(deleteTableRequest.getDeleteCommand());
+                deleteTableRequest.getDeleteStatement().execute(db);
             }
 
-            request.getChangeLogUpsertRequests()
-                    .forEach((insertRequest) -> insertRecord(db, insertRequest));
+            try (InsertStatementCache statements = new InsertStatementCache(db)) {
+                request.getChangeLogUpsertRequests()
+                        .forEach((insertRequest) -> insertRecord(statements, insertRequest));
+            }
 
             db.setTransactionSuccessful();
         } finally {
@@ -243,18 +259,67 @@ public final class TransactionManager {
      *
      * @param aggregateTableRequest an aggregate request.
      */
-    @NonNull
-    public void populateWithAggregation(AggregateTableRequest aggregateTableRequest) {
-        final SQLiteDatabase db = getReadableDb();
-        if (!aggregateTableRequest.getRecordHelper().isRecordOperationsEnabled()) {
-            return;
+    public void populateWithAggregation(@NonNull AggregateTableRequest aggregateTableRequest) {
+        populateWithAggregations(List.of(aggregateTableRequest));
+    }
+
+    /**
+     * Handles the aggregation requests in {@code aggregateTableRequests} in one read transaction,
+     * so that their results are consistent with each other.
+     *
+     * <p>Requests that read the same records are computed by one statement, see {@link
+     * AggregateTableRequest#planAggregationStatements}.
+     *
+     * @param aggregateTableRequests aggregate requests.
+     */
+    public void populateWithAggregations(
+            @NonNull List<AggregateTableRequest> aggregateTableRequests) {
+        List<AggregateTableRequest> requests = new ArrayList<>();
+        for (AggregateTableRequest request : aggregateTableRequests) {
+            if (request.getRecordHelper().isRecordOperationsEnabled()) {
+                requests.add(request);
+            }
         }
-        try (Cursor cursor = db.rawQuery(aggregateTableRequest.getAggregationCommand(), null);
-                Cursor metaDataCursor =
-                        db.rawQuery(
-                                aggregateTableRequest.getCommandToFetchAggregateMetadata(), null)) {
-            aggregateTableRequest.onResultsFetched(cursor, metaDataCursor);
+        if (requests.isEmpty()) {
+            return;
         }
+
+        runAsReadTransaction(
+                db -> {
+                    // Must run first, they narrow the queries on the record tables to what the
+                    // rollups miss.
+                    for (AggregateTableRequest request : requests) {
+                        SqlStatement rollupStatement = request.getRollupAggregationStatement();
+                        if (rollupStatement != null) {
+                            try (Cursor rollupCursor = rollupStatement.query(db)) {
+                                request.onRollupResultsFetched(rollupCursor);
+                            }
+                        }
+                    }
+
+                    for (List<AggregateTableRequest> fusedRequests :
+                            AggregateTableRequest.planAggregationStatements(requests)) {
+                        if (fusedRequests.size() > 1) {
+                            SqlStatement fusedStatement =
+                                    AggregateTableRequest.getFusedAggregationStatement(
+                                            fusedRequests);
+                            try (Cursor cursor = fusedStatement.query(db)) {
+                                AggregateTableRequest.onFusedResultsFetched(fusedRequests, cursor);
+                            }
+                            continue;
+                        }
+
+                        AggregateTableRequest request = fusedRequests.get(0);
+                        SqlStatement metadataStatement = request.getAggregateMetadataStatement();
+                        try (Cursor cursor = request.getAggregationStatement().query(db);
+                                Cursor metaDataCursor =
+                                        metadataStatement == null
+                                                ? null
+                                                : metadataStatement.query(db)) {
+                            request.onResultsFetched(cursor, metaDataCursor);
+                        }
+                    }
+                });
     }
 
     /**
@@ -329,6 +394,48 @@ public final class TransactionManager {
         return Pair.create(recordInternalList, pageToken);
     }
 
+    /**
+     * Reads the records {@link RecordInternal} stored in the HealthConnect database and passes them
+     * to {@code consumer} as they are read from the cursor, and returns the next page token.
+     *
+     * <p>Records of types that need extra data, like {@link
+     * android.health.connect.internal.datatypes.ExerciseRouteInternal}, can only be populated
+     * once the whole page has been read, so these are passed to {@code consumer} after that.
+     *
+     * @see #readRecordsAndPageToken(ReadTransactionRequest)
+     */
+    public PageTokenWrapper readRecordsAndPageToken(
+            @NonNull ReadTransactionRequest request,
+            @NonNull Consumer<RecordInternal<?>> consumer)
+            throws SQLiteException {
+        checkArgument(
+                request.getPageToken() != null && request.getPageSize().isPresent(),
+                "Expect read by filter request, but request doesn't contain pagination info.");
+        ReadTableRequest readTableRequest = getOnlyElement(request.getReadRequests());
+        RecordHelper<?> helper = readTableRequest.getRecordHelper();
+        requireNonNull(helper);
+        if (!helper.isRecordOperationsEnabled()) {
+            return EMPTY_PAGE_TOKEN;
+        }
+        List<ReadTableRequest> extraReadRequests = readTableRequest.getExtraReadRequests();
+        if (extraReadRequests != null && !extraReadRequests.isEmpty()) {
+            Pair<List<RecordInternal<?>>, PageTokenWrapper> readResult =
+                    readRecordsAndPageToken(request);
+            readResult.first.forEach(consumer);
+            return readResult.second;
+        }
+
+        try (Cursor cursor = read(readTableRequest)) {
+            return helper.forEachInternalRecordInPage(
+                    cursor,
+                    request.getPageSize().orElse(DEFAULT_PAGE_SIZE),
+                    // pageToken is never null for read by filter requests
+                    requireNonNull(request.getPageToken()),
+                    /* packageNamesByAppIds= */ null,
+                    consumer);
+        }
+    }
+
     /**
      * Inserts record into the table in {@code request} into the HealthConnect database.
      *
@@ -361,7 +468,9 @@ public final class TransactionManager {
      */
     public void update(@NonNull UpsertTableRequest request) {
         final SQLiteDatabase db = getWritableDb();
-        updateRecord(db, request);
+        try (InsertStatementCache statements = new InsertStatementCache(db)) {
+            updateRecord(db, statements, request);
+        }
     }
 
     /**
@@ -381,16 +490,19 @@ public final class TransactionManager {
      */
     public long insertOrReplace(@NonNull UpsertTableRequest request) {
         final SQLiteDatabase db = getWritableDb();
-        return insertOrReplaceRecord(db, request);
+        try (InsertStatementCache statements = new InsertStatementCache(db)) {
+            return insertOrReplaceRecord(db, statements, request);
+        }
     }
 
     /** Note: It is the responsibility of the caller to close the returned cursor */
     @NonNull
     public Cursor read(@NonNull ReadTableRequest request) {
+        SqlStatement statement = request.getReadStatement();
         if (Constants.DEBUG) {
-            Slog.d(TAG, "Read query: " + request.getReadCommand());
+            Slog.d(TAG, "Read query: " + statement);
         }
-        return getReadableDb().rawQuery(request.getReadCommand(), null);
+        return statement.query(getReadableDb());
     }
 
     public long getLastRowIdFor(String tableName) {
@@ -420,12 +532,43 @@ public final class TransactionManager {
      */
     public long getDatabaseSize(@NonNull Context context) {
         requireNonNull(context);
-        return context.getDatabasePath(getReadableDb().getPath()).length();
+        // Pages that have not been checkpointed yet live in the write-ahead log.
+        return context.getDatabasePath(getReadableDb().getPath()).length()
+                + mHealthConnectDatabase.getWalPath().length();
+    }
+
+    /**
+     * Updates the write-ahead log checkpoint policy of all user databases. Doesn't open any of
+     * them.
+     *
+     * @param policy the new policy.
+     */
+    public void setWalCheckpointPolicy(@NonNull WalCheckpointPolicy policy) {
+        requireNonNull(policy);
+        mWalCheckpointPolicy = policy;
+        mUserHandleToDatabaseMap.values().forEach(db -> db.setWalCheckpointPolicy(policy));
+    }
+
+    /**
+     * Copies the write-ahead log back into the database file. Callers that read the database file
+     * directly must call this first. Prefer {@link DatabaseSnapshot}, which also doesn't copy
+     * transactions that are being written.
+     *
+     * @return whether the checkpoint completed without being blocked by other connections.
+     */
+    public boolean checkpointWal() {
+        return mHealthConnectDatabase.checkpoint(getWritableDb());
+    }
+
+    /** Returns the stats of explicit write-ahead log checkpoints for the current database. */
+    @NonNull
+    public WalCheckpointStats getWalCheckpointStats() {
+        return mHealthConnectDatabase.getWalCheckpointStats();
     }
 
     public void delete(DeleteTableRequest request) {
         final SQLiteDatabase db = getWritableDb();
-        db.execSQL(request.getDeleteCommand());
+        request.getDeleteStatement().execute(db);
     }
 
     /**
@@ -436,16 +579,16 @@ public final class TransactionManager {
     public void updateAll(@NonNull UpsertTransactionRequest request) {
         final SQLiteDatabase db = getWritableDb();
         db.beginTransaction();
-        try {
+        try (InsertStatementCache statements = new InsertStatementCache(db)) {
             for (UpsertTableRequest upsertRequest : request.getUpsertRequests()) {
-                updateRecord(db, upsertRequest);
+                updateRecord(db, statements, upsertRequest);
             }
             for (UpsertTableRequest insertRequestsForChangeLog :
                     request.getInsertRequestsForChangeLogs()) {
-                insertRecord(db, insertRequestsForChangeLog);
+                insertRecord(statements, insertRequestsForChangeLog);
             }
             for (UpsertTableRequest insertRequestsForAccessLogs : request.getAccessLogs()) {
-                insertRecord(db, insertRequestsForAccessLogs);
+                insertRecord(statements, insertRequestsForAccessLogs);
             }
             db.setTransactionSuccessful();
         } finally {
@@ -466,12 +609,10 @@ public final class TransactionManager {
                     RecordHelperProvider.getInstance().getRecordHelper(recordType);
             HashSet<String> packageNamesForDatatype = new HashSet<>();
             try (Cursor cursorForDistinctPackageNames =
-                    db.rawQuery(
-                            /* sql query */
-                            recordHelper
-                                    .getReadTableRequestWithDistinctAppInfoIds()
-                                    .getReadCommand(),
-                            /* selectionArgs */ null)) {
+                    recordHelper
+                            .getReadTableRequestWithDistinctAppInfoIds()
+                            .getReadStatement()
+                            .query(db)) {
                 if (cursorForDistinctPackageNames.getCount() > 0) {
                     AppInfoHelper appInfoHelper = AppInfoHelper.getInstance();
                     while (cursorForDistinctPackageNames.moveToNext()) {
@@ -503,7 +644,7 @@ public final class TransactionManager {
         db.beginTransaction();
         try {
             for (DeleteTableRequest deleteTableRequest : deleteTableRequests) {
-                db.execSQL(deleteTableRequest.getDeleteCommand());
+                deleteTableRequest.getDeleteStatement().execute(db);
             }
             db.setTransactionSuccessful();
         } finally {
@@ -511,27 +652,55 @@ public final class TransactionManager {
         }
     }
 
+    /**
+     * Runs {@code deleteStatement} in a transaction of its own, without creating change logs, and
+     * returns the number of rows it deleted.
+     *
+     * <p>Used by {@link AutoDeleteService} to delete large amounts of data in batches, between
+     * which other writers can take the database.
+     */
+    public int deleteBatchWithoutChangeLogs(@NonNull SqlStatement deleteStatement) {
+        requireNonNull(deleteStatement);
+        final SQLiteDatabase db = getWritableDb();
+        db.beginTransaction();
+        try {
+            int deletedCount = deleteStatement.executeUpdateDelete(db);
+            db.setTransactionSuccessful();
+            return deletedCount;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     public void onUserSwitching() {
         mHealthConnectDatabase.close();
     }
 
-    private void insertAll(
-            @NonNull List<UpsertTableRequest> upsertTableRequests,
-            @NonNull BiConsumer<SQLiteDatabase, UpsertTableRequest> insert) {
+    public <E extends Throwable> void runAsTransaction(TransactionRunnable<E> task) throws E {
         final SQLiteDatabase db = getWritableDb();
         db.beginTransaction();
         try {
-            upsertTableRequests.forEach(
-                    (upsertTableRequest) -> insert.accept(db, upsertTableRequest));
+            task.run(db);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
     }
 
-    public <E extends Throwable> void runAsTransaction(TransactionRunnable<E> task) throws E {
-        final SQLiteDatabase db = getWritableDb();
-        db.beginTransaction();
+    /**
+     * Runs {@code task} in a read-only transaction, so that all its reads see the same snapshot of
+     * the database, without blocking writers.
+     *
+     * <p>Read-only transactions are only supported from Android V. Before it, {@code task} runs
+     * without a transaction, as any other transaction would hold the write lock.
+     */
+    public <E extends Throwable> void runAsReadTransaction(TransactionRunnable<E> task) throws E {
+        final SQLiteDatabase db = getReadableDb();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.VANILLA_ICE_CREAM) {
+            task.run(db);
+            return;
+        }
+        db.beginTransactionReadOnly();
         try {
             task.run(db);
             db.setTransactionSuccessful();
@@ -542,9 +711,17 @@ public final class TransactionManager {
 
     /** Assumes that caller will be closing {@code db} and handling the transaction if required */
     public long insertRecord(@NonNull SQLiteDatabase db, @NonNull UpsertTableRequest request) {
-        long rowId = db.insertOrThrow(request.getTable(), null, request.getContentValues());
+        try (InsertStatementCache statements = new InsertStatementCache(db)) {
+            return insertRecord(statements, request);
+        }
+    }
+
+    private long insertRecord(
+            @NonNull InsertStatementCache statements, @NonNull UpsertTableRequest request) {
+        long rowId = statements.insert(request, SQLiteDatabase.CONFLICT_NONE);
         request.getChildTableRequests()
-                .forEach(childRequest -> insertRecord(db, childRequest.withParentKey(rowId)));
+                .forEach(
+                        childRequest -> insertRecord(statements, childRequest.withParentKey(rowId)));
 
         return rowId;
     }
@@ -557,16 +734,20 @@ public final class TransactionManager {
      * @return the row ID of the newly inserted row or <code>-1</code> if an error occurred.
      */
     public long insertOrIgnore(@NonNull SQLiteDatabase db, @NonNull UpsertTableRequest request) {
-        long rowId =
-                db.insertWithOnConflict(
-                        request.getTable(),
-                        null,
-                        request.getContentValues(),
-                        SQLiteDatabase.CONFLICT_IGNORE);
+        try (InsertStatementCache statements = new InsertStatementCache(db)) {
+            return insertOrIgnore(statements, request);
+        }
+    }
+
+    private long insertOrIgnore(
+            @NonNull InsertStatementCache statements, @NonNull UpsertTableRequest request) {
+        long rowId = statements.insert(request, SQLiteDatabase.CONFLICT_IGNORE);
 
         if (rowId != -1) {
             request.getChildTableRequests()
-                    .forEach(childRequest -> insertRecord(db, childRequest.withParentKey(rowId)));
+                    .forEach(
+                            childRequest ->
+                                    insertRecord(statements, childRequest.withParentKey(rowId)));
         }
 
         return rowId;
@@ -611,7 +792,8 @@ public final class TransactionManager {
         return getReadableDb().getVersion();
     }
 
-    private void updateRecord(SQLiteDatabase db, UpsertTableRequest request) {
+    private void updateRecord(
+            SQLiteDatabase db, InsertStatementCache statements, UpsertTableRequest request) {
         // Perform an update operation where UUID and packageName (mapped by appInfoId) is same
         // as that of the update request.
         try {
@@ -631,7 +813,7 @@ public final class TransactionManager {
                                         request.getContentValues()));
             }
         } catch (SQLiteConstraintException e) {
-            try (Cursor cursor = db.rawQuery(request.getReadRequest().getReadCommand(), null)) {
+            try (Cursor cursor = request.getReadRequest().getReadStatement().query(db)) {
                 cursor.moveToFirst();
                 throw new IllegalArgumentException(
                         StorageUtils.getConflictErrorMessageForRecord(
@@ -644,31 +826,58 @@ public final class TransactionManager {
         }
 
         try (Cursor cursor =
-                db.rawQuery(request.getReadRequestUsingUpdateClause().getReadCommand(), null)) {
+                request.getReadRequestUsingUpdateClause().getReadStatement().query(db)) {
             if (!cursor.moveToFirst()) {
                 throw new HealthConnectException(
                         ERROR_INTERNAL, "Expected to read an entry for update, but none found");
             }
             final long rowId = StorageUtils.getCursorLong(cursor, request.getRowIdColName());
             deleteChildTableRequest(request, rowId, db);
-            insertChildTableRequest(request, rowId, db);
+            insertChildTableRequest(request, rowId, statements);
         }
     }
 
     /**
-     * Do extra sql requests to populate optional extra data. Used to populate {@link
-     * android.health.connect.internal.datatypes.ExerciseRouteInternal}.
+     * Do extra sql requests to populate the child rows and other optional extra data of {@code
+     * records}, like {@link android.health.connect.internal.datatypes.ExerciseRouteInternal}. Each
+     * extra table is read once for all the records, by their row ids.
      */
     private void populateInternalRecordsWithExtraData(
             List<RecordInternal<?>> records, ReadTableRequest request) {
-        if (request.getExtraReadRequests() == null) {
+        List<ReadTableRequest> extraReadRequests = request.getExtraReadRequests();
+        if (extraReadRequests == null || extraReadRequests.isEmpty() || records.isEmpty()) {
             return;
         }
-        for (ReadTableRequest extraDataRequest : request.getExtraReadRequests()) {
-            Cursor cursorExtraData = read(extraDataRequest);
-            request.getRecordHelper()
-                    .updateInternalRecordsWithExtraFields(
-                            records, cursorExtraData, extraDataRequest.getTableName());
+        RecordHelper<?> helper = requireNonNull(request.getRecordHelper());
+        List<Long> rowIds = new ArrayList<>(records.size());
+        for (RecordInternal<?> record : records) {
+            rowIds.add((long) record.getRowId());
+        }
+
+        final SQLiteDatabase db = getReadableDb();
+        for (ReadTableRequest extraDataRequest : extraReadRequests) {
+            long startTimeMillis = SystemClock.elapsedRealtime();
+            SqlStatement statement = extraDataRequest.getChildReadStatement(rowIds);
+            int rowCount;
+            try (Cursor cursorExtraData = statement.query(db)) {
+                helper.updateInternalRecordsWithExtraFields(
+                        records, cursorExtraData, extraDataRequest.getTableName());
+                rowCount = cursorExtraData.getCount();
+            }
+            if (Constants.DEBUG) {
+                Slog.d(
+                        TAG,
+                        "Read "
+                                + rowCount
+                                + " rows of "
+                                + extraDataRequest.getTableName()
+                                + " for "
+                                + records.size()
+                                + " records in "
+                                + (SystemClock.elapsedRealtime() - startTimeMillis)
+                                + " ms: "
+                                + statement);
+            }
         }
     }
 
@@ -679,35 +888,64 @@ public final class TransactionManager {
      * <p>Note: This function updates rather than the traditional delete + insert in SQLite
      */
     private long insertOrReplaceRecord(
-            @NonNull SQLiteDatabase db, @NonNull UpsertTableRequest request) {
+            @NonNull SQLiteDatabase db,
+            @NonNull InsertStatementCache statements,
+            @NonNull UpsertTableRequest request) {
         try {
             if (request.getUniqueColumnsCount() == 0) {
                 throw new RuntimeException(
                         "insertOrReplaceRecord should only be called with unique columns set");
             }
 
-            long rowId =
-                    db.insertWithOnConflict(
-                            request.getTable(),
-                            null,
-                            request.getContentValues(),
-                            SQLiteDatabase.CONFLICT_FAIL);
-            insertChildTableRequest(request, rowId, db);
+            if (request.getUpsertConflictColumn() != null) {
+                return upsertRecord(db, statements, request);
+            }
+
+            long rowId = statements.insert(request, SQLiteDatabase.CONFLICT_FAIL);
+            insertChildTableRequest(request, rowId, statements);
             return rowId;
         } catch (SQLiteConstraintException e) {
-            try (Cursor cursor = db.rawQuery(request.getReadRequest().getReadCommand(), null)) {
+            try (Cursor cursor = request.getReadRequest().getReadStatement().query(db)) {
                 if (!cursor.moveToFirst()) {
                     throw new HealthConnectException(
                             ERROR_INTERNAL, "Conflict found, but couldn't read the entry.");
                 }
 
-                return updateEntriesIfRequired(db, request, cursor);
+                return updateEntriesIfRequired(db, statements, request, cursor);
             }
         }
     }
 
+    /**
+     * Inserts or updates the parent row with a single UPSERT statement, and rewrites the child
+     * rows only if the parent row was inserted or changed. Returns -1 if the existing row was kept.
+     */
+    private long upsertRecord(
+            @NonNull SQLiteDatabase db,
+            @NonNull InsertStatementCache statements,
+            @NonNull UpsertTableRequest request) {
+        List<String> childTablesToDelete = request.getAllChildTablesToDelete();
+        // An UPSERT that updates a row leaves last_insert_rowid() unchanged, which tells the two
+        // cases apart. Only checked when there are child rows to replace.
+        long lastInsertRowId =
+                childTablesToDelete.isEmpty() ? INVALID_ROW_ID : statements.getLastInsertRowId();
+        long rowId = statements.upsert(request);
+        if (rowId == INVALID_ROW_ID) {
+            return INVALID_ROW_ID;
+        }
+
+        if (!childTablesToDelete.isEmpty() && statements.getLastInsertRowId() == lastInsertRowId) {
+            deleteChildTableRequest(request, rowId, db);
+        }
+        insertChildTableRequest(request, rowId, statements);
+        return rowId;
+    }
+
     private long updateEntriesIfRequired(
-            SQLiteDatabase db, UpsertTableRequest request, Cursor cursor) {
+            SQLiteDatabase db,
+            InsertStatementCache statements,
+            UpsertTableRequest request,
+            Cursor cursor) {
         if (!request.requiresUpdate(cursor, request)) {
             return -1;
         }
@@ -726,7 +964,7 @@ public final class TransactionManager {
         }
         final long rowId = StorageUtils.getCursorLong(cursor, request.getRowIdColName());
         deleteChildTableRequest(request, rowId, db);
-        insertChildTableRequest(request, rowId, db);
+        insertChildTableRequest(request, rowId, statements);
 
         return rowId;
     }
@@ -735,18 +973,15 @@ public final class TransactionManager {
             UpsertTableRequest request, long rowId, SQLiteDatabase db) {
         for (String childTable : request.getAllChildTablesToDelete()) {
             DeleteTableRequest deleteTableRequest =
-                    new DeleteTableRequest(childTable).setId(PARENT_KEY, String.valueOf(rowId));
-            db.execSQL(deleteTableRequest.getDeleteCommand());
+                    new DeleteTableRequest(childTable).setId(PARENT_KEY, rowId);
+            deleteTableRequest.getDeleteStatement().execute(db);
         }
     }
 
     private void insertChildTableRequest(
-            UpsertTableRequest request, long rowId, SQLiteDatabase db) {
+            UpsertTableRequest request, long rowId, InsertStatementCache statements) {
         for (UpsertTableRequest childTableRequest : request.getChildTableRequests()) {
-            db.insertOrThrow(
-                    childTableRequest.withParentKey(rowId).getTable(),
-                    null,
-                    childTableRequest.getContentValues());
+            statements.insert(childTableRequest.withParentKey(rowId), SQLiteDatabase.CONFLICT_NONE);
         }
     }
 
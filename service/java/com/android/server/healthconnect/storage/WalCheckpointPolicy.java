@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import android.annotation.IntDef;
+import android.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Describes how the write-ahead log of {@link HealthConnectDatabase} is checkpointed.
+ *
+ * <p>SQLite checkpoints automatically once the log grows beyond {@link #getAutoCheckpointPages()}
+ * pages. On top of that, {@link TransactionManager#checkpointWal()} runs an explicit checkpoint in
+ * {@link #getCheckpointMode()} from the daily job and before the database file is copied.
+ *
+ * @hide
+ */
+public final class WalCheckpointPolicy {
+    public static final int CHECKPOINT_MODE_PASSIVE = 0;
+    public static final int CHECKPOINT_MODE_FULL = 1;
+    public static final int CHECKPOINT_MODE_RESTART = 2;
+    public static final int CHECKPOINT_MODE_TRUNCATE = 3;
+
+    /** Same page threshold as the SQLite default. */
+    public static final int DEFAULT_AUTO_CHECKPOINT_PAGES = 1000;
+
+    public static final WalCheckpointPolicy DEFAULT =
+            new WalCheckpointPolicy(DEFAULT_AUTO_CHECKPOINT_PAGES, CHECKPOINT_MODE_TRUNCATE);
+
+    private final int mAutoCheckpointPages;
+    @CheckpointMode private final int mCheckpointMode;
+
+    public WalCheckpointPolicy(int autoCheckpointPages, @CheckpointMode int checkpointMode) {
+        if (checkpointMode < CHECKPOINT_MODE_PASSIVE || checkpointMode > CHECKPOINT_MODE_TRUNCATE) {
+            throw new IllegalArgumentException("Invalid checkpoint mode: " + checkpointMode);
+        }
+        // A non-positive value disables automatic checkpoints, which would let the log grow
+        // without bounds between daily jobs.
+        mAutoCheckpointPages =
+                autoCheckpointPages > 0 ? autoCheckpointPages : DEFAULT_AUTO_CHECKPOINT_PAGES;
+        mCheckpointMode = checkpointMode;
+    }
+
+    /** Returns the number of log pages after which SQLite checkpoints automatically. */
+    public int getAutoCheckpointPages() {
+        return mAutoCheckpointPages;
+    }
+
+    /** Returns the mode used for explicit checkpoints. */
+    @CheckpointMode
+    public int getCheckpointMode() {
+        return mCheckpointMode;
+    }
+
+    /** Returns the pragma that configures automatic checkpoints on a connection. */
+    @NonNull
+    String getAutoCheckpointCommand() {
+        return "PRAGMA wal_autocheckpoint = " + mAutoCheckpointPages;
+    }
+
+    /** Returns the pragma that runs an explicit checkpoint. */
+    @NonNull
+    String getCheckpointCommand() {
+        return "PRAGMA wal_checkpoint(" + getCheckpointModeName() + ")";
+    }
+
+    @NonNull
+    private String getCheckpointModeName() {
+        return switch (mCheckpointMode) {
+            case CHECKPOINT_MODE_PASSIVE -> "PASSIVE";
+            case CHECKPOINT_MODE_FULL -> "FULL";
+            case CHECKPOINT_MODE_RESTART -> "RESTART";
+            default -> "TRUNCATE";
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof WalCheckpointPolicy that)) return false;
+        return mAutoCheckpointPages == that.mAutoCheckpointPages
+                && mCheckpointMode == that.mCheckpointMode;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mAutoCheckpointPages + mCheckpointMode;
+    }
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({
+        CHECKPOINT_MODE_PASSIVE,
+        CHECKPOINT_MODE_FULL,
+        CHECKPOINT_MODE_RESTART,
+        CHECKPOINT_MODE_TRUNCATE
+    })
+    public @interface CheckpointMode {}
+}
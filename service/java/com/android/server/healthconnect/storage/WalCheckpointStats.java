@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import android.annotation.NonNull;
+
+import com.android.internal.annotations.GuardedBy;
+
+/**
+ * Accumulates the results of explicit write-ahead log checkpoints run by {@link
+ * TransactionManager#checkpointWal()}.
+ *
+ * @hide
+ */
+public final class WalCheckpointStats {
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private long mCheckpointCount;
+
+    @GuardedBy("mLock")
+    private long mBusyCheckpointCount;
+
+    @GuardedBy("mLock")
+    private long mTotalFramesCheckpointed;
+
+    @GuardedBy("mLock")
+    private long mLastLogFrames;
+
+    @GuardedBy("mLock")
+    private long mLastDurationMillis;
+
+    /**
+     * Records the result row of {@code PRAGMA wal_checkpoint}.
+     *
+     * @param busy whether the checkpoint was blocked by a reader or writer
+     * @param logFrames number of frames in the log when the checkpoint ran
+     * @param checkpointedFrames number of frames copied back into the database file
+     * @param durationMillis wall time spent on the checkpoint
+     */
+    void onCheckpoint(boolean busy, long logFrames, long checkpointedFrames, long durationMillis) {
+        synchronized (mLock) {
+            mCheckpointCount++;
+            if (busy) {
+                mBusyCheckpointCount++;
+            }
+            // SQLite reports -1 for both frame counts if the database is not in WAL mode.
+            mLastLogFrames = Math.max(logFrames, 0);
+            mTotalFramesCheckpointed += Math.max(checkpointedFrames, 0);
+            mLastDurationMillis = durationMillis;
+        }
+    }
+
+    /** Returns the number of explicit checkpoints run so far. */
+    public long getCheckpointCount() {
+        synchronized (mLock) {
+            return mCheckpointCount;
+        }
+    }
+
+    /** Returns the number of checkpoints that could not complete because the log was busy. */
+    public long getBusyCheckpointCount() {
+        synchronized (mLock) {
+            return mBusyCheckpointCount;
+        }
+    }
+
+    /** Returns the total number of frames copied back into the database file. */
+    public long getTotalFramesCheckpointed() {
+        synchronized (mLock) {
+            return mTotalFramesCheckpointed;
+        }
+    }
+
+    /** Returns the size of the log, in frames, seen by the last checkpoint. */
+    public long getLastLogFrames() {
+        synchronized (mLock) {
+            return mLastLogFrames;
+        }
+    }
+
+    /** Returns the duration of the last checkpoint. */
+    public long getLastDurationMillis() {
+        synchronized (mLock) {
+            return mLastDurationMillis;
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "WalCheckpointStats{count="
+                    + mCheckpointCount
+                    + ", busy="
+                    + mBusyCheckpointCount
+                    + ", totalFramesCheckpointed="
+                    + mTotalFramesCheckpointed
+                    + ", lastLogFrames="
+                    + mLastLogFrames
+                    + ", lastDurationMillis="
+                    + mLastDurationMillis
+                    + "}";
+        }
+    }
+}
@@ -22,40 +22,43 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.getCur
 import static com.android.server.healthconnect.storage.utils.WhereClauses.LogicalOperator.AND;
 
 import android.annotation.NonNull;
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.health.connect.datatypes.Record;
-import android.health.connect.internal.datatypes.RecordInternal;
 import android.health.connect.internal.datatypes.utils.RecordMapper;
 import android.util.Pair;
+import android.util.Slog;
 
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
-import com.android.server.healthconnect.storage.request.DeleteTableRequest;
+import com.android.server.healthconnect.storage.request.DropTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
-import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.time.LocalDate;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Locale;
 import java.util.stream.Collectors;
 
 /**
- * Helper for Activity Date Table. The table maps a record to a date on which there was a db write
- * for that record
+ * Helper for Activity Date Table. The table maps a record type to the dates on which there are
+ * records of that type, with the number of those records.
+ *
+ * <p>The counts are kept by triggers on the record tables, so they change in the same transaction
+ * as the records, however they are written or deleted. A date is removed once its count drops to
+ * zero.
  *
  * @hide
  */
 public final class ActivityDateHelper extends DatabaseHelper {
+    private static final String TAG = "HealthConnectActivityDate";
     private static final String TABLE_NAME = "activity_date_table";
     private static final String EPOCH_DAYS_COLUMN_NAME = "epoch_days";
     private static final String RECORD_TYPE_ID_COLUMN_NAME = "record_type_id";
+    private static final String RECORD_COUNT_COLUMN_NAME = "record_count";
 
     @SuppressWarnings("NullAway.Init") // TODO(b/317029272): fix this suppression
     private static volatile ActivityDateHelper sActivityDateHelper;
@@ -77,18 +80,26 @@ public final class ActivityDateHelper extends DatabaseHelper {
         return TABLE_NAME;
     }
 
-    /** Insert a new activity dates for the given records */
-    @NonNull
-    public void insertRecordDate(@NonNull List<RecordInternal<?>> recordInternals) {
-        Objects.requireNonNull(recordInternals);
-
-        final TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
-
-        List<UpsertTableRequest> upsertTableRequests = new ArrayList<>();
-        recordInternals.forEach(
-                (recordInternal) -> upsertTableRequests.add(getUpsertTableRequest(recordInternal)));
+    /** Creates the triggers that keep the dates of all record tables up to date. */
+    public void createTriggers(@NonNull SQLiteDatabase db) {
+        for (RecordHelper<?> recordHelper :
+                RecordHelperProvider.getInstance().getRecordHelpers().values()) {
+            getCreateTriggerCommands(recordHelper).forEach(db::execSQL);
+        }
+    }
 
-        transactionManager.insertOrIgnoreOnConflict(upsertTableRequests);
+    /**
+     * Database migration. Recreates the table with record counts, creates its triggers, and counts
+     * the records that are already stored.
+     */
+    public void applyActivityDateCountsUpgrade(@NonNull SQLiteDatabase db) {
+        db.execSQL(new DropTableRequest(TABLE_NAME).getCommand());
+        db.execSQL(getCreateTableRequest().getCreateCommand());
+        for (RecordHelper<?> recordHelper :
+                RecordHelperProvider.getInstance().getRecordHelpers().values()) {
+            getCreateTriggerCommands(recordHelper).forEach(db::execSQL);
+            db.execSQL(getBackfillCommand(recordHelper));
+        }
     }
 
     /** Returns a list of all dates with database writes for the given record types */
@@ -103,11 +114,16 @@ public final class ActivityDateHelper extends DatabaseHelper {
                         .setWhereClause(
                                 new WhereClauses(AND)
                                         .addWhereInIntsClause(
-                                                RECORD_TYPE_ID_COLUMN_NAME, recordTypeIds))
+                                                RECORD_TYPE_ID_COLUMN_NAME, recordTypeIds)
+                                        .addWhereGreaterThanClause(RECORD_COUNT_COLUMN_NAME, 0))
                         .setColumnNames(List.of(EPOCH_DAYS_COLUMN_NAME))
                         .setDistinctClause(true));
     }
 
+    /**
+     * Recounts the dates of all record types from the record tables. The counts are kept up to
+     * date by triggers, so this is only needed to repair the table.
+     */
     public void reSyncForAllRecords() {
         List<Integer> recordTypeIds =
                 RecordMapper.getInstance().getRecordIdToExternalRecordClassMap().keySet().stream()
@@ -116,34 +132,29 @@ public final class ActivityDateHelper extends DatabaseHelper {
         reSyncByRecordTypeIds(recordTypeIds);
     }
 
+    /**
+     * Recounts the dates of the given record types from the record tables. The counts are kept up
+     * to date by triggers, so this is only needed to repair the table.
+     */
     public void reSyncByRecordTypeIds(List<Integer> recordTypeIds) {
-        List<UpsertTableRequest> upsertTableRequests = new ArrayList<>();
-        final TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
-
-        DeleteTableRequest deleteTableRequest =
-                new DeleteTableRequest(TABLE_NAME)
-                        .setIds(
-                                RECORD_TYPE_ID_COLUMN_NAME,
-                                recordTypeIds.stream().map(String::valueOf).toList());
-
-        // Fetch updated dates from respective record table and update the activity dates cache.
-        HashMap<Integer, List<Long>> recordTypeIdToEpochDays =
-                fetchUpdatedDates(recordTypeIds, transactionManager);
-
-        recordTypeIdToEpochDays.forEach(
-                (recordTypeId, epochDays) ->
-                        epochDays.forEach(
-                                (epochDay) ->
-                                        upsertTableRequests.add(
-                                                getUpsertTableRequest(recordTypeId, epochDay))));
-
-        transactionManager.runAsTransaction(
-                db -> {
-                    db.execSQL(deleteTableRequest.getDeleteCommand());
-                    upsertTableRequests.forEach(
-                            upsertTableRequest ->
-                                    transactionManager.insertOrIgnore(db, upsertTableRequest));
-                });
+        Slog.i(TAG, "Recounting activity dates of record types " + recordTypeIds);
+        TransactionManager.getInitialisedInstance()
+                .runAsTransaction(
+                        db -> {
+                            for (int recordTypeId : recordTypeIds) {
+                                RecordHelper<?> recordHelper =
+                                        RecordHelperProvider.getInstance()
+                                                .getRecordHelper(recordTypeId);
+                                db.execSQL(
+                                        "DELETE FROM "
+                                                + TABLE_NAME
+                                                + " WHERE "
+                                                + RECORD_TYPE_ID_COLUMN_NAME
+                                                + " = "
+                                                + recordTypeId);
+                                db.execSQL(getBackfillCommand(recordHelper));
+                            }
+                        });
     }
 
     @Override
@@ -152,41 +163,8 @@ public final class ActivityDateHelper extends DatabaseHelper {
         return Arrays.asList(
                 new Pair<>(RecordHelper.PRIMARY_COLUMN_NAME, PRIMARY_AUTOINCREMENT),
                 new Pair<>(EPOCH_DAYS_COLUMN_NAME, INTEGER_NOT_NULL),
-                new Pair<>(RECORD_TYPE_ID_COLUMN_NAME, INTEGER_NOT_NULL));
-    }
-
-    private HashMap<Integer, List<Long>> fetchUpdatedDates(
-            List<Integer> recordTypeIds, TransactionManager transactionManager) {
-
-        ReadTableRequest request;
-        RecordHelper<?> recordHelper;
-        HashMap<Integer, List<Long>> recordTypeIdToEpochDays = new HashMap<>();
-        for (int recordTypeId : recordTypeIds) {
-            recordHelper = RecordHelperProvider.getInstance().getRecordHelper(recordTypeId);
-            request =
-                    new ReadTableRequest(recordHelper.getMainTableName())
-                            .setColumnNames(List.of(recordHelper.getPeriodGroupByColumnName()))
-                            .setDistinctClause(true);
-            try (Cursor cursor = transactionManager.read(request)) {
-                List<Long> distinctDates = new ArrayList<>();
-                while (cursor.moveToNext()) {
-                    long epochDay =
-                            getCursorLong(cursor, recordHelper.getPeriodGroupByColumnName());
-                    distinctDates.add(epochDay);
-                }
-                recordTypeIdToEpochDays.put(recordTypeId, distinctDates);
-            }
-        }
-        return recordTypeIdToEpochDays;
-    }
-
-    @NonNull
-    private ContentValues getContentValues(int recordTypeId, long epochDays) {
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(EPOCH_DAYS_COLUMN_NAME, epochDays);
-        contentValues.put(RECORD_TYPE_ID_COLUMN_NAME, recordTypeId);
-
-        return contentValues;
+                new Pair<>(RECORD_TYPE_ID_COLUMN_NAME, INTEGER_NOT_NULL),
+                new Pair<>(RECORD_COUNT_COLUMN_NAME, INTEGER_NOT_NULL));
     }
 
     /**
@@ -216,15 +194,112 @@ public final class ActivityDateHelper extends DatabaseHelper {
         return sActivityDateHelper;
     }
 
-    /** Creates UpsertTableRequest to insert into activity_date_table table. */
-    public UpsertTableRequest getUpsertTableRequest(int recordTypeId, long epochDays) {
-        return new UpsertTableRequest(TABLE_NAME, getContentValues(recordTypeId, epochDays));
+    private static List<String> getCreateTriggerCommands(@NonNull RecordHelper<?> recordHelper) {
+        String tableName = recordHelper.getMainTableName();
+        String dateColumnName = recordHelper.getPeriodGroupByColumnName();
+        int recordTypeId = recordHelper.getRecordIdentifier();
+        String addNew = getAddToDateCommand(recordTypeId, dateColumnName);
+        String removeOld = getRemoveFromDateCommand(recordTypeId, dateColumnName);
+        return List.of(
+                getCreateTriggerCommand(tableName, "INSERT", "", addNew),
+                getCreateTriggerCommand(tableName, "DELETE", "", removeOld),
+                // Most updates don't move records to another date.
+                getCreateTriggerCommand(
+                        tableName,
+                        "UPDATE",
+                        " WHEN OLD." + dateColumnName + " IS NOT NEW." + dateColumnName,
+                        removeOld + addNew));
+    }
+
+    private static String getCreateTriggerCommand(
+            String tableName, String operation, String condition, String actions) {
+        return "CREATE TRIGGER IF NOT EXISTS "
+                + tableName
+                + "_activity_date_"
+                + operation.toLowerCase(Locale.ROOT)
+                + " AFTER "
+                + operation
+                + " ON "
+                + tableName
+                + condition
+                + " BEGIN "
+                + actions
+                + "END";
+    }
+
+    /** Returns a statement counting the new row on its date. */
+    private static String getAddToDateCommand(int recordTypeId, String dateColumnName) {
+        return "INSERT INTO "
+                + TABLE_NAME
+                + " ("
+                + EPOCH_DAYS_COLUMN_NAME
+                + ", "
+                + RECORD_TYPE_ID_COLUMN_NAME
+                + ", "
+                + RECORD_COUNT_COLUMN_NAME
+                + ") SELECT NEW."
+                + dateColumnName
+                + ", "
+                + recordTypeId
+                + ", 1 WHERE NEW."
+                + dateColumnName
+                + " IS NOT NULL ON CONFLICT ("
+                + EPOCH_DAYS_COLUMN_NAME
+                + ", "
+                + RECORD_TYPE_ID_COLUMN_NAME
+                + ") DO UPDATE SET "
+                + RECORD_COUNT_COLUMN_NAME
+                + " = "
+                + RECORD_COUNT_COLUMN_NAME
+                + " + 1; ";
+    }
+
+    /** Returns statements uncounting the old row from its date, removing the date if unused. */
+    private static String getRemoveFromDateCommand(int recordTypeId, String dateColumnName) {
+        String keyConditions =
+                EPOCH_DAYS_COLUMN_NAME
+                        + " = OLD."
+                        + dateColumnName
+                        + " AND "
+                        + RECORD_TYPE_ID_COLUMN_NAME
+                        + " = "
+                        + recordTypeId;
+        return "UPDATE "
+                + TABLE_NAME
+                + " SET "
+                + RECORD_COUNT_COLUMN_NAME
+                + " = "
+                + RECORD_COUNT_COLUMN_NAME
+                + " - 1 WHERE "
+                + keyConditions
+                + "; DELETE FROM "
+                + TABLE_NAME
+                + " WHERE "
+                + keyConditions
+                + " AND "
+                + RECORD_COUNT_COLUMN_NAME
+                + " <= 0; ";
     }
 
-    /** Creates UpsertTableRequest to insert into activity_date_table table from recordInternal. */
-    public UpsertTableRequest getUpsertTableRequest(RecordInternal<?> recordInternal) {
-        return getUpsertTableRequest(
-                recordInternal.getRecordType(),
-                ChronoUnit.DAYS.between(LocalDate.EPOCH, recordInternal.getLocalDate()));
+    private static String getBackfillCommand(@NonNull RecordHelper<?> recordHelper) {
+        String dateColumnName = recordHelper.getPeriodGroupByColumnName();
+        return "INSERT INTO "
+                + TABLE_NAME
+                + " ("
+                + EPOCH_DAYS_COLUMN_NAME
+                + ", "
+                + RECORD_TYPE_ID_COLUMN_NAME
+                + ", "
+                + RECORD_COUNT_COLUMN_NAME
+                + ") SELECT "
+                + dateColumnName
+                + ", "
+                + recordHelper.getRecordIdentifier()
+                + ", COUNT(*) FROM "
+                + recordHelper.getMainTableName()
+                + " WHERE "
+                + dateColumnName
+                + " IS NOT NULL GROUP BY "
+                + dateColumnName;
     }
 }
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER_NOT_NULL;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.PRIMARY_AUTOINCREMENT;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL_NOT_NULL;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.TEXT_NOT_NULL;
+import static com.android.server.healthconnect.storage.utils.WhereClauses.LogicalOperator.AND;
+import static com.android.server.healthconnect.storage.utils.WhereClauses.LogicalOperator.OR;
+
+import android.annotation.NonNull;
+import android.database.sqlite.SQLiteDatabase;
+import android.health.connect.Constants;
+import android.util.Pair;
+import android.util.Slog;
+
+import com.android.server.healthconnect.storage.request.CreateTableRequest;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+import com.android.server.healthconnect.storage.utils.SqlStatement;
+import com.android.server.healthconnect.storage.utils.StorageUtils;
+import com.android.server.healthconnect.storage.utils.WhereClauses;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helper for the aggregation rollup table. The table keeps the hourly and daily sums of the
+ * columns returned by {@link RecordHelper#getRollupColumnNames}, per record type and app, so that
+ * aggregations over whole hours and days don't have to read every record.
+ *
+ * <p>The table is kept up to date by triggers on the record tables, so it changes in the same
+ * transaction as the records, however they are written or deleted. Each record is added to the
+ * buckets containing its physical start time and to the buckets containing its local start time.
+ *
+ * @hide
+ */
+public final class AggregationRollupHelper extends DatabaseHelper {
+    private static final String TAG = "HealthConnectRollup";
+    private static final String TABLE_NAME = "aggregation_rollup_table";
+    private static final String RECORD_TYPE_COLUMN_NAME = "record_type";
+    private static final String COLUMN_NAME_COLUMN_NAME = "column_name";
+    private static final String IS_LOCAL_TIME_COLUMN_NAME = "is_local_time";
+    private static final String BUCKET_SIZE_COLUMN_NAME = "bucket_size";
+    private static final String BUCKET_START_COLUMN_NAME = "bucket_start";
+    private static final String RECORD_COUNT_COLUMN_NAME = "record_count";
+    public static final String VALUE_SUM_COLUMN_NAME = "value_sum";
+    public static final String ZONE_OFFSET_COLUMN_NAME = "zone_offset";
+    public static final String GROUP_COLUMN_NAME = "category";
+
+    public static final long HOUR_BUCKET_MILLIS = Duration.ofHours(1).toMillis();
+    public static final long DAY_BUCKET_MILLIS = Duration.ofDays(1).toMillis();
+    private static final List<Long> BUCKET_SIZES = List.of(HOUR_BUCKET_MILLIS, DAY_BUCKET_MILLIS);
+
+    // Order matters, the unique index serves the lookups done by the triggers and the queries.
+    private static final List<String> KEY_COLUMNS =
+            List.of(
+                    RECORD_TYPE_COLUMN_NAME,
+                    COLUMN_NAME_COLUMN_NAME,
+                    IS_LOCAL_TIME_COLUMN_NAME,
+                    BUCKET_SIZE_COLUMN_NAME,
+                    BUCKET_START_COLUMN_NAME,
+                    APP_INFO_ID_COLUMN_NAME);
+
+    private static volatile AggregationRollupHelper sAggregationRollupHelper;
+
+    private AggregationRollupHelper() {}
+
+    /** Returns a request representing the table that should be created for this helper. */
+    @NonNull
+    public CreateTableRequest getCreateTableRequest() {
+        return new CreateTableRequest(TABLE_NAME, getColumnInfo())
+                .addUniqueConstraints(KEY_COLUMNS);
+    }
+
+    @Override
+    protected String getMainTableName() {
+        return TABLE_NAME;
+    }
+
+    /** Creates the triggers that keep the rollups of all record tables up to date. */
+    public void createTriggers(@NonNull SQLiteDatabase db) {
+        for (RecordHelper<?> recordHelper :
+                RecordHelperProvider.getInstance().getRecordHelpers().values()) {
+            getCreateTriggerCommands(recordHelper).forEach(db::execSQL);
+        }
+    }
+
+    /**
+     * Database migration. Creates the rollup table and its triggers, and computes the rollups of
+     * the records that are already stored.
+     */
+    public void applyAggregationRollupsUpgrade(@NonNull SQLiteDatabase db) {
+        db.execSQL(getCreateTableRequest().getCreateCommand());
+        getCreateTableRequest().getCreateIndexStatements().forEach(db::execSQL);
+        for (RecordHelper<?> recordHelper :
+                RecordHelperProvider.getInstance().getRecordHelpers().values()) {
+            getCreateTriggerCommands(recordHelper).forEach(db::execSQL);
+            getBackfillCommands(recordHelper).forEach(db::execSQL);
+        }
+    }
+
+    /**
+     * Returns SQL statement to read the rollups of {@code columnName} for each group of an
+     * aggregation. Each group is covered by the hourly and daily buckets of a range of its time,
+     * the bounds of which must be multiples of an hour. The ranges must not overlap.
+     *
+     * @param groupRanges the time range to read for each group index. Groups without a range are
+     *     left out.
+     * @param appInfoIds the apps to read the rollups of, all apps if empty.
+     */
+    @NonNull
+    public SqlStatement getRollupAggregationStatement(
+            int recordType,
+            @NonNull String columnName,
+            boolean useLocalTime,
+            @NonNull Map<Integer, Pair<Long, Long>> groupRanges,
+            @NonNull List<Long> appInfoIds) {
+        long minStart = Long.MAX_VALUE;
+        long maxEnd = Long.MIN_VALUE;
+        List<Integer> groups = new ArrayList<>(groupRanges.keySet());
+        for (Pair<Long, Long> range : groupRanges.values()) {
+            minStart = Math.min(minStart, range.first);
+            maxEnd = Math.max(maxEnd, range.second);
+        }
+        groups.sort(Comparator.comparing(group -> groupRanges.get(group).first));
+
+        SqlStatement.Builder builder = new SqlStatement.Builder().append("SELECT ");
+        appendGroupSearch(builder, groups, groupRanges, 0, groups.size());
+        builder.append(
+                " "
+                        + GROUP_COLUMN_NAME
+                        + ", "
+                        + APP_INFO_ID_COLUMN_NAME
+                        + ", SUM("
+                        + VALUE_SUM_COLUMN_NAME
+                        + ") AS "
+                        + VALUE_SUM_COLUMN_NAME
+                        + ", MAX("
+                        + ZONE_OFFSET_COLUMN_NAME
+                        + ") AS "
+                        + ZONE_OFFSET_COLUMN_NAME
+                        + " FROM "
+                        + TABLE_NAME);
+
+        WhereClauses whereClauses =
+                new WhereClauses(AND)
+                        .addWhereEqualsClause(RECORD_TYPE_COLUMN_NAME, recordType)
+                        .addWhereEqualsClause(COLUMN_NAME_COLUMN_NAME, columnName)
+                        .addWhereEqualsClause(IS_LOCAL_TIME_COLUMN_NAME, useLocalTime ? 1 : 0)
+                        .addWhereInLongsClause(BUCKET_SIZE_COLUMN_NAME, BUCKET_SIZES)
+                        .addWhereGreaterThanOrEqualClause(BUCKET_START_COLUMN_NAME, minStart)
+                        .addWhereLessThanClause(BUCKET_START_COLUMN_NAME, maxEnd)
+                        .addWhereInLongsClause(APP_INFO_ID_COLUMN_NAME, appInfoIds)
+                        .addWhereGreaterThanClause(RECORD_COUNT_COLUMN_NAME, 0);
+        builder.append(whereClauses.getStatement(/* withWhereKeyword= */ true))
+                .append(
+                        " GROUP BY "
+                                + GROUP_COLUMN_NAME
+                                + ", "
+                                + APP_INFO_ID_COLUMN_NAME
+                                + " HAVING "
+                                + GROUP_COLUMN_NAME
+                                + " IS NOT NULL");
+
+        SqlStatement statement = builder.build();
+        if (Constants.DEBUG) {
+            Slog.d(TAG, "Rollup aggregation query: " + statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Appends an expression of the group, among {@code groups} {@code [from, to)} sorted by the
+     * start of their range, of the bucket of a row. The groups are bisected on the bucket start,
+     * so that each row is only compared with the buckets of the one group that may contain it.
+     */
+    private static void appendGroupSearch(
+            SqlStatement.Builder builder,
+            List<Integer> groups,
+            Map<Integer, Pair<Long, Long>> groupRanges,
+            int from,
+            int to) {
+        if (to - from == 1) {
+            int group = groups.get(from);
+            Pair<Long, Long> range = groupRanges.get(group);
+            builder.append("CASE WHEN ")
+                    .append(
+                            getBucketsWhereClauses(range.first, range.second)
+                                    .getStatement(/* withWhereKeyword= */ false))
+                    .append(" THEN " + group + " END");
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        builder.append("CASE WHEN " + BUCKET_START_COLUMN_NAME + " < ")
+                .appendBindArg(groupRanges.get(groups.get(middle)).first)
+                .append(" THEN ");
+        appendGroupSearch(builder, groups, groupRanges, from, middle);
+        builder.append(" ELSE ");
+        appendGroupSearch(builder, groups, groupRanges, middle, to);
+        builder.append(" END");
+    }
+
+    /** Returns the smallest multiple of {@code bucketSize} that is not before {@code time}. */
+    public static long getBucketCeiling(long time, long bucketSize) {
+        return time + Math.floorMod(-time, bucketSize);
+    }
+
+    /** Returns the largest multiple of {@code bucketSize} that is not after {@code time}. */
+    public static long getBucketFloor(long time, long bucketSize) {
+        return time - Math.floorMod(time, bucketSize);
+    }
+
+    /** Returns an instance of this class */
+    public static synchronized AggregationRollupHelper getInstance() {
+        if (sAggregationRollupHelper == null) {
+            sAggregationRollupHelper = new AggregationRollupHelper();
+        }
+
+        return sAggregationRollupHelper;
+    }
+
+    @Override
+    @NonNull
+    protected List<Pair<String, String>> getColumnInfo() {
+        return Arrays.asList(
+                new Pair<>(RecordHelper.PRIMARY_COLUMN_NAME, PRIMARY_AUTOINCREMENT),
+                new Pair<>(RECORD_TYPE_COLUMN_NAME, INTEGER_NOT_NULL),
+                new Pair<>(COLUMN_NAME_COLUMN_NAME, TEXT_NOT_NULL),
+                new Pair<>(IS_LOCAL_TIME_COLUMN_NAME, INTEGER_NOT_NULL),
+                new Pair<>(BUCKET_SIZE_COLUMN_NAME, INTEGER_NOT_NULL),
+                new Pair<>(BUCKET_START_COLUMN_NAME, INTEGER_NOT_NULL),
+                new Pair<>(APP_INFO_ID_COLUMN_NAME, INTEGER_NOT_NULL),
+                new Pair<>(VALUE_SUM_COLUMN_NAME, REAL_NOT_NULL),
+                new Pair<>(RECORD_COUNT_COLUMN_NAME, INTEGER_NOT_NULL),
+                new Pair<>(ZONE_OFFSET_COLUMN_NAME, INTEGER));
+    }
+
+    /**
+     * Returns the conditions selecting the buckets that exactly cover [start, end): daily buckets
+     * for the whole days in the range, and hourly buckets for the rest of it.
+     */
+    private static WhereClauses getBucketsWhereClauses(long start, long end) {
+        long dayStart = getBucketCeiling(start, DAY_BUCKET_MILLIS);
+        long dayEnd = getBucketFloor(end, DAY_BUCKET_MILLIS);
+        if (dayStart >= dayEnd) {
+            return getBucketRangeWhereClauses(HOUR_BUCKET_MILLIS, start, end);
+        }
+        return new WhereClauses(OR)
+                .addNestedWhereClauses(
+                        getBucketRangeWhereClauses(DAY_BUCKET_MILLIS, dayStart, dayEnd),
+                        getBucketRangeWhereClauses(HOUR_BUCKET_MILLIS, start, dayStart),
+                        getBucketRangeWhereClauses(HOUR_BUCKET_MILLIS, dayEnd, end));
+    }
+
+    private static WhereClauses getBucketRangeWhereClauses(long bucketSize, long start, long end) {
+        if (start >= end) {
+            return new WhereClauses(AND);
+        }
+        return new WhereClauses(AND)
+                .addWhereEqualsClause(BUCKET_SIZE_COLUMN_NAME, bucketSize)
+                .addWhereGreaterThanOrEqualClause(BUCKET_START_COLUMN_NAME, start)
+                .addWhereLessThanClause(BUCKET_START_COLUMN_NAME, end);
+    }
+
+    private static List<String> getCreateTriggerCommands(@NonNull RecordHelper<?> recordHelper) {
+        List<String> columnNames = recordHelper.getRollupColumnNames();
+        if (columnNames.isEmpty()) {
+            return List.of();
+        }
+
+        StringBuilder insertActions = new StringBuilder();
+        StringBuilder deleteActions = new StringBuilder();
+        for (String columnName : columnNames) {
+            for (boolean useLocalTime : new boolean[] {false, true}) {
+                for (long bucketSize : BUCKET_SIZES) {
+                    insertActions.append(
+                            getAddToBucketCommand(
+                                    recordHelper, columnName, useLocalTime, bucketSize));
+                    deleteActions.append(
+                            getRemoveFromBucketCommand(
+                                    recordHelper, columnName, useLocalTime, bucketSize));
+                }
+            }
+        }
+
+        String tableName = recordHelper.getMainTableName();
+        return List.of(
+                getCreateTriggerCommand(tableName, "INSERT", insertActions.toString()),
+                getCreateTriggerCommand(tableName, "DELETE", deleteActions.toString()),
+                getCreateTriggerCommand(
+                        tableName, "UPDATE", deleteActions.toString() + insertActions));
+    }
+
+    private static String getCreateTriggerCommand(
+            String tableName, String operation, String actions) {
+        return "CREATE TRIGGER IF NOT EXISTS "
+                + tableName
+                + "_rollup_"
+                + operation.toLowerCase()
+                + " AFTER "
+                + operation
+                + " ON "
+                + tableName
+                + " BEGIN "
+                + actions
+                + "END";
+    }
+
+    /** Returns a statement adding the new row to its bucket. Rows without an app are skipped. */
+    private static String getAddToBucketCommand(
+            RecordHelper<?> recordHelper,
+            String columnName,
+            boolean useLocalTime,
+            long bucketSize) {
+        return "INSERT INTO "
+                + TABLE_NAME
+                + " ("
+                + String.join(", ", KEY_COLUMNS)
+                + ", "
+                + VALUE_SUM_COLUMN_NAME
+                + ", "
+                + RECORD_COUNT_COLUMN_NAME
+                + ", "
+                + ZONE_OFFSET_COLUMN_NAME
+                + ") SELECT "
+                + String.join(
+                        ", ",
+                        getKeyValues(recordHelper, columnName, useLocalTime, bucketSize, "NEW"))
+                + ", IFNULL(NEW."
+                + columnName
+                + ", 0), 1, NEW."
+                + recordHelper.getZoneOffsetColumnName()
+                + " WHERE NEW."
+                + APP_INFO_ID_COLUMN_NAME
+                + " IS NOT NULL ON CONFLICT ("
+                + String.join(", ", KEY_COLUMNS)
+                + ") DO UPDATE SET "
+                + VALUE_SUM_COLUMN_NAME
+                + " = "
+                + VALUE_SUM_COLUMN_NAME
+                + " + excluded."
+                + VALUE_SUM_COLUMN_NAME
+                + ", "
+                + RECORD_COUNT_COLUMN_NAME
+                + " = "
+                + RECORD_COUNT_COLUMN_NAME
+                + " + 1, "
+                + ZONE_OFFSET_COLUMN_NAME
+                + " = excluded."
+                + ZONE_OFFSET_COLUMN_NAME
+                + "; ";
+    }
+
+    /**
+     * Returns a statement removing the old row from its bucket. Empty buckets are kept and reset to
+     * zero rather than deleted, so that rounding errors don't build up in them.
+     */
+    private static String getRemoveFromBucketCommand(
+            RecordHelper<?> recordHelper,
+            String columnName,
+            boolean useLocalTime,
+            long bucketSize) {
+        List<String> keyValues =
+                getKeyValues(recordHelper, columnName, useLocalTime, bucketSize, "OLD");
+        List<String> keyConditions = new ArrayList<>();
+        for (int i = 0; i < KEY_COLUMNS.size(); i++) {
+            keyConditions.add(KEY_COLUMNS.get(i) + " = " + keyValues.get(i));
+        }
+        return "UPDATE "
+                + TABLE_NAME
+                + " SET "
+                + VALUE_SUM_COLUMN_NAME
+                + " = CASE WHEN "
+                + RECORD_COUNT_COLUMN_NAME
+                + " > 1 THEN "
+                + VALUE_SUM_COLUMN_NAME
+                + " - IFNULL(OLD."
+                + columnName
+                + ", 0) ELSE 0 END, "
+                + RECORD_COUNT_COLUMN_NAME
+                + " = "
+                + RECORD_COUNT_COLUMN_NAME
+                + " - 1 WHERE "
+                + String.join(" AND ", keyConditions)
+                + "; ";
+    }
+
+    /**
+     * Returns the SQL values of {@link #KEY_COLUMNS} for the row referred to by {@code rowName},
+     * which is {@code NEW} or {@code OLD} in a trigger, or the record table in a query.
+     */
+    private static List<String> getKeyValues(
+            RecordHelper<?> recordHelper,
+            String columnName,
+            boolean useLocalTime,
+            long bucketSize,
+            String rowName) {
+        String time = rowName + "." + recordHelper.getStartTimeColumnName();
+        if (useLocalTime) {
+            time =
+                    "("
+                            + time
+                            + " + 1000 * "
+                            + rowName
+                            + "."
+                            + recordHelper.getZoneOffsetColumnName()
+                            + ")";
+        }
+        // SQLite's % keeps the sign of the dividend, so records before the epoch need the extra
+        // modulo to be put in the bucket that contains them.
+        String bucketStart =
+                time + " - ((" + time + " % " + bucketSize + ") + " + bucketSize + ") % "
+                        + bucketSize;
+        return List.of(
+                String.valueOf(recordHelper.getRecordIdentifier()),
+                StorageUtils.getNormalisedString(columnName),
+                useLocalTime ? "1" : "0",
+                String.valueOf(bucketSize),
+                bucketStart,
+                rowName + "." + APP_INFO_ID_COLUMN_NAME);
+    }
+
+    private static List<String> getBackfillCommands(@NonNull RecordHelper<?> recordHelper) {
+        List<String> commands = new ArrayList<>();
+        String tableName = recordHelper.getMainTableName();
+        if (recordHelper.getRollupColumnNames().isEmpty()) {
+            return commands;
+        }
+        // Rollups are recomputed from scratch, so that the upgrade can be applied again.
+        commands.add(
+                "DELETE FROM "
+                        + TABLE_NAME
+                        + " WHERE "
+                        + RECORD_TYPE_COLUMN_NAME
+                        + " = "
+                        + recordHelper.getRecordIdentifier());
+        for (String columnName : recordHelper.getRollupColumnNames()) {
+            for (boolean useLocalTime : new boolean[] {false, true}) {
+                for (long bucketSize : BUCKET_SIZES) {
+                    List<String> keyValues =
+                            getKeyValues(
+                                    recordHelper, columnName, useLocalTime, bucketSize, tableName);
+                    commands.add(
+                            "INSERT INTO "
+                                    + TABLE_NAME
+                                    + " ("
+                                    + String.join(", ", KEY_COLUMNS)
+                                    + ", "
+                                    + VALUE_SUM_COLUMN_NAME
+                                    + ", "
+                                    + RECORD_COUNT_COLUMN_NAME
+                                    + ", "
+                                    + ZONE_OFFSET_COLUMN_NAME
+                                    + ") SELECT "
+                                    + String.join(", ", keyValues)
+                                    + ", SUM(IFNULL("
+                                    + columnName
+                                    + ", 0)), COUNT(*), MAX("
+                                    + recordHelper.getZoneOffsetColumnName()
+                                    + ") FROM "
+                                    + tableName
+                                    + " WHERE "
+                                    + APP_INFO_ID_COLUMN_NAME
+                                    + " IS NOT NULL GROUP BY "
+                                    + keyValues.get(4)
+                                    + ", "
+                                    + APP_INFO_ID_COLUMN_NAME);
+                }
+            }
+        }
+        return commands;
+    }
+}
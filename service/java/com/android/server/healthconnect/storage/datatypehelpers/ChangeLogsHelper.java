@@ -30,20 +30,25 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.getCur
 import static com.android.server.healthconnect.storage.utils.WhereClauses.LogicalOperator.AND;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.health.connect.accesslog.AccessLog.OperationType;
 import android.health.connect.changelog.ChangeLogsRequest;
 import android.health.connect.changelog.ChangeLogsResponse.DeletedLog;
 import android.health.connect.datatypes.RecordTypeIdentifier;
+import android.os.CancellationSignal;
 import android.util.ArrayMap;
 import android.util.Pair;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+import com.android.server.healthconnect.storage.utils.OrderByClause;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
@@ -51,9 +56,11 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -70,6 +77,13 @@ public final class ChangeLogsHelper extends DatabaseHelper {
     private static final String OPERATION_TYPE_COLUMN_NAME = "operation_type";
     private static final String TIME_COLUMN_NAME = "time";
     private static final int NUM_COLS = 5;
+    private static final int COMPACTION_BATCH_SIZE = 1000;
+
+    /**
+     * Maximum number of uuids remembered by a compaction run. Past it, uuids of older change logs
+     * are kept rather than remembered, which only compacts less.
+     */
+    private static final int COMPACTION_MAX_TRACKED_UUIDS = 100_000;
 
     @SuppressWarnings("NullAway.Init") // TODO(b/317029272): fix this suppression
     private static volatile ChangeLogsHelper sChangeLogsHelper;
@@ -154,6 +168,53 @@ public final class ChangeLogsHelper extends DatabaseHelper {
         return TransactionManager.getInitialisedInstance().getLastRowIdFor(TABLE_NAME);
     }
 
+    /**
+     * Returns whether a change log newer than {@code rowId} exists for any of {@code recordTypes},
+     * or for any record type if {@code recordTypes} is null.
+     */
+    public boolean hasChangeLogsAfter(long rowId, @Nullable List<Integer> recordTypes) {
+        WhereClauses whereClause =
+                new WhereClauses(AND).addWhereGreaterThanClause(PRIMARY_COLUMN_NAME, rowId);
+        if (recordTypes != null) {
+            whereClause.addWhereInIntsClause(RECORD_TYPE_COLUMN_NAME, recordTypes);
+        }
+        ReadTableRequest readTableRequest =
+                new ReadTableRequest(TABLE_NAME)
+                        .setColumnNames(List.of(PRIMARY_COLUMN_NAME))
+                        .setWhereClause(whereClause)
+                        .setLimit(1);
+        try (Cursor cursor = TransactionManager.getInitialisedInstance().read(readTableRequest)) {
+            return cursor.moveToFirst();
+        }
+    }
+
+    /**
+     * Removes the uuids of change logs that a later change log of the same record type and app
+     * lists again, and deletes the change logs left without uuids. Returns the number of uuids
+     * removed.
+     *
+     * <p>Row ids are kept, so every token still returns the latest change of each record after it:
+     * a token from before a removed uuid is also from before the later change log listing it.
+     * Change logs are compacted from the latest, in batches that are transactions of their own, and
+     * no further batch is started once {@code cancellationSignal} is canceled.
+     */
+    public int compactChangeLogs(@NonNull CancellationSignal cancellationSignal) {
+        return compactChangeLogs(COMPACTION_BATCH_SIZE, cancellationSignal);
+    }
+
+    @VisibleForTesting
+    int compactChangeLogs(int batchSize, @NonNull CancellationSignal cancellationSignal) {
+        TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
+        ChangeLogsCompaction compaction = new ChangeLogsCompaction(batchSize);
+        while (!cancellationSignal.isCanceled()) {
+            transactionManager.runAsTransaction(compaction::compactNextBatch);
+            if (!compaction.hasMoreChangeLogs()) {
+                break;
+            }
+        }
+        return compaction.getRemovedUuidsCount();
+    }
+
     @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
     private int addChangeLogs(Cursor cursor, Map<Integer, ChangeLogs> changeLogs) {
         @RecordTypeIdentifier.RecordType
@@ -370,6 +431,102 @@ public final class ChangeLogsHelper extends DatabaseHelper {
         }
     }
 
+    /** Compacts change logs from the latest, remembering the uuids of those already read. */
+    private static final class ChangeLogsCompaction {
+        private final int mBatchSize;
+        private final Map<ChangeLogs.RecordTypeAndAppIdPair, Set<UUID>> mLaterUuids =
+                new ArrayMap<>();
+        private int mTrackedUuidsCount;
+        private int mRemovedUuidsCount;
+        private long mNextRowId = Long.MAX_VALUE;
+        private boolean mHasMoreChangeLogs;
+
+        ChangeLogsCompaction(int batchSize) {
+            mBatchSize = batchSize;
+        }
+
+        boolean hasMoreChangeLogs() {
+            return mHasMoreChangeLogs;
+        }
+
+        int getRemovedUuidsCount() {
+            return mRemovedUuidsCount;
+        }
+
+        /** Compacts the next batch of change logs, older than those compacted so far. */
+        void compactNextBatch(@NonNull SQLiteDatabase db) {
+            ReadTableRequest readTableRequest =
+                    new ReadTableRequest(TABLE_NAME)
+                            .setWhereClause(
+                                    new WhereClauses(AND)
+                                            .addWhereLessThanClause(
+                                                    PRIMARY_COLUMN_NAME, mNextRowId))
+                            .setOrderBy(
+                                    new OrderByClause()
+                                            .addOrderByClause(
+                                                    PRIMARY_COLUMN_NAME, /* isAscending= */ false))
+                            .setLimit(mBatchSize);
+
+            // Writes are done once the batch is read, so that they don't move the rows of the
+            // cursor.
+            Map<Long, List<UUID>> rowIdToKeptUuids = new ArrayMap<>();
+            int count = 0;
+            try (Cursor cursor = readTableRequest.getReadStatement().query(db)) {
+                while (cursor.moveToNext()) {
+                    count++;
+                    mNextRowId = getCursorLong(cursor, PRIMARY_COLUMN_NAME);
+                    List<UUID> uuids = StorageUtils.getCursorUUIDList(cursor, UUIDS_COLUMN_NAME);
+                    List<UUID> keptUuids =
+                            getUuidsNotListedLater(
+                                    new ChangeLogs.RecordTypeAndAppIdPair(
+                                            getCursorInt(cursor, RECORD_TYPE_COLUMN_NAME),
+                                            getCursorLong(cursor, APP_ID_COLUMN_NAME)),
+                                    uuids);
+                    if (keptUuids.size() < uuids.size()) {
+                        mRemovedUuidsCount += uuids.size() - keptUuids.size();
+                        rowIdToKeptUuids.put(mNextRowId, keptUuids);
+                    }
+                }
+            }
+            mHasMoreChangeLogs = count == mBatchSize;
+
+            rowIdToKeptUuids.forEach(
+                    (rowId, keptUuids) -> {
+                        String whereClause = PRIMARY_COLUMN_NAME + " = " + rowId;
+                        if (keptUuids.isEmpty()) {
+                            db.delete(TABLE_NAME, whereClause, /* whereArgs= */ null);
+                            return;
+                        }
+                        ContentValues contentValues = new ContentValues();
+                        contentValues.put(
+                                UUIDS_COLUMN_NAME, StorageUtils.getSingleByteArray(keptUuids));
+                        db.update(TABLE_NAME, contentValues, whereClause, /* whereArgs= */ null);
+                    });
+        }
+
+        /**
+         * Returns the uuids of a change log that no later change log of {@code recordTypeAndAppId}
+         * lists, without duplicates.
+         */
+        private List<UUID> getUuidsNotListedLater(
+                ChangeLogs.RecordTypeAndAppIdPair recordTypeAndAppId, List<UUID> uuids) {
+            Set<UUID> laterUuids =
+                    mLaterUuids.computeIfAbsent(recordTypeAndAppId, unused -> new HashSet<>());
+            List<UUID> keptUuids = new ArrayList<>(uuids.size());
+            for (UUID uuid : uuids) {
+                if (laterUuids.contains(uuid)) {
+                    continue;
+                }
+                keptUuids.add(uuid);
+                if (mTrackedUuidsCount < COMPACTION_MAX_TRACKED_UUIDS) {
+                    laterUuids.add(uuid);
+                    mTrackedUuidsCount++;
+                }
+            }
+            return keptUuids;
+        }
+    }
+
     /** A class to represent the token for pagination for the change logs response */
     public static final class ChangeLogsResponse {
         private final Map<Integer, ChangeLogsHelper.ChangeLogs> mChangeLogsMap;
@@ -29,30 +29,46 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.getCur
 import static com.android.server.healthconnect.storage.utils.WhereClauses.LogicalOperator.AND;
 
 import android.annotation.NonNull;
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.health.connect.changelog.ChangeLogTokenRequest;
+import android.text.TextUtils;
 import android.util.Pair;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
-import com.android.server.healthconnect.storage.request.UpsertTableRequest;
-import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 /**
  * A class to interact with the DB table that stores the information about the change log requests
  * i.e. {@code TABLE_NAME}
  *
- * <p>This class returns the row_id of the change_log_request_table as a token, that can later be
- * used to recreate the request.
+ * <p>Tokens encode the request itself and are signed with a per user key, so issuing and reading
+ * them doesn't touch the database. They expire after the change log retention period. Tokens used
+ * to be the row_id of the change_log_request_table, which are still accepted until the row is auto
+ * deleted.
  *
  * @hide
  */
@@ -64,6 +80,11 @@ public final class ChangeLogsRequestHelper extends DatabaseHelper {
     private static final String PACKAGE_NAME_COLUMN_NAME = "package_name";
     private static final String ROW_ID_CHANGE_LOGS_TABLE_COLUMN_NAME = "row_id_change_logs_table";
     private static final String TIME_COLUMN_NAME = "time";
+    private static final String TOKEN_KEY_PREFERENCE = "change_log_token_key";
+    private static final String TOKEN_MAC_ALGORITHM = "HmacSHA256";
+    private static final int TOKEN_KEY_SIZE_BYTES = 32;
+    private static final int TOKEN_MAC_SIZE_BYTES = 16;
+    private static final int TOKEN_VERSION = 2;
 
     @SuppressWarnings("NullAway.Init") // TODO(b/317029272): fix this suppression
     private static volatile ChangeLogsRequestHelper sChangeLogsRequestHelper;
@@ -80,30 +101,23 @@ public final class ChangeLogsRequestHelper extends DatabaseHelper {
         return new CreateTableRequest(TABLE_NAME, getColumnInfo());
     }
 
+    /**
+     * Returns a token for {@code request}, starting after the latest change log. The token is self
+     * contained, so this doesn't write to the database.
+     */
     @NonNull
     public String getToken(@NonNull String packageName, @NonNull ChangeLogTokenRequest request) {
-        ContentValues contentValues = new ContentValues();
-
-        /**
-         * Store package names here as a package name and not as {@link AppInfoHelper.AppInfo#mId}
-         * as ID might not be available right now but might become available when the actual request
-         * for this token comes
-         */
-        contentValues.put(
-                PACKAGES_TO_FILTERS_COLUMN_NAME,
-                String.join(DELIMITER, request.getPackageNamesToFilter()));
-        contentValues.put(
-                RECORD_TYPES_COLUMN_NAME,
-                StorageUtils.flattenIntArray(request.getRecordTypesArray()));
-        contentValues.put(PACKAGE_NAME_COLUMN_NAME, packageName);
-        contentValues.put(
-                ROW_ID_CHANGE_LOGS_TABLE_COLUMN_NAME,
-                ChangeLogsHelper.getInstance().getLatestRowId());
-        contentValues.put(TIME_COLUMN_NAME, Instant.now().toEpochMilli());
-
-        return String.valueOf(
-                TransactionManager.getInitialisedInstance()
-                        .insert(new UpsertTableRequest(TABLE_NAME, contentValues)));
+        List<Integer> recordTypes = new ArrayList<>();
+        for (int recordType : request.getRecordTypesArray()) {
+            recordTypes.add(recordType);
+        }
+        return encodeToken(
+                new TokenRequest(
+                        request.getPackageNamesToFilter(),
+                        recordTypes,
+                        packageName,
+                        ChangeLogsHelper.getInstance().getLatestRowId()),
+                Instant.now());
     }
 
     public DeleteTableRequest getDeleteRequestForAutoDelete() {
@@ -111,9 +125,7 @@ public final class ChangeLogsRequestHelper extends DatabaseHelper {
                 .setTimeFilter(
                         TIME_COLUMN_NAME,
                         Instant.EPOCH.toEpochMilli(),
-                        Instant.now()
-                                .minus(DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS, ChronoUnit.DAYS)
-                                .toEpochMilli());
+                        getOldestValidIssueTime().toEpochMilli());
     }
 
     @Override
@@ -139,13 +151,57 @@ public final class ChangeLogsRequestHelper extends DatabaseHelper {
         return sChangeLogsRequestHelper;
     }
 
+    /**
+     * Returns the request that {@code token} was issued for.
+     *
+     * @throws IllegalArgumentException if the token is invalid, has expired or wasn't issued to
+     *     {@code packageName}.
+     */
     @NonNull
     public static TokenRequest getRequest(@NonNull String packageName, @NonNull String token) {
+        if (TextUtils.isDigitsOnly(token)) {
+            return getLegacyRequest(packageName, token);
+        }
+
+        return decodeToken(packageName, token);
+    }
+
+    @NonNull
+    public static String getNextPageToken(TokenRequest changeLogTokenRequest, long nextRowId) {
+        return getNextPageToken(changeLogTokenRequest, nextRowId, Instant.now());
+    }
+
+    @VisibleForTesting
+    @NonNull
+    static String getNextPageToken(
+            TokenRequest changeLogTokenRequest, long nextRowId, @NonNull Instant issueTime) {
+        return encodeToken(
+                new TokenRequest(
+                        changeLogTokenRequest.getPackageNamesToFilter(),
+                        changeLogTokenRequest.getRecordTypes(),
+                        changeLogTokenRequest.getRequestingPackageName(),
+                        nextRowId),
+                issueTime);
+    }
+
+    /**
+     * Tokens used to be row ids of {@code TABLE_NAME}. They are no longer issued, but are still
+     * accepted for as long as their row exists.
+     */
+    @NonNull
+    private static TokenRequest getLegacyRequest(
+            @NonNull String packageName, @NonNull String token) {
+        long rowId;
+        try {
+            rowId = Long.parseLong(token);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid token");
+        }
         ReadTableRequest readTableRequest =
                 new ReadTableRequest(TABLE_NAME)
                         .setWhereClause(
                                 new WhereClauses(AND)
-                                        .addWhereEqualsClause(PRIMARY_COLUMN_NAME, token)
+                                        .addWhereEqualsClause(PRIMARY_COLUMN_NAME, rowId)
                                         .addWhereEqualsClause(
                                                 PACKAGE_NAME_COLUMN_NAME, packageName));
         TransactionManager transactionManager = TransactionManager.getInitialisedInstance();
@@ -162,22 +218,121 @@ public final class ChangeLogsRequestHelper extends DatabaseHelper {
         }
     }
 
+    /**
+     * Encodes {@code request} as a url safe base64 string of the payload followed by a truncated
+     * HMAC. The requesting package is part of the HMAC input rather than the payload, so a token
+     * is only valid for the package it was issued to.
+     */
     @NonNull
-    public static String getNextPageToken(TokenRequest changeLogTokenRequest, long nextRowId) {
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(
-                PACKAGES_TO_FILTERS_COLUMN_NAME,
-                String.join(DELIMITER, changeLogTokenRequest.getPackageNamesToFilter()));
-        contentValues.put(
-                RECORD_TYPES_COLUMN_NAME,
-                StorageUtils.flattenIntList(changeLogTokenRequest.getRecordTypes()));
-        contentValues.put(
-                PACKAGE_NAME_COLUMN_NAME, changeLogTokenRequest.getRequestingPackageName());
-        contentValues.put(ROW_ID_CHANGE_LOGS_TABLE_COLUMN_NAME, nextRowId);
-
-        return String.valueOf(
-                TransactionManager.getInitialisedInstance()
-                        .insert(new UpsertTableRequest(TABLE_NAME, contentValues)));
+    private static String encodeToken(@NonNull TokenRequest request, @NonNull Instant issueTime) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(TOKEN_VERSION);
+            out.writeLong(issueTime.toEpochMilli());
+            out.writeLong(request.getRowIdChangeLogs());
+            out.writeShort(request.getRecordTypes().size());
+            for (int recordType : request.getRecordTypes()) {
+                out.writeShort(recordType);
+            }
+            out.writeShort(request.getPackageNamesToFilter().size());
+            for (String packageName : request.getPackageNamesToFilter()) {
+                out.writeUTF(packageName);
+            }
+        } catch (IOException e) {
+            // Can't happen when writing to a byte array.
+            throw new UncheckedIOException(e);
+        }
+
+        byte[] payload = bytes.toByteArray();
+        byte[] mac = computeMac(request.getRequestingPackageName(), payload);
+        byte[] token = Arrays.copyOf(payload, payload.length + TOKEN_MAC_SIZE_BYTES);
+        System.arraycopy(mac, 0, token, payload.length, TOKEN_MAC_SIZE_BYTES);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+
+    @NonNull
+    private static TokenRequest decodeToken(@NonNull String packageName, @NonNull String token) {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid token");
+        }
+        if (bytes.length <= TOKEN_MAC_SIZE_BYTES) {
+            throw new IllegalArgumentException("Invalid token");
+        }
+
+        int payloadLength = bytes.length - TOKEN_MAC_SIZE_BYTES;
+        byte[] payload = Arrays.copyOf(bytes, payloadLength);
+        byte[] expectedMac =
+                Arrays.copyOf(computeMac(packageName, payload), TOKEN_MAC_SIZE_BYTES);
+        byte[] mac = Arrays.copyOfRange(bytes, payloadLength, bytes.length);
+        if (!MessageDigest.isEqual(expectedMac, mac)) {
+            throw new IllegalArgumentException("Invalid token");
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if (in.readByte() != TOKEN_VERSION) {
+                throw new IllegalArgumentException("Invalid token");
+            }
+            // Change logs older than the retention period are auto deleted, so reading from an
+            // older token would silently miss changes. Legacy tokens expire the same way, as their
+            // rows are auto deleted.
+            if (in.readLong() < getOldestValidIssueTime().toEpochMilli()) {
+                throw new IllegalArgumentException("Invalid token");
+            }
+            long rowId = in.readLong();
+            int recordTypesCount = in.readUnsignedShort();
+            List<Integer> recordTypes = new ArrayList<>(recordTypesCount);
+            for (int i = 0; i < recordTypesCount; i++) {
+                recordTypes.add((int) in.readShort());
+            }
+            int packageNamesCount = in.readUnsignedShort();
+            List<String> packageNamesToFilter = new ArrayList<>(packageNamesCount);
+            for (int i = 0; i < packageNamesCount; i++) {
+                packageNamesToFilter.add(in.readUTF());
+            }
+            return new TokenRequest(packageNamesToFilter, recordTypes, packageName, rowId);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid token");
+        }
+    }
+
+    @NonNull
+    private static Instant getOldestValidIssueTime() {
+        return Instant.now().minus(DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS, ChronoUnit.DAYS);
+    }
+
+    @NonNull
+    private static byte[] computeMac(@NonNull String packageName, @NonNull byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance(TOKEN_MAC_ALGORITHM);
+            mac.init(getTokenKey());
+            mac.update(packageName.getBytes(StandardCharsets.UTF_8));
+            // Separates the package name from the payload.
+            mac.update((byte) 0);
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to sign change log token", e);
+        }
+    }
+
+    /**
+     * Returns the key tokens are signed with, creating it on first use. The key is stored in the
+     * preferences of the current user's database, so tokens are only valid for the user they were
+     * issued to and are invalidated when all data is cleared.
+     */
+    @NonNull
+    private static synchronized SecretKeySpec getTokenKey() {
+        PreferenceHelper preferenceHelper = PreferenceHelper.getInstance();
+        String encodedKey = preferenceHelper.getPreference(TOKEN_KEY_PREFERENCE);
+        if (encodedKey == null) {
+            byte[] key = new byte[TOKEN_KEY_SIZE_BYTES];
+            new SecureRandom().nextBytes(key);
+            encodedKey = Base64.getEncoder().encodeToString(key);
+            preferenceHelper.insertOrReplacePreference(TOKEN_KEY_PREFERENCE, encodedKey);
+        }
+        return new SecretKeySpec(Base64.getDecoder().decode(encodedKey), TOKEN_MAC_ALGORITHM);
     }
 
     /** A class to represent the request corresponding to a token */
@@ -22,11 +22,7 @@ import static android.health.connect.datatypes.AggregationType.AggregationTypeId
 
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorDouble;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.health.connect.AggregateResult;
 import android.health.connect.datatypes.AggregationType;
@@ -34,16 +30,11 @@ import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.internal.datatypes.CyclingPedalingCadenceRecordInternal;
 import android.util.Pair;
 
-import androidx.annotation.NonNull;
-
 import com.android.server.healthconnect.storage.request.AggregateParams;
-import com.android.server.healthconnect.storage.utils.SqlJoin;
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
 
 /**
  * Helper class for CyclingPedalingCadenceRecord.
@@ -82,35 +73,33 @@ public class CyclingPedalingCadenceRecordHelper
         return SERIES_TABLE_NAME;
     }
 
-    /** Populates the {@code record} with values specific to datatype */
     @Override
-    void populateSpecificValues(
-            @NonNull Cursor seriesTableCursor, CyclingPedalingCadenceRecordInternal record) {
-        HashSet<CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample>
-                cyclingPedalingCadenceRecordSampleSet = new HashSet<>();
-        UUID uuid = getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME);
-        do {
-            cyclingPedalingCadenceRecordSampleSet.add(
-                    new CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample(
-                            getCursorDouble(seriesTableCursor, REVOLUTIONS_PER_MINUTE_COLUMN_NAME),
-                            getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME)));
-        } while (seriesTableCursor.moveToNext()
-                && uuid.equals(getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME)));
-        // In case we hit another record, move the cursor back to read next record in outer
-        // RecordHelper#getInternalRecords loop.
-        seriesTableCursor.moveToPrevious();
-        record.setSamples(cyclingPedalingCadenceRecordSampleSet);
+    String getSampleValueColumnName() {
+        return REVOLUTIONS_PER_MINUTE_COLUMN_NAME;
+    }
+
+    @Override
+    int getSampleValueType() {
+        return SeriesSamplesCodec.VALUE_TYPE_DOUBLE;
+    }
+
+    @Override
+    double getSampleValue(
+            CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample sample) {
+        return sample.getRevolutionsPerMinute();
+    }
+
+    @Override
+    long getSampleEpochMillis(
+            CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample sample) {
+        return sample.getEpochMillis();
     }
 
     @Override
-    void populateSampleTo(
-            ContentValues contentValues,
-            CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample
-                    cyclingPedalingCadenceRecord) {
-        contentValues.put(
-                REVOLUTIONS_PER_MINUTE_COLUMN_NAME,
-                cyclingPedalingCadenceRecord.getRevolutionsPerMinute());
-        contentValues.put(EPOCH_MILLIS_COLUMN_NAME, cyclingPedalingCadenceRecord.getEpochMillis());
+    CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample createSample(
+            double value, long epochMillis) {
+        return new CyclingPedalingCadenceRecordInternal.CyclingPedalingCadenceRecordSample(
+                value, epochMillis);
     }
 
     @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
@@ -137,15 +126,7 @@ public class CyclingPedalingCadenceRecordHelper
             case CYCLING_PEDALING_CADENCE_RECORD_RPM_MIN:
             case CYCLING_PEDALING_CADENCE_RECORD_RPM_MAX:
             case CYCLING_PEDALING_CADENCE_RECORD_RPM_AVG:
-                return new AggregateParams(
-                                SERIES_TABLE_NAME,
-                                Collections.singletonList(REVOLUTIONS_PER_MINUTE_COLUMN_NAME))
-                        .setJoin(
-                                new SqlJoin(
-                                        SERIES_TABLE_NAME,
-                                        TABLE_NAME,
-                                        PARENT_KEY_COLUMN_NAME,
-                                        PRIMARY_COLUMN_NAME));
+                return getSamplesAggregateParams(aggregateRequest);
             default:
                 return null;
         }
@@ -19,6 +19,7 @@ package com.android.server.healthconnect.storage.datatypehelpers;
 import android.annotation.NonNull;
 import android.util.Pair;
 
+import com.android.server.healthconnect.storage.AggregationResultCache;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 
@@ -51,6 +52,7 @@ public abstract class DatabaseHelper {
         for (DatabaseHelper databaseHelper : sDatabaseHelpers) {
             databaseHelper.clearCache();
         }
+        AggregationResultCache.getInstance().clear();
     }
 
     protected void clearData(@NonNull TransactionManager transactionManager) {
@@ -38,6 +38,7 @@ import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -93,6 +94,28 @@ public class DeviceInfoHelper extends DatabaseHelper {
         recordInternal.setDeviceInfoId(rowId);
     }
 
+    /**
+     * Returns the ids of the devices read by {@code cursor} from the device info table of another
+     * database, keyed by their ids in that database. Devices that are missing are inserted.
+     */
+    @NonNull
+    public Map<Long, Long> getOrInsertDeviceInfoIds(@NonNull Cursor cursor) {
+        Map<Long, Long> deviceInfoIds = new HashMap<>();
+        while (cursor.moveToNext()) {
+            DeviceInfo deviceInfo =
+                    new DeviceInfo(
+                            getCursorString(cursor, MANUFACTURER_COLUMN_NAME),
+                            getCursorString(cursor, MODEL_COLUMN_NAME),
+                            getCursorInt(cursor, DEVICE_TYPE_COLUMN_NAME));
+            long rowId = getDeviceInfoMap().getOrDefault(deviceInfo, DEFAULT_LONG);
+            if (rowId == DEFAULT_LONG) {
+                rowId = insertIfNotPresent(deviceInfo);
+            }
+            deviceInfoIds.put(getCursorLong(cursor, RecordHelper.PRIMARY_COLUMN_NAME), rowId);
+        }
+        return deviceInfoIds;
+    }
+
     /**
      * Populates record with manufacturer, model and deviceType values
      *
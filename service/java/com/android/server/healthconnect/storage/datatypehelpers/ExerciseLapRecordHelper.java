@@ -22,18 +22,16 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGE
 import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL_NOT_NULL;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorDouble;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.isNullValue;
 
 import android.annotation.NonNull;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.health.connect.internal.datatypes.ExerciseLapInternal;
-import android.util.ArraySet;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
-import com.android.server.healthconnect.storage.utils.SqlJoin;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -72,17 +70,11 @@ public class ExerciseLapRecordHelper {
         return requests;
     }
 
-    static void populateLapIfRecorded(
-            @NonNull Cursor cursor, ArraySet<ExerciseLapInternal> lapsSet) {
-        if (isNullValue(cursor, EXERCISE_LAPS_START_TIME)) {
-            return;
-        }
-
-        lapsSet.add(
-                new ExerciseLapInternal()
-                        .setStarTime(getCursorLong(cursor, EXERCISE_LAPS_START_TIME))
-                        .setEndTime(getCursorLong(cursor, EXERCISE_LAPS_END_TIME))
-                        .setLength(getCursorDouble(cursor, EXERCISE_LAPS_LENGTH)));
+    static ExerciseLapInternal getLap(@NonNull Cursor cursor) {
+        return new ExerciseLapInternal()
+                .setStarTime(getCursorLong(cursor, EXERCISE_LAPS_START_TIME))
+                .setEndTime(getCursorLong(cursor, EXERCISE_LAPS_END_TIME))
+                .setLength(getCursorDouble(cursor, EXERCISE_LAPS_LENGTH));
     }
 
     static void populateLapTo(ContentValues contentValues, ExerciseLapInternal lap) {
@@ -91,13 +83,9 @@ public class ExerciseLapRecordHelper {
         contentValues.put(EXERCISE_LAPS_LENGTH, lap.getLength());
     }
 
-    static SqlJoin getJoinReadRequest(String parentTableName) {
-        return new SqlJoin(
-                        parentTableName,
-                        EXERCISE_LAPS_RECORD_TABLE_NAME,
-                        PRIMARY_COLUMN_NAME,
-                        PARENT_KEY_COLUMN_NAME)
-                .setJoinType(SqlJoin.SQL_JOIN_LEFT);
+    static ReadTableRequest getReadRequest() {
+        return new ReadTableRequest(EXERCISE_LAPS_RECORD_TABLE_NAME)
+                .setParentKeyColumnName(PARENT_KEY_COLUMN_NAME);
     }
 
     private static List<Pair<String, String>> getLapsTableColumnInfo() {
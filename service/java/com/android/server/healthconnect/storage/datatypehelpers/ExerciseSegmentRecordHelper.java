@@ -23,17 +23,16 @@ import static com.android.server.healthconnect.storage.datatypehelpers.SeriesRec
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER_NOT_NULL;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorInt;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.isNullValue;
 import static com.android.server.healthconnect.storage.utils.WhereClauses.LogicalOperator.AND;
 
 import android.annotation.NonNull;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.health.connect.internal.datatypes.ExerciseSegmentInternal;
-import android.util.ArraySet;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 import com.android.server.healthconnect.storage.utils.SqlJoin;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
@@ -78,19 +77,12 @@ public class ExerciseSegmentRecordHelper {
         return requests;
     }
 
-    static void updateSetWithRecordedSegment(
-            @NonNull Cursor cursor, ArraySet<ExerciseSegmentInternal> segmentsSet) {
-        if (isNullValue(cursor, EXERCISE_SEGMENT_START_TIME)) {
-            return;
-        }
-
-        segmentsSet.add(
-                new ExerciseSegmentInternal()
-                        .setStarTime(getCursorLong(cursor, EXERCISE_SEGMENT_START_TIME))
-                        .setEndTime(getCursorLong(cursor, EXERCISE_SEGMENT_END_TIME))
-                        .setSegmentType(getCursorInt(cursor, EXERCISE_SEGMENT_TYPE))
-                        .setRepetitionsCount(
-                                getCursorInt(cursor, EXERCISE_SEGMENT_REPETITIONS_COUNT)));
+    static ExerciseSegmentInternal getSegment(@NonNull Cursor cursor) {
+        return new ExerciseSegmentInternal()
+                .setStarTime(getCursorLong(cursor, EXERCISE_SEGMENT_START_TIME))
+                .setEndTime(getCursorLong(cursor, EXERCISE_SEGMENT_END_TIME))
+                .setSegmentType(getCursorInt(cursor, EXERCISE_SEGMENT_TYPE))
+                .setRepetitionsCount(getCursorInt(cursor, EXERCISE_SEGMENT_REPETITIONS_COUNT));
     }
 
     static void populateSegmentTo(ContentValues contentValues, ExerciseSegmentInternal segment) {
@@ -100,6 +92,11 @@ public class ExerciseSegmentRecordHelper {
         contentValues.put(EXERCISE_SEGMENT_REPETITIONS_COUNT, segment.getRepetitionsCount());
     }
 
+    static ReadTableRequest getReadRequest() {
+        return new ReadTableRequest(EXERCISE_SEGMENT_RECORD_TABLE_NAME)
+                .setParentKeyColumnName(PARENT_KEY_COLUMN_NAME);
+    }
+
     static SqlJoin getJoinReadRequest(String parentTableName) {
         return new SqlJoin(
                         parentTableName,
@@ -33,7 +33,6 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGE
 import static com.android.server.healthconnect.storage.utils.StorageUtils.TEXT_NULL;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorInt;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorString;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getIntegerAndConvertToBoolean;
 import static com.android.server.healthconnect.storage.utils.WhereClauses.LogicalOperator.AND;
 
@@ -49,7 +48,6 @@ import android.health.connect.internal.datatypes.ExerciseSegmentInternal;
 import android.health.connect.internal.datatypes.ExerciseSessionRecordInternal;
 import android.health.connect.internal.datatypes.RecordInternal;
 import android.util.ArrayMap;
-import android.util.ArraySet;
 import android.util.Pair;
 
 import androidx.annotation.Nullable;
@@ -61,8 +59,6 @@ import com.android.server.healthconnect.storage.request.AggregateParams;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
-import com.android.server.healthconnect.storage.utils.SqlJoin;
-import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.util.ArrayList;
@@ -110,33 +106,12 @@ public final class ExerciseSessionRecordHelper
     @Override
     void populateSpecificRecordValue(
             @NonNull Cursor cursor, @NonNull ExerciseSessionRecordInternal exerciseSessionRecord) {
-        UUID uuid = getCursorUUID(cursor, UUID_COLUMN_NAME);
         exerciseSessionRecord.setNotes(getCursorString(cursor, NOTES_COLUMN_NAME));
         exerciseSessionRecord.setExerciseType(getCursorInt(cursor, EXERCISE_TYPE_COLUMN_NAME));
         exerciseSessionRecord.setTitle(getCursorString(cursor, TITLE_COLUMN_NAME));
         exerciseSessionRecord.setHasRoute(
                 isExerciseRouteFeatureEnabled()
                         && getIntegerAndConvertToBoolean(cursor, HAS_ROUTE_COLUMN_NAME));
-
-        // The table might contain duplicates because of 2 left joins, use sets to remove them.
-        ArraySet<ExerciseLapInternal> lapsSet = new ArraySet<>();
-        ArraySet<ExerciseSegmentInternal> segmentsSet = new ArraySet<>();
-        do {
-            // Populate lap and segments from each row.
-            ExerciseLapRecordHelper.populateLapIfRecorded(cursor, lapsSet);
-            ExerciseSegmentRecordHelper.updateSetWithRecordedSegment(cursor, segmentsSet);
-        } while (cursor.moveToNext() && uuid.equals(getCursorUUID(cursor, UUID_COLUMN_NAME)));
-        // In case we hit another record, move the cursor back to read next record in outer
-        // RecordHelper#getInternalRecords loop.
-        cursor.moveToPrevious();
-
-        if (!lapsSet.isEmpty()) {
-            exerciseSessionRecord.setExerciseLaps(lapsSet.stream().toList());
-        }
-
-        if (!segmentsSet.isEmpty()) {
-            exerciseSessionRecord.setExerciseSegments(segmentsSet.stream().toList());
-        }
     }
 
     @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
@@ -241,12 +216,6 @@ public final class ExerciseSessionRecordHelper
                 new Pair<>(HAS_ROUTE_COLUMN_NAME, INTEGER));
     }
 
-    @Override
-    SqlJoin getJoinForReadRequest() {
-        return ExerciseLapRecordHelper.getJoinReadRequest(getMainTableName())
-                .attachJoin(ExerciseSegmentRecordHelper.getJoinReadRequest(getMainTableName()));
-    }
-
     @Override
     List<ReadTableRequest> getExtraDataReadRequests(
             ReadRecordsRequestParcel request,
@@ -254,20 +223,7 @@ public final class ExerciseSessionRecordHelper
             long startDateAccessMillis,
             Set<String> grantedExtraReadPermissions,
             boolean isInForeground) {
-        int routeAccessType =
-                getExerciseRouteReadAccessType(
-                        packageName, grantedExtraReadPermissions, isInForeground);
-
-        if (routeAccessType == ROUTE_READ_ACCESS_TYPE_NONE) {
-            return Collections.emptyList();
-        }
-
-        boolean enforceSelfRead = routeAccessType == ROUTE_READ_ACCESS_TYPE_OWN;
-
-        WhereClauses sessionsWithAccessibleRouteClause =
-                getReadTableWhereClause(
-                        request, packageName, enforceSelfRead, startDateAccessMillis);
-        return List.of(getRouteReadRequest(sessionsWithAccessibleRouteClause));
+        return getChildTableReadRequests(packageName, grantedExtraReadPermissions, isInForeground);
     }
 
     @Override
@@ -326,27 +282,7 @@ public final class ExerciseSessionRecordHelper
             long startDateAccess,
             Set<String> grantedExtraReadPermissions,
             boolean isInForeground) {
-        int routeAccessType =
-                getExerciseRouteReadAccessType(
-                        packageName, grantedExtraReadPermissions, isInForeground);
-
-        if (routeAccessType == ROUTE_READ_ACCESS_TYPE_NONE) {
-            return Collections.emptyList();
-        }
-
-        WhereClauses sessionsWithAccessibleRouteClause =
-                new WhereClauses(AND)
-                        .addWhereInClauseWithoutQuotes(
-                                UUID_COLUMN_NAME, StorageUtils.getListOfHexString(uuids))
-                        .addWhereLaterThanTimeClause(getStartTimeColumnName(), startDateAccess);
-
-        if (routeAccessType == ROUTE_READ_ACCESS_TYPE_OWN) {
-            long appId = AppInfoHelper.getInstance().getAppInfoId(packageName);
-            sessionsWithAccessibleRouteClause.addWhereInLongsClause(
-                    APP_INFO_ID_COLUMN_NAME, List.of(appId));
-        }
-
-        return List.of(getRouteReadRequest(sessionsWithAccessibleRouteClause));
+        return getChildTableReadRequests(packageName, grantedExtraReadPermissions, isInForeground);
     }
 
     @Override
@@ -354,18 +290,37 @@ public final class ExerciseSessionRecordHelper
             List<ExerciseSessionRecordInternal> internalRecords,
             Cursor cursorExtraData,
             String tableName) {
-        // Collect rowId to Record mapping to understand which record update with route location.
-        Map<Integer, Integer> mapping = new HashMap<>(internalRecords.size());
-        for (int i = 0; i < internalRecords.size(); i++) {
-            mapping.put(internalRecords.get(i).getRowId(), i);
+        // Collect rowId to Record mapping to understand which record update with the child rows.
+        Map<Integer, ExerciseSessionRecordInternal> mapping = new HashMap<>(internalRecords.size());
+        for (ExerciseSessionRecordInternal record : internalRecords) {
+            mapping.put(record.getRowId(), record);
+        }
+
+        if (tableName.equals(EXERCISE_ROUTE_RECORD_TABLE_NAME)) {
+            while (cursorExtraData.moveToNext()) {
+                mapping.get(getCursorInt(cursorExtraData, PARENT_KEY_COLUMN_NAME))
+                        .addRouteLocation(
+                                ExerciseRouteRecordHelper.populateLocation(cursorExtraData));
+            }
+            return;
         }
 
+        Map<Integer, List<ExerciseLapInternal>> laps = new HashMap<>();
+        Map<Integer, List<ExerciseSegmentInternal>> segments = new HashMap<>();
         while (cursorExtraData.moveToNext()) {
-            ExerciseSessionRecordInternal record =
-                    internalRecords.get(
-                            mapping.get(getCursorInt(cursorExtraData, PARENT_KEY_COLUMN_NAME)));
-            record.addRouteLocation(ExerciseRouteRecordHelper.populateLocation(cursorExtraData));
+            int rowId = getCursorInt(cursorExtraData, PARENT_KEY_COLUMN_NAME);
+            if (tableName.equals(EXERCISE_LAPS_RECORD_TABLE_NAME)) {
+                laps.computeIfAbsent(rowId, key -> new ArrayList<>())
+                        .add(ExerciseLapRecordHelper.getLap(cursorExtraData));
+            } else if (tableName.equals(EXERCISE_SEGMENT_RECORD_TABLE_NAME)) {
+                segments.computeIfAbsent(rowId, key -> new ArrayList<>())
+                        .add(ExerciseSegmentRecordHelper.getSegment(cursorExtraData));
+            }
         }
+        laps.forEach((rowId, sessionLaps) -> mapping.get(rowId).setExerciseLaps(sessionLaps));
+        segments.forEach(
+                (rowId, sessionSegments) ->
+                        mapping.get(rowId).setExerciseSegments(sessionSegments));
     }
 
     private boolean isExerciseRouteFeatureEnabled() {
@@ -423,17 +378,46 @@ public final class ExerciseSessionRecordHelper
         return numberOfRecordsWithExerciseRoutes;
     }
 
-    private ReadTableRequest getRouteReadRequest(WhereClauses clauseToFilterSessionIds) {
-        ReadTableRequest routeReadRequest = new ReadTableRequest(EXERCISE_ROUTE_RECORD_TABLE_NAME);
+    /**
+     * Returns requests reading the laps, segments and, if the caller can read them, the routes of
+     * the sessions being read. Each child table is read once for the whole page, rather than joined
+     * to the sessions, which would repeat the session columns for every child row.
+     */
+    private List<ReadTableRequest> getChildTableReadRequests(
+            String packageName, Set<String> grantedExtraReadPermissions, boolean isInForeground) {
+        List<ReadTableRequest> childTableReadRequests = new ArrayList<>();
+        childTableReadRequests.add(ExerciseLapRecordHelper.getReadRequest());
+        childTableReadRequests.add(ExerciseSegmentRecordHelper.getReadRequest());
 
-        ReadTableRequest sessionsIdsRequest = new ReadTableRequest(getMainTableName());
-        sessionsIdsRequest.setColumnNames(List.of(PRIMARY_COLUMN_NAME));
-        sessionsIdsRequest.setWhereClause(clauseToFilterSessionIds);
+        int routeAccessType =
+                getExerciseRouteReadAccessType(
+                        packageName, grantedExtraReadPermissions, isInForeground);
+        if (routeAccessType != ROUTE_READ_ACCESS_TYPE_NONE) {
+            childTableReadRequests.add(getRouteReadRequest(packageName, routeAccessType));
+        }
+        return childTableReadRequests;
+    }
+
+    private ReadTableRequest getRouteReadRequest(String packageName, int routeAccessType) {
+        ReadTableRequest routeReadRequest =
+                new ReadTableRequest(EXERCISE_ROUTE_RECORD_TABLE_NAME)
+                        .setParentKeyColumnName(PARENT_KEY_COLUMN_NAME);
+        if (routeAccessType != ROUTE_READ_ACCESS_TYPE_OWN) {
+            return routeReadRequest;
+        }
+
+        long appId = AppInfoHelper.getInstance().getAppInfoId(packageName);
+        ReadTableRequest ownSessionsIdsRequest =
+                new ReadTableRequest(getMainTableName())
+                        .setColumnNames(List.of(PRIMARY_COLUMN_NAME))
+                        .setWhereClause(
+                                new WhereClauses(AND)
+                                        .addWhereInLongsClause(
+                                                APP_INFO_ID_COLUMN_NAME, List.of(appId)));
 
         WhereClauses inClause = new WhereClauses(AND);
-        inClause.addWhereInSQLRequestClause(PARENT_KEY_COLUMN_NAME, sessionsIdsRequest);
-        routeReadRequest.setWhereClause(inClause);
-        return routeReadRequest;
+        inClause.addWhereInSQLRequestClause(PARENT_KEY_COLUMN_NAME, ownSessionsIdsRequest);
+        return routeReadRequest.setWhereClause(inClause);
     }
 
     private int getExerciseRouteReadAccessType(
@@ -488,7 +488,7 @@ public class HealthDataCategoryPriorityHelper extends DatabaseHelper {
         if (newPriorityList.isEmpty()) {
             safelyUpdateDBAndUpdateCache(
                     new DeleteTableRequest(TABLE_NAME)
-                            .setId(HEALTH_DATA_CATEGORY_COLUMN_NAME, String.valueOf(dataCategory)),
+                            .setId(HEALTH_DATA_CATEGORY_COLUMN_NAME, dataCategory),
                     dataCategory);
             return;
         }
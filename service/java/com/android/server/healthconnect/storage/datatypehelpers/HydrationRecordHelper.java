@@ -86,6 +86,12 @@ public final class HydrationRecordHelper extends IntervalRecordHelper<HydrationR
         }
     }
 
+    @Override
+    @NonNull
+    List<String> getRollupColumnNames() {
+        return Collections.singletonList(VOLUME_COLUMN_NAME);
+    }
+
     @Override
     void populateSpecificContentValues(
             @NonNull ContentValues contentValues,
@@ -425,6 +425,13 @@ public final class NutritionRecordHelper extends IntervalRecordHelper<NutritionR
         return new AggregateParams(NUTRITION_RECORD_TABLE_NAME, columnNames);
     }
 
+    @Override
+    @NonNull
+    List<String> getRollupColumnNames() {
+        // Energy is the nutrient that is summed over long ranges the most often.
+        return Collections.singletonList(ENERGY_COLUMN_NAME);
+    }
+
     @Override
     void populateSpecificRecordValue(
             @NonNull Cursor cursor, @NonNull NutritionRecordInternal nutritionRecord) {
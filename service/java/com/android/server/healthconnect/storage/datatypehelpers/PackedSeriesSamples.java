@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.AggregationType.AVG;
+import static android.health.connect.datatypes.AggregationType.COUNT;
+import static android.health.connect.datatypes.AggregationType.MAX;
+import static android.health.connect.datatypes.AggregationType.MIN;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.PRIMARY_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.SeriesRecordHelper.PARENT_KEY_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.SeriesRecordHelper.SAMPLE_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.BLOB;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorBlob;
+
+import android.annotation.NonNull;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.health.connect.datatypes.AggregationType;
+import android.util.Pair;
+
+import com.android.server.healthconnect.storage.request.AggregateParams;
+import com.android.server.healthconnect.storage.request.AlterTableRequest;
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
+import com.android.server.healthconnect.storage.utils.WhereClauses;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Stores the samples of a series record in its main table row, encoded with {@link
+ * SeriesSamplesCodec}, next to per record summaries that aggregations run on.
+ *
+ * <p>Aggregations filter and group series records by the record start time, so per record min,
+ * max, sum and count give the same results as aggregating the individual samples.
+ *
+ * @hide
+ */
+final class PackedSeriesSamples {
+    static final String SAMPLES_COLUMN_NAME = "samples";
+    static final String SAMPLE_COUNT_COLUMN_NAME = "sample_count";
+    static final String SAMPLE_MIN_COLUMN_NAME = "sample_min";
+    static final String SAMPLE_MAX_COLUMN_NAME = "sample_max";
+    static final String SAMPLE_SUM_COLUMN_NAME = "sample_sum";
+
+    private static final int INITIAL_SAMPLES_CAPACITY = 64;
+
+    private PackedSeriesSamples() {}
+
+    /** Creates a sample from its decoded value and time. */
+    interface SampleFactory<S> {
+        S create(double value, long epochMillis);
+    }
+
+    /**
+     * Returns the columns to add to the main table.
+     *
+     * <p>NOTE: Existing tables get these columns via {@link #applyUpgrade}.
+     */
+    @NonNull
+    static List<Pair<String, String>> getColumnInfo() {
+        return List.of(
+                new Pair<>(SAMPLES_COLUMN_NAME, BLOB),
+                new Pair<>(SAMPLE_COUNT_COLUMN_NAME, INTEGER),
+                new Pair<>(SAMPLE_MIN_COLUMN_NAME, REAL),
+                new Pair<>(SAMPLE_MAX_COLUMN_NAME, REAL),
+                new Pair<>(SAMPLE_SUM_COLUMN_NAME, REAL));
+    }
+
+    /** Encodes {@code samples} and their summaries into {@code contentValues}. */
+    static <S> void populateTo(
+            @NonNull ContentValues contentValues,
+            @NonNull Collection<? extends S> samples,
+            @NonNull ToLongFunction<S> epochMillisGetter,
+            @NonNull ToDoubleFunction<S> valueGetter,
+            @SeriesSamplesCodec.ValueType int valueType) {
+        List<S> sortedSamples = new ArrayList<>(samples);
+        sortedSamples.sort(Comparator.comparingLong(epochMillisGetter));
+        int count = sortedSamples.size();
+        long[] epochMillis = new long[count];
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            epochMillis[i] = epochMillisGetter.applyAsLong(sortedSamples.get(i));
+            values[i] = valueGetter.applyAsDouble(sortedSamples.get(i));
+        }
+        populateTo(contentValues, epochMillis, values, count, valueType);
+    }
+
+    /** Decodes the samples of the record at the current position of {@code cursor}. */
+    @NonNull
+    static <S> Set<S> read(@NonNull Cursor cursor, @NonNull SampleFactory<S> sampleFactory) {
+        byte[] blob = getCursorBlob(cursor, SAMPLES_COLUMN_NAME);
+        if (blob == null) {
+            return new HashSet<>();
+        }
+        SeriesSamplesCodec.Samples samples = SeriesSamplesCodec.decode(blob);
+        Set<S> result = new HashSet<>(samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            result.add(sampleFactory.create(samples.getValue(i), samples.getEpochMillis(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns params aggregating the summaries of the main table. The result is returned under
+     * {@code valueColumnName}, so it can be read the same way as a per sample aggregate.
+     */
+    @NonNull
+    static AggregateParams getAggregateParams(
+            @NonNull String mainTableName,
+            @NonNull String valueColumnName,
+            @NonNull AggregationType<?> aggregationType) {
+        return new AggregateParams(mainTableName, List.of(valueColumnName))
+                .setAggregateExpression(
+                        getAggregateExpression(aggregationType.getAggregateOperationType()));
+    }
+
+    /** Skips records without samples, which have no per sample value to aggregate. */
+    static void appendAggregateWhereClauses(@NonNull WhereClauses whereClauses) {
+        whereClauses.addWhereGreaterThanClause(SAMPLE_COUNT_COLUMN_NAME, 0);
+    }
+
+    /**
+     * Adds the packed columns to {@code mainTableName} and moves all samples from {@code
+     * seriesTableName} into them. Can be applied multiple times.
+     *
+     * <p>Records are updated in row id order through one compiled statement, so that repacking a
+     * large history doesn't compile a statement per record while the database is being opened.
+     */
+    static void applyUpgrade(
+            @NonNull SQLiteDatabase db,
+            @NonNull String mainTableName,
+            @NonNull String seriesTableName,
+            @NonNull String valueColumnName,
+            @SeriesSamplesCodec.ValueType int valueType) {
+        for (Pair<String, String> columnInfo : getColumnInfo()) {
+            try {
+                db.execSQL(
+                        new AlterTableRequest(mainTableName, List.of(columnInfo))
+                                .getAlterTableAddColumnsCommand());
+            } catch (SQLException sqlException) {
+                // Ignore this means the field exists. This is possible via module rollback
+                // followed by an upgrade
+            }
+        }
+
+        String readSamplesCommand =
+                "SELECT "
+                        + PARENT_KEY_COLUMN_NAME
+                        + ", "
+                        + SAMPLE_TIME_COLUMN_NAME
+                        + ", "
+                        + valueColumnName
+                        + " FROM "
+                        + seriesTableName
+                        + " ORDER BY "
+                        + PARENT_KEY_COLUMN_NAME
+                        + ", "
+                        + SAMPLE_TIME_COLUMN_NAME;
+        String updateRecordCommand =
+                "UPDATE "
+                        + mainTableName
+                        + " SET "
+                        + SAMPLES_COLUMN_NAME
+                        + " = ?, "
+                        + SAMPLE_COUNT_COLUMN_NAME
+                        + " = ?, "
+                        + SAMPLE_MIN_COLUMN_NAME
+                        + " = ?, "
+                        + SAMPLE_MAX_COLUMN_NAME
+                        + " = ?, "
+                        + SAMPLE_SUM_COLUMN_NAME
+                        + " = ? WHERE "
+                        + PRIMARY_COLUMN_NAME
+                        + " = ?";
+        try (Cursor cursor = db.rawQuery(readSamplesCommand, null);
+                SQLiteStatement updateStatement = db.compileStatement(updateRecordCommand)) {
+            long parentKey = 0;
+            int count = 0;
+            long[] epochMillis = new long[INITIAL_SAMPLES_CAPACITY];
+            double[] values = new double[INITIAL_SAMPLES_CAPACITY];
+            while (cursor.moveToNext()) {
+                long rowParentKey = cursor.getLong(0);
+                if (count > 0 && rowParentKey != parentKey) {
+                    updateRecord(updateStatement, parentKey, epochMillis, values, count, valueType);
+                    count = 0;
+                }
+                if (count == epochMillis.length) {
+                    epochMillis = Arrays.copyOf(epochMillis, count * 2);
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                parentKey = rowParentKey;
+                epochMillis[count] = cursor.getLong(1);
+                values[count] = cursor.getDouble(2);
+                count++;
+            }
+            if (count > 0) {
+                updateRecord(updateStatement, parentKey, epochMillis, values, count, valueType);
+            }
+        }
+        db.execSQL("DELETE FROM " + seriesTableName);
+    }
+
+    /** Binds the samples of a record with at least one sample and runs {@code updateStatement}. */
+    private static void updateRecord(
+            @NonNull SQLiteStatement updateStatement,
+            long rowId,
+            @NonNull long[] epochMillis,
+            @NonNull double[] values,
+            int count,
+            @SeriesSamplesCodec.ValueType int valueType) {
+        double min = values[0];
+        double max = values[0];
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+            sum += values[i];
+        }
+        updateStatement.bindBlob(
+                1,
+                SeriesSamplesCodec.encode(
+                        Arrays.copyOf(epochMillis, count), Arrays.copyOf(values, count), valueType));
+        updateStatement.bindLong(2, count);
+        updateStatement.bindDouble(3, min);
+        updateStatement.bindDouble(4, max);
+        updateStatement.bindDouble(5, sum);
+        updateStatement.bindLong(6, rowId);
+        updateStatement.executeUpdateDelete();
+    }
+
+    private static void populateTo(
+            @NonNull ContentValues contentValues,
+            @NonNull long[] epochMillis,
+            @NonNull double[] values,
+            int count,
+            @SeriesSamplesCodec.ValueType int valueType) {
+        if (epochMillis.length != count) {
+            epochMillis = Arrays.copyOf(epochMillis, count);
+            values = Arrays.copyOf(values, count);
+        }
+        contentValues.put(
+                SAMPLES_COLUMN_NAME, SeriesSamplesCodec.encode(epochMillis, values, valueType));
+        contentValues.put(SAMPLE_COUNT_COLUMN_NAME, count);
+        if (count == 0) {
+            contentValues.putNull(SAMPLE_MIN_COLUMN_NAME);
+            contentValues.putNull(SAMPLE_MAX_COLUMN_NAME);
+            contentValues.put(SAMPLE_SUM_COLUMN_NAME, 0.0);
+            return;
+        }
+        double min = values[0];
+        double max = values[0];
+        double sum = 0;
+        for (double value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+        contentValues.put(SAMPLE_MIN_COLUMN_NAME, min);
+        contentValues.put(SAMPLE_MAX_COLUMN_NAME, max);
+        contentValues.put(SAMPLE_SUM_COLUMN_NAME, sum);
+    }
+
+    @NonNull
+    private static String getAggregateExpression(
+            @AggregationType.AggregateOperationType int operationType) {
+        return switch (operationType) {
+            case MIN -> "MIN(" + SAMPLE_MIN_COLUMN_NAME + ")";
+            case MAX -> "MAX(" + SAMPLE_MAX_COLUMN_NAME + ")";
+            case AVG -> "SUM("
+                    + SAMPLE_SUM_COLUMN_NAME
+                    + ") / SUM("
+                    + SAMPLE_COUNT_COLUMN_NAME
+                    + ")";
+            case COUNT -> "SUM(" + SAMPLE_COUNT_COLUMN_NAME + ")";
+            default -> throw new IllegalArgumentException(
+                    "Unsupported aggregation on series samples: " + operationType);
+        };
+    }
+}
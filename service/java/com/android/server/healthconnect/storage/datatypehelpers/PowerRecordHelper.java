@@ -22,12 +22,7 @@ import static android.health.connect.datatypes.AggregationType.AggregationTypeId
 
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorDouble;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 
-import android.annotation.NonNull;
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.health.connect.AggregateResult;
 import android.health.connect.datatypes.AggregationType;
@@ -36,13 +31,10 @@ import android.health.connect.internal.datatypes.PowerRecordInternal;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.request.AggregateParams;
-import com.android.server.healthconnect.storage.utils.SqlJoin;
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
 
 /**
  * Helper class for PowerRecord.
@@ -90,14 +82,7 @@ public class PowerRecordHelper
             case POWER_RECORD_POWER_MIN:
             case POWER_RECORD_POWER_MAX:
             case POWER_RECORD_POWER_AVG:
-                return new AggregateParams(
-                                SERIES_TABLE_NAME, Collections.singletonList(POWER_COLUMN_NAME))
-                        .setJoin(
-                                new SqlJoin(
-                                        SERIES_TABLE_NAME,
-                                        TABLE_NAME,
-                                        PARENT_KEY_COLUMN_NAME,
-                                        PRIMARY_COLUMN_NAME));
+                return getSamplesAggregateParams(aggregateRequest);
             default:
                 return null;
         }
@@ -115,28 +100,29 @@ public class PowerRecordHelper
     String getSeriesDataTableName() {
         return SERIES_TABLE_NAME;
     }
-    /** Populates the {@code record} with values specific to datatype */
+
+    @Override
+    String getSampleValueColumnName() {
+        return POWER_COLUMN_NAME;
+    }
+
+    @Override
+    int getSampleValueType() {
+        return SeriesSamplesCodec.VALUE_TYPE_DOUBLE;
+    }
+
+    @Override
+    double getSampleValue(PowerRecordInternal.PowerRecordSample sample) {
+        return sample.getPower();
+    }
+
     @Override
-    void populateSpecificValues(@NonNull Cursor seriesTableCursor, PowerRecordInternal record) {
-        HashSet<PowerRecordInternal.PowerRecordSample> powerRecordSampleSet = new HashSet<>();
-        UUID uuid = getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME);
-        do {
-            powerRecordSampleSet.add(
-                    new PowerRecordInternal.PowerRecordSample(
-                            getCursorDouble(seriesTableCursor, POWER_COLUMN_NAME),
-                            getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME)));
-        } while (seriesTableCursor.moveToNext()
-                && uuid.equals(getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME)));
-        // In case we hit another record, move the cursor back to read next record in outer
-        // RecordHelper#getInternalRecords loop.
-        seriesTableCursor.moveToPrevious();
-        record.setSamples(powerRecordSampleSet);
+    long getSampleEpochMillis(PowerRecordInternal.PowerRecordSample sample) {
+        return sample.getEpochMillis();
     }
 
     @Override
-    void populateSampleTo(
-            ContentValues contentValues, PowerRecordInternal.PowerRecordSample powerRecord) {
-        contentValues.put(POWER_COLUMN_NAME, powerRecord.getPower());
-        contentValues.put(EPOCH_MILLIS_COLUMN_NAME, powerRecord.getEpochMillis());
+    PowerRecordInternal.PowerRecordSample createSample(double value, long epochMillis) {
+        return new PowerRecordInternal.PowerRecordSample(value, epochMillis);
     }
 }
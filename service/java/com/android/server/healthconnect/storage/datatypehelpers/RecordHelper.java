@@ -21,6 +21,7 @@ import static android.health.connect.Constants.DEFAULT_LONG;
 import static android.health.connect.Constants.MAXIMUM_ALLOWED_CURSOR_COUNT;
 import static android.health.connect.Constants.MAXIMUM_PAGE_SIZE;
 import static android.health.connect.PageTokenWrapper.EMPTY_PAGE_TOKEN;
+import static android.health.connect.datatypes.AggregationType.SUM;
 
 import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.END_TIME_COLUMN_NAME;
 import static com.android.server.healthconnect.storage.request.ReadTransactionRequest.TYPE_NOT_PRESENT_PACKAGE_NAME;
@@ -64,11 +65,12 @@ import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 import com.android.server.healthconnect.storage.utils.OrderByClause;
 import com.android.server.healthconnect.storage.utils.SqlJoin;
+import com.android.server.healthconnect.storage.utils.SqlStatement;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
-import java.lang.reflect.InvocationTargetException;
 import java.time.Instant;
+import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -78,6 +80,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 /**
  * Parent class for all the helper classes for all the records
@@ -106,19 +109,46 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
         mRecordIdentifier = recordIdentifier;
     }
 
-    public DeleteTableRequest getDeleteRequestForAutoDelete(int recordAutoDeletePeriodInDays) {
-        return new DeleteTableRequest(getMainTableName())
-                .setTimeFilter(
-                        getStartTimeColumnName(),
-                        Instant.EPOCH.toEpochMilli(),
-                        Instant.now()
-                                .minus(recordAutoDeletePeriodInDays, ChronoUnit.DAYS)
-                                .toEpochMilli());
+    /**
+     * Returns a statement deleting up to {@code limit} of the oldest records that started before
+     * the auto delete period, along with their child rows.
+     *
+     * <p>Auto delete runs it until it deletes less than {@code limit} records, so that each
+     * transaction only holds the write lock for a bounded time.
+     */
+    @NonNull
+    public SqlStatement getDeleteStatementForAutoDelete(
+            int recordAutoDeletePeriodInDays, int limit) {
+        long endTime =
+                Instant.now().minus(recordAutoDeletePeriodInDays, ChronoUnit.DAYS).toEpochMilli();
+        return new SqlStatement(
+                "DELETE FROM "
+                        + getMainTableName()
+                        + " WHERE "
+                        + PRIMARY_COLUMN_NAME
+                        + " IN (SELECT "
+                        + PRIMARY_COLUMN_NAME
+                        + " FROM "
+                        + getMainTableName()
+                        + " WHERE "
+                        + getStartTimeColumnName()
+                        + " BETWEEN ? AND ? ORDER BY "
+                        + getStartTimeColumnName()
+                        + " LIMIT ?)",
+                Instant.EPOCH.toEpochMilli(),
+                endTime,
+                limit);
     }
 
     /** Database migration. Introduces automatic local time generation. */
     public abstract void applyGeneratedLocalTimeUpgrade(@NonNull SQLiteDatabase db);
 
+    /**
+     * Database migration. Moves the samples of series records from their child table into a
+     * packed column of the main table. No-op for record types without samples.
+     */
+    public void applyPackedSeriesSamplesUpgrade(@NonNull SQLiteDatabase db) {}
+
     @RecordTypeIdentifier.RecordType
     public int getRecordIdentifier() {
         return mRecordIdentifier;
@@ -176,9 +206,25 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
             // for InstantRecord, filters by whether time falls into [startTime, endTime)
             whereClauses.addWhereGreaterThanOrEqualClause(startTimeColumnName, startTime);
         }
-
-        return new AggregateTableRequest(params, aggregationType, this, whereClauses, useLocalTime)
-                .setTimeFilter(startTime, endTime);
+        appendAggregateWhereClauses(whereClauses);
+
+        AggregateTableRequest request =
+                new AggregateTableRequest(params, aggregationType, this, whereClauses, useLocalTime)
+                        .setTimeFilter(startTime, endTime);
+        String rollupColumnName = getRollupColumnName(aggregationType, params);
+        if (rollupColumnName != null) {
+            // Only records of other apps are limited by the start date access, and it applies to
+            // their physical time, which is at most the maximum zone offset before local time.
+            long rollupStartTime =
+                    useLocalTime
+                            ? startDateAccess + ZoneOffset.MAX.getTotalSeconds() * 1000L
+                            : startDateAccess;
+            request.setRollup(
+                    rollupColumnName,
+                    appInfoHelper.getAppInfoIds(packageFilters),
+                    rollupStartTime);
+        }
+        return request;
     }
 
     /**
@@ -218,17 +264,37 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
      */
     @NonNull
     public final CreateTableRequest getCreateTableRequest() {
-        return new CreateTableRequest(getMainTableName(), getColumnInfo())
-                .addForeignKey(
-                        DeviceInfoHelper.getInstance().getTableName(),
-                        Collections.singletonList(DEVICE_INFO_ID_COLUMN_NAME),
-                        Collections.singletonList(PRIMARY_COLUMN_NAME))
-                .addForeignKey(
-                        AppInfoHelper.TABLE_NAME,
-                        Collections.singletonList(APP_INFO_ID_COLUMN_NAME),
-                        Collections.singletonList(PRIMARY_COLUMN_NAME))
-                .setChildTableRequests(getChildTableCreateRequests())
-                .setGeneratedColumnInfo(getGeneratedColumnInfo());
+        CreateTableRequest request =
+                new CreateTableRequest(getMainTableName(), getColumnInfo())
+                        .addForeignKey(
+                                DeviceInfoHelper.getInstance().getTableName(),
+                                Collections.singletonList(DEVICE_INFO_ID_COLUMN_NAME),
+                                Collections.singletonList(PRIMARY_COLUMN_NAME))
+                        .addForeignKey(
+                                AppInfoHelper.TABLE_NAME,
+                                Collections.singletonList(APP_INFO_ID_COLUMN_NAME),
+                                Collections.singletonList(PRIMARY_COLUMN_NAME))
+                        .setChildTableRequests(getChildTableCreateRequests())
+                        .setGeneratedColumnInfo(getGeneratedColumnInfo());
+        addTimeRangeIndexes(request);
+        return request;
+    }
+
+    /**
+     * Adds the indexes used by time filtered reads, deletes and aggregations. Reads filtered by
+     * package are served by the composite app id index.
+     *
+     * <p>NOTE: Existing databases get new indexes via onUpgrade, see {@code
+     * DatabaseUpgradeHelper}.
+     */
+    private void addTimeRangeIndexes(@NonNull CreateTableRequest request) {
+        request.createIndexOn(getStartTimeColumnName())
+                .createIndexOn(getLocalStartTimeColumnName())
+                .createIndexOn(List.of(APP_INFO_ID_COLUMN_NAME, getStartTimeColumnName()));
+        String localEndTimeColumnName = getLocalEndTimeColumnName();
+        if (localEndTimeColumnName != null) {
+            request.createIndexOn(localEndTimeColumnName);
+        }
     }
 
     /** Gets {@link UpsertTableRequest} from {@code recordInternal}. */
@@ -284,6 +350,12 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
                                         return newClientRecordVersion >= clientRecordVersion;
                                     }
                                 })
+                        .setUpsertOnConflict(
+                                UUID_COLUMN_NAME,
+                                "excluded."
+                                        + CLIENT_RECORD_VERSION_COLUMN_NAME
+                                        + " >= "
+                                        + CLIENT_RECORD_VERSION_COLUMN_NAME)
                         .setChildTableRequests(getChildTableUpsertRequests((T) recordInternal))
                         .setHelper(this)
                         .setExtraWritePermissionsStateMapping(extraWritePermissionToStateMap);
@@ -386,8 +458,7 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
                 .setJoinClause(getJoinForReadRequest())
                 .setWhereClause(
                         new WhereClauses(AND)
-                                .addWhereInClauseWithoutQuotes(
-                                        UUID_COLUMN_NAME, StorageUtils.getListOfHexString(uuids))
+                                .addWhereInUuidsClause(UUID_COLUMN_NAME, uuids)
                                 .addWhereLaterThanTimeClause(
                                         getStartTimeColumnName(), startDateAccess))
                 .setRecordHelper(this)
@@ -472,21 +543,16 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
      * Returns List of Internal records from the cursor up to the requested size, with pagination
      * handled.
      *
-     * <p>Note that the cursor limit is set to {@code requestSize + offset + 1},
-     * <li>+ offset: {@code offset} records has already been returned in previous page(s). See
-     *     go/hc-page-token for details.
-     * <li>+ 1: if number of records queried is more than pageSize we know there are more records
-     *     available to return for the next read.
+     * <p>The cursor limit is set to {@code requestSize + 1}. If there are more records than {@code
+     * requestSize}, the returned page token holds the row id and start time of the last record
+     * returned, and the next page is read from the records after it in the order of {@link
+     * #getOrderByClause}, see {@link #getReadTableWhereClause}. The cursor starts at the first
+     * record of the page, however many records share its start time.
      *
-     *     <p>Note that the cursor may contain more records that we need to return. Cursor limit set
-     *     to sum of the following:
-     * <li>offset: {@code offset} records have already been returned in previous page(s), and should
-     *     be skipped from this current page. In rare occasions (e.g. records deleted in between two
-     *     reads), there are less than {@code offset} records, an empty list is returned, with no
-     *     page token.
-     * <li>requestSize: {@code requestSize} records to return in the response.
-     * <li>one extra record: If there are more records than (offset+requestSize), a page token is
-     *     returned for the next page. If not, then a default token is returned.
+     * <p>Page tokens with a timestamp and an offset are still accepted, and pages read with them
+     * return page tokens of the same kind. Those hold the start time of the extra record, and the
+     * number of records with that start time that were returned in this page and the previous
+     * ones. See go/hc-page-token for details.
      *
      * @see #getLimitSize(ReadRecordsRequestParcel)
      */
@@ -495,32 +561,40 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
             int requestSize,
             PageTokenWrapper prevPageToken,
             @Nullable Map<Long, String> packageNamesByAppIds) {
+        List<RecordInternal<?>> recordInternalList = new ArrayList<>();
+        PageTokenWrapper nextPageToken =
+                forEachInternalRecordInPage(
+                        cursor,
+                        requestSize,
+                        prevPageToken,
+                        packageNamesByAppIds,
+                        recordInternalList::add);
+        return Pair.create(recordInternalList, nextPageToken);
+    }
+
+    /**
+     * Passes the Internal records of the next page to {@code consumer} as they are read from the
+     * cursor, without keeping them in memory, and returns the token of the page after it.
+     *
+     * @see #getNextInternalRecordsPageAndToken(Cursor, int, PageTokenWrapper, Map)
+     */
+    public PageTokenWrapper forEachInternalRecordInPage(
+            Cursor cursor,
+            int requestSize,
+            PageTokenWrapper prevPageToken,
+            @Nullable Map<Long, String> packageNamesByAppIds,
+            @NonNull Consumer<RecordInternal<?>> consumer) {
         Trace.traceBegin(
-                TRACE_TAG_RECORD_HELPER,
-                TAG_RECORD_HELPER.concat("getNextInternalRecordsPageAndToken"));
+                TRACE_TAG_RECORD_HELPER, TAG_RECORD_HELPER.concat("ForEachInternalRecordInPage"));
 
-        // Ignore <offset> records of the same start time, because it was returned in previous
-        // page(s).
-        // If the offset is greater than number of records in the cursor, it'll move to the last
-        // index and will not enter the while loop below.
+        // The <offset> records of the same start time returned in previous page(s) are not in the
+        // cursor, but still count towards the offset of the next page token.
         long prevStartTime;
-        long currentStartTime = DEFAULT_LONG;
-        for (int i = 0; i < prevPageToken.offset(); i++) {
-            if (!cursor.moveToNext()) {
-                break;
-            }
-            prevStartTime = currentStartTime;
-            currentStartTime = getCursorLong(cursor, getStartTimeColumnName());
-            if (prevStartTime != DEFAULT_LONG && prevStartTime != currentStartTime) {
-                // The current record should not be skipped
-                cursor.moveToPrevious();
-                break;
-            }
-        }
-
-        currentStartTime = DEFAULT_LONG;
-        int offset = 0;
-        List<RecordInternal<?>> recordInternalList = new ArrayList<>();
+        long currentStartTime =
+                prevPageToken.isTimestampSet() ? prevPageToken.timeMillis() : DEFAULT_LONG;
+        int offset = prevPageToken.offset();
+        long lastRowId = DEFAULT_LONG;
+        int recordCount = 0;
         PageTokenWrapper nextPageToken = EMPTY_PAGE_TOKEN;
         while (cursor.moveToNext()) {
             prevStartTime = currentStartTime;
@@ -529,55 +603,49 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
                 offset = 0;
             }
 
-            if (recordInternalList.size() >= requestSize) {
+            if (recordCount >= requestSize) {
+                // Tokens with an offset are still accepted, the pages after them keep using one
+                // so that records with the same start time stay in the same order.
                 nextPageToken =
-                        PageTokenWrapper.of(prevPageToken.isAscending(), currentStartTime, offset);
+                        prevPageToken.isTimestampSet()
+                                ? PageTokenWrapper.of(
+                                        prevPageToken.isAscending(), currentStartTime, offset)
+                                : PageTokenWrapper.ofRowId(
+                                        prevPageToken.isAscending(), prevStartTime, lastRowId);
                 break;
             } else {
                 T record = getRecord(cursor, packageNamesByAppIds);
-                recordInternalList.add(record);
+                consumer.accept(record);
+                lastRowId = getCursorLong(cursor, PRIMARY_COLUMN_NAME);
+                recordCount++;
                 offset++;
             }
         }
 
         Trace.traceEnd(TRACE_TAG_RECORD_HELPER);
-        return Pair.create(recordInternalList, nextPageToken);
+        return nextPageToken;
     }
 
     @SuppressWarnings("unchecked") // uncheck cast to T
     private T getRecord(Cursor cursor, @Nullable Map<Long, String> packageNamesByAppIds) {
-        try {
-            @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
-            T record =
-                    (T)
-                            RecordMapper.getInstance()
-                                    .getRecordIdToInternalRecordClassMap()
-                                    .get(getRecordIdentifier())
-                                    .getConstructor()
-                                    .newInstance();
-            record.setUuid(getCursorUUID(cursor, UUID_COLUMN_NAME));
-            record.setLastModifiedTime(getCursorLong(cursor, LAST_MODIFIED_TIME_COLUMN_NAME));
-            record.setClientRecordId(getCursorString(cursor, CLIENT_RECORD_ID_COLUMN_NAME));
-            record.setClientRecordVersion(getCursorLong(cursor, CLIENT_RECORD_VERSION_COLUMN_NAME));
-            record.setRecordingMethod(getCursorInt(cursor, RECORDING_METHOD_COLUMN_NAME));
-            record.setRowId(getCursorInt(cursor, PRIMARY_COLUMN_NAME));
-            long deviceInfoId = getCursorLong(cursor, DEVICE_INFO_ID_COLUMN_NAME);
-            DeviceInfoHelper.getInstance().populateRecordWithValue(deviceInfoId, record);
-            long appInfoId = getCursorLong(cursor, APP_INFO_ID_COLUMN_NAME);
-            String packageName =
-                    packageNamesByAppIds != null
-                            ? packageNamesByAppIds.get(appInfoId)
-                            : AppInfoHelper.getInstance().getPackageName(appInfoId);
-            record.setPackageName(packageName);
-            populateRecordValue(cursor, record);
-
-            return record;
-        } catch (InstantiationException
-                | IllegalAccessException
-                | NoSuchMethodException
-                | InvocationTargetException exception) {
-            throw new IllegalArgumentException(exception);
-        }
+        T record = (T) RecordMapper.getInstance().newInternalRecord(getRecordIdentifier());
+        record.setUuid(getCursorUUID(cursor, UUID_COLUMN_NAME));
+        record.setLastModifiedTime(getCursorLong(cursor, LAST_MODIFIED_TIME_COLUMN_NAME));
+        record.setClientRecordId(getCursorString(cursor, CLIENT_RECORD_ID_COLUMN_NAME));
+        record.setClientRecordVersion(getCursorLong(cursor, CLIENT_RECORD_VERSION_COLUMN_NAME));
+        record.setRecordingMethod(getCursorInt(cursor, RECORDING_METHOD_COLUMN_NAME));
+        record.setRowId(getCursorInt(cursor, PRIMARY_COLUMN_NAME));
+        long deviceInfoId = getCursorLong(cursor, DEVICE_INFO_ID_COLUMN_NAME);
+        DeviceInfoHelper.getInstance().populateRecordWithValue(deviceInfoId, record);
+        long appInfoId = getCursorLong(cursor, APP_INFO_ID_COLUMN_NAME);
+        String packageName =
+                packageNamesByAppIds != null
+                        ? packageNamesByAppIds.get(appInfoId)
+                        : AppInfoHelper.getInstance().getPackageName(appInfoId);
+        record.setPackageName(packageName);
+        populateRecordValue(cursor, record);
+
+        return record;
     }
 
     /** Returns is the read of this record type is enabled */
@@ -609,7 +677,7 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
 
     public DeleteTableRequest getDeleteTableRequest(List<UUID> ids) {
         return new DeleteTableRequest(getMainTableName(), getRecordIdentifier())
-                .setIds(UUID_COLUMN_NAME, StorageUtils.getListOfHexString(ids))
+                .setIds(UUID_COLUMN_NAME, ids)
                 .setRequiresUuId(UUID_COLUMN_NAME)
                 .setEnforcePackageCheck(APP_INFO_ID_COLUMN_NAME, UUID_COLUMN_NAME);
     }
@@ -654,6 +722,21 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
         return null;
     }
 
+    /** Adds record type specific filters to the where clause of aggregations. */
+    void appendAggregateWhereClauses(@NonNull WhereClauses whereClauses) {}
+
+    /**
+     * Returns the columns of the main table which have their hourly and daily sums kept in {@link
+     * AggregationRollupHelper}, so that SUM aggregations of them can be answered from the sums.
+     *
+     * <p>Only columns that are summed without priorities, a join or extra where clauses can be
+     * rolled up. Each of them adds work to every write of the record type.
+     */
+    @NonNull
+    List<String> getRollupColumnNames() {
+        return Collections.emptyList();
+    }
+
     /**
      * This implementation should return the column names with which the table should be created.
      *
@@ -688,15 +771,11 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
     }
 
     private static int getLimitSize(ReadRecordsRequestParcel request) {
-        // Querying extra records on top of page size
-        // + pageOffset: <pageOffset> records has already been returned in previous page(s). See
-        //               go/hc-page-token for details.
-        // + 1: if number of records queried is more than pageSize we know there are more records
-        //      available to return for the next read.
+        // Querying one extra record on top of page size: if number of records queried is more than
+        // pageSize we know there are more records available to return for the next read. Records
+        // returned in previous page(s) are left out by the where clause.
         if (request.getRecordIdFiltersParcel() == null) {
-            int pageOffset =
-                    PageTokenWrapper.from(request.getPageToken(), request.isAscending()).offset();
-            return request.getPageSize() + pageOffset + 1;
+            return request.getPageSize() + 1;
         } else {
             return MAXIMUM_PAGE_SIZE;
         }
@@ -727,18 +806,6 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
             // package names filter
             clauses.addWhereInLongsClause(APP_INFO_ID_COLUMN_NAME, appInfoIds);
 
-            // page token filter
-            PageTokenWrapper pageToken =
-                    PageTokenWrapper.from(request.getPageToken(), request.isAscending());
-            if (pageToken.isTimestampSet()) {
-                long timestamp = pageToken.timeMillis();
-                if (pageToken.isAscending()) {
-                    clauses.addWhereGreaterThanOrEqualClause(getStartTimeColumnName(), timestamp);
-                } else {
-                    clauses.addWhereLessThanOrEqualClause(getStartTimeColumnName(), timestamp);
-                }
-            }
-
             // start/end time filter
             String timeColumnName =
                     request.usesLocalTimeFilter()
@@ -758,6 +825,15 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
                     getFilterByStartAccessDateWhereClauses(
                             callingAppInfoId, startDateAccessMillis));
 
+            // page token filter, last as offsets count the records matching the filters above
+            PageTokenWrapper pageToken =
+                    PageTokenWrapper.from(request.getPageToken(), request.isAscending());
+            if (pageToken.isRowIdSet()) {
+                addRowIdPageTokenWhereClause(clauses, pageToken);
+            } else if (pageToken.isTimestampSet()) {
+                clauses.addNestedWhereClauses(getOffsetPageTokenWhereClauses(pageToken, clauses));
+            }
+
             return clauses;
         }
 
@@ -770,8 +846,7 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
                         .toList();
         WhereClauses filterByIdsWhereClauses =
                 new WhereClauses(AND)
-                        .addWhereInClauseWithoutQuotes(
-                                UUID_COLUMN_NAME, StorageUtils.getListOfHexString(ids));
+                        .addWhereInUuidsClause(UUID_COLUMN_NAME, ids);
 
         if (enforceSelfRead) {
             if (callingAppInfoId == DEFAULT_LONG) {
@@ -796,8 +871,7 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
         WhereClauses resultWhereClauses = new WhereClauses(OR);
 
         // if the data point belongs to the calling app, then we should not enforce startDateAccess
-        resultWhereClauses.addWhereEqualsClause(
-                APP_INFO_ID_COLUMN_NAME, String.valueOf(callingAppInfoId));
+        resultWhereClauses.addWhereEqualsClause(APP_INFO_ID_COLUMN_NAME, callingAppInfoId);
 
         // Otherwise, we should enforce startDateAccess. Also we must use physical time column
         // regardless whether local time filter is used or not.
@@ -810,15 +884,114 @@ public abstract class RecordHelper<T extends RecordInternal<?>> {
 
     abstract String getZoneOffsetColumnName();
 
+    @Nullable
+    private String getRollupColumnName(
+            AggregationType<?> aggregationType, AggregateParams params) {
+        if (aggregationType.getAggregateOperationType() != SUM
+                || supportsPriority(mRecordIdentifier, aggregationType.getAggregateOperationType())
+                || StorageUtils.isDerivedType(mRecordIdentifier)
+                || params.getJoin() != null
+                || params.getAggregateExpression() != null
+                || params.getColumnsToFetch().size() != 1) {
+            return null;
+        }
+        String columnName = params.getColumnsToFetch().get(0);
+        return getRollupColumnNames().contains(columnName) ? columnName : null;
+    }
+
+    /**
+     * Adds the condition that records come after the record of {@code pageToken} in the order of
+     * {@link #getOrderByClause}, comparing their (start time, row id).
+     *
+     * <p>The start time is read from the record. If the record has been deleted in the meantime,
+     * the rounded start time in the page token is used instead, bounded so that no record after
+     * it is left out, at the cost of returning again the records within the rounding.
+     */
+    private void addRowIdPageTokenWhereClause(WhereClauses clauses, PageTokenWrapper pageToken) {
+        ReadTableRequest startTimeRequest =
+                new ReadTableRequest(getMainTableName())
+                        .setColumnNames(List.of(getStartTimeColumnName()))
+                        .setWhereClause(
+                                new WhereClauses(AND)
+                                        .addWhereEqualsClause(
+                                                PRIMARY_COLUMN_NAME, pageToken.rowId()));
+        if (pageToken.isAscending()) {
+            clauses.addWhereRowValueGreaterThanClause(
+                    getStartTimeColumnName(),
+                    PRIMARY_COLUMN_NAME,
+                    startTimeRequest,
+                    pageToken.timeMillis(),
+                    pageToken.rowId());
+        } else {
+            clauses.addWhereRowValueLessThanClause(
+                    getStartTimeColumnName(),
+                    PRIMARY_COLUMN_NAME,
+                    startTimeRequest,
+                    pageToken.maxTimeMillis(),
+                    pageToken.rowId());
+        }
+    }
+
+    /**
+     * Returns the conditions leaving out the records returned in previous pages: the ones before
+     * the start time of {@code pageToken}, and the first {@code offset} ones with that start time
+     * among the records matching {@code filterClauses}, in the order of {@link #getOrderByClause}.
+     */
+    private WhereClauses getOffsetPageTokenWhereClauses(
+            PageTokenWrapper pageToken, WhereClauses filterClauses) {
+        long timestamp = pageToken.timeMillis();
+        WhereClauses otherStartTimeClauses = new WhereClauses(AND);
+        if (pageToken.offset() == 0) {
+            return pageToken.isAscending()
+                    ? otherStartTimeClauses.addWhereGreaterThanOrEqualClause(
+                            getStartTimeColumnName(), timestamp)
+                    : otherStartTimeClauses.addWhereLessThanOrEqualClause(
+                            getStartTimeColumnName(), timestamp);
+        }
+
+        // The first record of the page with that start time is looked up by the query rather than
+        // skipped in the cursor. If there are fewer such records than the offset (e.g. records
+        // deleted in between two reads), the page starts at the next start time.
+        ReadTableRequest pageStartRequest =
+                new ReadTableRequest(getMainTableName())
+                        .setColumnNames(List.of(PRIMARY_COLUMN_NAME))
+                        .setWhereClause(
+                                new WhereClauses(AND)
+                                        .addNestedWhereClauses(filterClauses)
+                                        .addWhereEqualsClause(getStartTimeColumnName(), timestamp))
+                        .setOrderBy(
+                                new OrderByClause()
+                                        .addOrderByClause(
+                                                PRIMARY_COLUMN_NAME, /* isAscending= */ true))
+                        .setLimit(1)
+                        .setOffset(pageToken.offset());
+        WhereClauses sameStartTimeClauses =
+                new WhereClauses(AND)
+                        .addWhereEqualsClause(getStartTimeColumnName(), timestamp)
+                        .addWhereGreaterThanOrEqualSQLRequestClause(
+                                PRIMARY_COLUMN_NAME, pageStartRequest);
+        if (pageToken.isAscending()) {
+            otherStartTimeClauses.addWhereGreaterThanClause(getStartTimeColumnName(), timestamp);
+        } else {
+            otherStartTimeClauses.addWhereLessThanClause(getStartTimeColumnName(), timestamp);
+        }
+        return new WhereClauses(OR)
+                .addNestedWhereClauses(otherStartTimeClauses, sameStartTimeClauses);
+    }
+
     private OrderByClause getOrderByClause(ReadRecordsRequestParcel request) {
         if (request.getRecordIdFiltersParcel() != null) {
             return new OrderByClause();
         }
         PageTokenWrapper pageToken =
                 PageTokenWrapper.from(request.getPageToken(), request.isAscending());
+        // Records with the same start time are in ascending order for the offsets of tokens
+        // with a timestamp.
         return new OrderByClause()
                 .addOrderByClause(getStartTimeColumnName(), pageToken.isAscending())
-                .addOrderByClause(PRIMARY_COLUMN_NAME, /* isAscending= */ true);
+                .addOrderByClause(
+                        PRIMARY_COLUMN_NAME,
+                        pageToken.isTimestampSet() || pageToken.isAscending());
     }
 
     @NonNull
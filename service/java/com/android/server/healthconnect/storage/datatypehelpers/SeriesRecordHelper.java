@@ -23,28 +23,39 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGE
 import android.annotation.NonNull;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.health.connect.datatypes.AggregationType;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.internal.datatypes.SeriesRecordInternal;
+import android.util.ArrayMap;
 import android.util.Pair;
 
+import com.android.server.healthconnect.storage.request.AggregateParams;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
-import com.android.server.healthconnect.storage.request.UpsertTableRequest;
-import com.android.server.healthconnect.storage.utils.SqlJoin;
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
+import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 /** @hide */
 abstract class SeriesRecordHelper<
                 T extends SeriesRecordInternal<?, ?>, U extends SeriesRecordInternal.Sample>
         extends IntervalRecordHelper<T> {
     protected static final String PARENT_KEY_COLUMN_NAME = PARENT_KEY;
+    // All series tables store the time of each sample in this column.
+    protected static final String SAMPLE_TIME_COLUMN_NAME = "epoch_millis";
 
     SeriesRecordHelper(@RecordTypeIdentifier.RecordType int recordIdentifier) {
         super(recordIdentifier);
     }
 
+    /**
+     * Samples used to be stored one per row in this table. It's no longer written to, but kept as
+     * tables can't be removed.
+     */
     @Override
     final List<CreateTableRequest> getChildTableCreateRequests() {
         return Collections.singletonList(
@@ -56,70 +67,91 @@ abstract class SeriesRecordHelper<
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    final List<UpsertTableRequest> getChildTableUpsertRequests(@NonNull T record) {
-        List<? extends SeriesRecordInternal.Sample> samples = record.getSamples().stream().toList();
-        List<UpsertTableRequest> requests = new ArrayList<>(samples.size());
-        samples.forEach(
-                (sample -> {
-                    ContentValues contentValues = new ContentValues();
-                    populateSampleTo(contentValues, (U) sample);
-                    requests.add(
-                            new UpsertTableRequest(getSeriesDataTableName(), contentValues)
-                                    .setParentColumnForChildTables(PARENT_KEY_COLUMN_NAME));
-                }));
-
-        return requests;
+    public final void applyPackedSeriesSamplesUpgrade(@NonNull SQLiteDatabase db) {
+        PackedSeriesSamples.applyUpgrade(
+                db,
+                getMainTableName(),
+                getSeriesDataTableName(),
+                getSampleValueColumnName(),
+                getSampleValueType());
     }
 
-    /** Returns the INNER JOIN clause for querying from the table for series datatype */
+    /** Samples are packed into the main table, so there are no child rows to replace. */
     @Override
-    final SqlJoin getJoinForReadRequest() {
-        return new SqlJoin(
-                getMainTableName(),
-                getSeriesDataTableName(),
-                PRIMARY_COLUMN_NAME,
-                PARENT_KEY_COLUMN_NAME);
+    public final List<String> getChildTablesToDeleteOnRecordUpsert(
+            ArrayMap<String, Boolean> extraWritePermissionToState) {
+        return Collections.emptyList();
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     final void populateSpecificContentValues(
             @NonNull ContentValues contentValues, @NonNull T record) {
-        // Empty as we don't want to populate any additional in the main table.
+        PackedSeriesSamples.populateTo(
+                contentValues,
+                (Set<U>) record.getSamples(),
+                this::getSampleEpochMillis,
+                this::getSampleValue,
+                getSampleValueType());
     }
 
     /** Populates record with datatype specific details */
     @Override
     final void populateSpecificRecordValue(@NonNull Cursor cursor, @NonNull T record) {
-        populateSpecificValues(cursor, record);
+        record.setSamples(PackedSeriesSamples.read(cursor, this::createSample));
+    }
+
+    @Override
+    final void appendAggregateWhereClauses(@NonNull WhereClauses whereClauses) {
+        PackedSeriesSamples.appendAggregateWhereClauses(whereClauses);
     }
 
     /**
-     * A typical series data type should not use the main table to store any of its data, and should
-     * instead implement get addition table related functions. Hence, an empty final function
+     * Series data types store their samples packed in the main table, see {@link
+     * PackedSeriesSamples}. Hence, a final function.
+     *
+     * <p>NOTE: Existing tables get these columns via {@link #applyPackedSeriesSamplesUpgrade}.
      */
     @NonNull
     final List<Pair<String, String>> getIntervalRecordColumnInfo() {
-        // We don't want to populate anything additional in the main table. Series data types use
-        // additional table to store all the data.
-        return Collections.emptyList();
+        return PackedSeriesSamples.getColumnInfo();
+    }
+
+    /** Returns params aggregating the samples of this series data type. */
+    @NonNull
+    final AggregateParams getSamplesAggregateParams(@NonNull AggregationType<?> aggregationType) {
+        return PackedSeriesSamples.getAggregateParams(
+                getMainTableName(), getSampleValueColumnName(), aggregationType);
     }
 
     /**
-     * Returns the column names required to store the series data, excluding the parent key field
+     * Returns the column names of the legacy series table, excluding the parent key field. Samples
+     * are only read from this table when they are packed on upgrade.
      */
     @NonNull
     abstract List<Pair<String, String>> getSeriesRecordColumnInfo();
 
-    /** Returns the table name required to store the series data */
+    /** Returns the table name of the legacy series table */
     @NonNull
     abstract String getSeriesDataTableName();
 
-    /** Populates the {@code record} with values specific to dataytpe */
-    abstract void populateSpecificValues(@NonNull Cursor cursor, T record);
+    /** Returns the column of the legacy series table that holds the sample value */
+    @NonNull
+    abstract String getSampleValueColumnName();
+
+    /** Returns how sample values are encoded */
+    @SeriesSamplesCodec.ValueType
+    abstract int getSampleValueType();
+
+    /** Returns the value of the {@code sample} */
+    abstract double getSampleValue(@NonNull U sample);
 
-    /** Puts the {@code sample} to the {@code contentValues} */
-    abstract void populateSampleTo(@NonNull ContentValues contentValues, @NonNull U sample);
+    /** Returns the time of the {@code sample} */
+    abstract long getSampleEpochMillis(@NonNull U sample);
+
+    /** Creates a sample of this datatype */
+    @NonNull
+    abstract U createSample(double value, long epochMillis);
 
     @NonNull
     private List<Pair<String, String>> getSeriesTableColumnInfo() {
@@ -28,8 +28,6 @@ import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL_NOT_NULL;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorDouble;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorInt;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -39,18 +37,19 @@ import android.health.connect.datatypes.AggregationType;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.datatypes.units.Temperature;
 import android.health.connect.internal.datatypes.SkinTemperatureRecordInternal;
+import android.util.ArrayMap;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
 
 import com.android.server.healthconnect.storage.request.AggregateParams;
 import com.android.server.healthconnect.storage.request.CreateTableRequest;
-import com.android.server.healthconnect.storage.request.UpsertTableRequest;
-import com.android.server.healthconnect.storage.utils.SqlJoin;
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
+import com.android.server.healthconnect.storage.utils.WhereClauses;
 
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
+import java.util.Set;
 
 /**
  * Helper class for SkinTemperatureRecord.
@@ -86,6 +85,10 @@ public final class SkinTemperatureRecordHelper
         return SERIES_TABLE_NAME;
     }
 
+    /**
+     * Deltas used to be stored one per row in this table. It's no longer written to, but kept as
+     * tables can't be removed.
+     */
     @Override
     List<CreateTableRequest> getChildTableCreateRequests() {
         return List.of(
@@ -96,31 +99,11 @@ public final class SkinTemperatureRecordHelper
                                 List.of(PRIMARY_COLUMN_NAME)));
     }
 
+    /** Deltas are packed into the main table, so there are no child rows to replace. */
     @Override
-    SqlJoin getJoinForReadRequest() {
-        return new SqlJoin(
-                getMainTableName(),
-                getSeriesDataTableName(),
-                PRIMARY_COLUMN_NAME,
-                PARENT_KEY_COLUMN_NAME);
-    }
-
-    @Override
-    @SuppressWarnings("unchecked")
-    List<UpsertTableRequest> getChildTableUpsertRequests(
-            @NonNull SkinTemperatureRecordInternal record) {
-        return record.getSamples().stream()
-                .map(
-                        sample -> {
-                            ContentValues contentValues = new ContentValues();
-                            populateSampleTo(
-                                    contentValues,
-                                    (SkinTemperatureRecordInternal.SkinTemperatureDeltaSample)
-                                            sample);
-                            return new UpsertTableRequest(getSeriesDataTableName(), contentValues)
-                                    .setParentColumnForChildTables(PARENT_KEY_COLUMN_NAME);
-                        })
-                .toList();
+    public List<String> getChildTablesToDeleteOnRecordUpsert(
+            ArrayMap<String, Boolean> extraWritePermissionToState) {
+        return List.of();
     }
 
     @Override
@@ -132,37 +115,38 @@ public final class SkinTemperatureRecordHelper
 
         recordInternal.setMeasurementLocation(measurementLocation);
         recordInternal.setBaseline(Temperature.fromCelsius(baseline));
-
-        HashSet<SkinTemperatureRecordInternal.SkinTemperatureDeltaSample>
-                skinTemperatureDeltaSamples = new HashSet<>();
-        UUID uuid = getCursorUUID(cursor, UUID_COLUMN_NAME);
-        do {
-            skinTemperatureDeltaSamples.add(
-                    new SkinTemperatureRecordInternal.SkinTemperatureDeltaSample(
-                            getCursorDouble(cursor, SKIN_TEMPERATURE_DELTA_COLUMN_NAME),
-                            getCursorLong(cursor, EPOCH_MILLIS_COLUMN_NAME)));
-        } while (cursor.moveToNext() && uuid.equals(getCursorUUID(cursor, UUID_COLUMN_NAME)));
-        // In case we hit another record, move the cursor back to read next record in outer
-        // RecordHelper#getInternalRecords loop.
-        cursor.moveToPrevious();
-        recordInternal.setSamples(skinTemperatureDeltaSamples);
+        recordInternal.setSamples(
+                PackedSeriesSamples.read(
+                        cursor, SkinTemperatureRecordInternal.SkinTemperatureDeltaSample::new));
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     void populateSpecificContentValues(
             @NonNull ContentValues contentValues, @NonNull SkinTemperatureRecordInternal record) {
         contentValues.put(
                 SKIN_TEMPERATURE_MEASUREMENT_LOCATION_COLUMN_NAME, record.getMeasurementLocation());
         contentValues.put(
                 SKIN_TEMPERATURE_BASELINE_COLUMN_NAME, record.getBaseline().getInCelsius());
+        PackedSeriesSamples.populateTo(
+                contentValues,
+                (Set<SkinTemperatureRecordInternal.SkinTemperatureDeltaSample>)
+                        record.getSamples(),
+                sample -> sample.mEpochMillis(),
+                sample -> sample.mTemperatureDeltaInCelsius(),
+                SeriesSamplesCodec.VALUE_TYPE_DOUBLE);
     }
 
     @NonNull
     @Override
     List<Pair<String, String>> getIntervalRecordColumnInfo() {
-        return List.of(
-                Pair.create(SKIN_TEMPERATURE_MEASUREMENT_LOCATION_COLUMN_NAME, INTEGER_NOT_NULL),
-                Pair.create(SKIN_TEMPERATURE_BASELINE_COLUMN_NAME, REAL));
+        List<Pair<String, String>> columnInfo = new ArrayList<>();
+        columnInfo.add(
+                Pair.create(SKIN_TEMPERATURE_MEASUREMENT_LOCATION_COLUMN_NAME, INTEGER_NOT_NULL));
+        columnInfo.add(Pair.create(SKIN_TEMPERATURE_BASELINE_COLUMN_NAME, REAL));
+        // NOTE: Existing tables get these columns via applyPackedSeriesSamplesUpgrade.
+        columnInfo.addAll(PackedSeriesSamples.getColumnInfo());
+        return columnInfo;
     }
 
     @NonNull
@@ -173,18 +157,26 @@ public final class SkinTemperatureRecordHelper
                 Pair.create(EPOCH_MILLIS_COLUMN_NAME, INTEGER_NOT_NULL));
     }
 
-    void populateSampleTo(
-            @NonNull ContentValues contentValues,
-            @NonNull SkinTemperatureRecordInternal.SkinTemperatureDeltaSample sample) {
-        contentValues.put(SKIN_TEMPERATURE_DELTA_COLUMN_NAME, sample.mTemperatureDeltaInCelsius());
-        contentValues.put(EPOCH_MILLIS_COLUMN_NAME, sample.mEpochMillis());
-    }
-
     /** Adds the skin temperature tables. */
     public void applySkinTemperatureUpgrade(@NonNull SQLiteDatabase db) {
         createTable(db, getCreateTableRequest());
     }
 
+    @Override
+    public void applyPackedSeriesSamplesUpgrade(@NonNull SQLiteDatabase db) {
+        PackedSeriesSamples.applyUpgrade(
+                db,
+                TABLE_NAME,
+                SERIES_TABLE_NAME,
+                SKIN_TEMPERATURE_DELTA_COLUMN_NAME,
+                SeriesSamplesCodec.VALUE_TYPE_DOUBLE);
+    }
+
+    @Override
+    void appendAggregateWhereClauses(@NonNull WhereClauses whereClauses) {
+        PackedSeriesSamples.appendAggregateWhereClauses(whereClauses);
+    }
+
     @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
     @Override
     AggregateParams getAggregateParams(AggregationType<?> aggregateRequest) {
@@ -192,16 +184,9 @@ public final class SkinTemperatureRecordHelper
             case SKIN_TEMPERATURE_RECORD_DELTA_AVG:
             case SKIN_TEMPERATURE_RECORD_DELTA_MIN:
             case SKIN_TEMPERATURE_RECORD_DELTA_MAX:
-                return new AggregateParams(
-                                SERIES_TABLE_NAME,
-                                // Aggregation on the delta column.
-                                List.of(SKIN_TEMPERATURE_DELTA_COLUMN_NAME))
-                        .setJoin(
-                                new SqlJoin(
-                                        SERIES_TABLE_NAME,
-                                        TABLE_NAME,
-                                        PARENT_KEY_COLUMN_NAME,
-                                        PRIMARY_COLUMN_NAME));
+                // Aggregation on the delta column.
+                return PackedSeriesSamples.getAggregateParams(
+                        TABLE_NAME, SKIN_TEMPERATURE_DELTA_COLUMN_NAME, aggregateRequest);
             default:
                 return null;
         }
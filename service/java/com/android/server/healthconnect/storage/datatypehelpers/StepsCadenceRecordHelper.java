@@ -22,12 +22,7 @@ import static android.health.connect.datatypes.AggregationType.AggregationTypeId
 
 import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
 import static com.android.server.healthconnect.storage.utils.StorageUtils.REAL;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorDouble;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorLong;
-import static com.android.server.healthconnect.storage.utils.StorageUtils.getCursorUUID;
 
-import android.annotation.NonNull;
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.health.connect.AggregateResult;
 import android.health.connect.datatypes.AggregationType;
@@ -36,13 +31,10 @@ import android.health.connect.internal.datatypes.StepsCadenceRecordInternal;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.request.AggregateParams;
-import com.android.server.healthconnect.storage.utils.SqlJoin;
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
 
 /**
  * Helper class for StepsCadenceRecord.
@@ -79,32 +71,31 @@ public class StepsCadenceRecordHelper
     String getSeriesDataTableName() {
         return SERIES_TABLE_NAME;
     }
-    /** Populates the {@code record} with values specific to datatype */
+
+    @Override
+    String getSampleValueColumnName() {
+        return RATE_COLUMN_NAME;
+    }
+
+    @Override
+    int getSampleValueType() {
+        return SeriesSamplesCodec.VALUE_TYPE_DOUBLE;
+    }
+
+    @Override
+    double getSampleValue(StepsCadenceRecordInternal.StepsCadenceRecordSample sample) {
+        return sample.getRate();
+    }
+
     @Override
-    void populateSpecificValues(
-            @NonNull Cursor seriesTableCursor, StepsCadenceRecordInternal record) {
-        HashSet<StepsCadenceRecordInternal.StepsCadenceRecordSample> stepsCadenceRecordSampleSet =
-                new HashSet<>();
-        UUID uuid = getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME);
-        do {
-            stepsCadenceRecordSampleSet.add(
-                    new StepsCadenceRecordInternal.StepsCadenceRecordSample(
-                            getCursorDouble(seriesTableCursor, RATE_COLUMN_NAME),
-                            getCursorLong(seriesTableCursor, EPOCH_MILLIS_COLUMN_NAME)));
-        } while (seriesTableCursor.moveToNext()
-                && uuid.equals(getCursorUUID(seriesTableCursor, UUID_COLUMN_NAME)));
-        // In case we hit another record, move the cursor back to read next record in outer
-        // RecordHelper#getInternalRecords loop.
-        seriesTableCursor.moveToPrevious();
-        record.setSamples(stepsCadenceRecordSampleSet);
+    long getSampleEpochMillis(StepsCadenceRecordInternal.StepsCadenceRecordSample sample) {
+        return sample.getEpochMillis();
     }
 
     @Override
-    void populateSampleTo(
-            ContentValues contentValues,
-            StepsCadenceRecordInternal.StepsCadenceRecordSample stepsCadenceRecord) {
-        contentValues.put(RATE_COLUMN_NAME, stepsCadenceRecord.getRate());
-        contentValues.put(EPOCH_MILLIS_COLUMN_NAME, stepsCadenceRecord.getEpochMillis());
+    StepsCadenceRecordInternal.StepsCadenceRecordSample createSample(
+            double value, long epochMillis) {
+        return new StepsCadenceRecordInternal.StepsCadenceRecordSample(value, epochMillis);
     }
 
     @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
@@ -130,14 +121,7 @@ public class StepsCadenceRecordHelper
             case STEPS_CADENCE_RECORD_RATE_AVG:
             case STEPS_CADENCE_RECORD_RATE_MIN:
             case STEPS_CADENCE_RECORD_RATE_MAX:
-                return new AggregateParams(
-                                SERIES_TABLE_NAME, Collections.singletonList(RATE_COLUMN_NAME))
-                        .setJoin(
-                                new SqlJoin(
-                                        SERIES_TABLE_NAME,
-                                        TABLE_NAME,
-                                        PARENT_KEY_COLUMN_NAME,
-                                        PRIMARY_COLUMN_NAME));
+                return getSamplesAggregateParams(aggregateRequest);
             default:
                 return null;
         }
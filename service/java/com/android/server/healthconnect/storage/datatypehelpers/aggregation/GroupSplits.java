@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers.aggregation;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Helpers for the times that split aggregations into groups.
+ *
+ * @hide
+ */
+final class GroupSplits {
+    private GroupSplits() {}
+
+    /** Returns {@code splits} as an array sorted in ascending order. */
+    static long[] toSortedArray(List<Long> splits) {
+        long[] array = new long[splits.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = splits.get(i);
+        }
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * Returns the number of splits at or before {@code time}, which is the index of the first
+     * split after it.
+     *
+     * @param splits times sorted in ascending order.
+     */
+    static int countSplitsUpTo(long[] splits, long time) {
+        int low = 0;
+        int high = splits.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (splits[middle] <= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers.aggregation;
+
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.EXERCISE_SESSION_DURATION_TOTAL;
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.SLEEP_SESSION_DURATION_TOTAL;
+
+import android.database.Cursor;
+import android.health.connect.datatypes.AggregationType;
+
+import androidx.annotation.Nullable;
+
+import com.android.server.healthconnect.storage.request.AggregateParams;
+
+import java.time.ZoneOffset;
+import java.util.List;
+
+/**
+ * Aggregates records by group, where records that overlap in time are only accounted for once,
+ * from the app with the highest priority.
+ *
+ * @hide
+ */
+public interface PriorityAggregator {
+
+    /** Returns an aggregator for {@code aggregationType}. */
+    static PriorityAggregator create(
+            List<Long> groupSplits,
+            List<Long> appIdPriorityList,
+            @AggregationType.AggregationTypeIdentifier int aggregationType,
+            AggregateParams.PriorityAggregationExtraParams extraParams,
+            boolean useLocalTime) {
+        return switch (aggregationType) {
+            case SLEEP_SESSION_DURATION_TOTAL,
+                    EXERCISE_SESSION_DURATION_TOTAL -> new PriorityRecordsAggregator(
+                    groupSplits, appIdPriorityList, aggregationType, extraParams, useLocalTime);
+            default -> new ValuePriorityRecordsAggregator(
+                    groupSplits, appIdPriorityList, aggregationType, extraParams, useLocalTime);
+        };
+    }
+
+    /** Calculates aggregation result for each group. */
+    void calculateAggregation(Cursor cursor);
+
+    /** Returns result for the given group, or {@code null} if no records are in the group. */
+    @Nullable
+    Double getResultForGroup(int groupNumber);
+
+    /** Returns start time zone offset for the given group */
+    @Nullable
+    ZoneOffset getZoneOffsetForGroup(int groupNumber);
+}
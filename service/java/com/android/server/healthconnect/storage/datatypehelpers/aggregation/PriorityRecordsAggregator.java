@@ -45,12 +45,15 @@ import java.util.TreeSet;
 /**
  * Aggregates records with priorities.
  *
+ * <p>Used for session durations, which need the intervals to exclude of each record. Value
+ * columns are aggregated by {@link ValuePriorityRecordsAggregator}.
+ *
  * @hide
  */
-public class PriorityRecordsAggregator {
+public class PriorityRecordsAggregator implements PriorityAggregator {
     static final String TAG = "HealthPriorityRecordsAggregator";
 
-    private final List<Long> mGroupSplits;
+    private final long[] mGroupSplits;
     private final Map<Long, Integer> mAppIdToPriority;
     private final Map<Integer, Double> mGroupToAggregationResult;
     private final Map<Integer, ZoneOffset> mGroupToFirstZoneOffset;
@@ -72,7 +75,7 @@ public class PriorityRecordsAggregator {
             @AggregationType.AggregationTypeIdentifier int aggregationType,
             AggregateParams.PriorityAggregationExtraParams extraParams,
             boolean useLocalTime) {
-        mGroupSplits = groupSplits;
+        mGroupSplits = GroupSplits.toSortedArray(groupSplits);
         mAggregationType = aggregationType;
         mExtraParams = extraParams;
         mAppIdToPriority = new ArrayMap<>();
@@ -82,31 +85,41 @@ public class PriorityRecordsAggregator {
         }
         mUseLocalTime = useLocalTime;
         mTimestampsBuffer = new TreeSet<>();
-        mNumberOfGroups = mGroupSplits.size() - 1;
+        mNumberOfGroups = mGroupSplits.length - 1;
         mGroupToFirstZoneOffset = new ArrayMap<>(mNumberOfGroups);
         mOpenIntervals = new TreeSet<>();
-        mGroupToAggregationResult = new ArrayMap<>(mGroupSplits.size());
+        mGroupToAggregationResult = new ArrayMap<>(mGroupSplits.length);
 
         if (Constants.DEBUG) {
             Slog.d(
                     TAG,
                     "Aggregation request for splits: "
-                            + mGroupSplits
+                            + groupSplits
                             + " with priorities: "
                             + appIdPriorityList);
         }
     }
 
-    /** Calculates aggregation result for each group. */
+    @Override
     public void calculateAggregation(Cursor cursor) {
         initialiseTimestampsBuffer(cursor);
         populateTimestampBuffer(cursor);
         AggregationTimestamp scanPoint, nextPoint;
         while (mTimestampsBuffer.size() > 1) {
             scanPoint = mTimestampsBuffer.pollFirst();
-            nextPoint = mTimestampsBuffer.first();
             if (scanPoint.getType() == AggregationTimestamp.GROUP_BORDER) {
                 mCurrentGroup += 1;
+                if (mOpenIntervals.isEmpty()) {
+                    // Nothing is aggregated until the next record starts, so jump to its group.
+                    mCurrentGroup =
+                            Math.max(
+                                    mCurrentGroup,
+                                    GroupSplits.countSplitsUpTo(
+                                                    mGroupSplits,
+                                                    mTimestampsBuffer.first().getTime())
+                                            - 1);
+                }
+                addNextGroupBorder();
             } else if (scanPoint.getType() == AggregationTimestamp.INTERVAL_START) {
                 mOpenIntervals.add(scanPoint.getParentData());
             } else if (scanPoint.getType() == AggregationTimestamp.INTERVAL_END) {
@@ -115,6 +128,7 @@ public class PriorityRecordsAggregator {
                 throw new UnsupportedOperationException(
                         "Unknown aggregation timestamp type: " + scanPoint.getType());
             }
+            nextPoint = mTimestampsBuffer.first();
             updateAggregationResult(scanPoint, nextPoint);
             populateTimestampBuffer(cursor);
         }
@@ -161,11 +175,21 @@ public class PriorityRecordsAggregator {
         }
     }
 
-    private void initialiseTimestampsBuffer(Cursor cursor) {
-        for (Long groupSplit : mGroupSplits) {
+    /**
+     * Adds the border after the current group to the buffer. Borders are added one at a time, so
+     * that the buffer doesn't hold the borders of all groups, and groups without records can be
+     * skipped.
+     */
+    private void addNextGroupBorder() {
+        if (mCurrentGroup + 1 < mGroupSplits.length) {
             mTimestampsBuffer.add(
-                    new AggregationTimestamp(AggregationTimestamp.GROUP_BORDER, groupSplit));
+                    new AggregationTimestamp(
+                            AggregationTimestamp.GROUP_BORDER, mGroupSplits[mCurrentGroup + 1]));
         }
+    }
+
+    private void initialiseTimestampsBuffer(Cursor cursor) {
+        addNextGroupBorder();
 
         while (cursor.moveToNext()) {
             AggregationRecordData data = readNewDataAndMaybeAddToBuffer(cursor);
@@ -209,15 +233,15 @@ public class PriorityRecordsAggregator {
         return data;
     }
 
-    /** Returns result for the given group */
+    @Override
     @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
-    public Double getResultForGroup(Integer groupNumber) {
+    public Double getResultForGroup(int groupNumber) {
         return mGroupToAggregationResult.get(groupNumber);
     }
 
-    /** Returns start time zone offset for the given group */
+    @Override
     @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
-    public ZoneOffset getZoneOffsetForGroup(Integer groupNumber) {
+    public ZoneOffset getZoneOffsetForGroup(int groupNumber) {
         return mGroupToFirstZoneOffset.get(groupNumber);
     }
 
@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers.aggregation;
+
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.ACTIVE_CALORIES_BURNED_RECORD_ACTIVE_CALORIES_TOTAL;
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.DISTANCE_RECORD_DISTANCE_TOTAL;
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.ELEVATION_RECORD_ELEVATION_GAINED_TOTAL;
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.FLOORS_CLIMBED_RECORD_FLOORS_CLIMBED_TOTAL;
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.STEPS_RECORD_COUNT_TOTAL;
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.WHEEL_CHAIR_PUSHES_RECORD_COUNT_TOTAL;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.END_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.LOCAL_DATE_TIME_END_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.LOCAL_DATE_TIME_START_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.START_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.START_ZONE_OFFSET_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.LAST_MODIFIED_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.request.AggregateParams.PriorityAggregationExtraParams.VALUE_TYPE_DOUBLE;
+import static com.android.server.healthconnect.storage.request.AggregateParams.PriorityAggregationExtraParams.VALUE_TYPE_LONG;
+
+import android.database.Cursor;
+import android.health.connect.Constants;
+import android.health.connect.datatypes.AggregationType;
+import android.util.Slog;
+
+import androidx.annotation.Nullable;
+
+import com.android.server.healthconnect.HealthConnectDeviceConfigManager;
+import com.android.server.healthconnect.storage.request.AggregateParams;
+
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Aggregates a value column of records with priorities.
+ *
+ * <p>Gives the same results as {@link PriorityRecordsAggregator}, with a sweep line over primitive
+ * arrays instead of sorted sets of objects. All records are read first, then sorted once by
+ * priority, once by start time and once by end time. Merging the starts, the ends and the group
+ * borders gives the timestamps in the order the other aggregator visits them. Between each two
+ * timestamps, the open record with the highest priority is the top of a heap of record ranks,
+ * where ended records are only popped once they reach the top.
+ *
+ * @hide
+ */
+public final class ValuePriorityRecordsAggregator implements PriorityAggregator {
+    private static final String TAG = "HealthValuePriorityAggregator";
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Note: values matter for ordering timestamps with the same time, see AggregationTimestamp.
+    private static final int GROUP_BORDER = AggregationTimestamp.GROUP_BORDER;
+    private static final int INTERVAL_START = AggregationTimestamp.INTERVAL_START;
+    private static final int INTERVAL_END = AggregationTimestamp.INTERVAL_END;
+
+    private final long[] mGroupSplits;
+    private final int mNumberOfGroups;
+    private final String mValueColumnName;
+    private final int mValueColumnType;
+    private final boolean mUseLocalTime;
+
+    // App ids sorted ascending, with the priority of each app id at the same index.
+    private final long[] mPriorityAppIds;
+    private final int[] mPriorities;
+
+    private final double[] mGroupResults;
+    private final boolean[] mHasGroupResult;
+    private final int[] mGroupZoneOffsetSeconds;
+    private final boolean[] mHasGroupZoneOffset;
+    private boolean mHasZoneOffsets;
+
+    // Records, by the order they are read in until they are ranked, then by rank.
+    private int mRecordCount;
+    private long[] mStartTimes = new long[INITIAL_CAPACITY];
+    private long[] mEndTimes = new long[INITIAL_CAPACITY];
+    private int[] mRecordPriorities = new int[INITIAL_CAPACITY];
+    private long[] mLastModifiedTimes = new long[INITIAL_CAPACITY];
+    private double[] mValues = new double[INITIAL_CAPACITY];
+    private int[] mZoneOffsetSeconds = new int[INITIAL_CAPACITY];
+
+    public ValuePriorityRecordsAggregator(
+            List<Long> groupSplits,
+            List<Long> appIdPriorityList,
+            @AggregationType.AggregationTypeIdentifier int aggregationType,
+            AggregateParams.PriorityAggregationExtraParams extraParams,
+            boolean useLocalTime) {
+        switch (aggregationType) {
+            case STEPS_RECORD_COUNT_TOTAL,
+                    ACTIVE_CALORIES_BURNED_RECORD_ACTIVE_CALORIES_TOTAL,
+                    DISTANCE_RECORD_DISTANCE_TOTAL,
+                    ELEVATION_RECORD_ELEVATION_GAINED_TOTAL,
+                    FLOORS_CLIMBED_RECORD_FLOORS_CLIMBED_TOTAL,
+                    WHEEL_CHAIR_PUSHES_RECORD_COUNT_TOTAL -> {}
+            default -> throw new UnsupportedOperationException(
+                    "Priority aggregation do not support type: " + aggregationType);
+        }
+        mValueColumnName = extraParams.getColumnToAggregateName();
+        mValueColumnType = extraParams.getColumnToAggregateType();
+        if (mValueColumnType != VALUE_TYPE_DOUBLE && mValueColumnType != VALUE_TYPE_LONG) {
+            throw new IllegalArgumentException("Unknown aggregation column type.");
+        }
+        mUseLocalTime = useLocalTime;
+
+        mGroupSplits = GroupSplits.toSortedArray(groupSplits);
+        mNumberOfGroups = mGroupSplits.length - 1;
+        mGroupResults = new double[Math.max(mNumberOfGroups, 0)];
+        mHasGroupResult = new boolean[mGroupResults.length];
+        mGroupZoneOffsetSeconds = new int[mGroupResults.length];
+        mHasGroupZoneOffset = new boolean[mGroupResults.length];
+
+        // Apps earlier in the list have higher priority. When an app is listed more than once, its
+        // last position counts.
+        long[] appIds = new long[appIdPriorityList.size()];
+        for (int i = 0; i < appIds.length; i++) {
+            appIds[i] = appIdPriorityList.get(i);
+        }
+        long[] sortedAppIds = appIds.clone();
+        Arrays.sort(sortedAppIds);
+        int distinctCount = 0;
+        for (long appId : sortedAppIds) {
+            if (distinctCount == 0 || sortedAppIds[distinctCount - 1] != appId) {
+                sortedAppIds[distinctCount++] = appId;
+            }
+        }
+        mPriorityAppIds = Arrays.copyOf(sortedAppIds, distinctCount);
+        mPriorities = new int[distinctCount];
+        for (int i = 0; i < appIds.length; i++) {
+            mPriorities[Arrays.binarySearch(mPriorityAppIds, appIds[i])] = appIds.length - i;
+        }
+
+        if (Constants.DEBUG) {
+            Slog.d(
+                    TAG,
+                    "Aggregation request for splits: "
+                            + groupSplits
+                            + " with priorities: "
+                            + appIdPriorityList);
+        }
+    }
+
+    @Override
+    public void calculateAggregation(Cursor cursor) {
+        readRecords(cursor);
+        int[] recordsByRank = rankRecords();
+        int count = mRecordCount;
+
+        // Rank is the record id from here on: a higher rank wins over the records it overlaps.
+        mStartTimes = reorder(mStartTimes, recordsByRank);
+        mEndTimes = reorder(mEndTimes, recordsByRank);
+        mValues = reorder(mValues, recordsByRank);
+        mZoneOffsetSeconds = reorder(mZoneOffsetSeconds, recordsByRank);
+
+        final long[] startTimes = mStartTimes;
+        final long[] endTimes = mEndTimes;
+        int[] startOrder = identity(count);
+        sort(startOrder, (a, b) -> compareTimes(startTimes, a, b));
+        int[] endOrder = identity(count);
+        sort(endOrder, (a, b) -> compareTimes(endTimes, a, b));
+
+        sweep(startOrder, endOrder);
+
+        if (Constants.DEBUG) {
+            Slog.d(TAG, "Aggregation result: " + Arrays.toString(mGroupResults));
+        }
+    }
+
+    @Override
+    @Nullable
+    public Double getResultForGroup(int groupNumber) {
+        if (groupNumber < 0 || groupNumber >= mNumberOfGroups || !mHasGroupResult[groupNumber]) {
+            return null;
+        }
+        return mGroupResults[groupNumber];
+    }
+
+    @Override
+    @Nullable
+    public ZoneOffset getZoneOffsetForGroup(int groupNumber) {
+        if (!mHasZoneOffsets
+                || groupNumber < 0
+                || groupNumber >= mNumberOfGroups
+                || !mHasGroupZoneOffset[groupNumber]) {
+            return null;
+        }
+        return ZoneOffset.ofTotalSeconds(mGroupZoneOffsetSeconds[groupNumber]);
+    }
+
+    private void readRecords(Cursor cursor) {
+        int startTimeIndex =
+                cursor.getColumnIndex(
+                        mUseLocalTime
+                                ? LOCAL_DATE_TIME_START_TIME_COLUMN_NAME
+                                : START_TIME_COLUMN_NAME);
+        int endTimeIndex =
+                cursor.getColumnIndex(
+                        mUseLocalTime
+                                ? LOCAL_DATE_TIME_END_TIME_COLUMN_NAME
+                                : END_TIME_COLUMN_NAME);
+        int lastModifiedTimeIndex = cursor.getColumnIndex(LAST_MODIFIED_TIME_COLUMN_NAME);
+        int appInfoIdIndex = cursor.getColumnIndex(APP_INFO_ID_COLUMN_NAME);
+        int zoneOffsetIndex = cursor.getColumnIndex(START_ZONE_OFFSET_COLUMN_NAME);
+        int valueIndex = cursor.getColumnIndex(mValueColumnName);
+        mHasZoneOffsets = zoneOffsetIndex != -1;
+        boolean skipRecordsWithoutPriority =
+                HealthConnectDeviceConfigManager.getInitialisedInstance()
+                        .isAggregationSourceControlsEnabled();
+
+        while (cursor.moveToNext()) {
+            int priority = getPriority(cursor.getLong(appInfoIdIndex));
+            if (skipRecordsWithoutPriority && priority == Integer.MIN_VALUE) {
+                continue;
+            }
+
+            long startTime = cursor.getLong(startTimeIndex);
+            long endTime = cursor.getLong(endTimeIndex);
+            // TODO(b/313924267): workaround for b/308467442, should be remove once we have a long
+            // term solution
+            if (startTime > endTime) {
+                // skip records with start time > end time to keep the algorithm functional
+                continue;
+            }
+
+            if (mRecordCount == mStartTimes.length) {
+                grow();
+            }
+            int record = mRecordCount++;
+            mStartTimes[record] = startTime;
+            mEndTimes[record] = endTime;
+            mRecordPriorities[record] = priority;
+            mLastModifiedTimes[record] = cursor.getLong(lastModifiedTimeIndex);
+            mValues[record] =
+                    mValueColumnType == VALUE_TYPE_DOUBLE
+                            ? cursor.getDouble(valueIndex)
+                            : cursor.getLong(valueIndex);
+            mZoneOffsetSeconds[record] = mHasZoneOffsets ? cursor.getInt(zoneOffsetIndex) : 0;
+        }
+    }
+
+    private int getPriority(long appId) {
+        int index = Arrays.binarySearch(mPriorityAppIds, appId);
+        return index < 0 ? Integer.MIN_VALUE : mPriorities[index];
+    }
+
+    /**
+     * Returns the records from the lowest to the highest priority, with the same order as {@link
+     * AggregationRecordData#compareTo}. Only the first read of records that compare as equal is
+     * kept, as sorted sets keep it in the other aggregator.
+     */
+    private int[] rankRecords() {
+        int[] records = identity(mRecordCount);
+        sort(records, this::compareRecords);
+
+        int rankedCount = 0;
+        for (int i = 0; i < records.length; i++) {
+            if (rankedCount == 0 || compareRecords(records[rankedCount - 1], records[i]) != 0) {
+                records[rankedCount++] = records[i];
+            }
+        }
+        mRecordCount = rankedCount;
+        return Arrays.copyOf(records, rankedCount);
+    }
+
+    private int compareRecords(int a, int b) {
+        if (mRecordPriorities[a] != mRecordPriorities[b]) {
+            return Integer.compare(mRecordPriorities[a], mRecordPriorities[b]);
+        }
+        // The later the last modified time, the higher priority this record has.
+        if (mLastModifiedTimes[a] != mLastModifiedTimes[b]) {
+            return Long.compare(mLastModifiedTimes[a], mLastModifiedTimes[b]);
+        }
+        if (mStartTimes[a] != mStartTimes[b]) {
+            return Long.compare(mStartTimes[a], mStartTimes[b]);
+        }
+        if (mEndTimes[a] != mEndTimes[b]) {
+            return Long.compare(mEndTimes[a], mEndTimes[b]);
+        }
+        return Double.compare(
+                getResultOnInterval(a, mStartTimes[a], INTERVAL_START, mEndTimes[a], INTERVAL_END),
+                getResultOnInterval(b, mStartTimes[b], INTERVAL_START, mEndTimes[b], INTERVAL_END));
+    }
+
+    /**
+     * Visits the group borders, record starts and record ends in time order, and adds the value of
+     * the open record with the highest priority between each two of them to the current group.
+     */
+    private void sweep(int[] startOrder, int[] endOrder) {
+        int count = mRecordCount;
+        int[] heap = new int[count];
+        int heapSize = 0;
+        boolean[] ended = new boolean[count];
+        int openCount = 0;
+        // Index in startOrder of the earliest started record that may still be open.
+        int earliestOpen = 0;
+        int currentGroup = -1;
+
+        int nextSplit = 0;
+        int nextStart = 0;
+        int nextEnd = 0;
+        int totalTimestamps = mGroupSplits.length + 2 * count;
+
+        // The timestamp visited last.
+        long time = 0;
+        int type = GROUP_BORDER;
+        for (int visited = 0; visited < totalTimestamps; visited++) {
+            if (openCount == 0) {
+                if (nextStart == count) {
+                    // Only group borders are left.
+                    break;
+                }
+                // Nothing is aggregated until the next record starts, so skip to the last group
+                // border before it.
+                int lastSplit =
+                        GroupSplits.countSplitsUpTo(
+                                        mGroupSplits, mStartTimes[startOrder[nextStart]])
+                                - 1;
+                if (lastSplit > nextSplit) {
+                    currentGroup += lastSplit - nextSplit;
+                    visited += lastSplit - nextSplit;
+                    nextSplit = lastSplit;
+                }
+            }
+
+            // Group borders come first at equal times, then starts, then ends, each by rank.
+            long nextTime;
+            int nextType;
+            int nextRecord;
+            long splitTime =
+                    nextSplit < mGroupSplits.length ? mGroupSplits[nextSplit] : Long.MAX_VALUE;
+            long startTime =
+                    nextStart < count ? mStartTimes[startOrder[nextStart]] : Long.MAX_VALUE;
+            long endTime = nextEnd < count ? mEndTimes[endOrder[nextEnd]] : Long.MAX_VALUE;
+            if (nextSplit < mGroupSplits.length && splitTime <= startTime && splitTime <= endTime) {
+                nextTime = splitTime;
+                nextType = GROUP_BORDER;
+                nextRecord = -1;
+                nextSplit++;
+            } else if (nextStart < count && startTime <= endTime) {
+                nextTime = startTime;
+                nextType = INTERVAL_START;
+                nextRecord = startOrder[nextStart++];
+            } else {
+                nextTime = endTime;
+                nextType = INTERVAL_END;
+                nextRecord = endOrder[nextEnd++];
+            }
+
+            if (visited > 0) {
+                // Sum the interval between the timestamp visited last and this one.
+                if (openCount > 0
+                        && currentGroup >= 0
+                        && currentGroup < mNumberOfGroups
+                        && !(time == nextTime
+                                && type == GROUP_BORDER
+                                && nextType == INTERVAL_END)) {
+                    while (ended[heap[0]]) {
+                        heapSize = popMax(heap, heapSize);
+                    }
+                    mGroupResults[currentGroup] +=
+                            getResultOnInterval(heap[0], time, type, nextTime, nextType);
+                    mHasGroupResult[currentGroup] = true;
+
+                    if (!mHasGroupZoneOffset[currentGroup]) {
+                        while (ended[startOrder[earliestOpen]]) {
+                            earliestOpen++;
+                        }
+                        mGroupZoneOffsetSeconds[currentGroup] =
+                                mZoneOffsetSeconds[startOrder[earliestOpen]];
+                        mHasGroupZoneOffset[currentGroup] = true;
+                    }
+                }
+            }
+
+            time = nextTime;
+            type = nextType;
+            if (type == GROUP_BORDER) {
+                currentGroup++;
+            } else if (type == INTERVAL_START) {
+                heapSize = pushMax(heap, heapSize, nextRecord);
+                openCount++;
+            } else {
+                ended[nextRecord] = true;
+                openCount--;
+            }
+        }
+    }
+
+    /** Same as {@link ValueColumnAggregationData#getResultOnInterval}. */
+    private double getResultOnInterval(
+            int record, long startTime, int startType, long endTime, int endType) {
+        double intervalDuration = mEndTimes[record] - mStartTimes[record];
+        double overlapDuration =
+                Math.min(mEndTimes[record], endTime) - Math.max(mStartTimes[record], startTime);
+
+        // Instant records with the same time are only accounted for once, see
+        // ValueColumnAggregationData.
+        if (intervalDuration == 0 && startType == INTERVAL_START && endType == INTERVAL_END) {
+            return mValues[record];
+        }
+
+        if (intervalDuration < 0 || overlapDuration <= 0) {
+            return 0;
+        }
+
+        return mValues[record] * overlapDuration / intervalDuration;
+    }
+
+    private void grow() {
+        int capacity = mStartTimes.length * 2;
+        mStartTimes = Arrays.copyOf(mStartTimes, capacity);
+        mEndTimes = Arrays.copyOf(mEndTimes, capacity);
+        mRecordPriorities = Arrays.copyOf(mRecordPriorities, capacity);
+        mLastModifiedTimes = Arrays.copyOf(mLastModifiedTimes, capacity);
+        mValues = Arrays.copyOf(mValues, capacity);
+        mZoneOffsetSeconds = Arrays.copyOf(mZoneOffsetSeconds, capacity);
+    }
+
+    private static int compareTimes(long[] times, int a, int b) {
+        int result = Long.compare(times[a], times[b]);
+        return result != 0 ? result : Integer.compare(a, b);
+    }
+
+    private static int pushMax(int[] heap, int size, int value) {
+        int index = size;
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (heap[parent] >= value) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = value;
+        return size + 1;
+    }
+
+    private static int popMax(int[] heap, int size) {
+        int last = heap[--size];
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] > heap[child]) {
+                child++;
+            }
+            if (heap[child] <= last) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = last;
+        return size;
+    }
+
+    private static int[] identity(int size) {
+        int[] values = new int[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = i;
+        }
+        return values;
+    }
+
+    private static long[] reorder(long[] values, int[] order) {
+        long[] reordered = new long[order.length];
+        for (int i = 0; i < order.length; i++) {
+            reordered[i] = values[order[i]];
+        }
+        return reordered;
+    }
+
+    private static int[] reorder(int[] values, int[] order) {
+        int[] reordered = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            reordered[i] = values[order[i]];
+        }
+        return reordered;
+    }
+
+    private static double[] reorder(double[] values, int[] order) {
+        double[] reordered = new double[order.length];
+        for (int i = 0; i < order.length; i++) {
+            reordered[i] = values[order[i]];
+        }
+        return reordered;
+    }
+
+    /** Stable merge sort of {@code values}, which doesn't box them like a comparator would. */
+    private static void sort(int[] values, IntBinaryOperator comparator) {
+        int[] buffer = new int[values.length];
+        int[] source = values;
+        int[] target = buffer;
+        for (int width = 1; width < values.length; width *= 2) {
+            for (int from = 0; from < values.length; from += 2 * width) {
+                int middle = Math.min(from + width, values.length);
+                int to = Math.min(from + 2 * width, values.length);
+                int left = from;
+                int right = middle;
+                for (int i = from; i < to; i++) {
+                    if (left < middle
+                            && (right >= to
+                                    || comparator.applyAsInt(source[left], source[right]) <= 0)) {
+                        target[i] = source[left++];
+                    } else {
+                        target[i] = source[right++];
+                    }
+                }
+            }
+            int[] swap = source;
+            source = target;
+            target = swap;
+        }
+        if (source != values) {
+            System.arraycopy(source, 0, values, 0, values.length);
+        }
+    }
+}
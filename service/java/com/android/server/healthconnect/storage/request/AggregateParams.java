@@ -48,6 +48,11 @@ public final class AggregateParams {
 
     private String mTimeOffsetColumnName;
 
+    // SQL expression computing the aggregate, used instead of applying the aggregation operation
+    // to the column to fetch.
+    @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
+    private String mAggregateExpression = null;
+
     private PriorityAggregationExtraParams mPriorityAggregationExtraParams;
 
     @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
@@ -91,12 +96,26 @@ public final class AggregateParams {
         return mTimeOffsetColumnName;
     }
 
+    public String getAggregateExpression() {
+        return mAggregateExpression;
+    }
+
     /** Sets join type. */
     public AggregateParams setJoin(SqlJoin join) {
         mJoin = join;
         return this;
     }
 
+    /**
+     * Sets the SQL expression that computes the aggregate. Its result is returned under the name
+     * of the first column to fetch. Only applies to aggregations without priority.
+     */
+    public AggregateParams setAggregateExpression(@NonNull String aggregateExpression) {
+        Objects.requireNonNull(aggregateExpression);
+        mAggregateExpression = aggregateExpression;
+        return this;
+    }
+
     public AggregateParams setTimeColumnName(String columnName) {
         mTimeColumnName = columnName;
         return this;
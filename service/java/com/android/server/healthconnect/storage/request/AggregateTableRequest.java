@@ -25,7 +25,9 @@ import static android.health.connect.datatypes.AggregationType.SUM;
 import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.health.connect.AggregateResult;
 import android.health.connect.Constants;
 import android.health.connect.LocalTimeRangeFilter;
@@ -33,24 +35,31 @@ import android.health.connect.TimeRangeFilter;
 import android.health.connect.TimeRangeFilterHelper;
 import android.health.connect.datatypes.AggregationType;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Pair;
 import android.util.Slog;
 
 import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.AggregationRollupHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
-import com.android.server.healthconnect.storage.datatypehelpers.aggregation.PriorityRecordsAggregator;
+import com.android.server.healthconnect.storage.datatypehelpers.aggregation.PriorityAggregator;
 import com.android.server.healthconnect.storage.utils.OrderByClause;
 import com.android.server.healthconnect.storage.utils.SqlJoin;
+import com.android.server.healthconnect.storage.utils.SqlStatement;
 import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.Period;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A request for {@link TransactionManager} to query the DB for aggregation results
@@ -60,11 +69,13 @@ import java.util.Map;
 public class AggregateTableRequest {
     private static final String TAG = "HealthConnectAggregate";
     private static final String GROUP_BY_COLUMN_NAME = "category";
+    private static final String DATA_ORIGIN_IDS_COLUMN_NAME = "data_origin_ids";
 
     private static final int MAX_NUMBER_OF_GROUPS = Constants.MAXIMUM_PAGE_SIZE;
 
     private final String mTableName;
     private final List<String> mColumnNamesToAggregate;
+    private final String mAggregateExpression;
     private final AggregationType<?> mAggregationType;
     private final RecordHelper<?> mRecordHelper;
     private final Map<Integer, AggregateResult<?>> mAggregateResults = new ArrayMap<>();
@@ -87,6 +98,19 @@ public class AggregateTableRequest {
     private final boolean mUseLocalTime;
     private List<Long> mTimeSplits;
 
+    /**
+     * Duration of all groups but the last one, which may be cut shorter, or 0 if the groups have
+     * different durations.
+     */
+    private long mGroupDurationMillis;
+
+    @Nullable private String mRollupColumnName;
+    private List<Long> mRollupAppInfoIds = Collections.emptyList();
+    private long mRollupStartTime;
+    private final Map<Integer, Double> mRollupSums = new ArrayMap<>();
+    private final Map<Integer, ZoneOffset> mRollupZoneOffsets = new ArrayMap<>();
+    private final Set<Long> mDataOriginIds = new ArraySet<>();
+
     @SuppressWarnings("NullAway.Init") // TODO(b/317029272): fix this suppression
     public AggregateTableRequest(
             AggregateParams params,
@@ -96,6 +120,7 @@ public class AggregateTableRequest {
             boolean useLocalTime) {
         mTableName = params.getTableName();
         mColumnNamesToAggregate = params.getColumnsToFetch();
+        mAggregateExpression = params.getAggregateExpression();
         mTimeColumnName = params.getTimeColumnName();
         mAggregationType = aggregationType;
         mRecordHelper = recordHelper;
@@ -140,9 +165,16 @@ public class AggregateTableRequest {
         return aggregateResults;
     }
 
-    /** Returns SQL statement to get data origins for the aggregation operation */
-    public String getCommandToFetchAggregateMetadata() {
-        final StringBuilder builder = new StringBuilder("SELECT DISTINCT ");
+    /**
+     * Returns SQL statement to get data origins for the aggregation operation, or {@code null} if
+     * they are read along with the results of {@link #getAggregationStatement()}.
+     */
+    @Nullable
+    public SqlStatement getAggregateMetadataStatement() {
+        if (!StorageUtils.isDerivedType(mRecordHelper.getRecordIdentifier())) {
+            return null;
+        }
+        final SqlStatement.Builder builder = new SqlStatement.Builder().append("SELECT DISTINCT ");
         builder.append(APP_INFO_ID_COLUMN_NAME).append(", ");
         return appendAggregateCommand(builder, /* isMetadata= */ true);
     }
@@ -159,20 +191,115 @@ public class AggregateTableRequest {
 
     /** Returns SQL statement to perform aggregation operation */
     @NonNull
-    public String getAggregationCommand() {
-        final StringBuilder builder = new StringBuilder("SELECT ");
-        String aggCommand;
-        boolean usingPriority =
-                StorageUtils.supportsPriority(
-                                mRecordHelper.getRecordIdentifier(),
-                                mAggregationType.getAggregateOperationType())
-                        || StorageUtils.isDerivedType(mRecordHelper.getRecordIdentifier());
-        if (usingPriority) {
+    public SqlStatement getAggregationStatement() {
+        final SqlStatement.Builder builder = new SqlStatement.Builder().append("SELECT ");
+        appendAggregateColumns(builder, /* aliasSuffix= */ "");
+        return builder.append(getAggregationSourceStatement()).build();
+    }
+
+    /**
+     * Splits {@code requests} into the lists of requests to compute with one statement each.
+     *
+     * <p>Requests aggregating the records of the same table with the same filters and groups are
+     * fused into one statement, see {@link #getFusedAggregationStatement}. A statement has at most
+     * one MIN or MAX aggregation though, as the zone offset of its results is read from the record
+     * with the extreme value, which is only selected when it is the only MIN or MAX.
+     */
+    @NonNull
+    public static List<List<AggregateTableRequest>> planAggregationStatements(
+            @NonNull List<AggregateTableRequest> requests) {
+        List<List<AggregateTableRequest>> statements = new ArrayList<>();
+        Map<Pair<String, List<Object>>, List<List<AggregateTableRequest>>> fusableStatements =
+                new ArrayMap<>();
+        for (AggregateTableRequest request : requests) {
+            if (!request.isFusable()) {
+                statements.add(List.of(request));
+                continue;
+            }
+
+            SqlStatement source = request.getAggregationSourceStatement();
+            List<List<AggregateTableRequest>> candidates =
+                    fusableStatements.computeIfAbsent(
+                            new Pair<>(source.getSql(), Arrays.asList(source.getBindArgs())),
+                            key -> new ArrayList<>());
+            List<AggregateTableRequest> statement = null;
+            for (List<AggregateTableRequest> candidate : candidates) {
+                if (!request.isExtremum()
+                        || candidate.stream().noneMatch(AggregateTableRequest::isExtremum)) {
+                    statement = candidate;
+                    break;
+                }
+            }
+            if (statement == null) {
+                statement = new ArrayList<>();
+                candidates.add(statement);
+                statements.add(statement);
+            }
+            statement.add(request);
+        }
+        return statements;
+    }
+
+    /**
+     * Returns SQL statement computing all of {@code requests}, a list returned by {@link
+     * #planAggregationStatements}, in one pass over their records.
+     */
+    @NonNull
+    public static SqlStatement getFusedAggregationStatement(
+            @NonNull List<AggregateTableRequest> requests) {
+        final SqlStatement.Builder builder = new SqlStatement.Builder().append("SELECT ");
+        for (int i = 0; i < requests.size(); i++) {
+            requests.get(i).appendAggregateColumns(builder, getAliasSuffix(i));
+        }
+        return builder.append(requests.get(0).getAggregationSourceStatement()).build();
+    }
+
+    /** Reads the results of {@link #getFusedAggregationStatement} into each of {@code requests}. */
+    public static void onFusedResultsFetched(
+            @NonNull List<AggregateTableRequest> requests, @NonNull Cursor cursor) {
+        for (int i = 0; i < requests.size(); i++) {
+            cursor.moveToPosition(-1);
+            requests.get(i).onResultsFetched(new AliasedColumnsCursor(cursor, getAliasSuffix(i)));
+        }
+    }
+
+    private static String getAliasSuffix(int index) {
+        return "_" + index;
+    }
+
+    /** Whether the aggregation is computed by SQL, so that it can share a statement. */
+    private boolean isFusable() {
+        return !isUsingPriority() && mRollupColumnName == null;
+    }
+
+    private boolean isExtremum() {
+        int operationType = mAggregationType.getAggregateOperationType();
+        return operationType == MIN || operationType == MAX;
+    }
+
+    private boolean isUsingPriority() {
+        return StorageUtils.supportsPriority(
+                        mRecordHelper.getRecordIdentifier(),
+                        mAggregationType.getAggregateOperationType())
+                || StorageUtils.isDerivedType(mRecordHelper.getRecordIdentifier());
+    }
+
+    /**
+     * Appends the aggregated columns, or the columns to aggregate in Java when using priorities.
+     * Their names are suffixed with {@code aliasSuffix}.
+     */
+    private void appendAggregateColumns(SqlStatement.Builder builder, String aliasSuffix) {
+        if (isUsingPriority()) {
             for (String columnName : mColumnNamesToAggregate) {
                 builder.append(columnName).append(", ");
             }
+        } else if (mAggregateExpression != null) {
+            builder.append(mAggregateExpression)
+                    .append(" as ")
+                    .append(mColumnNamesToAggregate.get(0) + aliasSuffix)
+                    .append(", ");
         } else {
-            aggCommand = getSqlCommandFor(mAggregationType.getAggregateOperationType());
+            String aggCommand = getSqlCommandFor(mAggregationType.getAggregateOperationType());
 
             for (String columnName : mColumnNamesToAggregate) {
                 builder.append(aggCommand)
@@ -180,20 +307,118 @@ public class AggregateTableRequest {
                         .append(columnName)
                         .append(")")
                         .append(" as ")
-                        .append(columnName)
+                        .append(columnName + aliasSuffix)
                         .append(", ");
             }
         }
+    }
 
-        if (mAdditionalColumnsToFetch != null) {
-            for (String additionalColumnToFetch : mAdditionalColumnsToFetch) {
-                builder.append(additionalColumnToFetch).append(", ");
-            }
+    /**
+     * Returns the part of the aggregation statement after the aggregated columns, which is the
+     * same for all the requests that can be fused.
+     */
+    private SqlStatement getAggregationSourceStatement() {
+        final SqlStatement.Builder builder = new SqlStatement.Builder();
+        for (String additionalColumnToFetch : mAdditionalColumnsToFetch) {
+            builder.append(additionalColumnToFetch).append(", ");
         }
 
+        boolean usingPriority = isUsingPriority();
+        if (!usingPriority) {
+            // Priority requests read the app of each record, the others read the data origins
+            // of each group instead of querying them separately.
+            builder.append("GROUP_CONCAT(DISTINCT ")
+                    .append(APP_INFO_ID_COLUMN_NAME)
+                    .append(") AS " + DATA_ORIGIN_IDS_COLUMN_NAME + ", ");
+        }
         return appendAggregateCommand(builder, usingPriority);
     }
 
+    /**
+     * Lets the whole hours and days of the groups be read from the hourly and daily sums of {@code
+     * columnName} kept by {@link AggregationRollupHelper}, instead of from the records.
+     *
+     * @param appInfoIds the apps to aggregate the records of, all apps if empty.
+     * @param startTime the time from which records of all apps can be read from the rollups. Before
+     *     it, records are read from the table so that the start date access is applied to them.
+     */
+    public void setRollup(
+            @NonNull String columnName, @NonNull List<Long> appInfoIds, long startTime) {
+        mRollupColumnName = columnName;
+        mRollupAppInfoIds = appInfoIds;
+        mRollupStartTime = startTime;
+    }
+
+    /**
+     * Returns SQL statement to read the part of the aggregation that can be answered by the
+     * rollups, or {@code null} if there isn't any.
+     *
+     * <p>Records covered by the returned statement are excluded from {@link
+     * #getAggregationStatement()}, so this has to be called before it.
+     */
+    @Nullable
+    public SqlStatement getRollupAggregationStatement() {
+        if (mRollupColumnName == null || mTimeSplits == null) {
+            return null;
+        }
+
+        Map<Integer, Pair<Long, Long>> groupRanges = new ArrayMap<>();
+        long excludedStart = 0;
+        long excludedEnd = 0;
+        for (int i = 0; i < mTimeSplits.size() - 1; i++) {
+            long start =
+                    AggregationRollupHelper.getBucketCeiling(
+                            Math.max(mTimeSplits.get(i), mRollupStartTime),
+                            AggregationRollupHelper.HOUR_BUCKET_MILLIS);
+            long end =
+                    AggregationRollupHelper.getBucketFloor(
+                            mTimeSplits.get(i + 1), AggregationRollupHelper.HOUR_BUCKET_MILLIS);
+            if (start >= end) {
+                continue;
+            }
+            groupRanges.put(i, new Pair<>(start, end));
+
+            // Adjacent ranges, such as the ones of daily groups, are excluded with one clause.
+            if (excludedEnd != start) {
+                if (excludedStart < excludedEnd) {
+                    excludeFromAggregation(excludedStart, excludedEnd);
+                }
+                excludedStart = start;
+            }
+            excludedEnd = end;
+        }
+        if (groupRanges.isEmpty()) {
+            return null;
+        }
+        excludeFromAggregation(excludedStart, excludedEnd);
+
+        return AggregationRollupHelper.getInstance()
+                .getRollupAggregationStatement(
+                        mRecordHelper.getRecordIdentifier(),
+                        mRollupColumnName,
+                        mUseLocalTime,
+                        groupRanges,
+                        mRollupAppInfoIds);
+    }
+
+    /** Reads the result of {@link #getRollupAggregationStatement()}. */
+    public void onRollupResultsFetched(@NonNull Cursor cursor) {
+        while (cursor.moveToNext()) {
+            int group =
+                    StorageUtils.getCursorInt(cursor, AggregationRollupHelper.GROUP_COLUMN_NAME);
+            double sum =
+                    StorageUtils.getCursorDouble(
+                            cursor, AggregationRollupHelper.VALUE_SUM_COLUMN_NAME);
+            mRollupSums.merge(group, sum, Double::sum);
+            mRollupZoneOffsets.put(
+                    group,
+                    ZoneOffset.ofTotalSeconds(
+                            StorageUtils.getCursorInt(
+                                    cursor, AggregationRollupHelper.ZONE_OFFSET_COLUMN_NAME)));
+            mDataOriginIds.add(StorageUtils.getCursorLong(cursor, APP_INFO_ID_COLUMN_NAME));
+        }
+    }
+
     /** Sets time filter for table request. */
     public AggregateTableRequest setTimeFilter(long startTime, long endTime) {
         // Return if the params will result in no impact on the query
@@ -211,8 +436,12 @@ public class AggregateTableRequest {
         mGroupByColumnName = columnName;
         if (period != null) {
             mTimeSplits = getGroupSplitsForPeriod(timeRangeFilter, period);
+            // Local times have no time zone transitions, so only months and years vary in length.
+            mGroupDurationMillis =
+                    period.toTotalMonths() == 0 ? Duration.ofDays(period.getDays()).toMillis() : 0;
         } else if (duration != null) {
             mTimeSplits = getGroupSplitsForDuration(timeRangeFilter, duration);
+            mGroupDurationMillis = duration.toMillis();
         } else {
             throw new IllegalArgumentException(
                     "Either aggregation period or duration should be not null");
@@ -229,31 +458,51 @@ public class AggregateTableRequest {
         }
     }
 
-    public void onResultsFetched(Cursor cursor, Cursor metaDataCursor) {
+    /**
+     * Reads the results of {@link #getAggregationStatement()} and of {@link
+     * #getAggregateMetadataStatement()}, if not null.
+     */
+    public void onResultsFetched(@NonNull Cursor cursor, @Nullable Cursor metaDataCursor) {
+        if (metaDataCursor != null) {
+            while (metaDataCursor.moveToNext()) {
+                mDataOriginIds.add(
+                        StorageUtils.getCursorLong(metaDataCursor, APP_INFO_ID_COLUMN_NAME));
+            }
+        }
+        onResultsFetched(cursor);
+    }
+
+    private void onResultsFetched(Cursor cursor) {
         if (StorageUtils.isDerivedType(mRecordHelper.getRecordIdentifier())) {
             deriveAggregate(cursor);
         } else if (StorageUtils.supportsPriority(
                 mRecordHelper.getRecordIdentifier(),
                 mAggregationType.getAggregateOperationType())) {
             processPriorityRequest(cursor);
+        } else if (mRollupColumnName != null) {
+            processRollupRequest(cursor);
         } else {
             processNoPrioritiesRequest(cursor);
         }
 
-        updateResultWithDataOriginPackageNames(metaDataCursor);
+        updateResultWithDataOriginPackageNames();
     }
 
     private void processPriorityRequest(Cursor cursor) {
         List<Long> priorityList =
                 StorageUtils.getAppIdPriorityList(mRecordHelper.getRecordIdentifier());
-        PriorityRecordsAggregator aggregator =
-                new PriorityRecordsAggregator(
+        PriorityAggregator aggregator =
+                PriorityAggregator.create(
                         mTimeSplits,
                         priorityList,
                         mAggregationType.getAggregationTypeIdentifier(),
                         mPriorityParams,
                         mUseLocalTime);
-        aggregator.calculateAggregation(cursor);
+        DataOriginsCursor dataOriginsCursor = new DataOriginsCursor(cursor, mDataOriginIds);
+        aggregator.calculateAggregation(dataOriginsCursor);
+        while (dataOriginsCursor.moveToNext()) {
+            // Records left unread by the aggregator are data origins all the same.
+        }
         AggregateResult<?> result;
         for (int groupNumber = 0; groupNumber < mGroupBySize; groupNumber++) {
             if (aggregator.getResultForGroup(groupNumber) == null) {
@@ -282,9 +531,55 @@ public class AggregateTableRequest {
             mAggregateResults.put(
                     StorageUtils.getCursorInt(cursor, GROUP_BY_COLUMN_NAME),
                     mRecordHelper.getAggregateResult(cursor, mAggregationType));
+            readDataOriginIds(cursor);
         }
     }
 
+    /** Adds the sums read from the rollups to the sums of the records left in the table. */
+    private void processRollupRequest(Cursor cursor) {
+        Map<Integer, Double> sums = new ArrayMap<>();
+        Map<Integer, ZoneOffset> zoneOffsets = new ArrayMap<>(mRollupZoneOffsets);
+        sums.putAll(mRollupSums);
+        String offsetColumnName = mAdditionalColumnsToFetch.get(0);
+        while (cursor.moveToNext()) {
+            int groupNumber =
+                    mGroupByColumnName == null
+                            ? 0
+                            : StorageUtils.getCursorInt(cursor, GROUP_BY_COLUMN_NAME);
+            sums.merge(
+                    groupNumber,
+                    StorageUtils.getCursorDouble(cursor, mColumnNamesToAggregate.get(0)),
+                    Double::sum);
+            readDataOriginIds(cursor);
+            // Without a group by, there is a row even if no records are left in the table.
+            if (!cursor.isNull(cursor.getColumnIndex(offsetColumnName))) {
+                zoneOffsets.put(
+                        groupNumber,
+                        ZoneOffset.ofTotalSeconds(
+                                StorageUtils.getCursorInt(cursor, offsetColumnName)));
+            }
+        }
+
+        AggregateResult<?> result;
+        for (Map.Entry<Integer, Double> sum : sums.entrySet()) {
+            if (mAggregationType.getAggregateResultClass() == Long.class) {
+                result = new AggregateResult<>(sum.getValue().longValue());
+            } else {
+                result = new AggregateResult<>(sum.getValue());
+            }
+            mAggregateResults.put(
+                    sum.getKey(), result.setZoneOffset(zoneOffsets.get(sum.getKey())));
+        }
+    }
+
+    /** Leaves records with a time in [start, end) out of the aggregation of the table. */
+    private void excludeFromAggregation(long start, long end) {
+        mWhereClauses.addNestedWhereClauses(
+                new WhereClauses(WhereClauses.LogicalOperator.OR)
+                        .addWhereLessThanClause(mTimeColumnName, start)
+                        .addWhereGreaterThanOrEqualClause(mTimeColumnName, end));
+    }
+
     @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
     private static String getSqlCommandFor(@AggregationType.AggregateOperationType int type) {
         return switch (type) {
@@ -297,34 +592,41 @@ public class AggregateTableRequest {
         };
     }
 
-    private String appendAggregateCommand(StringBuilder builder, boolean isMetadata) {
+    private SqlStatement appendAggregateCommand(
+            SqlStatement.Builder builder, boolean isMetadata) {
         boolean useGroupBy = mGroupByColumnName != null && !isMetadata;
         if (useGroupBy) {
-            builder.append(" CASE ");
-            int groupByIndex = 0;
-            for (int i = 0; i < mTimeSplits.size() - 1; i++) {
-                builder.append(" WHEN ")
+            long start = mTimeSplits.get(0);
+            builder.append(" CASE WHEN ")
+                    .append(mTimeColumnName)
+                    .append(" >= ")
+                    .appendBindArg(start)
+                    .append(" AND ")
+                    .append(mTimeColumnName)
+                    .append(" < ")
+                    .appendBindArg(mTimeSplits.get(mTimeSplits.size() - 1))
+                    .append(" THEN ");
+            if (mGroupDurationMillis > 0) {
+                builder.append("(")
                         .append(mTimeColumnName)
-                        .append(" >= ")
-                        .append(mTimeSplits.get(i))
-                        .append(" AND ")
-                        .append(mTimeColumnName)
-                        .append(" < ")
-                        .append(mTimeSplits.get(i + 1))
-                        .append(" THEN ")
-                        .append(groupByIndex++);
+                        .append(" - ")
+                        .appendBindArg(start)
+                        .append(") / ")
+                        .appendBindArg(mGroupDurationMillis);
+            } else {
+                appendGroupSearch(builder, 0, mTimeSplits.size() - 1);
             }
             builder.append(" END " + GROUP_BY_COLUMN_NAME + " ");
         } else {
-            builder.setLength(builder.length() - 2); // Remove the last 2 char i.e. ", "
+            builder.removeLast(2); // Remove the last 2 char i.e. ", "
         }
 
         builder.append(" FROM ").append(mTableName);
         if (mSqlJoin != null) {
-            builder.append(mSqlJoin.getJoinCommand());
+            builder.append(mSqlJoin.getJoinStatement());
         }
 
-        builder.append(mWhereClauses.get(/* withWhereKeyword= */ true));
+        builder.append(mWhereClauses.getStatement(/* withWhereKeyword= */ true));
 
         if (useGroupBy) {
             builder.append(" GROUP BY " + GROUP_BY_COLUMN_NAME);
@@ -334,20 +636,51 @@ public class AggregateTableRequest {
         orderByClause.addOrderByClause(mTimeColumnName, true);
         builder.append(orderByClause.getOrderBy());
 
+        SqlStatement statement = builder.build();
         if (Constants.DEBUG) {
-            Slog.d(TAG, "Aggregation origin query: " + builder);
+            Slog.d(TAG, "Aggregation origin query: " + statement);
         }
 
-        return builder.toString();
+        return statement;
     }
 
-    @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
-    private void updateResultWithDataOriginPackageNames(Cursor metaDataCursor) {
-        List<Long> packageIds = new ArrayList<>();
-        while (metaDataCursor.moveToNext()) {
-            packageIds.add(StorageUtils.getCursorLong(metaDataCursor, APP_INFO_ID_COLUMN_NAME));
+    /**
+     * Appends an expression of the group, among groups {@code [fromGroup, toGroup)}, of the time
+     * column, which bisects the groups so that each row is compared with a few splits only.
+     */
+    private void appendGroupSearch(SqlStatement.Builder builder, int fromGroup, int toGroup) {
+        if (toGroup - fromGroup == 1) {
+            builder.append(String.valueOf(fromGroup));
+            return;
         }
-        List<String> packageNames = AppInfoHelper.getInstance().getPackageNames(packageIds);
+
+        int middleGroup = (fromGroup + toGroup) >>> 1;
+        builder.append("CASE WHEN ")
+                .append(mTimeColumnName)
+                .append(" < ")
+                .appendBindArg(mTimeSplits.get(middleGroup))
+                .append(" THEN ");
+        appendGroupSearch(builder, fromGroup, middleGroup);
+        builder.append(" ELSE ");
+        appendGroupSearch(builder, middleGroup, toGroup);
+        builder.append(" END");
+    }
+
+    /** Reads the apps of the records of the group at the current position of {@code cursor}. */
+    private void readDataOriginIds(Cursor cursor) {
+        String dataOriginIds = StorageUtils.getCursorString(cursor, DATA_ORIGIN_IDS_COLUMN_NAME);
+        if (dataOriginIds == null) {
+            return;
+        }
+        for (String dataOriginId : dataOriginIds.split(",")) {
+            mDataOriginIds.add(Long.parseLong(dataOriginId));
+        }
+    }
+
+    @SuppressWarnings("NullAway") // TODO(b/317029272): fix this suppression
+    private void updateResultWithDataOriginPackageNames() {
+        List<String> packageNames =
+                AppInfoHelper.getInstance().getPackageNames(new ArrayList<>(mDataOriginIds));
 
         mAggregateResults.replaceAll(
                 (n, v) -> mAggregateResults.get(n).setDataOrigins(packageNames));
@@ -426,4 +759,50 @@ public class AggregateTableRequest {
             index++;
         }
     }
+
+    /** Reads the columns of one request of a fused statement under their unsuffixed names. */
+    private static final class AliasedColumnsCursor extends CursorWrapper {
+        private final String mAliasSuffix;
+
+        AliasedColumnsCursor(Cursor cursor, String aliasSuffix) {
+            super(cursor);
+            mAliasSuffix = aliasSuffix;
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            int index = super.getColumnIndex(columnName + mAliasSuffix);
+            return index >= 0 ? index : super.getColumnIndex(columnName);
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName) {
+            int index = getColumnIndex(columnName);
+            if (index < 0) {
+                throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+            }
+            return index;
+        }
+    }
+
+    /** Collects the app of each record the cursor moves to. */
+    private static final class DataOriginsCursor extends CursorWrapper {
+        private final Set<Long> mDataOriginIds;
+        private final int mAppInfoIdIndex;
+
+        DataOriginsCursor(Cursor cursor, Set<Long> dataOriginIds) {
+            super(cursor);
+            mDataOriginIds = dataOriginIds;
+            mAppInfoIdIndex = cursor.getColumnIndexOrThrow(APP_INFO_ID_COLUMN_NAME);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            if (!super.moveToNext()) {
+                return false;
+            }
+            mDataOriginIds.add(getLong(mAppInfoIdIndex));
+            return true;
+        }
+    }
 }
@@ -102,11 +102,11 @@ public final class AggregateTransactionRequest {
      * @return Compute and return aggregations
      */
     public AggregateDataResponseParcel getAggregateDataResponseParcel() {
+        // Compute aggregations
+        TransactionManager.getInitialisedInstance()
+                .populateWithAggregations(mAggregateTableRequests);
         Map<AggregationType<?>, List<AggregateResult<?>>> results = new ArrayMap<>();
         for (AggregateTableRequest aggregateTableRequest : mAggregateTableRequests) {
-            // Compute aggregations
-            TransactionManager.getInitialisedInstance()
-                    .populateWithAggregation(aggregateTableRequest);
             results.put(
                     aggregateTableRequest.getAggregationType(),
                     aggregateTableRequest.getAggregateResults());
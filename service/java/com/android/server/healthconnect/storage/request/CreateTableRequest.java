@@ -44,7 +44,7 @@ public final class CreateTableRequest {
     private static final String UNIQUE_COMMAND = "UNIQUE ( ";
     private final String mTableName;
     private final List<Pair<String, String>> mColumnInfo;
-    private final List<String> mColumnsToIndex = new ArrayList<>();
+    private final List<List<String>> mColumnsToIndex = new ArrayList<>();
     private final List<List<String>> mUniqueColumns = new ArrayList<>();
     private List<ForeignKey> mForeignKeys = new ArrayList<>();
     private List<CreateTableRequest> mChildTableRequests = Collections.emptyList();
@@ -72,7 +72,19 @@ public final class CreateTableRequest {
     public CreateTableRequest createIndexOn(@NonNull String columnName) {
         Objects.requireNonNull(columnName);
 
-        mColumnsToIndex.add(columnName);
+        mColumnsToIndex.add(Collections.singletonList(columnName));
+        return this;
+    }
+
+    /** Creates a composite index on {@code columnNames}, in the given order. */
+    @NonNull
+    public CreateTableRequest createIndexOn(@NonNull List<String> columnNames) {
+        Objects.requireNonNull(columnNames);
+        if (columnNames.isEmpty()) {
+            throw new IllegalArgumentException("An index needs at least one column");
+        }
+
+        mColumnsToIndex.add(columnNames);
         return this;
     }
 
@@ -154,8 +166,11 @@ public final class CreateTableRequest {
         }
 
         if (!mColumnsToIndex.isEmpty()) {
-            for (String columnToIndex : mColumnsToIndex) {
-                result.add(getCreateIndexCommand(columnToIndex));
+            for (List<String> columnsToIndex : mColumnsToIndex) {
+                result.add(
+                        getCreateIndexCommand(
+                                mTableName + "_" + String.join("_", columnsToIndex),
+                                columnsToIndex));
             }
         }
 
@@ -183,20 +198,6 @@ public final class CreateTableRequest {
                 + ")";
     }
 
-    private String getCreateIndexCommand(String columnName) {
-        Objects.requireNonNull(columnName);
-
-        return CREATE_INDEX_COMMAND
-                + mTableName
-                + "_"
-                + columnName
-                + " ON "
-                + mTableName
-                + "("
-                + columnName
-                + ")";
-    }
-
     public static final class GeneratedColumnInfo {
         private final String columnName;
         private final String type;
@@ -27,12 +27,12 @@ import android.health.connect.Constants;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.util.Slog;
 
-import com.android.server.healthconnect.storage.utils.StorageUtils;
+import com.android.server.healthconnect.storage.utils.SqlStatement;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
-import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.UUID;
 
 /**
  * No need to have delete-requests for child tables as ideally they should be following cascaded
@@ -54,7 +54,8 @@ public class DeleteTableRequest {
     private long mStartTime = DEFAULT_LONG;
     private long mEndTime = DEFAULT_LONG;
     private boolean mRequiresUuId;
-    private List<String> mIds;
+    private List<?> mIds;
+    private WhereClauses mIdWhereClauses;
     private boolean mEnforcePackageCheck;
     private int mNumberOfUuidsToDelete;
     private WhereClauses mCustomWhereClauses;
@@ -93,11 +94,12 @@ public class DeleteTableRequest {
         return this;
     }
 
-    public DeleteTableRequest setIds(@NonNull String idColumnName, @NonNull List<String> ids) {
+    public DeleteTableRequest setIds(@NonNull String idColumnName, @NonNull List<UUID> ids) {
         Objects.requireNonNull(ids);
         Objects.requireNonNull(idColumnName);
 
-        mIds = ids.stream().map(StorageUtils::getNormalisedString).toList();
+        mIds = ids;
+        mIdWhereClauses = new WhereClauses(AND).addWhereInUuidsClause(idColumnName, ids);
         mIdColumnName = idColumnName;
         return this;
     }
@@ -106,7 +108,18 @@ public class DeleteTableRequest {
         Objects.requireNonNull(id);
         Objects.requireNonNull(idColumnName);
 
-        mIds = Collections.singletonList(StorageUtils.getNormalisedString(id));
+        mIds = List.of(id);
+        mIdWhereClauses = new WhereClauses(AND).addWhereEqualsClause(idColumnName, id);
+        mIdColumnName = idColumnName;
+        return this;
+    }
+
+    /** Sets the id of the row to delete, for an integer id column. */
+    public DeleteTableRequest setId(@NonNull String idColumnName, long id) {
+        Objects.requireNonNull(idColumnName);
+
+        mIds = List.of(id);
+        mIdWhereClauses = new WhereClauses(AND).addWhereEqualsClause(idColumnName, id);
         mIdColumnName = idColumnName;
         return this;
     }
@@ -133,8 +146,9 @@ public class DeleteTableRequest {
         return mIdColumnName;
     }
 
+    /** Returns the ids of the rows to delete, as passed to {@link #setIds} or {@link #setId}. */
     @Nullable
-    public List<String> getIds() {
+    public List<?> getIds() {
         return mIds;
     }
 
@@ -152,38 +166,62 @@ public class DeleteTableRequest {
         return this;
     }
 
+    @NonNull
+    public SqlStatement getDeleteStatement() {
+        return new SqlStatement.Builder()
+                .append("DELETE FROM " + mTableName)
+                .append(getWhereStatement())
+                .build();
+    }
+
+    /**
+     * Returns the delete statement with its values written inline. Prefer {@link
+     * #getDeleteStatement()} where bind arguments can be passed.
+     */
     @NonNull
     public String getDeleteCommand() {
-        return "DELETE FROM " + mTableName + getWhereCommand();
+        return getDeleteStatement().toRawSql();
     }
 
+    @NonNull
+    public SqlStatement getReadStatement() {
+        return new SqlStatement.Builder()
+                .append("SELECT " + mIdColumnName + ", " + mPackageColumnName)
+                .append(" FROM " + mTableName)
+                .append(getWhereStatement())
+                .build();
+    }
+
+    /**
+     * Returns the read statement with its values written inline. Prefer {@link
+     * #getReadStatement()} where bind arguments can be passed.
+     */
     public String getReadCommand() {
-        return "SELECT "
-                + mIdColumnName
-                + ", "
-                + mPackageColumnName
-                + " FROM "
-                + mTableName
-                + getWhereCommand();
+        return getReadStatement().toRawSql();
     }
 
     public String getWhereCommand() {
+        return getWhereStatement().toRawSql();
+    }
+
+    @NonNull
+    private SqlStatement getWhereStatement() {
         WhereClauses whereClauses =
                 Objects.isNull(mCustomWhereClauses) ? new WhereClauses(AND) : mCustomWhereClauses;
         whereClauses.addWhereInLongsClause(mPackageColumnName, mPackageFilters);
         whereClauses.addWhereBetweenTimeClause(mTimeColumnName, mStartTime, mEndTime);
-        whereClauses.addWhereInClauseWithoutQuotes(mIdColumnName, mIds);
+        if (mIdWhereClauses != null) {
+            whereClauses.addNestedWhereClauses(mIdWhereClauses);
+        }
+        SqlStatement whereStatement = whereClauses.getStatement(/* withWhereKeyword= */ true);
 
         if (Constants.DEBUG) {
             Slog.d(
                     TAG,
-                    "delete query: tableName: "
-                            + mTableName
-                            + " whereClause: "
-                            + whereClauses.get(true));
+                    "delete query: tableName: " + mTableName + " whereClause: " + whereStatement);
         }
 
-        return whereClauses.get(true);
+        return whereStatement;
     }
 
     @NonNull
@@ -29,9 +29,11 @@ import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
 import com.android.server.healthconnect.storage.utils.OrderByClause;
 import com.android.server.healthconnect.storage.utils.SqlJoin;
+import com.android.server.healthconnect.storage.utils.SqlStatement;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 
@@ -52,8 +54,10 @@ public class ReadTableRequest {
     private boolean mDistinct = false;
     private OrderByClause mOrderByClause = new OrderByClause();
     private String mLimitClause = "";
+    private String mOffsetClause = "";
     private List<ReadTableRequest> mExtraReadRequests;
     private List<ReadTableRequest> mUnionReadRequests;
+    @Nullable private String mParentKeyColumnName;
 
     @SuppressWarnings("NullAway.Init") // TODO(b/317029272): fix this suppression
     public ReadTableRequest(@NonNull String tableName) {
@@ -104,8 +108,8 @@ public class ReadTableRequest {
 
     /** Returns SQL statement to perform read operation. */
     @NonNull
-    public String getReadCommand() {
-        StringBuilder builder = new StringBuilder("SELECT ");
+    public SqlStatement getReadStatement() {
+        SqlStatement.Builder builder = new SqlStatement.Builder().append("SELECT ");
         if (mDistinct) {
             builder.append("DISTINCT ");
             builder.append(getColumnsToFetch());
@@ -115,13 +119,14 @@ public class ReadTableRequest {
         builder.append(" FROM ");
         builder.append(mTableName);
 
-        builder.append(mWhereClauses.get(/* withWhereKeyword */ true));
+        builder.append(mWhereClauses.getStatement(/* withWhereKeyword */ true));
         builder.append(mOrderByClause.getOrderBy());
         builder.append(mLimitClause);
+        builder.append(mOffsetClause);
 
-        String readQuery = builder.toString();
+        SqlStatement readQuery = builder.build();
         if (mJoinClause != null) {
-            readQuery = mJoinClause.getJoinWithQueryCommand(readQuery);
+            readQuery = mJoinClause.getJoinWithQueryStatement(readQuery);
         }
 
         if (Constants.DEBUG) {
@@ -129,22 +134,31 @@ public class ReadTableRequest {
         }
 
         if (mUnionReadRequests != null && !mUnionReadRequests.isEmpty()) {
-            builder = new StringBuilder();
+            builder = new SqlStatement.Builder();
             for (ReadTableRequest unionReadRequest : mUnionReadRequests) {
                 builder.append("SELECT * FROM (");
-                builder.append(unionReadRequest.getReadCommand());
+                builder.append(unionReadRequest.getReadStatement());
                 builder.append(")");
                 builder.append(UNION_ALL);
             }
 
             builder.append(readQuery);
 
-            return builder.toString();
+            return builder.build();
         }
 
         return readQuery;
     }
 
+    /**
+     * Returns SQL statement to perform read operation, with its values written inline. Prefer
+     * {@link #getReadStatement()} where bind arguments can be passed.
+     */
+    @NonNull
+    public String getReadCommand() {
+        return getReadStatement().toRawSql();
+    }
+
     /** Get requests for populating extra data */
     @Nullable
     public List<ReadTableRequest> getExtraReadRequests() {
@@ -157,6 +171,40 @@ public class ReadTableRequest {
         return this;
     }
 
+    /**
+     * Sets the column referencing the parent record, for requests reading the rows of a child
+     * table. These rows are read for all the records of a page at once, with {@link
+     * #getChildReadStatement}, rather than joined to the records.
+     */
+    @NonNull
+    public ReadTableRequest setParentKeyColumnName(@NonNull String parentKeyColumnName) {
+        mParentKeyColumnName = Objects.requireNonNull(parentKeyColumnName);
+        return this;
+    }
+
+    /**
+     * Returns SQL statement to read the rows of this child table that belong to the records with
+     * {@code parentRowIds}, with a single {@code IN} clause on the parent key column.
+     */
+    @NonNull
+    public SqlStatement getChildReadStatement(@NonNull Collection<Long> parentRowIds) {
+        Objects.requireNonNull(mParentKeyColumnName);
+        if (parentRowIds.isEmpty()) {
+            // An empty IN clause is dropped, which would read the rows of all records.
+            throw new IllegalArgumentException("No parent row ids to read child rows of");
+        }
+
+        WhereClauses whereClauses =
+                new WhereClauses(AND)
+                        .addNestedWhereClauses(mWhereClauses)
+                        .addWhereInLongsClause(mParentKeyColumnName, parentRowIds);
+        return new SqlStatement.Builder()
+                .append("SELECT " + getColumnsToFetch() + " FROM " + mTableName)
+                .append(whereClauses.getStatement(/* withWhereKeyword= */ true))
+                .append(mOrderByClause.getOrderBy())
+                .build();
+    }
+
     /** Get table name of the request */
     public String getTableName() {
         return mTableName;
@@ -176,6 +224,13 @@ public class ReadTableRequest {
         return this;
     }
 
+    /** Sets OFFSET for the read query, which requires a LIMIT to be set */
+    @NonNull
+    public ReadTableRequest setOffset(int offset) {
+        mOffsetClause = " OFFSET " + offset;
+        return this;
+    }
+
     private String getColumnsToFetch() {
         if (mColumnNames == null || mColumnNames.isEmpty()) {
             return "*";
@@ -29,7 +29,6 @@ import android.util.ArrayMap;
 import android.util.Pair;
 
 import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
-import com.android.server.healthconnect.storage.utils.StorageUtils;
 import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import java.lang.annotation.ElementType;
@@ -54,6 +53,8 @@ public class UpsertTableRequest {
     private long mRowId = INVALID_ROW_ID;
     private WhereClauses mWhereClausesForUpdate;
     private IRequiresUpdate mRequiresUpdate = new IRequiresUpdate() {};
+    @Nullable private String mUpsertConflictColumn;
+    @Nullable private String mUpsertUpdateCondition;
     private Integer mRecordType;
     private RecordInternal<?> mRecordInternal;
     private RecordHelper<?> mRecordHelper;
@@ -107,6 +108,34 @@ public class UpsertTableRequest {
         return this;
     }
 
+    /**
+     * Lets SQLite resolve conflicts on {@code conflictColumn} with an UPSERT, which updates the
+     * existing row only if {@code updateCondition} holds. In the condition, the values of this
+     * request are accessed with the {@code excluded.} prefix, and the values of the existing row
+     * with no prefix.
+     *
+     * <p>Conflicts on other unique columns still go through {@link #requiresUpdate}.
+     */
+    @NonNull
+    public UpsertTableRequest setUpsertOnConflict(
+            @NonNull String conflictColumn, @Nullable String updateCondition) {
+        Objects.requireNonNull(conflictColumn);
+
+        mUpsertConflictColumn = conflictColumn;
+        mUpsertUpdateCondition = updateCondition;
+        return this;
+    }
+
+    @Nullable
+    public String getUpsertConflictColumn() {
+        return mUpsertConflictColumn;
+    }
+
+    @Nullable
+    public String getUpsertUpdateCondition() {
+        return mUpsertUpdateCondition;
+    }
+
     @NonNull
     public String getTable() {
         return mTable;
@@ -167,8 +196,7 @@ public class UpsertTableRequest {
         for (Pair<String, Integer> uniqueColumn : mUniqueColumns) {
             switch (uniqueColumn.second) {
                  case TYPE_BLOB -> readWhereClause.addWhereEqualsClause(
-                        uniqueColumn.first, StorageUtils.getHexString(
-                                mContentValues.getAsByteArray(uniqueColumn.first)));
+                        uniqueColumn.first, mContentValues.getAsByteArray(uniqueColumn.first));
                  case TYPE_STRING -> readWhereClause.addWhereEqualsClause(
                          uniqueColumn.first, mContentValues.getAsString(uniqueColumn.first));
                 default -> throw new UnsupportedOperationException(
@@ -191,10 +191,10 @@ public class UpsertTransactionRequest {
     private WhereClauses generateWhereClausesForUpdate(@NonNull RecordInternal<?> recordInternal) {
         WhereClauses whereClauseForUpdateRequest = new WhereClauses(AND);
         whereClauseForUpdateRequest.addWhereEqualsClause(
-                RecordHelper.UUID_COLUMN_NAME, StorageUtils.getHexString(recordInternal.getUuid()));
+                RecordHelper.UUID_COLUMN_NAME,
+                StorageUtils.convertUUIDToBytes(recordInternal.getUuid()));
         whereClauseForUpdateRequest.addWhereEqualsClause(
-                RecordHelper.APP_INFO_ID_COLUMN_NAME,
-                /* expected args value */ String.valueOf(recordInternal.getAppInfoId()));
+                RecordHelper.APP_INFO_ID_COLUMN_NAME, recordInternal.getAppInfoId());
         return whereClauseForUpdateRequest;
     }
 
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import android.annotation.IntDef;
+import android.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Encodes the samples of a series record into a single blob.
+ *
+ * <p>Layout: format version, value type, sample count, then all timestamps followed by all values.
+ * Timestamps are stored as zigzag varints of their delta-of-delta, so regularly sampled series
+ * take one byte per sample. Integral values are stored as zigzag varints of their delta. Floating
+ * point values are XOR-ed with the previous value and stored bit-reversed as a varint, so values
+ * that only differ in their high mantissa bits stay short.
+ *
+ * @hide
+ */
+public final class SeriesSamplesCodec {
+    /** Values are integral, e.g. beats per minute. */
+    public static final int VALUE_TYPE_LONG = 0;
+
+    /** Values are arbitrary doubles. */
+    public static final int VALUE_TYPE_DOUBLE = 1;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private SeriesSamplesCodec() {}
+
+    /**
+     * Encodes the given samples. Samples are expected to be sorted by time, which keeps the deltas
+     * small, but any order round-trips.
+     */
+    @NonNull
+    public static byte[] encode(
+            @NonNull long[] epochMillis, @NonNull double[] values, @ValueType int valueType) {
+        if (epochMillis.length != values.length) {
+            throw new IllegalArgumentException(
+                    "Got " + epochMillis.length + " timestamps for " + values.length + " values");
+        }
+        int count = epochMillis.length;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 + count * 3);
+        out.write(FORMAT_VERSION);
+        out.write(valueType);
+        writeVarint(out, count);
+
+        long previousTime = 0;
+        long previousDelta = 0;
+        for (int i = 0; i < count; i++) {
+            long delta = epochMillis[i] - previousTime;
+            writeVarint(out, zigzag(i == 0 ? epochMillis[i] : delta - previousDelta));
+            previousDelta = i == 0 ? 0 : delta;
+            previousTime = epochMillis[i];
+        }
+
+        if (valueType == VALUE_TYPE_LONG) {
+            long previousValue = 0;
+            for (int i = 0; i < count; i++) {
+                long value = (long) values[i];
+                writeVarint(out, zigzag(value - previousValue));
+                previousValue = value;
+            }
+        } else if (valueType == VALUE_TYPE_DOUBLE) {
+            long previousBits = 0;
+            for (int i = 0; i < count; i++) {
+                long bits = Double.doubleToLongBits(values[i]);
+                writeVarint(out, Long.reverse(bits ^ previousBits));
+                previousBits = bits;
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown value type: " + valueType);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a blob produced by {@link #encode}.
+     *
+     * @throws IllegalArgumentException if the blob is malformed.
+     */
+    @NonNull
+    public static Samples decode(@NonNull byte[] blob) {
+        Reader reader = new Reader(blob);
+        int version = reader.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown series samples format: " + version);
+        }
+        int valueType = reader.readByte();
+        long count = reader.readVarint();
+        // Each sample takes at least two bytes, which also bounds the allocation below.
+        if (count < 0 || count > blob.length) {
+            throw new IllegalArgumentException("Invalid series samples count: " + count);
+        }
+
+        long[] epochMillis = new long[(int) count];
+        long previousTime = 0;
+        long previousDelta = 0;
+        for (int i = 0; i < count; i++) {
+            long value = unzigzag(reader.readVarint());
+            if (i == 0) {
+                epochMillis[i] = value;
+            } else {
+                previousDelta += value;
+                epochMillis[i] = previousTime + previousDelta;
+            }
+            previousTime = epochMillis[i];
+        }
+
+        double[] values = new double[(int) count];
+        if (valueType == VALUE_TYPE_LONG) {
+            long previousValue = 0;
+            for (int i = 0; i < count; i++) {
+                previousValue += unzigzag(reader.readVarint());
+                values[i] = previousValue;
+            }
+        } else if (valueType == VALUE_TYPE_DOUBLE) {
+            long previousBits = 0;
+            for (int i = 0; i < count; i++) {
+                previousBits ^= Long.reverse(reader.readVarint());
+                values[i] = Double.longBitsToDouble(previousBits);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown value type: " + valueType);
+        }
+        return new Samples(epochMillis, values);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(@NonNull ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Decoded samples, in the order they were encoded. */
+    public static final class Samples {
+        private final long[] mEpochMillis;
+        private final double[] mValues;
+
+        private Samples(long[] epochMillis, double[] values) {
+            mEpochMillis = epochMillis;
+            mValues = values;
+        }
+
+        /** Returns the number of samples. */
+        public int size() {
+            return mEpochMillis.length;
+        }
+
+        /** Returns the time of the sample at {@code index}. */
+        public long getEpochMillis(int index) {
+            return mEpochMillis[index];
+        }
+
+        /** Returns the value of the sample at {@code index}. */
+        public double getValue(int index) {
+            return mValues[index];
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] mBytes;
+        private int mPosition;
+
+        Reader(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        int readByte() {
+            if (mPosition >= mBytes.length) {
+                throw new IllegalArgumentException("Truncated series samples");
+            }
+            return mBytes[mPosition++] & 0xFF;
+        }
+
+        long readVarint() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in series samples");
+        }
+    }
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({VALUE_TYPE_LONG, VALUE_TYPE_DOUBLE})
+    public @interface ValueType {}
+}
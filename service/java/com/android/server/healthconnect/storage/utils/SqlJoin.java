@@ -84,20 +84,21 @@ public final class SqlJoin {
      * @param innerQuery An inner query to be used for the JOIN
      * @return Final query with JOIN condition
      */
-    public String getJoinWithQueryCommand(String innerQuery) {
+    public SqlStatement getJoinWithQueryStatement(SqlStatement innerQuery) {
         if (innerQuery == null) {
             throw new IllegalArgumentException("Inner query cannot be null");
         }
-        return SELECT_ALL
-                + "( "
-                + innerQuery
-                + " ) "
-                + getJoinCommand(/* withSelfTableNamePrefix= */ false);
+        return new SqlStatement.Builder()
+                .append(SELECT_ALL + "( ")
+                .append(innerQuery)
+                .append(" ) ")
+                .append(getJoinStatement(/* withSelfTableNamePrefix= */ false))
+                .build();
     }
 
     /** Returns join command. */
-    public String getJoinCommand() {
-        return getJoinCommand(/* withSelfTableNamePrefix= */ true);
+    public SqlStatement getJoinStatement() {
+        return getJoinStatement(/* withSelfTableNamePrefix= */ true);
     }
 
     /** Attaches another join to this join. Returns this class with another join attached. */
@@ -120,37 +121,41 @@ public final class SqlJoin {
         mTableToJoinWhereClause = whereClause;
     }
 
-    private String getJoinCommand(boolean withSelfTableNamePrefix) {
+    private SqlStatement getJoinStatement(boolean withSelfTableNamePrefix) {
         String selfColumnPrefix = withSelfTableNamePrefix ? mSelfTableName + "." : "";
-        return " "
-                + mJoinType
-                + " JOIN "
-                + (mTableToJoinWhereClause == null ? "" : "( " + buildFilterQuery() + ") ")
-                + mTableNameToJoinOn
-                + " ON "
-                + selfColumnPrefix
-                + mSelfColumnNameToMatch
-                + " = "
-                + mTableNameToJoinOn
-                + "."
-                + mJoiningColumnNameToMatch
-                + buildAttachedJoinsCommand(withSelfTableNamePrefix);
+        SqlStatement.Builder builder =
+                new SqlStatement.Builder().append(" " + mJoinType + " JOIN ");
+        if (mTableToJoinWhereClause != null) {
+            builder.append("( ").append(buildFilterQuery()).append(") ");
+        }
+        builder.append(
+                mTableNameToJoinOn
+                        + " ON "
+                        + selfColumnPrefix
+                        + mSelfColumnNameToMatch
+                        + " = "
+                        + mTableNameToJoinOn
+                        + "."
+                        + mJoiningColumnNameToMatch);
+        appendAttachedJoins(builder, withSelfTableNamePrefix);
+        return builder.build();
     }
 
-    private String buildFilterQuery() {
-        return SELECT_ALL + mTableNameToJoinOn + mTableToJoinWhereClause.get(true);
+    private SqlStatement buildFilterQuery() {
+        return new SqlStatement.Builder()
+                .append(SELECT_ALL + mTableNameToJoinOn)
+                .append(mTableToJoinWhereClause.getStatement(/* withWhereKeyword= */ true))
+                .build();
     }
 
-    private String buildAttachedJoinsCommand(boolean withSelfTableNamePrefix) {
+    private void appendAttachedJoins(
+            SqlStatement.Builder builder, boolean withSelfTableNamePrefix) {
         if (mAttachedJoins == null) {
-            return "";
+            return;
         }
 
-        StringBuilder command = new StringBuilder();
         for (SqlJoin join : mAttachedJoins) {
-            command.append(" ").append(join.getJoinCommand(withSelfTableNamePrefix));
+            builder.append(" ").append(join.getJoinStatement(withSelfTableNamePrefix));
         }
-
-        return command.toString();
     }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An SQL statement with {@code ?} placeholders, and the values to bind to them in order.
+ *
+ * <p>Statements that only differ in their values have the same SQL, so they share one prepared
+ * statement in the statement cache of the connection. Values are bound with their type, which can
+ * be {@link Long}, {@link Integer}, {@link Double}, {@link String}, {@code byte[]} or {@code null}.
+ *
+ * @hide
+ */
+public final class SqlStatement {
+    private static final Object[] NO_BIND_ARGS = new Object[0];
+
+    private final String mSql;
+    private final Object[] mBindArgs;
+
+    public SqlStatement(@NonNull String sql, @Nullable Object... bindArgs) {
+        Objects.requireNonNull(sql);
+
+        mSql = sql;
+        mBindArgs = bindArgs == null || bindArgs.length == 0 ? NO_BIND_ARGS : bindArgs;
+    }
+
+    /** Returns the SQL with a {@code ?} placeholder for each value. */
+    @NonNull
+    public String getSql() {
+        return mSql;
+    }
+
+    /** Returns the values to bind to the placeholders, in order. Must not be modified. */
+    @NonNull
+    public Object[] getBindArgs() {
+        return mBindArgs;
+    }
+
+    /** Runs this statement, which must be a query, on {@code db}. */
+    @NonNull
+    public Cursor query(@NonNull SQLiteDatabase db) {
+        if (mBindArgs.length == 0) {
+            return db.rawQuery(mSql, /* selectionArgs= */ null);
+        }
+        return db.rawQueryWithFactory(
+                (database, driver, editTable, query) -> {
+                    bindTo(query);
+                    return new SQLiteCursor(driver, editTable, query);
+                },
+                mSql,
+                /* selectionArgs= */ null,
+                /* editTable= */ null);
+    }
+
+    /** Runs this statement, which must not be a query, on {@code db}. */
+    public void execute(@NonNull SQLiteDatabase db) {
+        db.execSQL(mSql, mBindArgs);
+    }
+
+    /**
+     * Runs this statement, which must be an {@code UPDATE} or a {@code DELETE}, on {@code db} and
+     * returns the number of rows it changed.
+     */
+    public int executeUpdateDelete(@NonNull SQLiteDatabase db) {
+        try (SQLiteStatement statement = db.compileStatement(mSql)) {
+            bindTo(statement);
+            return statement.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Returns the SQL with the values written in place of the placeholders, for APIs that don't
+     * take bind arguments and for logging.
+     */
+    @NonNull
+    public String toRawSql() {
+        if (mBindArgs.length == 0) {
+            return mSql;
+        }
+
+        StringBuilder builder = new StringBuilder(mSql.length() + 16 * mBindArgs.length);
+        int argIndex = 0;
+        boolean inQuotes = false;
+        for (int i = 0; i < mSql.length(); i++) {
+            char c = mSql.charAt(i);
+            if (c == '\'') {
+                inQuotes = !inQuotes;
+            }
+            if (c == '?' && !inQuotes) {
+                appendLiteral(builder, mBindArgs[argIndex++]);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toRawSql();
+    }
+
+    private void bindTo(@NonNull SQLiteProgram program) {
+        for (int i = 0; i < mBindArgs.length; i++) {
+            Object value = mBindArgs[i];
+            int index = i + 1;
+            if (value == null) {
+                program.bindNull(index);
+            } else if (value instanceof byte[] bytes) {
+                program.bindBlob(index, bytes);
+            } else if (value instanceof Double || value instanceof Float) {
+                program.bindDouble(index, ((Number) value).doubleValue());
+            } else if (value instanceof Number number) {
+                program.bindLong(index, number.longValue());
+            } else {
+                program.bindString(index, value.toString());
+            }
+        }
+    }
+
+    private static void appendLiteral(@NonNull StringBuilder builder, @Nullable Object value) {
+        if (value == null) {
+            builder.append("NULL");
+        } else if (value instanceof byte[] bytes) {
+            builder.append(StorageUtils.getHexString(bytes));
+        } else if (value instanceof Number) {
+            builder.append(value);
+        } else {
+            DatabaseUtils.appendEscapedSQLString(builder, value.toString());
+        }
+    }
+
+    /** Concatenates SQL and the values of its placeholders. */
+    public static final class Builder {
+        private final StringBuilder mSql = new StringBuilder();
+        private final List<Object> mBindArgs = new ArrayList<>();
+
+        /** Appends SQL without placeholders. */
+        @NonNull
+        public Builder append(@NonNull String sql) {
+            mSql.append(sql);
+            return this;
+        }
+
+        /** Appends a {@code ?} placeholder for {@code value}. */
+        @NonNull
+        public Builder appendBindArg(@Nullable Object value) {
+            mSql.append('?');
+            mBindArgs.add(value);
+            return this;
+        }
+
+        /** Appends the SQL and the values of {@code statement}. */
+        @NonNull
+        public Builder append(@NonNull SqlStatement statement) {
+            mSql.append(statement.mSql);
+            Collections.addAll(mBindArgs, statement.mBindArgs);
+            return this;
+        }
+
+        public int length() {
+            return mSql.length();
+        }
+
+        /** Removes the last {@code count} characters, which must not include placeholders. */
+        @NonNull
+        public Builder removeLast(int count) {
+            mSql.setLength(mSql.length() - count);
+            return this;
+        }
+
+        @NonNull
+        public SqlStatement build() {
+            return new SqlStatement(mSql.toString(), mBindArgs.toArray());
+        }
+    }
+}
@@ -395,15 +395,6 @@ public final class StorageUtils {
         return getHexString(convertUUIDToBytes(uuid));
     }
 
-    public static List<String> getListOfHexString(List<UUID> uuids) {
-        List<String> hexStrings = new ArrayList<>();
-        for (UUID uuid : uuids) {
-            hexStrings.add(getHexString(convertUUIDToBytes(uuid)));
-        }
-
-        return hexStrings;
-    }
-
     public static byte[] getSingleByteArray(List<UUID> uuids) {
         byte[] allByteArray = new byte[UUID_BYTE_SIZE * uuids.size()];
 
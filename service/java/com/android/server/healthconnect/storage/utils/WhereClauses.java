@@ -16,15 +16,25 @@
 
 package com.android.server.healthconnect.storage.utils;
 
+import android.annotation.NonNull;
+
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.UUID;
 
-/** @hide */
+/**
+ * Conditions of a WHERE clause. Values are kept apart from the SQL, see {@link #getStatement}.
+ *
+ * @hide
+ */
 public final class WhereClauses {
+    // Longer IN lists are written inline. They rarely repeat, so binding them wouldn't help the
+    // statement cache, and they could exceed the limit on the number of variables in a statement.
+    private static final int MAX_BIND_ARGS_PER_IN_CLAUSE = 500;
+
     public enum LogicalOperator {
         AND(" AND "),
         OR(" OR ");
@@ -36,7 +46,7 @@ public final class WhereClauses {
         }
     }
 
-    private final List<String> mClauses = new ArrayList<>();
+    private final List<SqlStatement> mClauses = new ArrayList<>();
     private final LogicalOperator mLogicalOperator;
 
     public WhereClauses(LogicalOperator logicalOperator) {
@@ -44,7 +54,7 @@ public final class WhereClauses {
     }
 
     public WhereClauses addWhereBetweenClause(String columnName, long start, long end) {
-        mClauses.add(columnName + " BETWEEN " + start + " AND " + end);
+        mClauses.add(new SqlStatement(columnName + " BETWEEN ? AND ?", start, end));
 
         return this;
     }
@@ -57,7 +67,7 @@ public final class WhereClauses {
             return addWhereLaterThanTimeClause(columnName, startTime);
         }
 
-        mClauses.add(columnName + " BETWEEN " + startTime + " AND " + endTime);
+        mClauses.add(new SqlStatement(columnName + " BETWEEN ? AND ?", startTime, endTime));
 
         return this;
     }
@@ -67,7 +77,7 @@ public final class WhereClauses {
             return this;
         }
 
-        mClauses.add(columnName + " > " + startTime);
+        mClauses.add(new SqlStatement(columnName + " > ?", startTime));
 
         return this;
     }
@@ -75,15 +85,20 @@ public final class WhereClauses {
     public WhereClauses addWhereInClause(String columnName, List<String> values) {
         if (values == null || values.isEmpty()) return this;
 
-        mClauses.add(columnName + " IN " + "('" + String.join("', '", values) + "')");
+        addInClause(columnName, new ArrayList<>(values));
 
         return this;
     }
 
-    public WhereClauses addWhereInClauseWithoutQuotes(String columnName, List<String> values) {
-        if (values == null || values.isEmpty()) return this;
+    /** Adds where in condition for a column that stores uuids as blobs. */
+    public WhereClauses addWhereInUuidsClause(String columnName, Collection<UUID> uuids) {
+        if (uuids == null || uuids.isEmpty()) return this;
 
-        mClauses.add(columnName + " IN " + "(" + String.join(", ", values) + ")");
+        List<Object> values = new ArrayList<>(uuids.size());
+        for (UUID uuid : uuids) {
+            values.add(StorageUtils.convertUUIDToBytes(uuid));
+        }
+        addInClause(columnName, values);
 
         return this;
     }
@@ -93,38 +108,55 @@ public final class WhereClauses {
             return this;
         }
 
-        mClauses.add(columnName + " = " + StorageUtils.getNormalisedString(value));
+        mClauses.add(new SqlStatement(columnName + " = ?", value));
+        return this;
+    }
+
+    /** Add clause columnName = value, for a blob column */
+    public WhereClauses addWhereEqualsClause(String columnName, byte[] value) {
+        if (columnName == null || value == null || columnName.isEmpty()) {
+            return this;
+        }
+
+        mClauses.add(new SqlStatement(columnName + " = ?", value));
+        return this;
+    }
+
+    /** Add clause columnName = value */
+    public WhereClauses addWhereEqualsClause(String columnName, long value) {
+        mClauses.add(new SqlStatement(columnName + " = ?", value));
+
         return this;
     }
 
     public WhereClauses addWhereGreaterThanClause(String columnName, String value) {
-        mClauses.add(columnName + " > '" + value + "'");
+        mClauses.add(new SqlStatement(columnName + " > ?", value));
 
         return this;
     }
 
     /** Add clause columnName > value */
     public WhereClauses addWhereGreaterThanClause(String columnName, long value) {
-        mClauses.add(columnName + " > " + value);
+        mClauses.add(new SqlStatement(columnName + " > ?", value));
 
         return this;
     }
 
     public WhereClauses addWhereGreaterThanOrEqualClause(String columnName, long value) {
-        mClauses.add(columnName + " >= " + value);
+        mClauses.add(new SqlStatement(columnName + " >= ?", value));
 
         return this;
     }
 
     public WhereClauses addWhereLessThanOrEqualClause(String columnName, long value) {
-        mClauses.add(columnName + " <= " + value);
+        mClauses.add(new SqlStatement(columnName + " <= ?", value));
 
         return this;
     }
 
     /** Add clause columnName < value */
     public WhereClauses addWhereLessThanClause(String columnName, long value) {
-        mClauses.add(columnName + " < " + value);
+        mClauses.add(new SqlStatement(columnName + " < ?", value));
 
         return this;
     }
@@ -132,11 +164,7 @@ public final class WhereClauses {
     public WhereClauses addWhereInIntsClause(String columnName, List<Integer> values) {
         if (values == null || values.isEmpty()) return this;
 
-        mClauses.add(
-                columnName
-                        + " IN ("
-                        + values.stream().map(String::valueOf).collect(Collectors.joining(", "))
-                        + ")");
+        addInClause(columnName, new ArrayList<>(values));
 
         return this;
     }
@@ -150,14 +178,7 @@ public final class WhereClauses {
     public WhereClauses addWhereInLongsClause(String columnName, Collection<Long> values) {
         if (values == null || values.isEmpty()) return this;
 
-        mClauses.add(
-                columnName
-                        + " IN ("
-                        + values.stream()
-                                .distinct()
-                                .map(String::valueOf)
-                                .collect(Collectors.joining(", "))
-                        + ")");
+        addInClause(columnName, new ArrayList<>(values.stream().distinct().toList()));
 
         return this;
     }
@@ -167,11 +188,75 @@ public final class WhereClauses {
      * set.
      */
     public WhereClauses addWhereInSQLRequestClause(String columnName, ReadTableRequest inRequest) {
-        mClauses.add(columnName + " IN (" + inRequest.getReadCommand() + ") ");
+        mClauses.add(
+                new SqlStatement.Builder()
+                        .append(columnName + " IN (")
+                        .append(inRequest.getReadStatement())
+                        .append(") ")
+                        .build());
 
         return this;
     }
 
+    /**
+     * Creates a condition that the column is greater than or equal to the value returned by
+     * another SQL request, which is false if the request returns no row. Returns instance with
+     * extra clauses set.
+     */
+    public WhereClauses addWhereGreaterThanOrEqualSQLRequestClause(
+            String columnName, ReadTableRequest valueRequest) {
+        mClauses.add(
+                new SqlStatement.Builder()
+                        .append(columnName + " >= (")
+                        .append(valueRequest.getReadStatement())
+                        .append(")")
+                        .build());
+
+        return this;
+    }
+
+    /**
+     * Creates a condition that the row value ({@code firstColumnName}, {@code secondColumnName}) is
+     * greater than ({@code firstValue}, {@code secondValue}), where {@code firstValue} is returned
+     * by another SQL request, or is {@code defaultFirstValue} if the request returns no row.
+     * Returns instance with extra clauses set.
+     */
+    public WhereClauses addWhereRowValueGreaterThanClause(
+            String firstColumnName,
+            String secondColumnName,
+            ReadTableRequest firstValueRequest,
+            long defaultFirstValue,
+            long secondValue) {
+        return addRowValueClause(
+                firstColumnName,
+                secondColumnName,
+                " > ",
+                firstValueRequest,
+                defaultFirstValue,
+                secondValue);
+    }
+
+    /**
+     * Creates a condition that the row value ({@code firstColumnName}, {@code secondColumnName}) is
+     * less than ({@code firstValue}, {@code secondValue}), where {@code firstValue} is returned by
+     * another SQL request, or is {@code defaultFirstValue} if the request returns no row. Returns
+     * instance with extra clauses set.
+     */
+    public WhereClauses addWhereRowValueLessThanClause(
+            String firstColumnName,
+            String secondColumnName,
+            ReadTableRequest firstValueRequest,
+            long defaultFirstValue,
+            long secondValue) {
+        return addRowValueClause(
+                firstColumnName,
+                secondColumnName,
+                " < ",
+                firstValueRequest,
+                defaultFirstValue,
+                secondValue);
+    }
+
     /** Adds other {@link WhereClauses} as conditions of this where clause. */
     public WhereClauses addNestedWhereClauses(WhereClauses... otherWhereClauses) {
         for (WhereClauses whereClauses : otherWhereClauses) {
@@ -180,22 +265,82 @@ public final class WhereClauses {
                 // final SQL statement
                 continue;
             }
-            mClauses.add("(" + whereClauses.get(/* withWhereKeyword= */ false) + ")");
+            mClauses.add(
+                    new SqlStatement.Builder()
+                            .append("(")
+                            .append(whereClauses.getStatement(/* withWhereKeyword= */ false))
+                            .append(")")
+                            .build());
         }
 
         return this;
     }
 
     /**
-     * Returns where clauses joined by 'AND', if the input parameter isIncludeWHEREinClauses is true
-     * then the clauses are preceded by 'WHERE'.
+     * Returns where clauses joined by the logical operator, with placeholders for their values. If
+     * {@code withWhereKeyword} is true then the clauses are preceded by 'WHERE'.
      */
-    public String get(boolean withWhereKeyword) {
+    @NonNull
+    public SqlStatement getStatement(boolean withWhereKeyword) {
+        SqlStatement.Builder builder = new SqlStatement.Builder();
         if (mClauses.isEmpty()) {
-            return "";
+            return builder.build();
         }
 
-        return (withWhereKeyword ? " WHERE " : "")
-                + String.join(mLogicalOperator.opKeyword, mClauses);
+        builder.append(withWhereKeyword ? " WHERE " : "");
+        for (int i = 0; i < mClauses.size(); i++) {
+            if (i > 0) {
+                builder.append(mLogicalOperator.opKeyword);
+            }
+            builder.append(mClauses.get(i));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns where clauses joined by 'AND', if the input parameter isIncludeWHEREinClauses is true
+     * then the clauses are preceded by 'WHERE'. Values are written inline, prefer {@link
+     * #getStatement} where bind arguments can be passed.
+     */
+    public String get(boolean withWhereKeyword) {
+        return getStatement(withWhereKeyword).toRawSql();
+    }
+
+    private WhereClauses addRowValueClause(
+            String firstColumnName,
+            String secondColumnName,
+            String operator,
+            ReadTableRequest firstValueRequest,
+            long defaultFirstValue,
+            long secondValue) {
+        mClauses.add(
+                new SqlStatement.Builder()
+                        .append("(" + firstColumnName + ", " + secondColumnName + ")")
+                        .append(operator + "(COALESCE((")
+                        .append(firstValueRequest.getReadStatement())
+                        .append("), ")
+                        .appendBindArg(defaultFirstValue)
+                        .append("), ")
+                        .appendBindArg(secondValue)
+                        .append(")")
+                        .build());
+
+        return this;
+    }
+
+    private void addInClause(String columnName, List<Object> values) {
+        SqlStatement.Builder builder = new SqlStatement.Builder().append(columnName + " IN (");
+        boolean bindValues = values.size() <= MAX_BIND_ARGS_PER_IN_CLAUSE;
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            if (bindValues) {
+                builder.appendBindArg(values.get(i));
+            } else {
+                builder.append(new SqlStatement("?", values.get(i)).toRawSql());
+            }
+        }
+        mClauses.add(builder.append(")").build());
     }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.benchmarks;
+
+import android.content.Context;
+import android.os.Process;
+
+import com.android.server.healthconnect.HealthConnectUserContext;
+
+import java.io.File;
+
+/**
+ * A {@link HealthConnectUserContext} that keeps the Health Connect database in the cache directory
+ * of the benchmark app, so that benchmarks never touch the database of the device.
+ */
+final class BenchmarkUserContext extends HealthConnectUserContext {
+    BenchmarkUserContext(Context context) {
+        super(context, Process.myUserHandle());
+    }
+
+    @Override
+    public File getDatabasePath(String name) {
+        return new File(getCacheDir(), name);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.benchmarks;
+
+import android.health.connect.ratelimiter.RateLimiter;
+import android.health.connect.ratelimiter.RateLimiter.QuotaBucket;
+import android.health.connect.ratelimiter.RateLimiter.QuotaCategory;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmarks of {@link RateLimiter} quota accounting while other threads acquire quota at the same
+ * time, as binder threads do for concurrent calls.
+ *
+ * <p>Each benchmark runs once per number of contending threads, each acquiring quota for its own
+ * uid. The time per operation staying flat as threads are added means that throughput scales with
+ * the number of callers.
+ */
+@RunWith(Parameterized.class)
+public class RateLimiterBenchmark {
+    private static final int BENCHMARK_UID = 10000;
+    // High enough that no benchmark runs out of quota.
+    private static final int MAX_QUOTA = Integer.MAX_VALUE;
+    // Small enough that the quota shared by all uids doesn't run out either.
+    private static final long MEMORY_COST = 1;
+
+    @Rule public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Parameterized.Parameter public int mContendingThreadCount;
+
+    private final List<Thread> mContendingThreads = new ArrayList<>();
+    private volatile boolean mStopped;
+
+    @Parameterized.Parameters(name = "contendingThreads={0}")
+    public static List<Integer> getContendingThreadCounts() {
+        return List.of(0, 1, 3, 7);
+    }
+
+    @Before
+    public void setUp() {
+        Map<Integer, Integer> maxRollingQuotas = new HashMap<>();
+        for (int quotaBucket = QuotaBucket.QUOTA_BUCKET_READS_PER_15M_FOREGROUND;
+                quotaBucket <= QuotaBucket.QUOTA_BUCKET_DATA_PUSH_LIMIT_ACROSS_APPS_15M;
+                quotaBucket++) {
+            maxRollingQuotas.put(quotaBucket, MAX_QUOTA);
+        }
+        RateLimiter.updateMaxRollingQuotaMap(maxRollingQuotas);
+        RateLimiter.updateEnableRateLimiterFlag(true);
+        RateLimiter.clearCache();
+
+        mStopped = false;
+        for (int i = 0; i < mContendingThreadCount; i++) {
+            int uid = BENCHMARK_UID + 1 + i;
+            Thread thread =
+                    new Thread(
+                            () -> {
+                                while (!mStopped) {
+                                    acquireWriteQuota(uid);
+                                }
+                            });
+            thread.start();
+            mContendingThreads.add(thread);
+        }
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mStopped = true;
+        for (Thread thread : mContendingThreads) {
+            thread.join();
+        }
+        mContendingThreads.clear();
+        RateLimiter.clearCache();
+    }
+
+    @Test
+    public void tryAcquireApiCallQuota_read() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            RateLimiter.tryAcquireApiCallQuota(
+                    BENCHMARK_UID, QuotaCategory.QUOTA_CATEGORY_READ, /* isInForeground= */ true);
+        }
+    }
+
+    @Test
+    public void tryAcquireApiCallQuota_backgroundWriteWithMemoryCost() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            acquireWriteQuota(BENCHMARK_UID);
+        }
+    }
+
+    private static void acquireWriteQuota(int uid) {
+        RateLimiter.tryAcquireApiCallQuota(
+                uid, QuotaCategory.QUOTA_CATEGORY_WRITE, /* isInForeground= */ false, MEMORY_COST);
+    }
+}
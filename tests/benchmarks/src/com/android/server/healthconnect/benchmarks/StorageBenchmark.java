@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.benchmarks;
+
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_HYDRATION;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper.PACKAGE_COLUMN_NAME;
+
+import android.content.ContentValues;
+import android.health.connect.AggregateResult;
+import android.health.connect.ReadRecordsRequestUsingFilters;
+import android.health.connect.RecordIdFilter;
+import android.health.connect.TimeInstantRangeFilter;
+import android.health.connect.aidl.DeleteUsingFiltersRequestParcel;
+import android.health.connect.aidl.ReadRecordsRequestParcel;
+import android.health.connect.aidl.RecordIdFiltersParcel;
+import android.health.connect.changelog.ChangeLogsRequest;
+import android.health.connect.datatypes.AggregationType;
+import android.health.connect.datatypes.HydrationRecord;
+import android.health.connect.datatypes.Record;
+import android.health.connect.datatypes.StepsRecord;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.utils.RecordMapper;
+import android.os.Bundle;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.DatabaseHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
+import com.android.server.healthconnect.storage.request.AggregateTableRequest;
+import com.android.server.healthconnect.storage.request.DeleteTransactionRequest;
+import com.android.server.healthconnect.storage.request.ReadTransactionRequest;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+import com.android.server.healthconnect.storage.request.UpsertTransactionRequest;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Benchmarks of the storage hot paths of {@link TransactionManager} and {@link ChangeLogsHelper},
+ * run against a database seeded with synthetic records of all record types.
+ *
+ * <p>Each benchmark runs once per database size. The sizes are given as a comma separated list in
+ * the {@code row-counts} instrumentation argument, for example {@code -e row-counts
+ * 10000,100000,1000000}, and default to {@link #DEFAULT_ROW_COUNTS}. The results include the time
+ * and the number of allocations per operation.
+ */
+@RunWith(Parameterized.class)
+public class StorageBenchmark {
+    private static final String ROW_COUNTS_ARGUMENT = "row-counts";
+    private static final String DEFAULT_ROW_COUNTS = "10000,100000";
+    private static final String PACKAGE_NAME = "com.android.healthconnect.benchmarks";
+    private static final long SEED = 42;
+    private static final int SEED_BATCH_SIZE = 5000;
+    private static final int BATCH_SIZE = 100;
+    private static final int PAGE_SIZE = 1000;
+    private static final long DATA_END_TIME =
+            Instant.parse("2024-06-01T00:00:00Z").toEpochMilli();
+    private static final long DATA_START_TIME = DATA_END_TIME - Duration.ofDays(90).toMillis();
+    // Records inserted by the benchmarks go after the seeded data, so that they can be deleted
+    // without affecting it.
+    private static final long BATCH_START_TIME = DATA_END_TIME;
+    private static final long BATCH_END_TIME = BATCH_START_TIME + Duration.ofDays(1).toMillis();
+
+    // The seeded database is shared by all benchmarks of the same database size, as seeding a
+    // large database takes much longer than the benchmarks themselves.
+    private static TransactionManager sTransactionManager;
+    private static int sSeededRowCount;
+
+    @Rule public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Parameterized.Parameter public int mRowCount;
+
+    private BenchmarkUserContext mContext;
+    private SyntheticRecordGenerator mGenerator;
+
+    @Parameterized.Parameters(name = "rows={0}")
+    public static List<Integer> getRowCounts() {
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        String rowCounts = arguments.getString(ROW_COUNTS_ARGUMENT, DEFAULT_ROW_COUNTS);
+        return Arrays.stream(rowCounts.split(",")).map(String::trim).map(Integer::valueOf).toList();
+    }
+
+    @Before
+    public void setUp() {
+        mContext =
+                new BenchmarkUserContext(
+                        InstrumentationRegistry.getInstrumentation().getTargetContext());
+        mGenerator = new SyntheticRecordGenerator(SEED);
+        if (sTransactionManager == null || sSeededRowCount != mRowCount) {
+            deleteDatabase();
+            sTransactionManager = TransactionManager.getInstance(mContext);
+            seedDatabase();
+            sSeededRowCount = mRowCount;
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        deleteDatabase();
+    }
+
+    @Test
+    public void insertAll_batchOfAllRecordTypes() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            List<RecordInternal<?>> records =
+                    mGenerator.generateAllTypes(BATCH_SIZE, BATCH_START_TIME, BATCH_END_TIME);
+            state.resumeTiming();
+
+            insertRecords(records);
+
+            state.pauseTiming();
+            deleteRecords(records);
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void readRecordsAndPageToken_pageOfSteps() {
+        ReadRecordsRequestUsingFilters<StepsRecord> request =
+                new ReadRecordsRequestUsingFilters.Builder<>(StepsRecord.class)
+                        .setTimeRangeFilter(getDataTimeRangeFilter())
+                        .setPageSize(PAGE_SIZE)
+                        .build();
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            sTransactionManager.readRecordsAndPageToken(
+                    new ReadTransactionRequest(
+                            PACKAGE_NAME,
+                            new ReadRecordsRequestParcel(request),
+                            /* startDateAccessMillis= */ 0,
+                            /* enforceSelfRead= */ false,
+                            /* grantedExtraReadPermissions= */ Set.of(),
+                            /* isInForeground= */ true));
+        }
+    }
+
+    @Test
+    public void populateWithAggregation_stepsByDay() {
+        benchmarkAggregationByDay(RECORD_TYPE_STEPS, StepsRecord.STEPS_COUNT_TOTAL);
+    }
+
+    @Test
+    public void populateWithAggregation_hydrationByDay() {
+        benchmarkAggregationByDay(RECORD_TYPE_HYDRATION, HydrationRecord.VOLUME_TOTAL);
+    }
+
+    @Test
+    public void deleteAll_batchOfAllRecordTypes() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            List<RecordInternal<?>> records =
+                    mGenerator.generateAllTypes(BATCH_SIZE, BATCH_START_TIME, BATCH_END_TIME);
+            insertRecords(records);
+            state.resumeTiming();
+
+            deleteRecords(records);
+        }
+    }
+
+    @Test
+    public void getChangeLogs_pageOfAllRecordTypes() {
+        ChangeLogsRequestHelper.TokenRequest tokenRequest =
+                new ChangeLogsRequestHelper.TokenRequest(
+                        /* packageNamesToFilter= */ List.of(),
+                        mGenerator.getRecordTypes(),
+                        PACKAGE_NAME,
+                        /* rowIdChangeLogs= */ 0);
+        ChangeLogsRequest request =
+                new ChangeLogsRequest.Builder(/* token= */ "0").setPageSize(PAGE_SIZE).build();
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            ChangeLogsHelper.getInstance().getChangeLogs(tokenRequest, request);
+        }
+    }
+
+    private void benchmarkAggregationByDay(int recordType, AggregationType<?> aggregationType) {
+        RecordHelper<?> helper = RecordHelperProvider.getInstance().getRecordHelper(recordType);
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            AggregateTableRequest request =
+                    helper.getAggregateTableRequest(
+                            aggregationType,
+                            PACKAGE_NAME,
+                            /* packageFilters= */ List.of(),
+                            DATA_START_TIME,
+                            DATA_END_TIME,
+                            /* startDateAccess= */ 0,
+                            /* useLocalTime= */ false);
+            request.setGroupBy(
+                    helper.getDurationGroupByColumnName(),
+                    /* period= */ null,
+                    Duration.ofDays(1),
+                    getDataTimeRangeFilter());
+            sTransactionManager.populateWithAggregation(request);
+            List<AggregateResult<?>> unused = request.getAggregateResults();
+        }
+    }
+
+    private void seedDatabase() {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(PACKAGE_COLUMN_NAME, PACKAGE_NAME);
+        sTransactionManager.insert(
+                new UpsertTableRequest(
+                        AppInfoHelper.TABLE_NAME,
+                        contentValues,
+                        AppInfoHelper.UNIQUE_COLUMN_INFO));
+        AppInfoHelper.getInstance().clearCache();
+
+        // Records are generated batch by batch, each over its share of the time range, so that
+        // the largest databases don't hold all of their records in memory at once.
+        long interval = (DATA_END_TIME - DATA_START_TIME) / mRowCount;
+        for (int start = 0; start < mRowCount; start += SEED_BATCH_SIZE) {
+            int count = Math.min(SEED_BATCH_SIZE, mRowCount - start);
+            long batchStartTime = DATA_START_TIME + interval * start;
+            insertRecords(
+                    mGenerator.generateAllTypes(
+                            count, batchStartTime, batchStartTime + interval * count));
+        }
+    }
+
+    private void insertRecords(List<RecordInternal<?>> records) {
+        sTransactionManager.insertAll(
+                new UpsertTransactionRequest(
+                        PACKAGE_NAME,
+                        records,
+                        mContext,
+                        /* isInsertRequest= */ true,
+                        /* skipPackageNameAndLogs= */ false));
+    }
+
+    private void deleteRecords(List<RecordInternal<?>> records) {
+        Map<Integer, Class<? extends Record>> recordClasses =
+                RecordMapper.getInstance().getRecordIdToExternalRecordClassMap();
+        List<RecordIdFilter> idFilters = new ArrayList<>(records.size());
+        for (RecordInternal<?> record : records) {
+            idFilters.add(
+                    RecordIdFilter.fromId(
+                            recordClasses.get(record.getRecordType()),
+                            record.getUuid().toString()));
+        }
+        sTransactionManager.deleteAll(
+                new DeleteTransactionRequest(
+                        PACKAGE_NAME,
+                        new DeleteUsingFiltersRequestParcel(
+                                new RecordIdFiltersParcel(idFilters), PACKAGE_NAME)));
+    }
+
+    private static TimeInstantRangeFilter getDataTimeRangeFilter() {
+        return new TimeInstantRangeFilter.Builder()
+                .setStartTime(Instant.ofEpochMilli(DATA_START_TIME))
+                .setEndTime(Instant.ofEpochMilli(DATA_END_TIME))
+                .build();
+    }
+
+    private static void deleteDatabase() {
+        if (sTransactionManager == null) {
+            return;
+        }
+        DatabaseHelper.clearAllData(sTransactionManager);
+        DatabaseHelper.clearAllCache();
+        sTransactionManager.onUserSwitching();
+        TransactionManager.clearInstance();
+        sTransactionManager = null;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.benchmarks;
+
+import android.health.connect.datatypes.units.Temperature;
+import android.health.connect.internal.datatypes.ActiveCaloriesBurnedRecordInternal;
+import android.health.connect.internal.datatypes.DistanceRecordInternal;
+import android.health.connect.internal.datatypes.HeartRateRecordInternal;
+import android.health.connect.internal.datatypes.HydrationRecordInternal;
+import android.health.connect.internal.datatypes.InstantRecordInternal;
+import android.health.connect.internal.datatypes.IntervalRecordInternal;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.SeriesRecordInternal;
+import android.health.connect.internal.datatypes.SkinTemperatureRecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+import android.health.connect.internal.datatypes.WeightRecordInternal;
+import android.health.connect.internal.datatypes.utils.RecordMapper;
+
+import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates records of every record type supported by the storage, spread evenly over a time
+ * range. Record types used by the benchmarked aggregations get realistic values, the others keep
+ * the default values of their fields.
+ *
+ * <p>The generator is seeded, so that every run of a benchmark stores the same data.
+ */
+final class SyntheticRecordGenerator {
+    private static final long RECORD_DURATION_MILLIS = Duration.ofMinutes(5).toMillis();
+    private static final int HEART_RATE_SAMPLES_PER_RECORD = 10;
+
+    private final Random mRandom;
+    private final List<Integer> mRecordTypes;
+
+    SyntheticRecordGenerator(long seed) {
+        mRandom = new Random(seed);
+        mRecordTypes = new ArrayList<>();
+        for (RecordHelper<?> helper :
+                RecordHelperProvider.getInstance().getRecordHelpers().values()) {
+            if (helper.isRecordOperationsEnabled()) {
+                mRecordTypes.add(helper.getRecordIdentifier());
+            }
+        }
+        Collections.sort(mRecordTypes);
+    }
+
+    /** Returns the record types this generator creates records of. */
+    List<Integer> getRecordTypes() {
+        return mRecordTypes;
+    }
+
+    /**
+     * Generates {@code count} records of all record types in turn, with start times spread evenly
+     * over [startTime, endTime).
+     */
+    List<RecordInternal<?>> generateAllTypes(int count, long startTime, long endTime) {
+        List<RecordInternal<?>> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int recordType = mRecordTypes.get(i % mRecordTypes.size());
+            records.add(generate(recordType, getTime(i, count, startTime, endTime)));
+        }
+        return records;
+    }
+
+    private RecordInternal<?> generate(int recordType, long time) {
+        RecordInternal<?> record = RecordMapper.getInstance().newInternalRecord(recordType);
+        if (record instanceof IntervalRecordInternal<?> intervalRecord) {
+            intervalRecord.setStartTime(time).setEndTime(time + RECORD_DURATION_MILLIS);
+        } else if (record instanceof InstantRecordInternal<?> instantRecord) {
+            instantRecord.setTime(time);
+        }
+
+        if (record instanceof StepsRecordInternal steps) {
+            steps.setCount(mRandom.nextInt(1000));
+        } else if (record instanceof DistanceRecordInternal distance) {
+            distance.setDistance(mRandom.nextDouble() * 1000);
+        } else if (record instanceof ActiveCaloriesBurnedRecordInternal activeCalories) {
+            activeCalories.setEnergy(mRandom.nextDouble() * 100_000);
+        } else if (record instanceof HydrationRecordInternal hydration) {
+            hydration.setVolume(mRandom.nextDouble());
+        } else if (record instanceof WeightRecordInternal weight) {
+            weight.setWeight(50_000 + mRandom.nextDouble() * 50_000);
+        } else if (record instanceof HeartRateRecordInternal heartRate) {
+            heartRate.setSamples(generateHeartRateSamples(time));
+        } else if (record instanceof SkinTemperatureRecordInternal skinTemperature) {
+            skinTemperature.setBaseline(Temperature.fromCelsius(36.6));
+            skinTemperature.setSamples(Collections.emptySet());
+        } else if (record instanceof SeriesRecordInternal<?, ?> seriesRecord) {
+            seriesRecord.setSamples(Collections.emptySet());
+        }
+        return record;
+    }
+
+    private Set<HeartRateRecordInternal.HeartRateSample> generateHeartRateSamples(long startTime) {
+        Set<HeartRateRecordInternal.HeartRateSample> samples =
+                new HashSet<>(HEART_RATE_SAMPLES_PER_RECORD);
+        long interval = RECORD_DURATION_MILLIS / HEART_RATE_SAMPLES_PER_RECORD;
+        for (int i = 0; i < HEART_RATE_SAMPLES_PER_RECORD; i++) {
+            samples.add(
+                    new HeartRateRecordInternal.HeartRateSample(
+                            60 + mRandom.nextInt(100), startTime + i * interval));
+        }
+        return samples;
+    }
+
+    private static long getTime(int index, int count, long startTime, long endTime) {
+        return startTime + (endTime - startTime) / count * index;
+    }
+}
@@ -36,6 +36,7 @@ import java.time.Instant;
 public class PageTokenWrapperTest {
     private static final long MAX_ALLOWED_TIME_MILLIS = (1L << 44) - 1;
     private static final long MAX_ALLOWED_OFFSET = (1 << 18) - 1;
+    private static final long MAX_ALLOWED_ROW_ID = (1L << 34) - 1;
 
     @Test
     public void of_createInstance() {
@@ -227,6 +228,99 @@ public class PageTokenWrapperTest {
         assertThat(result.offset()).isEqualTo(minOffset);
     }
 
+    @Test
+    public void ofRowId_createInstance() {
+        PageTokenWrapper wrapper =
+                PageTokenWrapper.ofRowId(
+                        /* isAscending= */ false, /* timeMillis= */ 1234, /* rowId= */ 567);
+
+        assertThat(wrapper.isAscending()).isFalse();
+        assertThat(wrapper.rowId()).isEqualTo(567);
+        assertThat(wrapper.timeMillis()).isEqualTo(0);
+        assertThat(wrapper.maxTimeMillis()).isEqualTo((1L << 18) - 1);
+        assertThat(wrapper.isRowIdSet()).isTrue();
+        assertThat(wrapper.isTimestampSet()).isFalse();
+        assertThat(wrapper.isEmpty()).isFalse();
+    }
+
+    @Test
+    public void ofRowId_invalidArgument_throws() {
+        boolean isAscending = true;
+        Throwable thrown;
+
+        thrown =
+                assertThrows(
+                        IllegalArgumentException.class,
+                        () ->
+                                PageTokenWrapper.ofRowId(
+                                        isAscending, /* timeMillis= */ 0, /* rowId= */ -1));
+        assertThat(thrown.getMessage()).isEqualTo("row id can not be negative");
+
+        thrown =
+                assertThrows(
+                        IllegalArgumentException.class,
+                        () ->
+                                PageTokenWrapper.ofRowId(
+                                        isAscending, /* timeMillis= */ 0, MAX_ALLOWED_ROW_ID + 1));
+        assertThat(thrown.getMessage()).isEqualTo("row id too large");
+
+        thrown =
+                assertThrows(
+                        IllegalArgumentException.class,
+                        () ->
+                                PageTokenWrapper.ofRowId(
+                                        isAscending, MAX_ALLOWED_TIME_MILLIS + 1, /* rowId= */ 0));
+        assertThat(thrown.getMessage()).isEqualTo("timestamp too large");
+    }
+
+    @Test
+    public void encodeAndFromToken_rowId_expectCorrectResult() {
+        boolean unusedDefault = true;
+        long nowTimeMillis = Instant.now().toEpochMilli();
+
+        for (boolean isAscending : new boolean[] {true, false}) {
+            PageTokenWrapper wrapper =
+                    PageTokenWrapper.ofRowId(isAscending, nowTimeMillis, MAX_ALLOWED_ROW_ID);
+            long token = wrapper.encode();
+
+            PageTokenWrapper result = PageTokenWrapper.from(token, unusedDefault);
+            assertThat(token).isAtLeast(0);
+            assertThat(result).isEqualTo(wrapper);
+            assertThat(result.isAscending()).isEqualTo(isAscending);
+            assertThat(result.rowId()).isEqualTo(MAX_ALLOWED_ROW_ID);
+            assertThat(result.timeMillis()).isAtMost(nowTimeMillis);
+            assertThat(result.maxTimeMillis()).isAtLeast(nowTimeMillis);
+        }
+    }
+
+    @Test
+    public void encodeAndFromToken_maxTimestampRowId_expectCorrectTime() {
+        boolean unusedDefault = true;
+        PageTokenWrapper wrapper =
+                PageTokenWrapper.ofRowId(
+                        /* isAscending= */ false, MAX_ALLOWED_TIME_MILLIS, /* rowId= */ 1);
+        long token = wrapper.encode();
+
+        PageTokenWrapper result = PageTokenWrapper.from(token, unusedDefault);
+        assertThat(token).isAtLeast(0);
+        assertThat(result.maxTimeMillis()).isEqualTo(MAX_ALLOWED_TIME_MILLIS);
+    }
+
+    @Test
+    public void from_maxOffsetPageToken_notRowIdToken() {
+        boolean unusedDefault = true;
+        PageTokenWrapper wrapper =
+                PageTokenWrapper.of(
+                        /* isAscending= */ true, /* timeMillis= */ 1234, (int) MAX_ALLOWED_OFFSET);
+        long token = wrapper.encode();
+
+        PageTokenWrapper result = PageTokenWrapper.from(token, unusedDefault);
+        assertThat(result.isRowIdSet()).isFalse();
+        assertThat(result.isTimestampSet()).isTrue();
+        assertThat(result.timeMillis()).isEqualTo(1234);
+        assertThat(result.offset()).isEqualTo(MAX_ALLOWED_OFFSET);
+    }
+
     @Test
     public void encode_pageTokenUnset_returnsDefaultLong() {
         assertThat(EMPTY_PAGE_TOKEN.encode()).isEqualTo(DEFAULT_LONG);
@@ -16,7 +16,10 @@
 
 package android.healthconnect;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertThrows;
 
 import android.Manifest;
 import android.app.UiAutomation;
@@ -41,6 +44,12 @@ import org.mockito.quality.Strictness;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RateLimiterTest {
     private static final int UID = 1;
@@ -50,6 +59,8 @@ public class RateLimiterTest {
     private static final int MAX_BACKGROUND_CALL_15M = 1000;
     private static final Duration WINDOW_15M = Duration.ofMinutes(15);
     private static final int MEMORY_COST = 20000;
+    private static final int MAX_DATA_PUSH_PER_APP_15M = 35000000;
+    private static final int THREAD_COUNT = 8;
 
     private static final UiAutomation UI_AUTOMATION =
             InstrumentationRegistry.getInstrumentation().getUiAutomation();
@@ -166,6 +177,67 @@ public class RateLimiterTest {
                 quotaCategoryWrite, IS_IN_FOREGROUND_FALSE, MAX_BACKGROUND_CALL_15M, 40000);
     }
 
+    @Test
+    public void testTryAcquireApiCallQuota_memoryQuotaExceeded_doesNotSpendApiQuota() {
+        RateLimiter.clearCache();
+        @QuotaCategory.Type int quotaCategoryWrite = 3;
+        assertThrows(
+                HealthConnectException.class,
+                () ->
+                        RateLimiter.tryAcquireApiCallQuota(
+                                UID,
+                                quotaCategoryWrite,
+                                IS_IN_FOREGROUND_FALSE,
+                                MAX_DATA_PUSH_PER_APP_15M + 1));
+
+        tryAcquireCallQuotaNTimes(
+                quotaCategoryWrite, IS_IN_FOREGROUND_FALSE, MAX_BACKGROUND_CALL_15M);
+    }
+
+    @Test
+    public void testTryAcquireApiCallQuota_concurrentCallersOfSameUid_grantMaxQuota()
+            throws Exception {
+        RateLimiter.clearCache();
+        @QuotaCategory.Type int quotaCategoryRead = 2;
+        int callsPerThread = MAX_FOREGROUND_READ_CALL_15M / THREAD_COUNT + 100;
+        AtomicInteger granted = new AtomicInteger();
+        Instant startTime = Instant.now();
+
+        runConcurrently(
+                thread -> {
+                    for (int i = 0; i < callsPerThread; i++) {
+                        try {
+                            RateLimiter.tryAcquireApiCallQuota(
+                                    UID, quotaCategoryRead, IS_IN_FOREGROUND_TRUE);
+                            granted.incrementAndGet();
+                        } catch (HealthConnectException e) {
+                            // Quota exceeded, expected once the quota is spent.
+                        }
+                    }
+                });
+
+        int refilled =
+                getCeilQuotaAcquired(
+                        startTime, Instant.now(), WINDOW_15M, MAX_FOREGROUND_READ_CALL_15M);
+        assertThat(granted.get()).isAtLeast(MAX_FOREGROUND_READ_CALL_15M);
+        assertThat(granted.get()).isAtMost(MAX_FOREGROUND_READ_CALL_15M + refilled);
+    }
+
+    @Test
+    public void testTryAcquireApiCallQuota_concurrentCallersOfDifferentUids_getFullQuotaEach()
+            throws Exception {
+        RateLimiter.clearCache();
+        @QuotaCategory.Type int quotaCategoryRead = 2;
+
+        runConcurrently(
+                thread -> {
+                    for (int i = 0; i < MAX_FOREGROUND_READ_CALL_15M; i++) {
+                        RateLimiter.tryAcquireApiCallQuota(
+                                UID + 1 + thread, quotaCategoryRead, IS_IN_FOREGROUND_TRUE);
+                    }
+                });
+    }
+
     @Test
     public void checkMaxChunkMemoryUsage_LimitExceeded() {
         long valueExceeding = 5000001;
@@ -196,6 +268,27 @@ public class RateLimiterTest {
         RateLimiter.checkMaxRecordMemoryUsage(value);
     }
 
+    /** Runs {@code task} on {@link #THREAD_COUNT} threads at once, and rethrows its failures. */
+    private static void runConcurrently(ThreadTask task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < THREAD_COUNT; thread++) {
+                int threadIndex = thread;
+                futures.add(executor.submit(() -> task.run(threadIndex)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface ThreadTask {
+        void run(int thread);
+    }
+
     private int getCeilQuotaAcquired(
             Instant startTime, Instant endTime, Duration window, int maxQuota) {
         Duration timeSpent = Duration.between(startTime, endTime);
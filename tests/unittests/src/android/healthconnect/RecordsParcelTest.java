@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.healthconnect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.aidl.RecordsParcel;
+import android.health.connect.datatypes.Record;
+import android.health.connect.internal.ParcelUtils;
+import android.health.connect.internal.SharedMemoryPool;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+import android.healthconnect.internal.datatypes.TestUtils;
+import android.os.Parcel;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class RecordsParcelTest {
+    private final SharedMemoryPool mSharedMemoryPool = new SharedMemoryPool();
+
+    @After
+    public void tearDown() {
+        mSharedMemoryPool.clear();
+    }
+
+    @Test
+    public void writeAndRead_smallPayload_usesParcel() {
+        List<RecordInternal<?>> records =
+                List.of(buildStepsRecord(0), TestUtils.buildExerciseSessionInternal());
+        Parcel parcel = writeToParcel(new RecordsParcel(records));
+        try {
+            assertThat(getParcelType(parcel)).isEqualTo(ParcelUtils.USING_PARCEL);
+
+            RecordsParcel read = RecordsParcel.CREATOR.createFromParcel(parcel);
+
+            assertThat(toExternalRecords(read.getRecords()))
+                    .containsExactlyElementsIn(toExternalRecords(records))
+                    .inOrder();
+            assertThat(read.getRecordsSize()).hasSize(2);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void writeAndRead_largePayload_usesSharedMemory() {
+        List<RecordInternal<?>> records = buildStepsRecords(5000);
+        Parcel parcel = writeToParcel(new RecordsParcel(records));
+        try {
+            assertThat(getParcelType(parcel)).isEqualTo(ParcelUtils.USING_SHARED_MEMORY);
+
+            RecordsParcel read = RecordsParcel.CREATOR.createFromParcel(parcel);
+
+            assertThat(toExternalRecords(read.getRecords()))
+                    .containsExactlyElementsIn(toExternalRecords(records))
+                    .inOrder();
+            assertThat(read.getRecordsSize()).hasSize(records.size());
+            assertThat(read.getRecordsSize().stream().mapToLong(Long::longValue).sum())
+                    .isEqualTo(read.getRecordsChunkSize());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void close_withPool_reusesSharedMemoryForNextParcel() {
+        List<RecordInternal<?>> records = buildStepsRecords(5000);
+        try (RecordsParcel recordsParcel = new RecordsParcel(records, mSharedMemoryPool)) {
+            writeToParcel(recordsParcel).recycle();
+        }
+        int pooledBytes = mSharedMemoryPool.getPooledBytes();
+        assertThat(pooledBytes).isGreaterThan(ParcelUtils.IPC_PARCEL_LIMIT);
+
+        try (RecordsParcel recordsParcel = new RecordsParcel(records, mSharedMemoryPool)) {
+            Parcel parcel = writeToParcel(recordsParcel);
+            try {
+                assertThat(mSharedMemoryPool.getPooledBytes()).isLessThan(pooledBytes);
+                RecordsParcel read = RecordsParcel.CREATOR.createFromParcel(parcel);
+                assertThat(read.getRecords()).hasSize(records.size());
+            } finally {
+                parcel.recycle();
+            }
+        }
+        assertThat(mSharedMemoryPool.getPooledBytes()).isEqualTo(pooledBytes);
+    }
+
+    @Test
+    public void release_poolFull_closesRegion() {
+        int size = SharedMemoryPool.MAX_POOLED_BYTES / 2 + 1;
+
+        mSharedMemoryPool.release(mSharedMemoryPool.acquire(size));
+        mSharedMemoryPool.release(mSharedMemoryPool.acquire(2 * size));
+
+        assertThat(mSharedMemoryPool.getPooledBytes())
+                .isEqualTo(SharedMemoryPool.getRegionSize(size));
+    }
+
+    @Test
+    public void getRegionSize_roundsUpToPowerOfTwo() {
+        assertThat(SharedMemoryPool.getRegionSize(1)).isEqualTo(SharedMemoryPool.MIN_REGION_SIZE);
+        assertThat(SharedMemoryPool.getRegionSize(100_000)).isEqualTo(128 * 1024);
+        assertThat(SharedMemoryPool.getRegionSize(128 * 1024)).isEqualTo(128 * 1024);
+    }
+
+    private static Parcel writeToParcel(RecordsParcel recordsParcel) {
+        Parcel parcel = Parcel.obtain();
+        recordsParcel.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        return parcel;
+    }
+
+    private static int getParcelType(Parcel parcel) {
+        int parcelType = parcel.readInt();
+        parcel.setDataPosition(0);
+        return parcelType;
+    }
+
+    private static List<Record> toExternalRecords(List<RecordInternal<?>> records) {
+        List<Record> externalRecords = new ArrayList<>();
+        records.forEach(record -> externalRecords.add(record.toExternalRecord()));
+        return externalRecords;
+    }
+
+    private static List<RecordInternal<?>> buildStepsRecords(int count) {
+        List<RecordInternal<?>> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(buildStepsRecord(i));
+        }
+        return records;
+    }
+
+    private static StepsRecordInternal buildStepsRecord(int index) {
+        return (StepsRecordInternal)
+                new StepsRecordInternal()
+                        .setCount(100 + index)
+                        .setStartTime(TestUtils.START_TIME + index)
+                        .setEndTime(TestUtils.END_TIME + index)
+                        .setStartZoneOffset(1)
+                        .setEndZoneOffset(1)
+                        .setUuid(UUID.randomUUID())
+                        .setPackageName("android.healthconnect.unittests");
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.healthconnect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.aidl.StreamedReadRecordsResponseParcel;
+import android.health.connect.datatypes.Record;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
+import android.healthconnect.internal.datatypes.TestUtils;
+import android.os.Parcel;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class StreamedReadRecordsResponseParcelTest {
+    private static final long PAGE_TOKEN = 1234;
+
+    @Test
+    public void writeAndRead_returnsSameRecords() {
+        List<RecordInternal<?>> records =
+                List.of(buildStepsRecord(0), TestUtils.buildExerciseSessionInternal());
+
+        try (StreamedReadRecordsResponseParcel parcel = writeAndRead(records)) {
+            assertThat(parcel.getRecordCount()).isEqualTo(2);
+            assertThat(parcel.getPageToken()).isEqualTo(PAGE_TOKEN);
+            assertThat(toExternalRecords(parcel.iterator()))
+                    .containsExactlyElementsIn(toExternalRecords(records.iterator()))
+                    .inOrder();
+        }
+    }
+
+    @Test
+    public void writeAndRead_recordsLargerThanInitialCapacity_returnsSameRecords() {
+        List<RecordInternal<?>> records = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            records.add(buildStepsRecord(i));
+        }
+
+        try (StreamedReadRecordsResponseParcel parcel = writeAndRead(records)) {
+            assertThat(parcel.getDataSize()).isGreaterThan(64 * 1024);
+            assertThat(toExternalRecords(parcel.iterator()))
+                    .containsExactlyElementsIn(toExternalRecords(records.iterator()))
+                    .inOrder();
+        }
+    }
+
+    @Test
+    public void writeAndRead_noRecords_returnsEmptyResponse() {
+        try (StreamedReadRecordsResponseParcel parcel = writeAndRead(List.of())) {
+            assertThat(parcel.getRecordCount()).isEqualTo(0);
+            assertThat(parcel.getPageToken()).isEqualTo(PAGE_TOKEN);
+            assertThat(parcel.iterator().hasNext()).isFalse();
+        }
+    }
+
+    @Test
+    public void iterator_calledTwice_iteratesFromStart() {
+        try (StreamedReadRecordsResponseParcel parcel =
+                writeAndRead(List.of(buildStepsRecord(0), buildStepsRecord(1)))) {
+            assertThat(toExternalRecords(parcel.iterator())).hasSize(2);
+            assertThat(toExternalRecords(parcel.iterator())).hasSize(2);
+        }
+    }
+
+    private static StreamedReadRecordsResponseParcel writeAndRead(
+            List<RecordInternal<?>> records) {
+        Parcel parcel = Parcel.obtain();
+        try (StreamedReadRecordsResponseParcel.Writer writer =
+                new StreamedReadRecordsResponseParcel.Writer()) {
+            records.forEach(writer::append);
+            try (StreamedReadRecordsResponseParcel written = writer.finish(PAGE_TOKEN)) {
+                written.writeToParcel(parcel, 0);
+            }
+            parcel.setDataPosition(0);
+            return StreamedReadRecordsResponseParcel.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static List<Record> toExternalRecords(Iterator<RecordInternal<?>> records) {
+        List<Record> externalRecords = new ArrayList<>();
+        records.forEachRemaining(record -> externalRecords.add(record.toExternalRecord()));
+        return externalRecords;
+    }
+
+    private static StepsRecordInternal buildStepsRecord(int index) {
+        return (StepsRecordInternal)
+                new StepsRecordInternal()
+                        .setCount(100 + index)
+                        .setStartTime(TestUtils.START_TIME + index)
+                        .setEndTime(TestUtils.END_TIME + index)
+                        .setStartZoneOffset(1)
+                        .setEndZoneOffset(1)
+                        .setUuid(UUID.randomUUID())
+                        .setPackageName("android.healthconnect.unittests");
+    }
+}
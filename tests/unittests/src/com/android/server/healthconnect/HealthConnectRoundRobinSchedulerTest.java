@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class HealthConnectRoundRobinSchedulerTest {
+    private static final int UID_1 = 1001;
+    private static final int UID_2 = 1002;
+    private static final int UID_3 = 1003;
+
+    private final List<String> mRunTasks = new ArrayList<>();
+
+    @Test
+    public void getNextTask_takesTurnsBetweenUids() {
+        HealthConnectRoundRobinScheduler scheduler = new HealthConnectRoundRobinScheduler();
+        scheduler.addTask(UID_1, task("1a"));
+        scheduler.addTask(UID_1, task("1b"));
+        scheduler.addTask(UID_2, task("2a"));
+        scheduler.addTask(UID_3, task("3a"));
+
+        for (int i = 0; i < 4; i++) {
+            scheduler.getNextTask().run();
+        }
+
+        assertThat(mRunTasks).containsExactly("1a", "2a", "3a", "1b").inOrder();
+    }
+
+    @Test
+    public void getNextTask_uidWithRunningTask_prefersIdleUid() {
+        HealthConnectRoundRobinScheduler scheduler = new HealthConnectRoundRobinScheduler();
+        scheduler.addTask(UID_1, task("1a"));
+        scheduler.addTask(UID_1, task("1b"));
+        scheduler.addTask(UID_2, task("2a"));
+
+        // Taken by a worker, but still running.
+        Runnable runningTask = scheduler.getNextTask();
+        scheduler.getNextTask().run();
+        scheduler.addTask(UID_2, task("2b"));
+
+        // Plain round robin would pick 1b here, but UID_1 already occupies a worker.
+        scheduler.getNextTask().run();
+        runningTask.run();
+        scheduler.getNextTask().run();
+
+        assertThat(mRunTasks).containsExactly("2a", "2b", "1a", "1b").inOrder();
+    }
+
+    @Test
+    public void getNextTask_allUidsRunning_fallsBackToRoundRobin() {
+        HealthConnectRoundRobinScheduler scheduler = new HealthConnectRoundRobinScheduler();
+        scheduler.addTask(UID_1, task("1a"));
+        scheduler.addTask(UID_1, task("1b"));
+
+        Runnable runningTask = scheduler.getNextTask();
+        scheduler.getNextTask().run();
+        runningTask.run();
+
+        assertThat(mRunTasks).containsExactly("1b", "1a").inOrder();
+    }
+
+    private Runnable task(String name) {
+        return () -> mRunTasks.add(name);
+    }
+}
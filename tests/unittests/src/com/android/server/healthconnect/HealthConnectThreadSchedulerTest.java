@@ -113,6 +113,51 @@ public class HealthConnectThreadSchedulerTest {
                 });
     }
 
+    @Test
+    public void testHealthConnectSchedulerScheduleReadOnly_foreground_runsOnReadLane()
+            throws Exception {
+        ThreadPoolExecutor readTaskScheduler = HealthConnectThreadScheduler.sForegroundReadExecutor;
+        long readTaskSchedulerCompletedJobs = readTaskScheduler.getCompletedTaskCount();
+        when(mMockContext.getSystemService(ActivityManager.class)).thenReturn(mActivityManager);
+        ActivityManager.RunningAppProcessInfo runningAppProcessInfo =
+                new ActivityManager.RunningAppProcessInfo();
+        runningAppProcessInfo.uid = Process.myUid();
+        runningAppProcessInfo.importance =
+                ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+        when(mActivityManager.getRunningAppProcesses()).thenReturn(List.of(runningAppProcessInfo));
+
+        HealthConnectThreadScheduler.schedule(
+                mMockContext, () -> {}, Process.myUid(), false, /* isReadOnly= */ true);
+        TestUtils.waitForTaskToFinishSuccessfully(
+                () -> {
+                    if (readTaskScheduler.getCompletedTaskCount()
+                            != readTaskSchedulerCompletedJobs + 1) {
+                        throw new RuntimeException();
+                    }
+                });
+        Truth.assertThat(mForegroundTaskScheduler.getCompletedTaskCount())
+                .isEqualTo(mForegroundTaskSchedulerCompletedJobs);
+    }
+
+    @Test
+    public void testHealthConnectSchedulerLaneStats_countsStartedTasks() throws Exception {
+        HealthConnectThreadScheduler.scheduleInternalTask(() -> {});
+        TestUtils.waitForTaskToFinishSuccessfully(
+                () -> {
+                    if (mInternalTaskScheduler.getCompletedTaskCount()
+                            != mInternalTaskSchedulerCompletedJobs + 1) {
+                        throw new RuntimeException();
+                    }
+                });
+
+        HealthConnectThreadPoolExecutor.LaneStats stats =
+                HealthConnectThreadScheduler.sInternalBackgroundExecutor.getStats();
+        Truth.assertThat(stats.getName()).isEqualTo("internal");
+        Truth.assertThat(stats.getStartedTaskCount()).isEqualTo(1);
+        Truth.assertThat(stats.getQueuedTaskCount()).isEqualTo(0);
+        Truth.assertThat(HealthConnectThreadScheduler.getLaneStats()).hasSize(5);
+    }
+
     @Test
     public void testHealthConnectScheduler_runningAppProcessNull() throws Exception {
         when(mMockContext.getSystemService(ActivityManager.class)).thenReturn(mActivityManager);
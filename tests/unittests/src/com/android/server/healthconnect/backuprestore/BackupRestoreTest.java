@@ -62,6 +62,7 @@ import static org.mockito.Mockito.when;
 import android.app.job.JobInfo;
 import android.app.job.JobScheduler;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.health.connect.HealthConnectManager;
 import android.health.connect.restore.BackupFileNamesSet;
@@ -98,7 +99,6 @@ import org.mockito.Mock;
 import org.mockito.quality.Strictness;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.Map;
@@ -195,7 +195,7 @@ public class BackupRestoreTest {
 
     @Test
     public void testGetAllBackupData_forDeviceToDevice_copiesAllData() throws Exception {
-        File dbFileToBackup = createAndGetNonEmptyFile(mMockDataDirectory, DATABASE_NAME);
+        File dbFileToBackup = createAndGetDatabaseFile(mMockDataDirectory, DATABASE_NAME);
         File dbFileBacked = createAndGetEmptyFile(mMockBackedDataDirectory, STAGED_DATABASE_NAME);
         File grantTimeFileBacked =
                 createAndGetEmptyFile(mMockBackedDataDirectory, GRANT_TIME_FILE_NAME);
@@ -216,7 +216,8 @@ public class BackupRestoreTest {
 
         mBackupRestore.getAllDataForBackup(new StageRemoteDataRequest(pfdsByFileName), mUserHandle);
 
-        assertThat(dbFileBacked.length()).isEqualTo(dbFileToBackup.length());
+        assertThat(getTestTableRowCount(dbFileBacked))
+                .isEqualTo(getTestTableRowCount(dbFileToBackup));
         assertThat(GrantTimeXmlHelper.parseGrantTime(grantTimeFileBacked).toString())
                 .isEqualTo(userGrantTimeState.toString());
     }
@@ -899,14 +900,26 @@ public class BackupRestoreTest {
         assertThat(result).isFalse();
     }
 
-    private static File createAndGetNonEmptyFile(File dir, String fileName) throws IOException {
+    private static File createAndGetDatabaseFile(File dir, String fileName) {
         File file = new File(dir, fileName);
-        FileWriter fileWriter = new FileWriter(file);
-        fileWriter.write("Contents of file " + fileName);
-        fileWriter.close();
+        try (SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null)) {
+            db.execSQL("CREATE TABLE test_table (value INTEGER)");
+            db.execSQL("INSERT INTO test_table VALUES (1), (2), (3)");
+        }
         return file;
     }
 
+    private static long getTestTableRowCount(File databaseFile) {
+        try (SQLiteDatabase db =
+                SQLiteDatabase.openDatabase(
+                        databaseFile,
+                        new SQLiteDatabase.OpenParams.Builder()
+                                .addOpenFlags(SQLiteDatabase.OPEN_READONLY)
+                                .build())) {
+            return DatabaseUtils.queryNumEntries(db, "test_table");
+        }
+    }
+
     private static File createAndGetEmptyFile(File dir, String fileName) throws IOException {
         File file = new File(dir, fileName);
         file.createNewFile();
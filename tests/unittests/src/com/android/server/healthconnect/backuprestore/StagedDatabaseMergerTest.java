@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.backuprestore;
+
+import static android.health.connect.Constants.PARENT_KEY;
+
+import static com.android.server.healthconnect.storage.utils.StorageUtils.BLOB_UNIQUE_NON_NULL;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.BLOB_UNIQUE_NULL;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.INTEGER;
+import static com.android.server.healthconnect.storage.utils.StorageUtils.PRIMARY_AUTOINCREMENT;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Pair;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.storage.request.CreateTableRequest;
+import com.android.server.healthconnect.utils.FilesUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(AndroidJUnit4.class)
+public class StagedDatabaseMergerTest {
+    private static final String RECORD_TABLE_NAME = "test_record_table";
+    private static final String CHILD_TABLE_NAME = "test_child_table";
+    private static final CreateTableRequest CREATE_TABLE_REQUEST =
+            new CreateTableRequest(
+                            RECORD_TABLE_NAME,
+                            List.of(
+                                    Pair.create("row_id", PRIMARY_AUTOINCREMENT),
+                                    Pair.create("uuid", BLOB_UNIQUE_NON_NULL),
+                                    Pair.create("app_info_id", INTEGER),
+                                    Pair.create("device_info_id", INTEGER),
+                                    Pair.create("last_modified_time", INTEGER),
+                                    Pair.create("client_record_version", INTEGER),
+                                    Pair.create("dedupe_hash", BLOB_UNIQUE_NULL),
+                                    Pair.create("value", INTEGER)))
+                    .setChildTableRequests(
+                            List.of(
+                                    new CreateTableRequest(
+                                            CHILD_TABLE_NAME,
+                                            List.of(
+                                                    Pair.create(PARENT_KEY, INTEGER),
+                                                    Pair.create("value", INTEGER)))));
+    private static final int CHUNK_SIZE = 2;
+
+    private File mDir;
+    private SQLiteDatabase mStagedDb;
+    private SQLiteDatabase mDb;
+    private File mDatabaseFile;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        mDir = context.getDir("staged_database_merger_test", Context.MODE_PRIVATE);
+        mStagedDb = createDatabase(new File(mDir, "staged.db"));
+        mDatabaseFile = new File(mDir, "healthconnect.db");
+        mDb = createDatabase(mDatabaseFile);
+    }
+
+    @After
+    public void tearDown() {
+        mStagedDb.close();
+        mDb.close();
+        FilesUtil.deleteDir(mDir);
+    }
+
+    @Test
+    public void mergeTable_copiesRecordsAndChildRowsWithRemappedIds() {
+        for (int i = 1; i <= 5; i++) {
+            insertRecord(mStagedDb, i, /* appInfoId= */ 1, /* deviceInfoId= */ 2, /* value= */ i);
+        }
+        insertRecord(mStagedDb, 6, /* appInfoId= */ 3, /* deviceInfoId= */ 2, /* value= */ 6);
+
+        long mergedCount;
+        try (StagedDatabaseMerger merger = createMerger()) {
+            merger.setAppInfoIds(Map.of(1L, 10L));
+            merger.setDeviceInfoIds(Map.of(2L, 20L));
+            mergedCount = merger.mergeTable(CREATE_TABLE_REQUEST);
+        }
+
+        assertThat(mergedCount).isEqualTo(5);
+        assertThat(queryLongs("SELECT value FROM " + RECORD_TABLE_NAME + " ORDER BY value"))
+                .containsExactly(1L, 2L, 3L, 4L, 5L)
+                .inOrder();
+        assertThat(queryLongs("SELECT DISTINCT app_info_id FROM " + RECORD_TABLE_NAME))
+                .containsExactly(10L);
+        assertThat(queryLongs("SELECT DISTINCT device_info_id FROM " + RECORD_TABLE_NAME))
+                .containsExactly(20L);
+        assertThat(
+                        queryLongs(
+                                "SELECT c.value - r.value FROM "
+                                        + CHILD_TABLE_NAME
+                                        + " AS c INNER JOIN "
+                                        + RECORD_TABLE_NAME
+                                        + " AS r ON c.parent_key = r.row_id"))
+                .containsExactly(100L, 100L, 100L, 100L, 100L);
+    }
+
+    @Test
+    public void mergeTable_recordAlreadyPresent_keepsRecordAndItsChildRows() {
+        insertRecord(mDb, 1, /* appInfoId= */ 10, /* deviceInfoId= */ 20, /* value= */ 7);
+        insertRecord(mStagedDb, 1, /* appInfoId= */ 1, /* deviceInfoId= */ 2, /* value= */ 1);
+        insertRecord(mStagedDb, 2, /* appInfoId= */ 1, /* deviceInfoId= */ 2, /* value= */ 2);
+
+        try (StagedDatabaseMerger merger = createMerger()) {
+            merger.setAppInfoIds(Map.of(1L, 10L));
+            merger.setDeviceInfoIds(Map.of());
+            assertThat(merger.mergeTable(CREATE_TABLE_REQUEST)).isEqualTo(1);
+        }
+
+        assertThat(queryLongs("SELECT value FROM " + RECORD_TABLE_NAME + " ORDER BY value"))
+                .containsExactly(2L, 7L)
+                .inOrder();
+        assertThat(queryLongs("SELECT value FROM " + CHILD_TABLE_NAME + " ORDER BY value"))
+                .containsExactly(102L, 107L)
+                .inOrder();
+    }
+
+    @Test
+    public void mergeTable_higherClientRecordVersion_replacesRecordAndItsChildRows() {
+        insertRecord(mDb, 1, /* clientRecordVersion= */ 1, /* value= */ 7);
+        insertRecord(mDb, 2, /* clientRecordVersion= */ 1, /* value= */ 8);
+        insertRecord(mStagedDb, 1, /* clientRecordVersion= */ 2, /* value= */ 1);
+        insertRecord(mStagedDb, 2, /* clientRecordVersion= */ 1, /* value= */ 2);
+
+        try (StagedDatabaseMerger merger = createMerger()) {
+            merger.setAppInfoIds(Map.of(1L, 10L));
+            assertThat(merger.mergeTable(CREATE_TABLE_REQUEST)).isEqualTo(1);
+        }
+
+        assertThat(queryLongs("SELECT value FROM " + RECORD_TABLE_NAME + " ORDER BY value"))
+                .containsExactly(1L, 8L)
+                .inOrder();
+        assertThat(queryLongs("SELECT value FROM " + CHILD_TABLE_NAME + " ORDER BY value"))
+                .containsExactly(101L, 108L)
+                .inOrder();
+    }
+
+    @Test
+    public void mergeTable_duplicateOfExistingRecord_isNotCopied() {
+        insertRecord(mDb, 1, /* clientRecordVersion= */ 1, /* value= */ 7);
+        mDb.execSQL("UPDATE " + RECORD_TABLE_NAME + " SET dedupe_hash = X'01'");
+        insertRecord(mStagedDb, 2, /* clientRecordVersion= */ 1, /* value= */ 2);
+        insertRecord(mStagedDb, 3, /* clientRecordVersion= */ 1, /* value= */ 3);
+        mStagedDb.execSQL(
+                "UPDATE " + RECORD_TABLE_NAME + " SET dedupe_hash = X'01' WHERE value = 2");
+
+        try (StagedDatabaseMerger merger = createMerger()) {
+            merger.setAppInfoIds(Map.of(1L, 10L));
+            assertThat(merger.mergeTable(CREATE_TABLE_REQUEST)).isEqualTo(1);
+        }
+
+        assertThat(queryLongs("SELECT value FROM " + RECORD_TABLE_NAME + " ORDER BY value"))
+                .containsExactly(3L, 7L)
+                .inOrder();
+        assertThat(queryLongs("SELECT value FROM " + CHILD_TABLE_NAME + " ORDER BY value"))
+                .containsExactly(103L, 107L)
+                .inOrder();
+    }
+
+    @Test
+    public void mergeTable_progressNotSaved_redoesChunksWithoutChanges() {
+        for (int i = 1; i <= 3; i++) {
+            insertRecord(mStagedDb, i, /* clientRecordVersion= */ 1, /* value= */ i);
+        }
+        try (StagedDatabaseMerger merger = createMerger()) {
+            merger.setAppInfoIds(Map.of(1L, 10L));
+            merger.mergeTable(CREATE_TABLE_REQUEST);
+        }
+        // As if the merge was interrupted after the records were merged, but before the progress
+        // was saved.
+        mStagedDb.execSQL("DELETE FROM restore_merge_progress_table");
+
+        try (StagedDatabaseMerger merger = createMerger()) {
+            merger.setAppInfoIds(Map.of(1L, 10L));
+            assertThat(merger.mergeTable(CREATE_TABLE_REQUEST)).isEqualTo(0);
+        }
+
+        assertThat(queryLongs("SELECT value FROM " + RECORD_TABLE_NAME + " ORDER BY value"))
+                .containsExactly(1L, 2L, 3L)
+                .inOrder();
+        assertThat(queryLongs("SELECT value FROM " + CHILD_TABLE_NAME + " ORDER BY value"))
+                .containsExactly(101L, 102L, 103L)
+                .inOrder();
+    }
+
+    @Test
+    public void mergeTable_mergedBefore_onlyCopiesNewRecords() {
+        insertRecord(mStagedDb, 1, /* appInfoId= */ 1, /* deviceInfoId= */ 2, /* value= */ 1);
+        try (StagedDatabaseMerger merger = createMerger()) {
+            merger.setAppInfoIds(Map.of(1L, 10L));
+            merger.mergeTable(CREATE_TABLE_REQUEST);
+        }
+        mDb.execSQL("DELETE FROM " + RECORD_TABLE_NAME);
+        insertRecord(mStagedDb, 2, /* appInfoId= */ 1, /* deviceInfoId= */ 2, /* value= */ 2);
+
+        try (StagedDatabaseMerger merger = createMerger()) {
+            merger.setAppInfoIds(Map.of(1L, 10L));
+            assertThat(merger.mergeTable(CREATE_TABLE_REQUEST)).isEqualTo(1);
+        }
+
+        assertThat(queryLongs("SELECT value FROM " + RECORD_TABLE_NAME)).containsExactly(2L);
+    }
+
+    private StagedDatabaseMerger createMerger() {
+        return new StagedDatabaseMerger(mStagedDb, mDatabaseFile, CHUNK_SIZE);
+    }
+
+    private List<Long> queryLongs(String sql) {
+        List<Long> values = new ArrayList<>();
+        try (Cursor cursor = mDb.rawQuery(sql, null)) {
+            while (cursor.moveToNext()) {
+                values.add(cursor.getLong(0));
+            }
+        }
+        return values;
+    }
+
+    private static SQLiteDatabase createDatabase(File file) {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        db.execSQL(CREATE_TABLE_REQUEST.getCreateCommand());
+        db.execSQL(CREATE_TABLE_REQUEST.getChildTableRequests().get(0).getCreateCommand());
+        return db;
+    }
+
+    /** Inserts a record of app 1 and device 2, for the staged database. */
+    private static void insertRecord(
+            SQLiteDatabase db, int uuid, long clientRecordVersion, long value) {
+        insertRecord(
+                db,
+                uuid,
+                /* appInfoId= */ 1,
+                /* deviceInfoId= */ 2,
+                clientRecordVersion,
+                value);
+    }
+
+    private static void insertRecord(
+            SQLiteDatabase db, int uuid, long appInfoId, long deviceInfoId, long value) {
+        insertRecord(db, uuid, appInfoId, deviceInfoId, /* clientRecordVersion= */ 0, value);
+    }
+
+    /** Inserts a record with a child row whose value is 100 more than the one of the record. */
+    private static void insertRecord(
+            SQLiteDatabase db,
+            int uuid,
+            long appInfoId,
+            long deviceInfoId,
+            long clientRecordVersion,
+            long value) {
+        db.execSQL(
+                "INSERT INTO "
+                        + RECORD_TABLE_NAME
+                        + " (uuid, app_info_id, device_info_id, last_modified_time,"
+                        + " client_record_version, value) VALUES (?, ?, ?, 0, ?, ?)",
+                new Object[] {
+                    new byte[] {(byte) uuid}, appInfoId, deviceInfoId, clientRecordVersion, value
+                });
+        db.execSQL(
+                "INSERT INTO "
+                        + CHILD_TABLE_NAME
+                        + " (parent_key, value) VALUES (last_insert_rowid(), ?)",
+                new Object[] {value + 100});
+    }
+}
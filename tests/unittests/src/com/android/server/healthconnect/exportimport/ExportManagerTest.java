@@ -22,8 +22,11 @@ import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.healthconnect.cts.utils.AssumptionCheckerRule;
 import android.healthconnect.cts.utils.TestUtils;
+import android.os.CancellationSignal;
 import android.os.Environment;
 import android.os.UserHandle;
 
@@ -44,9 +47,6 @@ import org.mockito.Mock;
 import org.mockito.quality.Strictness;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
 
 @RunWith(AndroidJUnit4.class)
 public class ExportManagerTest {
@@ -92,30 +92,54 @@ public class ExportManagerTest {
 
     @Test
     public void testExportLocally_copiesAllData() throws Exception {
-        File originalDbFile = createAndGetNonEmptyFile(mMockDataDirectory, DATABASE_NAME);
+        File originalDbFile = createAndGetDatabaseFile(mMockDataDirectory, DATABASE_NAME);
         when(mTransactionManager.getDatabasePath()).thenReturn(originalDbFile);
 
         String exportFilePath = mExportManager.exportLocally(mUserHandle);
 
-        assertThat(getFileContentFromPath(exportFilePath).length())
-                .isEqualTo(originalDbFile.length());
+        assertThat(getTestTableRowCount(new File(exportFilePath)))
+                .isEqualTo(getTestTableRowCount(originalDbFile));
     }
 
-    private static File createAndGetNonEmptyFile(File dir, String fileName) throws IOException {
+    @Test
+    public void testExportLocally_canceled_deletesExportFile() throws Exception {
+        File originalDbFile = createAndGetDatabaseFile(mMockDataDirectory, DATABASE_NAME);
+        when(mTransactionManager.getDatabasePath()).thenReturn(originalDbFile);
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+
+        String exportFilePath = mExportManager.exportLocally(mUserHandle, cancellationSignal);
+
+        assertThat(new File(exportFilePath).exists()).isFalse();
+    }
+
+    @Test
+    public void testExportLocally_failed_deletesExportFile() throws Exception {
+        when(mTransactionManager.getDatabasePath())
+                .thenReturn(new File(mMockDataDirectory, "missing.db"));
+
+        String exportFilePath = mExportManager.exportLocally(mUserHandle);
+
+        assertThat(new File(exportFilePath).exists()).isFalse();
+    }
+
+    private static File createAndGetDatabaseFile(File dir, String fileName) {
         File file = new File(dir, fileName);
-        FileWriter fileWriter = new FileWriter(file);
-        fileWriter.write("Contents of file " + fileName);
-        fileWriter.close();
+        try (SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null)) {
+            db.execSQL("CREATE TABLE test_table (value INTEGER)");
+            db.execSQL("INSERT INTO test_table VALUES (1), (2), (3)");
+        }
         return file;
     }
 
-    private static String getFileContentFromPath(String path) throws Exception {
-        FileReader reader = new FileReader(path);
-        StringBuilder stringBuilder = new StringBuilder();
-        int nextChar;
-        while ((nextChar = reader.read()) != -1) {
-            stringBuilder.append((char) nextChar);
+    private static long getTestTableRowCount(File databaseFile) {
+        try (SQLiteDatabase db =
+                SQLiteDatabase.openDatabase(
+                        databaseFile,
+                        new SQLiteDatabase.OpenParams.Builder()
+                                .addOpenFlags(SQLiteDatabase.OPEN_READONLY)
+                                .build())) {
+            return DatabaseUtils.queryNumEntries(db, "test_table");
         }
-        return String.valueOf(stringBuilder);
     }
 }
@@ -36,7 +36,6 @@ import androidx.test.runner.AndroidJUnit4;
 import com.android.server.healthconnect.permission.FirstGrantTimeManager;
 import com.android.server.healthconnect.permission.HealthConnectPermissionHelper;
 import com.android.server.healthconnect.storage.TransactionManager;
-import com.android.server.healthconnect.storage.datatypehelpers.ActivityDateHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.AppInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.DeviceInfoHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.HealthDataCategoryPriorityHelper;
@@ -79,7 +78,6 @@ public class PriorityMigrationTest {
     @Mock RecordHelperProvider mRecordHelperProvider;
     @Mock HealthDataCategoryPriorityHelper mHealthDataCategoryPriorityHelper;
     @Mock PriorityMigrationHelper mPriorityMigrationHelper;
-    @Mock ActivityDateHelper mActivityDateHelper;
     @Mock SQLiteDatabase mSQLiteDatabase;
 
     DataMigrationManager mDataMigrationManager;
@@ -112,8 +110,7 @@ public class PriorityMigrationTest {
                         mMigrationEntityHelper,
                         mRecordHelperProvider,
                         mHealthDataCategoryPriorityHelper,
-                        mPriorityMigrationHelper,
-                        mActivityDateHelper);
+                        mPriorityMigrationHelper);
     }
 
     @Test
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.TransactionTestUtils.createStepsRecord;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.AggregateRecordsRequest;
+import android.health.connect.AggregateRecordsResponse;
+import android.health.connect.TimeInstantRangeFilter;
+import android.health.connect.aidl.AggregateDataRequestParcel;
+import android.health.connect.aidl.AggregateDataResponseParcel;
+import android.health.connect.datatypes.HydrationRecord;
+import android.health.connect.datatypes.units.Volume;
+import android.health.connect.internal.datatypes.HydrationRecordInternal;
+import android.health.connect.internal.datatypes.RecordInternal;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.HealthConnectUserContext;
+import com.android.server.healthconnect.storage.datatypehelpers.DatabaseHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.HealthConnectDatabaseTestRule;
+import com.android.server.healthconnect.storage.datatypehelpers.TransactionTestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Duration;
+import java.time.Instant;
+
+@RunWith(AndroidJUnit4.class)
+public class AggregationResultCacheTest {
+    private static final String TEST_PACKAGE_NAME = "package.name";
+    private static final long MINUTE = Duration.ofMinutes(1).toMillis();
+    private static final long START_TIME = Instant.parse("2024-01-01T10:00:00Z").toEpochMilli();
+
+    @Rule public final HealthConnectDatabaseTestRule testRule = new HealthConnectDatabaseTestRule();
+    private TransactionTestUtils mTransactionTestUtils;
+    private TransactionManager mTransactionManager;
+    private AggregationResultCache mCache;
+
+    @Before
+    public void setup() {
+        HealthConnectUserContext context = testRule.getUserContext();
+        mTransactionManager = TransactionManager.getInstance(context);
+        DatabaseHelper.clearAllData(mTransactionManager);
+        mTransactionTestUtils = new TransactionTestUtils(context, mTransactionManager);
+        mTransactionTestUtils.insertApp(TEST_PACKAGE_NAME);
+        mCache = new AggregationResultCache();
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseHelper.clearAllData(mTransactionManager);
+        TransactionManager.clearInstance();
+    }
+
+    @Test
+    public void sameRequest_servedFromCache() {
+        mTransactionTestUtils.insertRecords(TEST_PACKAGE_NAME, createHydrationRecord(1.5));
+
+        AggregateDataResponseParcel first = aggregateHydration();
+        AggregateDataResponseParcel second = aggregateHydration();
+
+        assertThat(second).isSameInstanceAs(first);
+        assertThat(getVolumeInLiters(second)).isEqualTo(1.5);
+        assertThat(mCache.getMissCount()).isEqualTo(1);
+        assertThat(mCache.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void insertRecordsOfAggregatedType_invalidatesEntry() {
+        mTransactionTestUtils.insertRecords(TEST_PACKAGE_NAME, createHydrationRecord(1.5));
+        aggregateHydration();
+
+        mTransactionTestUtils.insertRecords(TEST_PACKAGE_NAME, createHydrationRecord(2.5));
+
+        assertThat(getVolumeInLiters(aggregateHydration())).isEqualTo(4.0);
+        assertThat(mCache.getMissCount()).isEqualTo(2);
+        assertThat(mCache.getHitCount()).isEqualTo(0);
+        assertThat(mCache.getInvalidationCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void insertRecordsOfOtherType_keepsEntry() {
+        mTransactionTestUtils.insertRecords(TEST_PACKAGE_NAME, createHydrationRecord(1.5));
+        aggregateHydration();
+
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME, createStepsRecord(START_TIME, START_TIME + MINUTE, 100));
+
+        assertThat(getVolumeInLiters(aggregateHydration())).isEqualTo(1.5);
+        assertThat(mCache.getHitCount()).isEqualTo(1);
+        assertThat(mCache.getInvalidationCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void clear_dropsEntries() {
+        mTransactionTestUtils.insertRecords(TEST_PACKAGE_NAME, createHydrationRecord(1.5));
+        aggregateHydration();
+
+        // Records deleted without change logs, as auto delete does.
+        mTransactionManager.runAsTransaction(
+                db -> db.execSQL("DELETE FROM hydration_record_table"));
+        mCache.clear();
+
+        assertThat(getVolumeInLiters(aggregateHydration())).isEqualTo(0.0);
+        assertThat(mCache.getMissCount()).isEqualTo(2);
+        assertThat(mCache.getHitCount()).isEqualTo(0);
+    }
+
+    private AggregateDataResponseParcel aggregateHydration() {
+        AggregateRecordsRequest<Volume> request =
+                new AggregateRecordsRequest.Builder<Volume>(
+                                new TimeInstantRangeFilter.Builder()
+                                        .setStartTime(Instant.ofEpochMilli(START_TIME - MINUTE))
+                                        .setEndTime(Instant.ofEpochMilli(START_TIME + 60 * MINUTE))
+                                        .build())
+                        .addAggregationType(HydrationRecord.VOLUME_TOTAL)
+                        .build();
+        return mCache.getOrCompute(
+                TEST_PACKAGE_NAME,
+                new AggregateDataRequestParcel(request),
+                /* startDateAccess= */ 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static double getVolumeInLiters(AggregateDataResponseParcel response) {
+        Volume volume =
+                ((AggregateRecordsResponse<Volume>) response.getAggregateDataResponse())
+                        .get(HydrationRecord.VOLUME_TOTAL);
+        return volume == null ? 0 : volume.getInLiters();
+    }
+
+    private static RecordInternal<HydrationRecord> createHydrationRecord(double volume) {
+        return new HydrationRecordInternal()
+                .setVolume(volume)
+                .setStartTime(START_TIME)
+                .setEndTime(START_TIME + MINUTE);
+    }
+}
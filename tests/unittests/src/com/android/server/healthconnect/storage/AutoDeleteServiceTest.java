@@ -16,12 +16,19 @@
 
 package healthconnect.storage;
 
+import static com.android.server.healthconnect.storage.AutoDeleteService.RECORD_DELETE_BATCH_SIZE;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
 import android.health.connect.datatypes.RecordTypeIdentifier;
+import android.os.CancellationSignal;
 import android.util.ArrayMap;
 
 import androidx.test.runner.AndroidJUnit4;
@@ -78,10 +85,12 @@ import com.android.server.healthconnect.storage.datatypehelpers.WeightRecordHelp
 import com.android.server.healthconnect.storage.datatypehelpers.WheelchairPushesRecordHelper;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+import com.android.server.healthconnect.storage.utils.SqlStatement;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 
@@ -91,11 +100,18 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @RunWith(AndroidJUnit4.class)
 public class AutoDeleteServiceTest {
     private static final String AUTO_DELETE_DURATION_RECORDS_KEY =
             "auto_delete_duration_records_key";
+    private static final String AUTO_DELETE_RECORDS_CHECKPOINT_KEY =
+            "auto_delete_records_checkpoint_key";
+    // DELETE FROM <table name> WHERE ...
+    private static final Pattern DELETE_TABLE_NAME_PATTERN =
+            Pattern.compile("DELETE FROM (\\w+) ");
 
     @Rule
     public final ExtendedMockitoRule mExtendedMockitoRule =
@@ -106,6 +122,7 @@ public class AutoDeleteServiceTest {
                     .mockStatic(AppInfoHelper.class)
                     .mockStatic(ActivityDateHelper.class)
                     .mockStatic(HealthDataCategoryPriorityHelper.class)
+                    .mockStatic(AggregationResultCache.class)
                     .build();
 
     @Mock private PreferenceHelper mPreferenceHelper;
@@ -115,6 +132,7 @@ public class AutoDeleteServiceTest {
     @Mock private AppInfoHelper mAppInfoHelper;
     @Mock private ActivityDateHelper mActivityDateHelper;
     @Mock private HealthDataCategoryPriorityHelper mHealthDataCategoryPriorityHelper;
+    @Mock private AggregationResultCache mAggregationResultCache;
     @Mock Context mContext;
 
     @Test
@@ -134,11 +152,12 @@ public class AutoDeleteServiceTest {
         when(TransactionManager.getInitialisedInstance()).thenReturn(mTransactionManager);
         when(AppInfoHelper.getInstance()).thenReturn(mAppInfoHelper);
         when(ActivityDateHelper.getInstance()).thenReturn(mActivityDateHelper);
+        when(AggregationResultCache.getInstance()).thenReturn(mAggregationResultCache);
         when(mPreferenceHelper.getPreference(AUTO_DELETE_DURATION_RECORDS_KEY)).thenReturn(null);
         when(HealthDataCategoryPriorityHelper.getInstance())
                 .thenReturn(mHealthDataCategoryPriorityHelper);
 
-        AutoDeleteService.startAutoDelete(mContext);
+        AutoDeleteService.startAutoDelete(mContext, new CancellationSignal());
 
         verify(mRecordHelperProvider, never()).getRecordHelpers();
         verify(mTransactionManager, Mockito.times(2))
@@ -148,12 +167,89 @@ public class AutoDeleteServiceTest {
                                         checkTableNames_getPreferenceReturnNull(
                                                 deleteTableRequestsList)));
         verify(mAppInfoHelper).syncAppInfoRecordTypesUsed();
-        verify(mActivityDateHelper).reSyncForAllRecords();
+        verify(mActivityDateHelper, never()).reSyncForAllRecords();
         verify(mHealthDataCategoryPriorityHelper).reSyncHealthDataPriorityTable(mContext);
+        // Stale change logs were deleted.
+        verify(mAggregationResultCache).clear();
     }
 
     @Test
     public void testStartAutoDelete_getPreferenceReturnNonNull() {
+        setUpRecordAutoDelete();
+
+        AutoDeleteService.startAutoDelete(mContext, new CancellationSignal());
+
+        verify(mTransactionManager, Mockito.times(2))
+                .deleteWithoutChangeLogs(
+                        Mockito.argThat(
+                                (List<DeleteTableRequest> deleteTableRequestsList) ->
+                                        checkTableNames_getPreferenceReturnNull(
+                                                deleteTableRequestsList)));
+        ArgumentCaptor<SqlStatement> captor = ArgumentCaptor.forClass(SqlStatement.class);
+        verify(mTransactionManager, Mockito.times(getRecordHelpers().size()))
+                .deleteBatchWithoutChangeLogs(captor.capture());
+        assertThat(getTableNames(captor.getAllValues()))
+                .containsExactlyElementsIn(getTableNamesForDeletingStaleRecordEntries());
+        verify(mPreferenceHelper).removeKey(AUTO_DELETE_RECORDS_CHECKPOINT_KEY);
+        verify(mAppInfoHelper).syncAppInfoRecordTypesUsed();
+        verify(mActivityDateHelper, never()).reSyncForAllRecords();
+        verify(mHealthDataCategoryPriorityHelper).reSyncHealthDataPriorityTable(mContext);
+    }
+
+    @Test
+    public void testStartAutoDelete_fullBatches_deletesUntilBatchIsNotFull() {
+        setUpRecordAutoDelete();
+        when(mTransactionManager.deleteBatchWithoutChangeLogs(any()))
+                .thenReturn(RECORD_DELETE_BATCH_SIZE, RECORD_DELETE_BATCH_SIZE, 1, 0);
+
+        AutoDeleteService.startAutoDelete(mContext, new CancellationSignal());
+
+        // The first record type takes three batches, all the others one.
+        verify(mTransactionManager, Mockito.times(getRecordHelpers().size() + 2))
+                .deleteBatchWithoutChangeLogs(any());
+    }
+
+    @Test
+    public void testStartAutoDelete_canceled_stopsAndKeepsCheckpoint() {
+        setUpRecordAutoDelete();
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        when(mTransactionManager.deleteBatchWithoutChangeLogs(any()))
+                .thenAnswer(
+                        invocation -> {
+                            cancellationSignal.cancel();
+                            return RECORD_DELETE_BATCH_SIZE;
+                        });
+
+        AutoDeleteService.startAutoDelete(mContext, cancellationSignal);
+
+        verify(mTransactionManager).deleteBatchWithoutChangeLogs(any());
+        verify(mPreferenceHelper)
+                .insertOrReplacePreference(
+                        AUTO_DELETE_RECORDS_CHECKPOINT_KEY,
+                        String.valueOf(RecordTypeIdentifier.RECORD_TYPE_STEPS));
+        verify(mPreferenceHelper, never()).removeKey(AUTO_DELETE_RECORDS_CHECKPOINT_KEY);
+        // The other, short, deletes still run.
+        verify(mTransactionManager, Mockito.times(2)).deleteWithoutChangeLogs(any());
+    }
+
+    @Test
+    public void testStartAutoDelete_checkpointSet_continuesFromCheckpoint() {
+        setUpRecordAutoDelete();
+        when(mPreferenceHelper.getPreference(AUTO_DELETE_RECORDS_CHECKPOINT_KEY))
+                .thenReturn(String.valueOf(RecordTypeIdentifier.RECORD_TYPE_HYDRATION));
+
+        AutoDeleteService.startAutoDelete(mContext, new CancellationSignal());
+
+        ArgumentCaptor<SqlStatement> captor = ArgumentCaptor.forClass(SqlStatement.class);
+        verify(mTransactionManager, Mockito.times(getRecordHelpers().size()))
+                .deleteBatchWithoutChangeLogs(captor.capture());
+        assertThat(captor.getAllValues().get(0).getSql()).contains("hydration_record_table");
+        assertThat(getTableNames(captor.getAllValues()))
+                .containsExactlyElementsIn(getTableNamesForDeletingStaleRecordEntries());
+        verify(mPreferenceHelper).removeKey(AUTO_DELETE_RECORDS_CHECKPOINT_KEY);
+    }
+
+    private void setUpRecordAutoDelete() {
         when(PreferenceHelper.getInstance()).thenReturn(mPreferenceHelper);
         when(TransactionManager.getInitialisedInstance()).thenReturn(mTransactionManager);
         when(RecordHelperProvider.getInstance()).thenReturn(mRecordHelperProvider);
@@ -161,41 +257,30 @@ public class AutoDeleteServiceTest {
         when(ActivityDateHelper.getInstance()).thenReturn(mActivityDateHelper);
         when(HealthDataCategoryPriorityHelper.getInstance())
                 .thenReturn(mHealthDataCategoryPriorityHelper);
+        when(AggregationResultCache.getInstance()).thenReturn(mAggregationResultCache);
 
         when(mPreferenceHelper.getPreference(AUTO_DELETE_DURATION_RECORDS_KEY))
                 .thenReturn(String.valueOf(30));
         when(mRecordHelperProvider.getRecordHelpers()).thenReturn(getRecordHelpers());
-
-        AutoDeleteService.startAutoDelete(mContext);
-
-        verify(mTransactionManager, Mockito.times(3))
-                .deleteWithoutChangeLogs(
-                        Mockito.argThat(
-                                (List<DeleteTableRequest> deleteTableRequestsList) ->
-                                        checkTableNames_getPreferenceReturnNonNull(
-                                                deleteTableRequestsList)));
-        verify(mAppInfoHelper).syncAppInfoRecordTypesUsed();
-        verify(mActivityDateHelper).reSyncForAllRecords();
-        verify(mHealthDataCategoryPriorityHelper).reSyncHealthDataPriorityTable(mContext);
     }
 
-    private boolean checkTableNames_getPreferenceReturnNull(List<DeleteTableRequest> list) {
-        Set<String> tableNames = new HashSet<>();
-        for (DeleteTableRequest request : list) {
-            tableNames.add(request.getTableName());
+    private static List<String> getTableNames(List<SqlStatement> deleteStatements) {
+        List<String> tableNames = new ArrayList<>();
+        for (SqlStatement statement : deleteStatements) {
+            Matcher matcher = DELETE_TABLE_NAME_PATTERN.matcher(statement.getSql());
+            assertWithMessage(statement.getSql()).that(matcher.lookingAt()).isTrue();
+            tableNames.add(matcher.group(1));
         }
-        return (tableNames.equals(getTableNamesForDeletingStaleChangeLogEntries())
-                || tableNames.equals(getTableNamesForDeletingStaleAccessLogsEntries()));
+        return tableNames;
     }
 
-    private boolean checkTableNames_getPreferenceReturnNonNull(List<DeleteTableRequest> list) {
+    private boolean checkTableNames_getPreferenceReturnNull(List<DeleteTableRequest> list) {
         Set<String> tableNames = new HashSet<>();
         for (DeleteTableRequest request : list) {
             tableNames.add(request.getTableName());
         }
         return (tableNames.equals(getTableNamesForDeletingStaleChangeLogEntries())
-                || tableNames.equals(getTableNamesForDeletingStaleAccessLogsEntries())
-                || tableNames.equals(getTableNamesForDeletingStaleRecordEntries()));
+                || tableNames.equals(getTableNamesForDeletingStaleAccessLogsEntries()));
     }
 
     private Map<Integer, RecordHelper<?>> getRecordHelpers() {
@@ -295,28 +380,11 @@ public class AutoDeleteServiceTest {
         return recordIDToHelperMap;
     }
 
-    List<DeleteTableRequest> getDeleteTableRequests(int recordAutoDeletePeriod) {
-        List<DeleteTableRequest> deleteTableRequests = new ArrayList<>();
-
-        Map<Integer, RecordHelper<?>> recordIdToHelperMap = getRecordHelpers();
-        recordIdToHelperMap
-                .values()
-                .forEach(
-                        (recordHelper) -> {
-                            DeleteTableRequest request =
-                                    recordHelper.getDeleteRequestForAutoDelete(
-                                            recordAutoDeletePeriod);
-                            deleteTableRequests.add(request);
-                        });
-
-        return deleteTableRequests;
-    }
-
     Set<String> getTableNamesForDeletingStaleRecordEntries() {
         Set<String> tableNames = new HashSet<>();
 
-        for (DeleteTableRequest deleteTableRequest : getDeleteTableRequests(30)) {
-            tableNames.add(deleteTableRequest.getTableName());
+        for (RecordHelper<?> recordHelper : getRecordHelpers().values()) {
+            tableNames.add(recordHelper.getDeleteTableRequest(List.of()).getTableName());
         }
 
         return tableNames;
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.utils.FilesUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+@RunWith(AndroidJUnit4.class)
+public class DatabaseSnapshotTest {
+    private static final int ROW_COUNT = 1000;
+
+    private File mDir;
+    private File mDatabaseFile;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        mDir = context.getDir("database_snapshot_test", Context.MODE_PRIVATE);
+        mDatabaseFile = new File(mDir, "source.db");
+        mDb = SQLiteDatabase.openOrCreateDatabase(mDatabaseFile, null);
+        mDb.enableWriteAheadLogging();
+        mDb.execSQL("CREATE TABLE test_table (value TEXT)");
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < ROW_COUNT; i++) {
+                mDb.execSQL("INSERT INTO test_table VALUES (?)", new Object[] {"value " + i});
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+        FilesUtil.deleteDir(mDir);
+    }
+
+    @Test
+    public void writeTo_copiesCommittedRowsStillInWriteAheadLog() throws Exception {
+        File snapshotFile = new File(mDir, "snapshot.db");
+
+        try (OutputStream outputStream = new FileOutputStream(snapshotFile)) {
+            new DatabaseSnapshot(mDatabaseFile, mDir).writeTo(outputStream);
+        }
+
+        assertThat(getRowCount(snapshotFile)).isEqualTo(ROW_COUNT);
+        assertThat(getTempFiles()).isEmpty();
+    }
+
+    @Test
+    public void writeTo_withTransactionInProgress_copiesOnlyCommittedRows() throws Exception {
+        File snapshotFile = new File(mDir, "snapshot.db");
+
+        mDb.beginTransaction();
+        try {
+            mDb.execSQL("INSERT INTO test_table VALUES ('uncommitted')");
+            try (OutputStream outputStream = new FileOutputStream(snapshotFile)) {
+                new DatabaseSnapshot(mDatabaseFile, mDir).writeTo(outputStream);
+            }
+        } finally {
+            mDb.endTransaction();
+        }
+
+        assertThat(getRowCount(snapshotFile)).isEqualTo(ROW_COUNT);
+    }
+
+    @Test
+    public void writeTo_compressed_writesGzipOfSnapshot() throws Exception {
+        ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        new DatabaseSnapshot(mDatabaseFile, mDir).writeTo(uncompressed);
+        new DatabaseSnapshot(mDatabaseFile, mDir).setCompressed(true).writeTo(compressed);
+
+        assertThat(compressed.size()).isLessThan(uncompressed.size());
+        try (InputStream inputStream =
+                new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            assertThat(inputStream.readAllBytes()).isEqualTo(uncompressed.toByteArray());
+        }
+    }
+
+    @Test
+    public void writeTo_reportsProgressUpToTotal() throws Exception {
+        List<long[]> progress = new ArrayList<>();
+
+        new DatabaseSnapshot(mDatabaseFile, mDir)
+                .setProgressListener(
+                        (bytesWritten, totalBytes) ->
+                                progress.add(new long[] {bytesWritten, totalBytes}))
+                .writeTo(new ByteArrayOutputStream());
+
+        assertThat(progress).isNotEmpty();
+        long[] last = progress.get(progress.size() - 1);
+        assertThat(last[0]).isEqualTo(last[1]);
+    }
+
+    @Test
+    public void writeTo_canceled_throwsAndDeletesTempFile() {
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+
+        assertThrows(
+                OperationCanceledException.class,
+                () ->
+                        new DatabaseSnapshot(mDatabaseFile, mDir)
+                                .setCancellationSignal(cancellationSignal)
+                                .writeTo(new ByteArrayOutputStream()));
+        assertThat(getTempFiles()).isEmpty();
+    }
+
+    private List<String> getTempFiles() {
+        List<String> tempFiles = new ArrayList<>();
+        for (String name : mDir.list()) {
+            if (name.startsWith("healthconnect_snapshot")) {
+                tempFiles.add(name);
+            }
+        }
+        return tempFiles;
+    }
+
+    private static long getRowCount(File databaseFile) {
+        try (SQLiteDatabase db =
+                SQLiteDatabase.openDatabase(
+                        databaseFile,
+                        new SQLiteDatabase.OpenParams.Builder()
+                                .addOpenFlags(SQLiteDatabase.OPEN_READONLY)
+                                .build())) {
+            return DatabaseUtils.queryNumEntries(db, "test_table");
+        }
+    }
+}
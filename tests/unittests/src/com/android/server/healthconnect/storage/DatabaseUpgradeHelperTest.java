@@ -20,10 +20,13 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
 import androidx.test.platform.app.InstrumentationRegistry;
 
+import com.android.server.healthconnect.storage.utils.SeriesSamplesCodec;
+
 import com.google.common.truth.Truth;
 
 import org.junit.Before;
@@ -73,4 +76,115 @@ public class DatabaseUpgradeHelperTest {
                 mHealthConnectDatabase,
                 DatabaseUpgradeHelper.DB_VERSION_UUID_BLOB);
     }
+
+    @Test
+    public void timeRangeIndexesUpgrade_createsIndexesOnRecordTables() {
+        mSQLiteDatabase.execSQL(
+                "DROP INDEX IF EXISTS idx_steps_record_table_app_info_id_start_time");
+
+        DatabaseUpgradeHelper.onUpgrade(
+                mSQLiteDatabase,
+                mHealthConnectDatabase,
+                DatabaseUpgradeHelper.DB_VERSION_TIME_RANGE_INDEXES - 1);
+
+        try (Cursor cursor =
+                mSQLiteDatabase.rawQuery(
+                        "SELECT name FROM sqlite_master WHERE type = 'index' AND name IN ("
+                                + "'idx_steps_record_table_app_info_id_start_time', "
+                                + "'idx_steps_record_table_start_time')",
+                        null)) {
+            Truth.assertThat(cursor.getCount()).isEqualTo(2);
+        }
+        // The legacy series tables are kept empty, so they aren't indexed.
+        try (Cursor cursor =
+                mSQLiteDatabase.rawQuery(
+                        "SELECT name FROM sqlite_master WHERE type = 'index'"
+                                + " AND tbl_name = 'heart_rate_record_series_table'"
+                                + " AND name LIKE 'idx_%'",
+                        null)) {
+            Truth.assertThat(cursor.getCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void packedSeriesSamplesUpgrade_movesChildRowsIntoMainTable() {
+        mSQLiteDatabase.execSQL(
+                "INSERT INTO heart_rate_record_table (uuid, start_time, end_time)"
+                        + " VALUES (X'0102', 1000, 5000)");
+        long rowId;
+        try (Cursor cursor =
+                mSQLiteDatabase.rawQuery(
+                        "SELECT row_id FROM heart_rate_record_table WHERE uuid = X'0102'", null)) {
+            cursor.moveToFirst();
+            rowId = cursor.getLong(0);
+        }
+        mSQLiteDatabase.execSQL(
+                "INSERT INTO heart_rate_record_series_table"
+                        + " (parent_key, beats_per_minute, epoch_millis) VALUES ("
+                        + rowId
+                        + ", 70, 2000), ("
+                        + rowId
+                        + ", 60, 1000)");
+
+        DatabaseUpgradeHelper.onUpgrade(
+                mSQLiteDatabase,
+                mHealthConnectDatabase,
+                DatabaseUpgradeHelper.DB_VERSION_PACKED_SERIES_SAMPLES - 1);
+
+        try (Cursor cursor =
+                mSQLiteDatabase.rawQuery(
+                        "SELECT samples, sample_count, sample_min, sample_max, sample_sum"
+                                + " FROM heart_rate_record_table WHERE row_id = "
+                                + rowId,
+                        null)) {
+            cursor.moveToFirst();
+            SeriesSamplesCodec.Samples samples = SeriesSamplesCodec.decode(cursor.getBlob(0));
+            Truth.assertThat(samples.size()).isEqualTo(2);
+            Truth.assertThat(samples.getEpochMillis(0)).isEqualTo(1000);
+            Truth.assertThat(samples.getValue(0)).isEqualTo(60);
+            Truth.assertThat(samples.getEpochMillis(1)).isEqualTo(2000);
+            Truth.assertThat(samples.getValue(1)).isEqualTo(70);
+            Truth.assertThat(cursor.getInt(1)).isEqualTo(2);
+            Truth.assertThat(cursor.getDouble(2)).isEqualTo(60);
+            Truth.assertThat(cursor.getDouble(3)).isEqualTo(70);
+            Truth.assertThat(cursor.getDouble(4)).isEqualTo(130);
+        }
+        try (Cursor cursor =
+                mSQLiteDatabase.rawQuery("SELECT * FROM heart_rate_record_series_table", null)) {
+            Truth.assertThat(cursor.getCount()).isEqualTo(0);
+        }
+        mSQLiteDatabase.execSQL("DELETE FROM heart_rate_record_table WHERE row_id = " + rowId);
+    }
+
+    @Test
+    public void aggregationRollupsUpgrade_computesRollupsOfExistingRecords() {
+        mSQLiteDatabase.execSQL(
+                "INSERT OR IGNORE INTO application_info_table (row_id, package_name)"
+                        + " VALUES (1001, 'rollup.package')");
+        mSQLiteDatabase.execSQL(
+                "INSERT INTO hydration_record_table"
+                        + " (uuid, start_time, end_time, volume, app_info_id)"
+                        + " VALUES (X'0103', 7200000, 7260000, 1.5, 1001),"
+                        + " (X'0104', 7300000, 7360000, 2.5, 1001)");
+        mSQLiteDatabase.execSQL("DROP TABLE aggregation_rollup_table");
+
+        DatabaseUpgradeHelper.onUpgrade(
+                mSQLiteDatabase,
+                mHealthConnectDatabase,
+                DatabaseUpgradeHelper.DB_VERSION_AGGREGATION_ROLLUPS - 1);
+
+        try (Cursor cursor =
+                mSQLiteDatabase.rawQuery(
+                        "SELECT bucket_start, value_sum, record_count FROM aggregation_rollup_table"
+                                + " WHERE is_local_time = 0 AND bucket_size = 3600000",
+                        null)) {
+            Truth.assertThat(cursor.getCount()).isEqualTo(1);
+            cursor.moveToFirst();
+            Truth.assertThat(cursor.getLong(0)).isEqualTo(7200000);
+            Truth.assertThat(cursor.getDouble(1)).isEqualTo(4.0);
+            Truth.assertThat(cursor.getInt(2)).isEqualTo(2);
+        }
+        mSQLiteDatabase.execSQL("DELETE FROM hydration_record_table");
+        mSQLiteDatabase.execSQL("DELETE FROM application_info_table WHERE row_id = 1001");
+    }
 }
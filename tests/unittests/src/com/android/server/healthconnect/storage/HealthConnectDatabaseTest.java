@@ -66,4 +66,25 @@ public class HealthConnectDatabaseTest {
         cursor.moveToNext();
         Truth.assertThat(cursor.getInt(0)).isEqualTo(NUM_OF_TABLES);
     }
+
+    @Test
+    public void testJournalMode_isWriteAheadLog() {
+        try (Cursor cursor = mSQLiteDatabase.rawQuery("PRAGMA journal_mode", null)) {
+            cursor.moveToFirst();
+            Truth.assertThat(cursor.getString(0)).isEqualTo("wal");
+        }
+    }
+
+    @Test
+    public void testCheckpoint_updatesStats() {
+        mSQLiteDatabase.execSQL("CREATE TABLE IF NOT EXISTS wal_test (value INTEGER)");
+        mSQLiteDatabase.execSQL("INSERT INTO wal_test VALUES (1)");
+        mSQLiteDatabase.execSQL("DROP TABLE wal_test");
+
+        mHealthConnectDatabase.checkpoint(mSQLiteDatabase);
+
+        WalCheckpointStats stats = mHealthConnectDatabase.getWalCheckpointStats();
+        Truth.assertThat(stats.getCheckpointCount()).isEqualTo(1);
+        Truth.assertThat(mHealthConnectDatabase.getWalPath().length()).isEqualTo(0);
+    }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InsertStatementCacheTest {
+    private static final String TABLE = "test_table";
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(
+                "CREATE TABLE "
+                        + TABLE
+                        + " (row_id INTEGER PRIMARY KEY AUTOINCREMENT, uuid TEXT UNIQUE, value"
+                        + " REAL, data BLOB)");
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void insert_reusesStatementForSameColumns() {
+        try (InsertStatementCache statements = new InsertStatementCache(mDb)) {
+            long first = statements.insert(request("a", 1.5), SQLiteDatabase.CONFLICT_NONE);
+            long second = statements.insert(request("b", null), SQLiteDatabase.CONFLICT_NONE);
+
+            assertThat(second).isEqualTo(first + 1);
+        }
+
+        try (Cursor cursor = mDb.rawQuery("SELECT uuid, value FROM " + TABLE, null)) {
+            assertThat(cursor.getCount()).isEqualTo(2);
+            cursor.moveToFirst();
+            assertThat(cursor.getString(0)).isEqualTo("a");
+            assertThat(cursor.getDouble(1)).isEqualTo(1.5);
+            cursor.moveToNext();
+            assertThat(cursor.getString(0)).isEqualTo("b");
+            assertThat(cursor.isNull(1)).isTrue();
+        }
+    }
+
+    @Test
+    public void insert_differentColumnSets_bindsAllValues() {
+        ContentValues withBlob = new ContentValues();
+        withBlob.put("uuid", "c");
+        withBlob.put("data", new byte[] {1, 2, 3});
+
+        try (InsertStatementCache statements = new InsertStatementCache(mDb)) {
+            statements.insert(request("a", 1.0), SQLiteDatabase.CONFLICT_NONE);
+            statements.insert(
+                    new UpsertTableRequest(TABLE, withBlob), SQLiteDatabase.CONFLICT_NONE);
+        }
+
+        try (Cursor cursor = mDb.rawQuery("SELECT data FROM " + TABLE + " WHERE uuid = 'c'", null)) {
+            cursor.moveToFirst();
+            assertThat(cursor.getBlob(0)).isEqualTo(new byte[] {1, 2, 3});
+        }
+    }
+
+    @Test
+    public void insert_conflictIgnore_returnsMinusOne() {
+        try (InsertStatementCache statements = new InsertStatementCache(mDb)) {
+            statements.insert(request("a", 1.0), SQLiteDatabase.CONFLICT_NONE);
+
+            assertThat(statements.insert(request("a", 2.0), SQLiteDatabase.CONFLICT_IGNORE))
+                    .isEqualTo(-1);
+        }
+    }
+
+    @Test
+    public void insert_conflictFail_throws() {
+        try (InsertStatementCache statements = new InsertStatementCache(mDb)) {
+            statements.insert(request("a", 1.0), SQLiteDatabase.CONFLICT_FAIL);
+
+            assertThrows(
+                    SQLiteConstraintException.class,
+                    () -> statements.insert(request("a", 2.0), SQLiteDatabase.CONFLICT_FAIL));
+        }
+    }
+
+    @Test
+    public void upsert_noConflict_insertsRow() {
+        try (InsertStatementCache statements = new InsertStatementCache(mDb)) {
+            long rowId = statements.upsert(upsertRequest("a", 1.0));
+
+            assertThat(rowId).isEqualTo(statements.getLastInsertRowId());
+        }
+
+        assertThat(readValue("a")).isEqualTo(1.0);
+    }
+
+    @Test
+    public void upsert_conflictAndConditionHolds_updatesRow() {
+        try (InsertStatementCache statements = new InsertStatementCache(mDb)) {
+            long rowId = statements.insert(request("a", 1.0), SQLiteDatabase.CONFLICT_NONE);
+            statements.insert(request("b", 1.0), SQLiteDatabase.CONFLICT_NONE);
+            long lastInsertRowId = statements.getLastInsertRowId();
+
+            assertThat(statements.upsert(upsertRequest("a", 2.0))).isEqualTo(rowId);
+            assertThat(statements.getLastInsertRowId()).isEqualTo(lastInsertRowId);
+        }
+
+        assertThat(readValue("a")).isEqualTo(2.0);
+    }
+
+    @Test
+    public void upsert_conflictAndConditionFails_keepsRowAndReturnsMinusOne() {
+        try (InsertStatementCache statements = new InsertStatementCache(mDb)) {
+            statements.insert(request("a", 2.0), SQLiteDatabase.CONFLICT_NONE);
+
+            assertThat(statements.upsert(upsertRequest("a", 1.0))).isEqualTo(-1);
+        }
+
+        assertThat(readValue("a")).isEqualTo(2.0);
+    }
+
+    private double readValue(String uuid) {
+        String query = "SELECT value FROM " + TABLE + " WHERE uuid = ?";
+        try (Cursor cursor = mDb.rawQuery(query, new String[] {uuid})) {
+            assertThat(cursor.getCount()).isEqualTo(1);
+            cursor.moveToFirst();
+            return cursor.getDouble(0);
+        }
+    }
+
+    private static UpsertTableRequest upsertRequest(String uuid, Double value) {
+        return request(uuid, value).setUpsertOnConflict("uuid", "excluded.value >= value");
+    }
+
+    private static UpsertTableRequest request(String uuid, Double value) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put("uuid", uuid);
+        contentValues.put("value", value);
+        return new UpsertTableRequest(TABLE, contentValues);
+    }
+}
@@ -16,7 +16,15 @@
 
 package com.android.server.healthconnect.storage;
 
+import static android.health.connect.HealthPermissions.READ_EXERCISE_ROUTE;
+import static android.health.connect.HealthPermissions.WRITE_EXERCISE_ROUTE;
+import static android.health.connect.PageTokenWrapper.EMPTY_PAGE_TOKEN;
+import static android.health.connect.datatypes.ExerciseSegmentType.EXERCISE_SEGMENT_TYPE_RUNNING;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.UUID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper.STEPS_TABLE_NAME;
 import static com.android.server.healthconnect.storage.datatypehelpers.TransactionTestUtils.createBloodPressureRecord;
+import static com.android.server.healthconnect.storage.datatypehelpers.TransactionTestUtils.createExerciseSessionRecordWithRoute;
 import static com.android.server.healthconnect.storage.datatypehelpers.TransactionTestUtils.createStepsRecord;
 import static com.android.server.healthconnect.storage.datatypehelpers.TransactionTestUtils.getReadTransactionRequest;
 
@@ -24,14 +32,20 @@ import static com.google.common.truth.Truth.assertThat;
 
 import static org.junit.Assert.assertThrows;
 
+import android.database.Cursor;
 import android.health.connect.PageTokenWrapper;
 import android.health.connect.ReadRecordsRequestUsingFilters;
 import android.health.connect.ReadRecordsRequestUsingIds;
 import android.health.connect.TimeInstantRangeFilter;
 import android.health.connect.datatypes.BloodPressureRecord;
+import android.health.connect.datatypes.ExerciseSessionRecord;
 import android.health.connect.datatypes.RecordTypeIdentifier;
 import android.health.connect.datatypes.StepsRecord;
+import android.health.connect.internal.datatypes.ExerciseLapInternal;
+import android.health.connect.internal.datatypes.ExerciseSegmentInternal;
+import android.health.connect.internal.datatypes.ExerciseSessionRecordInternal;
 import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.StepsRecordInternal;
 import android.util.Pair;
 
 import androidx.test.runner.AndroidJUnit4;
@@ -40,7 +54,9 @@ import com.android.server.healthconnect.HealthConnectUserContext;
 import com.android.server.healthconnect.storage.datatypehelpers.DatabaseHelper;
 import com.android.server.healthconnect.storage.datatypehelpers.HealthConnectDatabaseTestRule;
 import com.android.server.healthconnect.storage.datatypehelpers.TransactionTestUtils;
+import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 import com.android.server.healthconnect.storage.request.ReadTransactionRequest;
+import com.android.server.healthconnect.storage.request.UpsertTransactionRequest;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -52,7 +68,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 @RunWith(AndroidJUnit4.class)
@@ -61,14 +80,15 @@ public class TransactionManagerTest {
 
     @Rule public final HealthConnectDatabaseTestRule testRule = new HealthConnectDatabaseTestRule();
 
+    private HealthConnectUserContext mContext;
     private TransactionTestUtils mTransactionTestUtils;
     private TransactionManager mTransactionManager;
 
     @Before
     public void setup() {
-        HealthConnectUserContext context = testRule.getUserContext();
-        mTransactionManager = TransactionManager.getInstance(context);
-        mTransactionTestUtils = new TransactionTestUtils(context, mTransactionManager);
+        mContext = testRule.getUserContext();
+        mTransactionManager = TransactionManager.getInstance(mContext);
+        mTransactionTestUtils = new TransactionTestUtils(mContext, mTransactionManager);
         mTransactionTestUtils.insertApp(TEST_PACKAGE_NAME);
     }
 
@@ -164,9 +184,6 @@ public class TransactionManagerTest {
                                         .build())
                         .setPageSize(1)
                         .build();
-        PageTokenWrapper expectedToken =
-                PageTokenWrapper.of(
-                        /* isAscending= */ true, /* timeMillis= */ 500, /* offset= */ 0);
 
         ReadTransactionRequest readTransactionRequest =
                 getReadTransactionRequest(request.toReadRecordsRequestParcel());
@@ -175,7 +192,109 @@ public class TransactionManagerTest {
         List<RecordInternal<?>> records = result.first;
         assertThat(records).hasSize(1);
         assertThat(result.first.get(0).getUuid()).isEqualTo(UUID.fromString(uuids.get(0)));
-        assertThat(result.second).isEqualTo(expectedToken);
+        assertThat(result.second)
+                .isEqualTo(PageTokenWrapper.ofRowId(true, 400, result.first.get(0).getRowId()));
+
+        ReadRecordsRequestUsingFilters<StepsRecord> nextRequest =
+                new ReadRecordsRequestUsingFilters.Builder<>(StepsRecord.class)
+                        .setTimeRangeFilter(request.getTimeRangeFilter())
+                        .setPageSize(1)
+                        .setPageToken(result.second.encode())
+                        .build();
+        result =
+                mTransactionManager.readRecordsAndPageToken(
+                        getReadTransactionRequest(nextRequest.toReadRecordsRequestParcel()));
+        assertThat(result.first).hasSize(1);
+        assertThat(result.first.get(0).getUuid()).isEqualTo(UUID.fromString(uuids.get(1)));
+        assertThat(result.second).isEqualTo(EMPTY_PAGE_TOKEN);
+    }
+
+    @Test
+    public void readRecordsAndPageToken_nextRecordDeleted_returnsRemainingRecords() {
+        List<String> uuids =
+                mTransactionTestUtils.insertRecords(
+                        TEST_PACKAGE_NAME,
+                        createStepsRecord(400, 500, 100),
+                        createStepsRecord(500, 600, 100),
+                        createStepsRecord(500, 700, 100),
+                        createStepsRecord(500, 800, 100));
+        ReadRecordsRequestUsingFilters<StepsRecord> request =
+                new ReadRecordsRequestUsingFilters.Builder<>(StepsRecord.class)
+                        .setTimeRangeFilter(
+                                new TimeInstantRangeFilter.Builder()
+                                        .setStartTime(Instant.EPOCH)
+                                        .setEndTime(Instant.ofEpochMilli(1000))
+                                        .build())
+                        .setPageSize(2)
+                        .build();
+        Pair<List<RecordInternal<?>>, PageTokenWrapper> result =
+                mTransactionManager.readRecordsAndPageToken(
+                        getReadTransactionRequest(request.toReadRecordsRequestParcel()));
+        assertThat(result.first).hasSize(2);
+        assertThat(result.second)
+                .isEqualTo(PageTokenWrapper.ofRowId(true, 500, result.first.get(1).getRowId()));
+
+        // Delete the record the next page would have started with.
+        mTransactionManager.delete(
+                new DeleteTableRequest(STEPS_TABLE_NAME)
+                        .setIds(UUID_COLUMN_NAME, List.of(UUID.fromString(uuids.get(2)))));
+        ReadRecordsRequestUsingFilters<StepsRecord> nextRequest =
+                new ReadRecordsRequestUsingFilters.Builder<>(StepsRecord.class)
+                        .setTimeRangeFilter(request.getTimeRangeFilter())
+                        .setPageSize(2)
+                        .setPageToken(result.second.encode())
+                        .build();
+        result =
+                mTransactionManager.readRecordsAndPageToken(
+                        getReadTransactionRequest(nextRequest.toReadRecordsRequestParcel()));
+
+        assertThat(result.first).hasSize(1);
+        assertThat(result.first.get(0).getUuid()).isEqualTo(UUID.fromString(uuids.get(3)));
+        assertThat(result.second).isEqualTo(EMPTY_PAGE_TOKEN);
+    }
+
+    @Test
+    public void readRecordsAndPageToken_lastRecordDeleted_returnsRemainingRecords() {
+        // The page token rounds the start time down to 2^18 millis, the first record is before.
+        List<String> uuids =
+                mTransactionTestUtils.insertRecords(
+                        TEST_PACKAGE_NAME,
+                        createStepsRecord(400, 500, 100),
+                        createStepsRecord(300_000, 300_100, 100),
+                        createStepsRecord(300_000, 300_200, 100),
+                        createStepsRecord(300_000, 300_300, 100));
+        ReadRecordsRequestUsingFilters<StepsRecord> request =
+                new ReadRecordsRequestUsingFilters.Builder<>(StepsRecord.class)
+                        .setTimeRangeFilter(
+                                new TimeInstantRangeFilter.Builder()
+                                        .setStartTime(Instant.EPOCH)
+                                        .setEndTime(Instant.ofEpochMilli(1_000_000))
+                                        .build())
+                        .setPageSize(2)
+                        .build();
+        Pair<List<RecordInternal<?>>, PageTokenWrapper> result =
+                mTransactionManager.readRecordsAndPageToken(
+                        getReadTransactionRequest(request.toReadRecordsRequestParcel()));
+        assertThat(result.first).hasSize(2);
+
+        // Delete the record the page token refers to.
+        mTransactionManager.delete(
+                new DeleteTableRequest(STEPS_TABLE_NAME)
+                        .setIds(UUID_COLUMN_NAME, List.of(UUID.fromString(uuids.get(1)))));
+        ReadRecordsRequestUsingFilters<StepsRecord> nextRequest =
+                new ReadRecordsRequestUsingFilters.Builder<>(StepsRecord.class)
+                        .setTimeRangeFilter(request.getTimeRangeFilter())
+                        .setPageSize(2)
+                        .setPageToken(result.second.encode())
+                        .build();
+        result =
+                mTransactionManager.readRecordsAndPageToken(
+                        getReadTransactionRequest(nextRequest.toReadRecordsRequestParcel()));
+
+        assertThat(result.first).hasSize(2);
+        assertThat(result.first.get(0).getUuid()).isEqualTo(UUID.fromString(uuids.get(2)));
+        assertThat(result.first.get(1).getUuid()).isEqualTo(UUID.fromString(uuids.get(3)));
+        assertThat(result.second).isEqualTo(EMPTY_PAGE_TOKEN);
     }
 
     @Test
@@ -193,4 +312,166 @@ public class TransactionManagerTest {
                         () -> mTransactionManager.readRecordsAndPageToken(readTransactionRequest));
         assertThat(thrown).hasMessageThat().contains("Expect read by filter request");
     }
+
+    @Test
+    public void insertAll_sameClientIdWithNewerVersion_updatesRecord() {
+        String uuid =
+                mTransactionTestUtils
+                        .insertRecords(
+                                TEST_PACKAGE_NAME,
+                                createVersionedStepsRecord("id", 100, 200, 1, /* version= */ 1))
+                        .get(0);
+
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME, createVersionedStepsRecord("id", 100, 200, 2, /* version= */ 2));
+
+        assertThat(readStepsCount(uuid)).isEqualTo(2);
+    }
+
+    @Test
+    public void insertAll_sameClientIdWithOlderVersion_keepsRecord() {
+        String uuid =
+                mTransactionTestUtils
+                        .insertRecords(
+                                TEST_PACKAGE_NAME,
+                                createVersionedStepsRecord("id", 100, 200, 1, /* version= */ 2))
+                        .get(0);
+
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME, createVersionedStepsRecord("id", 100, 200, 2, /* version= */ 1));
+
+        assertThat(readStepsCount(uuid)).isEqualTo(1);
+    }
+
+    @Test
+    public void readRecordsAndPageToken_exerciseSessions_childRowsOfEachSession() {
+        ExerciseSessionRecordInternal first =
+                createExerciseSessionWithLapsAndSegments(Instant.ofEpochMilli(1000), 2);
+        ExerciseSessionRecordInternal second =
+                createExerciseSessionWithLapsAndSegments(Instant.ofEpochMilli(100_000), 3);
+        mTransactionTestUtils.insertRecords(TEST_PACKAGE_NAME, first, second);
+
+        ReadRecordsRequestUsingFilters<ExerciseSessionRecord> request =
+                new ReadRecordsRequestUsingFilters.Builder<>(ExerciseSessionRecord.class)
+                        .setTimeRangeFilter(
+                                new TimeInstantRangeFilter.Builder()
+                                        .setStartTime(Instant.EPOCH)
+                                        .setEndTime(Instant.ofEpochMilli(1_000_000))
+                                        .build())
+                        .setPageSize(1)
+                        .build();
+        Pair<List<RecordInternal<?>>, PageTokenWrapper> result =
+                mTransactionManager.readRecordsAndPageToken(
+                        getReadExerciseSessionsRequest(request));
+        assertThat(result.first).hasSize(1);
+        assertSameChildRows((ExerciseSessionRecordInternal) result.first.get(0), first);
+
+        ReadRecordsRequestUsingFilters<ExerciseSessionRecord> nextRequest =
+                new ReadRecordsRequestUsingFilters.Builder<>(ExerciseSessionRecord.class)
+                        .setTimeRangeFilter(request.getTimeRangeFilter())
+                        .setPageSize(1)
+                        .setPageToken(result.second.encode())
+                        .build();
+        result =
+                mTransactionManager.readRecordsAndPageToken(
+                        getReadExerciseSessionsRequest(nextRequest));
+        assertThat(result.first).hasSize(1);
+        assertSameChildRows((ExerciseSessionRecordInternal) result.first.get(0), second);
+    }
+
+    @Test
+    public void insertAll_sameClientIdWithChildRows_replacesChildRows() {
+        insertExerciseSessionWithRoute();
+        assertThat(countRows("exercise_route_table")).isEqualTo(3);
+
+        insertExerciseSessionWithRoute();
+
+        assertThat(countRows("exercise_session_record_table")).isEqualTo(1);
+        assertThat(countRows("exercise_route_table")).isEqualTo(3);
+    }
+
+    private void insertExerciseSessionWithRoute() {
+        RecordInternal<?> session =
+                createExerciseSessionRecordWithRoute(Instant.ofEpochMilli(1000))
+                        .setClientRecordId("id");
+        mTransactionManager.insertAll(
+                new UpsertTransactionRequest(
+                        TEST_PACKAGE_NAME,
+                        List.of(session),
+                        mContext,
+                        /* isInsertRequest= */ true,
+                        Map.of(WRITE_EXERCISE_ROUTE, true)));
+    }
+
+    private static ReadTransactionRequest getReadExerciseSessionsRequest(
+            ReadRecordsRequestUsingFilters<ExerciseSessionRecord> request) {
+        return new ReadTransactionRequest(
+                TEST_PACKAGE_NAME,
+                request.toReadRecordsRequestParcel(),
+                /* startDateAccessMillis= */ 0,
+                /* enforceSelfRead= */ false,
+                Set.of(READ_EXERCISE_ROUTE),
+                /* isInForeground= */ true);
+    }
+
+    private static ExerciseSessionRecordInternal createExerciseSessionWithLapsAndSegments(
+            Instant startTime, int count) {
+        ExerciseSessionRecordInternal session = createExerciseSessionRecordWithRoute(startTime);
+        List<ExerciseLapInternal> laps = new ArrayList<>();
+        List<ExerciseSegmentInternal> segments = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long lapStartTime = startTime.plusSeconds(60 * i).toEpochMilli();
+            long lapEndTime = startTime.plusSeconds(60 * (i + 1)).toEpochMilli();
+            laps.add(
+                    new ExerciseLapInternal()
+                            .setStarTime(lapStartTime)
+                            .setEndTime(lapEndTime)
+                            .setLength(100 + i));
+            segments.add(
+                    new ExerciseSegmentInternal()
+                            .setStarTime(lapStartTime)
+                            .setEndTime(lapEndTime)
+                            .setSegmentType(EXERCISE_SEGMENT_TYPE_RUNNING)
+                            .setRepetitionsCount(i));
+        }
+        return session.setExerciseLaps(laps).setExerciseSegments(segments);
+    }
+
+    private static void assertSameChildRows(
+            ExerciseSessionRecordInternal actual, ExerciseSessionRecordInternal expected) {
+        assertThat(actual.getLaps()).containsExactlyElementsIn(expected.getLaps()).inOrder();
+        assertThat(actual.getSegments())
+                .containsExactlyElementsIn(expected.getSegments())
+                .inOrder();
+        assertThat(actual.getRoute()).isEqualTo(expected.getRoute());
+    }
+
+    private int readStepsCount(String uuid) {
+        ReadTransactionRequest request =
+                getReadTransactionRequest(
+                        ImmutableMap.of(
+                                RecordTypeIdentifier.RECORD_TYPE_STEPS,
+                                List.of(UUID.fromString(uuid))));
+        List<RecordInternal<?>> records = mTransactionManager.readRecordsByIds(request);
+        assertThat(records).hasSize(1);
+        return ((StepsRecordInternal) records.get(0)).getCount();
+    }
+
+    private int countRows(String table) {
+        int[] count = new int[1];
+        mTransactionManager.runAsTransaction(
+                db -> {
+                    try (Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + table, null)) {
+                        cursor.moveToFirst();
+                        count[0] = cursor.getInt(0);
+                    }
+                });
+        return count[0];
+    }
+
+    private static RecordInternal<?> createVersionedStepsRecord(
+            String clientId, long startTimeMillis, long endTimeMillis, int count, long version) {
+        return createStepsRecord(clientId, startTimeMillis, endTimeMillis, count)
+                .setClientRecordVersion(version);
+    }
 }
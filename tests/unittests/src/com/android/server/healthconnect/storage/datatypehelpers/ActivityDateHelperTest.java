@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.datatypes.HydrationRecord;
+import android.health.connect.internal.datatypes.HydrationRecordInternal;
+import android.health.connect.internal.datatypes.RecordInternal;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.HealthConnectUserContext;
+import com.android.server.healthconnect.storage.TransactionManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class ActivityDateHelperTest {
+    private static final String TEST_PACKAGE_NAME = "package.name";
+    private static final long DAY = Duration.ofDays(1).toMillis();
+    private static final long MINUTE = Duration.ofMinutes(1).toMillis();
+    private static final long DAY_0 = Instant.parse("2024-01-01T10:00:00Z").toEpochMilli();
+    private static final LocalDate DATE_0 = LocalDate.of(2024, 1, 1);
+
+    @Rule public final HealthConnectDatabaseTestRule testRule = new HealthConnectDatabaseTestRule();
+    private TransactionTestUtils mTransactionTestUtils;
+    private TransactionManager mTransactionManager;
+
+    @Before
+    public void setup() throws Exception {
+        HealthConnectUserContext context = testRule.getUserContext();
+        mTransactionManager = TransactionManager.getInstance(context);
+        DatabaseHelper.clearAllData(mTransactionManager);
+        mTransactionTestUtils = new TransactionTestUtils(context, mTransactionManager);
+        mTransactionTestUtils.insertApp(TEST_PACKAGE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseHelper.clearAllData(mTransactionManager);
+        TransactionManager.clearInstance();
+    }
+
+    @Test
+    public void insertRecords_addsTheirDates() {
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME,
+                createHydrationRecord(DAY_0),
+                createHydrationRecord(DAY_0 + MINUTE),
+                createHydrationRecord(DAY_0 + 2 * DAY));
+
+        assertThat(getHydrationActivityDates())
+                .containsExactly(DATE_0, DATE_0.plusDays(2));
+    }
+
+    @Test
+    public void deleteRecords_removesDatesOnceTheyHaveNoRecords() {
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME,
+                createHydrationRecord(DAY_0),
+                createHydrationRecord(DAY_0 + MINUTE),
+                createHydrationRecord(DAY_0 + DAY));
+
+        mTransactionManager.runAsTransaction(
+                db ->
+                        db.execSQL(
+                                "DELETE FROM hydration_record_table WHERE start_time > ?",
+                                new Object[] {DAY_0}));
+        assertThat(getHydrationActivityDates()).containsExactly(DATE_0);
+
+        mTransactionManager.runAsTransaction(
+                db -> db.execSQL("DELETE FROM hydration_record_table"));
+        assertThat(getHydrationActivityDates()).isEmpty();
+    }
+
+    @Test
+    public void updateRecords_datesFollowRecords() {
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME,
+                createHydrationRecord(DAY_0),
+                createHydrationRecord(DAY_0 + DAY));
+
+        mTransactionManager.runAsTransaction(
+                db ->
+                        db.execSQL(
+                                "UPDATE hydration_record_table SET local_date = local_date + 5"
+                                        + " WHERE start_time = ?",
+                                new Object[] {DAY_0}));
+
+        assertThat(getHydrationActivityDates())
+                .containsExactly(DATE_0.plusDays(1), DATE_0.plusDays(5));
+    }
+
+    @Test
+    public void reSyncForAllRecords_restoresDatesOfRecords() {
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME,
+                createHydrationRecord(DAY_0),
+                createHydrationRecord(DAY_0 + DAY));
+        mTransactionManager.runAsTransaction(db -> db.execSQL("DELETE FROM activity_date_table"));
+
+        ActivityDateHelper.getInstance().reSyncForAllRecords();
+        assertThat(getHydrationActivityDates()).containsExactly(DATE_0, DATE_0.plusDays(1));
+
+        // The recounted dates are kept up to date like the others.
+        mTransactionManager.runAsTransaction(
+                db -> db.execSQL("DELETE FROM hydration_record_table"));
+        assertThat(getHydrationActivityDates()).isEmpty();
+    }
+
+    private static List<LocalDate> getHydrationActivityDates() {
+        return ActivityDateHelper.getInstance().getActivityDates(List.of(HydrationRecord.class));
+    }
+
+    private static RecordInternal<HydrationRecord> createHydrationRecord(long startTimeMillis) {
+        return new HydrationRecordInternal()
+                .setVolume(1)
+                .setStartTime(startTimeMillis)
+                .setEndTime(startTimeMillis + MINUTE);
+    }
+}
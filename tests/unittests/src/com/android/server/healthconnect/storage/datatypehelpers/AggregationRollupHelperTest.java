@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_HYDRATION;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.Cursor;
+import android.health.connect.AggregateResult;
+import android.health.connect.TimeInstantRangeFilter;
+import android.health.connect.datatypes.HydrationRecord;
+import android.health.connect.internal.datatypes.HydrationRecordInternal;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.os.Parcel;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.HealthConnectUserContext;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.request.AggregateTableRequest;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class AggregationRollupHelperTest {
+    private static final String TEST_PACKAGE_NAME = "package.name";
+    private static final long HOUR = Duration.ofHours(1).toMillis();
+    private static final long DAY = Duration.ofDays(1).toMillis();
+    private static final long MINUTE = Duration.ofMinutes(1).toMillis();
+    private static final long DAY_0 = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+
+    @Rule public final HealthConnectDatabaseTestRule testRule = new HealthConnectDatabaseTestRule();
+    private TransactionTestUtils mTransactionTestUtils;
+    private TransactionManager mTransactionManager;
+
+    @Before
+    public void setup() throws Exception {
+        HealthConnectUserContext context = testRule.getUserContext();
+        mTransactionManager = TransactionManager.getInstance(context);
+        DatabaseHelper.clearAllData(mTransactionManager);
+        mTransactionTestUtils = new TransactionTestUtils(context, mTransactionManager);
+        mTransactionTestUtils.insertApp(TEST_PACKAGE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseHelper.clearAllData(mTransactionManager);
+        TransactionManager.clearInstance();
+    }
+
+    @Test
+    public void insertRecords_addedToHourlyRollup() {
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME,
+                createHydrationRecord(DAY_0 + 2 * HOUR, 1.5),
+                createHydrationRecord(DAY_0 + 2 * HOUR + 30 * MINUTE, 2.5));
+
+        List<double[]> rollups = readPhysicalTimeRollups(HOUR);
+
+        assertThat(rollups).hasSize(1);
+        assertThat(rollups.get(0)[0]).isEqualTo(DAY_0 + 2 * HOUR);
+        assertThat(rollups.get(0)[1]).isEqualTo(4.0);
+        assertThat(rollups.get(0)[2]).isEqualTo(2);
+    }
+
+    @Test
+    public void updateAndDeleteRecords_rollupsFollowRecords() {
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME,
+                createHydrationRecord(DAY_0 + 2 * HOUR, 1.5),
+                createHydrationRecord(DAY_0 + 5 * HOUR, 2.5));
+
+        mTransactionManager.runAsTransaction(
+                db -> db.execSQL("UPDATE hydration_record_table SET volume = 10"));
+        List<double[]> rollups = readPhysicalTimeRollups(DAY);
+        assertThat(rollups).hasSize(1);
+        assertThat(rollups.get(0)[1]).isEqualTo(20.0);
+        assertThat(rollups.get(0)[2]).isEqualTo(2);
+
+        mTransactionManager.runAsTransaction(
+                db -> db.execSQL("DELETE FROM hydration_record_table"));
+        rollups = readPhysicalTimeRollups(DAY);
+        assertThat(rollups).hasSize(1);
+        assertThat(rollups.get(0)[1]).isEqualTo(0.0);
+        assertThat(rollups.get(0)[2]).isEqualTo(0);
+    }
+
+    @Test
+    public void aggregate_withPartialHours_addsRecordsOutsideRollups() {
+        insertRecordsAcrossDays();
+
+        AggregateTableRequest request = getAggregateTableRequest(DAY_0 + 10 * MINUTE, 3 * DAY);
+        mTransactionManager.populateWithAggregation(request);
+
+        assertThat(getValues(request.getAggregateResults())).containsExactly(31.0);
+    }
+
+    @Test
+    public void aggregate_groupedByDay_matchesSumOfRecordsInEachGroup() {
+        insertRecordsAcrossDays();
+        long start = DAY_0 + 10 * MINUTE;
+
+        AggregateTableRequest request = getAggregateTableRequest(start, 3 * DAY);
+        request.setGroupBy(
+                getHydrationHelper().getDurationGroupByColumnName(),
+                /* period= */ null,
+                Duration.ofDays(1),
+                new TimeInstantRangeFilter.Builder()
+                        .setStartTime(Instant.ofEpochMilli(start))
+                        .setEndTime(Instant.ofEpochMilli(start + 3 * DAY))
+                        .build());
+        mTransactionManager.populateWithAggregation(request);
+
+        assertThat(getValues(request.getAggregateResults()))
+                .containsExactly(7.0, 8.0, 16.0)
+                .inOrder();
+    }
+
+    @Test
+    public void aggregate_manyGroups_matchesSumOfRecordsInEachGroup() {
+        long start = DAY_0 + 10 * MINUTE;
+        long groupDuration = 6 * HOUR;
+        for (int i = 0; i < 5; i++) {
+            long groupStart = start + i * groupDuration;
+            mTransactionTestUtils.insertRecords(
+                    TEST_PACKAGE_NAME,
+                    // In the partial hour at the start of the group, read from the records.
+                    createHydrationRecord(groupStart + 10 * MINUTE, i + 1),
+                    // In a whole hour of the group, read from the rollups.
+                    createHydrationRecord(groupStart + 3 * HOUR, 10 * (i + 1)));
+        }
+
+        AggregateTableRequest request = getAggregateTableRequest(start, 5 * groupDuration);
+        request.setGroupBy(
+                getHydrationHelper().getDurationGroupByColumnName(),
+                /* period= */ null,
+                Duration.ofMillis(groupDuration),
+                new TimeInstantRangeFilter.Builder()
+                        .setStartTime(Instant.ofEpochMilli(start))
+                        .setEndTime(Instant.ofEpochMilli(start + 5 * groupDuration))
+                        .build());
+        mTransactionManager.populateWithAggregation(request);
+
+        assertThat(getValues(request.getAggregateResults()))
+                .containsExactly(11.0, 22.0, 33.0, 44.0, 55.0)
+                .inOrder();
+    }
+
+    /** Inserts records both in whole hours of the aggregations below and in their partial hours. */
+    private void insertRecordsAcrossDays() {
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME,
+                createHydrationRecord(DAY_0 - HOUR, 32),
+                createHydrationRecord(DAY_0 + 20 * MINUTE, 1),
+                createHydrationRecord(DAY_0 + 2 * HOUR, 2),
+                createHydrationRecord(DAY_0 + DAY + 5 * MINUTE, 4),
+                createHydrationRecord(DAY_0 + DAY + 3 * HOUR, 8),
+                createHydrationRecord(DAY_0 + 2 * DAY + 15 * MINUTE, 16));
+    }
+
+    private AggregateTableRequest getAggregateTableRequest(long startTime, long duration) {
+        return getHydrationHelper()
+                .getAggregateTableRequest(
+                        HydrationRecord.VOLUME_TOTAL,
+                        TEST_PACKAGE_NAME,
+                        /* packageFilters= */ List.of(),
+                        startTime,
+                        startTime + duration,
+                        /* startDateAccess= */ 0,
+                        /* useLocalTime= */ false);
+    }
+
+    private List<double[]> readPhysicalTimeRollups(long bucketSize) {
+        List<double[]> rollups = new ArrayList<>();
+        mTransactionManager.runAsTransaction(
+                db -> {
+                    try (Cursor cursor =
+                            db.rawQuery(
+                                    "SELECT bucket_start, value_sum, record_count"
+                                            + " FROM aggregation_rollup_table"
+                                            + " WHERE is_local_time = 0 AND bucket_size = "
+                                            + bucketSize
+                                            + " ORDER BY bucket_start",
+                                    null)) {
+                        while (cursor.moveToNext()) {
+                            rollups.add(
+                                    new double[] {
+                                        cursor.getLong(0), cursor.getDouble(1), cursor.getInt(2)
+                                    });
+                        }
+                    }
+                });
+        return rollups;
+    }
+
+    private static List<Double> getValues(List<AggregateResult<?>> results) {
+        List<Double> values = new ArrayList<>();
+        for (AggregateResult<?> result : results) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                result.putToParcel(parcel);
+                parcel.setDataPosition(0);
+                values.add(parcel.readDouble());
+            } finally {
+                parcel.recycle();
+            }
+        }
+        return values;
+    }
+
+    private static RecordHelper<?> getHydrationHelper() {
+        return RecordHelperProvider.getInstance().getRecordHelper(RECORD_TYPE_HYDRATION);
+    }
+
+    private static RecordInternal<HydrationRecord> createHydrationRecord(
+            long startTimeMillis, double volume) {
+        return new HydrationRecordInternal()
+                .setVolume(volume)
+                .setStartTime(startTimeMillis)
+                .setEndTime(startTimeMillis + MINUTE);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.Constants.DELETE;
+import static android.health.connect.Constants.UPSERT;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.Cursor;
+import android.health.connect.changelog.ChangeLogsRequest;
+import android.os.CancellationSignal;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.HealthConnectUserContext;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper.ChangeLogs;
+import com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsHelper.ChangeLogsResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class ChangeLogsHelperTest {
+    private static final String TEST_PACKAGE_NAME = "package.name";
+    private static final long APP_ID = 1;
+    private static final long OTHER_APP_ID = 2;
+    private static final UUID UUID_A = UUID.randomUUID();
+    private static final UUID UUID_B = UUID.randomUUID();
+    private static final UUID UUID_C = UUID.randomUUID();
+
+    @Rule public final HealthConnectDatabaseTestRule testRule = new HealthConnectDatabaseTestRule();
+
+    private TransactionManager mTransactionManager;
+
+    @Before
+    public void setup() {
+        HealthConnectUserContext context = testRule.getUserContext();
+        mTransactionManager = TransactionManager.getInstance(context);
+        DatabaseHelper.clearAllData(mTransactionManager);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseHelper.clearAllData(mTransactionManager);
+        TransactionManager.clearInstance();
+    }
+
+    @Test
+    public void compactChangeLogs_removesUuidsListedLater() {
+        List<Long> rowIds = new ArrayList<>();
+        rowIds.add(insertChangeLog(UPSERT, APP_ID, UUID_A, UUID_B, UUID_C));
+        rowIds.add(insertChangeLog(UPSERT, APP_ID, UUID_A));
+        rowIds.add(insertChangeLog(DELETE, APP_ID, UUID_B));
+        // Same uuid, but of another app, so it doesn't supersede the first change log.
+        rowIds.add(insertChangeLog(UPSERT, OTHER_APP_ID, UUID_C));
+        rowIds.add(insertChangeLog(UPSERT, APP_ID, UUID_A));
+        long latestRowId = ChangeLogsHelper.getInstance().getLatestRowId();
+
+        int removedCount =
+                ChangeLogsHelper.getInstance()
+                        .compactChangeLogs(/* batchSize= */ 2, new CancellationSignal());
+
+        assertThat(removedCount).isEqualTo(3);
+        assertThat(countChangeLogs()).isEqualTo(4);
+        assertThat(ChangeLogsHelper.getInstance().getLatestRowId()).isEqualTo(latestRowId);
+        assertThat(getUpsertedUuids(/* token= */ 0)).containsExactly(UUID_A, UUID_C, UUID_C);
+        assertThat(getDeletedUuids(/* token= */ 0)).containsExactly(UUID_B);
+        // Tokens within the compacted change logs return the same records as before.
+        assertThat(new HashSet<>(getUpsertedUuids(rowIds.get(0)))).containsExactly(UUID_A, UUID_C);
+        assertThat(getDeletedUuids(rowIds.get(0))).containsExactly(UUID_B);
+        assertThat(new HashSet<>(getUpsertedUuids(rowIds.get(1)))).containsExactly(UUID_A, UUID_C);
+        assertThat(getDeletedUuids(rowIds.get(1))).containsExactly(UUID_B);
+        assertThat(getUpsertedUuids(rowIds.get(3))).containsExactly(UUID_A);
+        assertThat(getDeletedUuids(rowIds.get(3))).isEmpty();
+    }
+
+    @Test
+    public void compactChangeLogs_canceled_keepsChangeLogs() {
+        insertChangeLog(UPSERT, APP_ID, UUID_A);
+        insertChangeLog(UPSERT, APP_ID, UUID_A);
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+
+        assertThat(ChangeLogsHelper.getInstance().compactChangeLogs(cancellationSignal))
+                .isEqualTo(0);
+        assertThat(countChangeLogs()).isEqualTo(2);
+    }
+
+    private long insertChangeLog(int operationType, long appId, UUID... uuids) {
+        ChangeLogs changeLogs =
+                new ChangeLogs(operationType, TEST_PACKAGE_NAME, /* timeStamp= */ 1000)
+                        .addUUIDs(RECORD_TYPE_STEPS, appId, List.of(uuids));
+        return mTransactionManager.insert(changeLogs.getUpsertTableRequests().get(0));
+    }
+
+    private List<UUID> getUpsertedUuids(long token) {
+        Map<Integer, List<UUID>> recordTypeToUuids =
+                ChangeLogsHelper.getRecordTypeToInsertedUuids(
+                        getChangeLogs(token).getChangeLogsMap());
+        return recordTypeToUuids.getOrDefault(RECORD_TYPE_STEPS, List.of());
+    }
+
+    private Set<UUID> getDeletedUuids(long token) {
+        Set<UUID> uuids = new HashSet<>();
+        ChangeLogsHelper.getDeletedLogs(getChangeLogs(token).getChangeLogsMap())
+                .forEach(deletedLog -> uuids.add(UUID.fromString(deletedLog.getDeletedRecordId())));
+        return uuids;
+    }
+
+    private static ChangeLogsResponse getChangeLogs(long token) {
+        return ChangeLogsHelper.getInstance()
+                .getChangeLogs(
+                        new ChangeLogsRequestHelper.TokenRequest(
+                                /* packageNamesToFilter= */ List.of(),
+                                /* recordTypes= */ List.of(),
+                                TEST_PACKAGE_NAME,
+                                token),
+                        new ChangeLogsRequest.Builder(String.valueOf(token)).build());
+    }
+
+    private int countChangeLogs() {
+        int[] count = new int[1];
+        mTransactionManager.runAsTransaction(
+                db -> {
+                    try (Cursor cursor =
+                            db.rawQuery(
+                                    "SELECT COUNT(*) FROM " + ChangeLogsHelper.TABLE_NAME,
+                                    /* selectionArgs= */ null)) {
+                        cursor.moveToFirst();
+                        count[0] = cursor.getInt(0);
+                    }
+                });
+        return count[0];
+    }
+}
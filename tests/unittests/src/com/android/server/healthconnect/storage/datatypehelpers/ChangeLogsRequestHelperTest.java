@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers;
+
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_HEART_RATE;
+import static android.health.connect.datatypes.RecordTypeIdentifier.RECORD_TYPE_STEPS;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.ChangeLogsRequestHelper.DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import static java.time.temporal.ChronoUnit.DAYS;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.health.connect.changelog.ChangeLogTokenRequest;
+import android.health.connect.datatypes.DataOrigin;
+import android.health.connect.datatypes.HeartRateRecord;
+import android.health.connect.datatypes.StepsRecord;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.HealthConnectUserContext;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.request.ReadTableRequest;
+import com.android.server.healthconnect.storage.request.UpsertTableRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Instant;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class ChangeLogsRequestHelperTest {
+    private static final String TEST_PACKAGE_NAME = "package.name";
+    private static final String OTHER_PACKAGE_NAME = "other.package.name";
+    private static final String REQUEST_TABLE_NAME = "change_log_request_table";
+
+    @Rule public final HealthConnectDatabaseTestRule testRule = new HealthConnectDatabaseTestRule();
+
+    private TransactionManager mTransactionManager;
+
+    @Before
+    public void setup() {
+        HealthConnectUserContext context = testRule.getUserContext();
+        mTransactionManager = TransactionManager.getInstance(context);
+        DatabaseHelper.clearAllData(mTransactionManager);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseHelper.clearAllData(mTransactionManager);
+        TransactionManager.clearInstance();
+    }
+
+    @Test
+    public void getToken_thenGetRequest_returnsRequest() {
+        String token =
+                ChangeLogsRequestHelper.getInstance()
+                        .getToken(
+                                TEST_PACKAGE_NAME,
+                                new ChangeLogTokenRequest.Builder()
+                                        .addRecordType(StepsRecord.class)
+                                        .addRecordType(HeartRateRecord.class)
+                                        .addDataOriginFilter(
+                                                new DataOrigin.Builder()
+                                                        .setPackageName(OTHER_PACKAGE_NAME)
+                                                        .build())
+                                        .build());
+
+        ChangeLogsRequestHelper.TokenRequest request =
+                ChangeLogsRequestHelper.getRequest(TEST_PACKAGE_NAME, token);
+
+        assertThat(request.getRequestingPackageName()).isEqualTo(TEST_PACKAGE_NAME);
+        assertThat(request.getRecordTypes())
+                .containsExactly(RECORD_TYPE_STEPS, RECORD_TYPE_HEART_RATE);
+        assertThat(request.getPackageNamesToFilter()).containsExactly(OTHER_PACKAGE_NAME);
+        assertThat(request.getRowIdChangeLogs())
+                .isEqualTo(ChangeLogsHelper.getInstance().getLatestRowId());
+    }
+
+    @Test
+    public void getNextPageToken_doesNotWriteToDatabase() {
+        ChangeLogsRequestHelper.TokenRequest request =
+                new ChangeLogsRequestHelper.TokenRequest(
+                        List.of(), List.of(RECORD_TYPE_STEPS), TEST_PACKAGE_NAME, 42);
+
+        String token = ChangeLogsRequestHelper.getNextPageToken(request, 100);
+
+        assertThat(
+                        ChangeLogsRequestHelper.getRequest(TEST_PACKAGE_NAME, token)
+                                .getRowIdChangeLogs())
+                .isEqualTo(100);
+        try (Cursor cursor = mTransactionManager.read(new ReadTableRequest(REQUEST_TABLE_NAME))) {
+            assertThat(cursor.getCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void getRequest_tokenOfOtherPackage_throws() {
+        String token =
+                ChangeLogsRequestHelper.getNextPageToken(
+                        new ChangeLogsRequestHelper.TokenRequest(
+                                List.of(), List.of(RECORD_TYPE_STEPS), OTHER_PACKAGE_NAME, 0),
+                        10);
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> ChangeLogsRequestHelper.getRequest(TEST_PACKAGE_NAME, token));
+    }
+
+    @Test
+    public void getRequest_tamperedToken_throws() {
+        String token =
+                ChangeLogsRequestHelper.getNextPageToken(
+                        new ChangeLogsRequestHelper.TokenRequest(
+                                List.of(), List.of(RECORD_TYPE_STEPS), TEST_PACKAGE_NAME, 0),
+                        10);
+        char[] chars = token.toCharArray();
+        chars[2] = chars[2] == 'A' ? 'B' : 'A';
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> ChangeLogsRequestHelper.getRequest(TEST_PACKAGE_NAME, new String(chars)));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> ChangeLogsRequestHelper.getRequest(TEST_PACKAGE_NAME, "not-a-token"));
+    }
+
+    @Test
+    public void getRequest_tokenOlderThanRetentionPeriod_throws() {
+        ChangeLogsRequestHelper.TokenRequest request =
+                new ChangeLogsRequestHelper.TokenRequest(
+                        List.of(), List.of(RECORD_TYPE_STEPS), TEST_PACKAGE_NAME, 0);
+        Instant now = Instant.now();
+        String validToken =
+                ChangeLogsRequestHelper.getNextPageToken(
+                        request, 10, now.minus(DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS - 1, DAYS));
+        String expiredToken =
+                ChangeLogsRequestHelper.getNextPageToken(
+                        request, 10, now.minus(DEFAULT_CHANGE_LOG_TIME_PERIOD_IN_DAYS + 1, DAYS));
+
+        assertThat(
+                        ChangeLogsRequestHelper.getRequest(TEST_PACKAGE_NAME, validToken)
+                                .getRowIdChangeLogs())
+                .isEqualTo(10);
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> ChangeLogsRequestHelper.getRequest(TEST_PACKAGE_NAME, expiredToken));
+    }
+
+    @Test
+    public void getRequest_legacyToken_returnsRequest() {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put("packages_to_filter", OTHER_PACKAGE_NAME);
+        contentValues.put("record_types", String.valueOf(RECORD_TYPE_STEPS));
+        contentValues.put("package_name", TEST_PACKAGE_NAME);
+        contentValues.put("row_id_change_logs_table", 7);
+        long rowId =
+                mTransactionManager.insert(
+                        new UpsertTableRequest(REQUEST_TABLE_NAME, contentValues));
+
+        ChangeLogsRequestHelper.TokenRequest request =
+                ChangeLogsRequestHelper.getRequest(TEST_PACKAGE_NAME, String.valueOf(rowId));
+
+        assertThat(request.getRecordTypes()).containsExactly(RECORD_TYPE_STEPS);
+        assertThat(request.getPackageNamesToFilter()).containsExactly(OTHER_PACKAGE_NAME);
+        assertThat(request.getRowIdChangeLogs()).isEqualTo(7);
+        assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        ChangeLogsRequestHelper.getRequest(
+                                OTHER_PACKAGE_NAME, String.valueOf(rowId)));
+    }
+}
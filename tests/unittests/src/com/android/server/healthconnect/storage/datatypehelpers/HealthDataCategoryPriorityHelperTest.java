@@ -54,7 +54,6 @@ import com.android.server.healthconnect.permission.PackageInfoUtils;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.request.DeleteTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTableRequest;
-import com.android.server.healthconnect.storage.utils.StorageUtils;
 
 import org.junit.After;
 import org.junit.Before;
@@ -67,7 +66,6 @@ import org.mockito.Mockito;
 import org.mockito.quality.Strictness;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -1667,11 +1665,7 @@ public class HealthDataCategoryPriorityHelperTest {
             return request != null
                     && request.getIdColumnName() != null
                     && request.getIdColumnName().equals(HEALTH_DATA_CATEGORY_COLUMN_NAME)
-                    && request.getIds()
-                            .equals(
-                                    Collections.singletonList(
-                                            StorageUtils.getNormalisedString(
-                                                    String.valueOf(mDataCategory))));
+                    && request.getIds().equals(List.of((long) mDataCategory));
         }
 
         @Override
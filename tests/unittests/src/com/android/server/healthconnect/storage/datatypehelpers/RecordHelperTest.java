@@ -20,8 +20,8 @@ import static android.health.connect.Constants.MAXIMUM_ALLOWED_CURSOR_COUNT;
 import static android.health.connect.PageTokenWrapper.EMPTY_PAGE_TOKEN;
 
 import static com.android.server.healthconnect.storage.datatypehelpers.StepsRecordHelper.STEPS_TABLE_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.TransactionTestUtils.createHeartRateRecord;
 import static com.android.server.healthconnect.storage.datatypehelpers.TransactionTestUtils.createStepsRecord;
-import static com.android.server.healthconnect.storage.utils.WhereClauses.LogicalOperator.AND;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -33,6 +33,7 @@ import android.health.connect.ReadRecordsRequestUsingFilters;
 import android.health.connect.TimeInstantRangeFilter;
 import android.health.connect.aidl.ReadRecordsRequestParcel;
 import android.health.connect.datatypes.StepsRecord;
+import android.health.connect.internal.datatypes.HeartRateRecordInternal;
 import android.health.connect.internal.datatypes.RecordInternal;
 import android.health.connect.internal.datatypes.StepsRecordInternal;
 import android.util.Pair;
@@ -43,7 +44,6 @@ import com.android.server.healthconnect.HealthConnectUserContext;
 import com.android.server.healthconnect.storage.TransactionManager;
 import com.android.server.healthconnect.storage.request.ReadTableRequest;
 import com.android.server.healthconnect.storage.utils.OrderByClause;
-import com.android.server.healthconnect.storage.utils.WhereClauses;
 
 import org.junit.After;
 import org.junit.Before;
@@ -53,6 +53,7 @@ import org.junit.runner.RunWith;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
@@ -155,11 +156,7 @@ public class RecordHelperTest {
                         /* endTimeMillis= */ 7000,
                         /* stepsCount= */ 500));
 
-        long expectedTimestamp = 4000L;
-        int expectedOffset = 0;
-        PageTokenWrapper expectedPageToken =
-                PageTokenWrapper.of(isAscending, expectedTimestamp, expectedOffset);
-
+        PageTokenWrapper pageToken;
         OrderByClause orderByStartTime =
                 new OrderByClause().addOrderByClause(helper.getStartTimeColumnName(), isAscending);
         ReadTableRequest request1 =
@@ -172,25 +169,18 @@ public class RecordHelperTest {
                             cursor, pageSize, PageTokenWrapper.ofAscending(isAscending));
             assertThat(page1.first).hasSize(pageSize);
             assertThat(page1.first.get(0).getClientRecordId()).isEqualTo("client.id2");
-            assertThat(page1.second).isEqualTo(expectedPageToken);
+            assertThat(page1.second)
+                    .isEqualTo(
+                            PageTokenWrapper.ofRowId(
+                                    isAscending, 6000, page1.first.get(0).getRowId()));
+            pageToken = page1.second;
         }
 
-        WhereClauses whereClause =
-                new WhereClauses(AND)
-                        .addWhereLessThanOrEqualClause(
-                                helper.getStartTimeColumnName(), expectedTimestamp);
-        ReadTableRequest request2 =
-                new ReadTableRequest(STEPS_TABLE_NAME)
-                        .setOrderBy(orderByStartTime)
-                        .setWhereClause(whereClause)
-                        .setLimit(pageSize + 1 + expectedOffset);
-        try (Cursor cursor = mTransactionManager.read(request2)) {
-            Pair<List<RecordInternal<?>>, PageTokenWrapper> page2 =
-                    helper.getNextInternalRecordsPageAndToken(cursor, pageSize, expectedPageToken);
-            assertThat(page2.first).hasSize(pageSize);
-            assertThat(page2.first.get(0).getClientRecordId()).isEqualTo("client.id1");
-            assertThat(page2.second).isEqualTo(EMPTY_PAGE_TOKEN);
-        }
+        Pair<List<RecordInternal<?>>, PageTokenWrapper> page2 =
+                readStepsPage(helper, pageSize, pageToken);
+        assertThat(page2.first).hasSize(pageSize);
+        assertThat(page2.first.get(0).getClientRecordId()).isEqualTo("client.id1");
+        assertThat(page2.second).isEqualTo(EMPTY_PAGE_TOKEN);
     }
 
     @Test
@@ -233,11 +223,7 @@ public class RecordHelperTest {
                         /* endTimeMillis= */ 7000,
                         /* stepsCount= */ 500));
 
-        long expectedTimestamp = 4000L;
-        int expectedOffset = 2;
-        PageTokenWrapper expectedPageToken =
-                PageTokenWrapper.of(isAscending, expectedTimestamp, expectedOffset);
-
+        PageTokenWrapper expectedPageToken;
         TimeInstantRangeFilter filter =
                 new TimeInstantRangeFilter.Builder()
                         .setStartTime(Instant.ofEpochMilli(3000))
@@ -258,6 +244,9 @@ public class RecordHelperTest {
             assertThat(page1.first.get(0).getClientRecordId()).isEqualTo("id1");
             assertThat(page1.first.get(1).getClientRecordId()).isEqualTo("id2");
             assertThat(page1.first.get(2).getClientRecordId()).isEqualTo("id3");
+            // the next page starts after id3, with the same start time as id4
+            expectedPageToken =
+                    PageTokenWrapper.ofRowId(isAscending, 4000, page1.first.get(2).getRowId());
             assertThat(page1.second).isEqualTo(expectedPageToken);
         }
 
@@ -280,6 +269,57 @@ public class RecordHelperTest {
         }
     }
 
+    @Test
+    public void getNextInternalRecordsPageAndToken_offsetPageToken_skipsReturnedRecords() {
+        RecordHelper<?> helper = new StepsRecordHelper();
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME,
+                createStepsRecord("id1", 4000, 5000, 100),
+                createStepsRecord("id2", 4000, 6000, 200),
+                createStepsRecord("id3", 4000, 7000, 300),
+                createStepsRecord("id4", 5000, 6000, 400),
+                createStepsRecord("id5", 6000, 7000, 500));
+        PageTokenWrapper offsetToken = PageTokenWrapper.of(true, 4000, 2);
+
+        Pair<List<RecordInternal<?>>, PageTokenWrapper> page =
+                readStepsPage(helper, /* pageSize= */ 2, offsetToken);
+
+        assertThat(page.first.stream().map(RecordInternal::getClientRecordId).toList())
+                .containsExactly("id3", "id4")
+                .inOrder();
+        assertThat(page.second).isEqualTo(PageTokenWrapper.of(true, 6000, 0));
+    }
+
+    @Test
+    public void getNextInternalRecordsPageAndToken_sameStartTimeOnManyPages_eachRecordOnce() {
+        RecordHelper<?> helper = new StepsRecordHelper();
+        List<RecordInternal<?>> records = new ArrayList<>();
+        List<String> clientIds = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            records.add(createStepsRecord("id" + i, 4000, 5000 + i, 100));
+            clientIds.add("id" + i);
+        }
+        mTransactionTestUtils.insertRecords(TEST_PACKAGE_NAME, records);
+
+        for (boolean isAscending : new boolean[] {true, false}) {
+            List<String> readClientIds = new ArrayList<>();
+            PageTokenWrapper pageToken = PageTokenWrapper.ofAscending(isAscending);
+            do {
+                Pair<List<RecordInternal<?>>, PageTokenWrapper> page =
+                        readStepsPage(helper, /* pageSize= */ 2, pageToken);
+                page.first.forEach(record -> readClientIds.add(record.getClientRecordId()));
+                pageToken = page.second;
+            } while (!pageToken.isEmpty());
+
+            // Records with the same start time are in the order of their insertion, or reversed.
+            List<String> expectedClientIds = new ArrayList<>(clientIds);
+            if (!isAscending) {
+                Collections.reverse(expectedClientIds);
+            }
+            assertThat(readClientIds).containsExactlyElementsIn(expectedClientIds).inOrder();
+        }
+    }
+
     @Test
     public void getNextInternalRecordsPageAndToken_wrongOffsetPageToken_skipSameStartTimeRecords() {
         RecordHelper<?> helper = new StepsRecordHelper();
@@ -288,15 +328,58 @@ public class RecordHelperTest {
                 createStepsRecord("id1", 4000, 5000, 100),
                 createStepsRecord("id2", 5000, 6000, 100));
         PageTokenWrapper incorrectToken = PageTokenWrapper.of(true, 4000, 2);
-        ReadTableRequest request = new ReadTableRequest(STEPS_TABLE_NAME);
+
+        Pair<List<RecordInternal<?>>, PageTokenWrapper> result =
+                readStepsPage(helper, /* pageSize= */ 2, incorrectToken);
+
+        // skip the first record, but preserve the second because start time is different
+        assertThat(result.first).hasSize(1);
+        assertThat(result.first.get(0).getClientRecordId()).isEqualTo("id2");
+        assertThat(result.second).isEqualTo(EMPTY_PAGE_TOKEN);
+    }
+
+    @Test
+    public void getInternalRecords_seriesRecord_packedSamplesReturned() {
+        RecordHelper<?> helper = new HeartRateRecordHelper();
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME, createHeartRateRecord(4000, 7000, 60, 72, 65));
+        ReadTableRequest request = new ReadTableRequest(HeartRateRecordHelper.TABLE_NAME);
         try (Cursor cursor = mTransactionManager.read(request)) {
-            Pair<List<RecordInternal<?>>, PageTokenWrapper> result =
-                    helper.getNextInternalRecordsPageAndToken(
-                            cursor, /* requestSize= */ 2, incorrectToken);
-            // skip the first record, but preserve the second because start time is different
-            assertThat(result.first).hasSize(1);
-            assertThat(result.first.get(0).getClientRecordId()).isEqualTo("id2");
-            assertThat(result.second).isEqualTo(EMPTY_PAGE_TOKEN);
+            List<RecordInternal<?>> records = helper.getInternalRecords(cursor);
+            assertThat(records).hasSize(1);
+
+            HeartRateRecordInternal record = (HeartRateRecordInternal) records.get(0);
+            assertThat(
+                            record.getSamples().stream()
+                                    .map(
+                                            sample ->
+                                                    sample.getEpochMillis()
+                                                            + ":"
+                                                            + sample.getBeatsPerMinute())
+                                    .toList())
+                    .containsExactly("4000:60", "5000:72", "6000:65");
+        }
+    }
+
+    private Pair<List<RecordInternal<?>>, PageTokenWrapper> readStepsPage(
+            RecordHelper<?> helper, int pageSize, PageTokenWrapper pageToken) {
+        ReadRecordsRequestUsingFilters.Builder<StepsRecord> builder =
+                new ReadRecordsRequestUsingFilters.Builder<>(StepsRecord.class)
+                        .setTimeRangeFilter(
+                                new TimeInstantRangeFilter.Builder()
+                                        .setStartTime(Instant.EPOCH)
+                                        .setEndTime(Instant.ofEpochMilli(10000))
+                                        .build())
+                        .setPageSize(pageSize);
+        if (pageToken.isTimestampSet() || pageToken.isRowIdSet()) {
+            builder.setPageToken(pageToken.encode());
+        } else {
+            builder.setAscending(pageToken.isAscending());
+        }
+        ReadTableRequest request =
+                getReadTableRequest(helper, builder.build().toReadRecordsRequestParcel());
+        try (Cursor cursor = mTransactionManager.read(request)) {
+            return helper.getNextInternalRecordsPageAndToken(cursor, pageSize, pageToken);
         }
     }
 
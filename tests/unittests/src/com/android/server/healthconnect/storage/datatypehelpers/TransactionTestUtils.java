@@ -34,6 +34,7 @@ import android.health.connect.datatypes.StepsRecord;
 import android.health.connect.internal.datatypes.BloodPressureRecordInternal;
 import android.health.connect.internal.datatypes.ExerciseRouteInternal;
 import android.health.connect.internal.datatypes.ExerciseSessionRecordInternal;
+import android.health.connect.internal.datatypes.HeartRateRecordInternal;
 import android.health.connect.internal.datatypes.RecordInternal;
 import android.health.connect.internal.datatypes.StepsRecordInternal;
 
@@ -43,6 +44,7 @@ import com.android.server.healthconnect.storage.request.UpsertTableRequest;
 import com.android.server.healthconnect.storage.request.UpsertTransactionRequest;
 
 import java.time.Instant;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -131,6 +133,22 @@ public final class TransactionTestUtils {
                 .setTime(timeMillis);
     }
 
+    /** Creates a heart rate record with one sample per second, starting at the start time. */
+    public static HeartRateRecordInternal createHeartRateRecord(
+            long startTimeMillis, long endTimeMillis, int... beatsPerMinute) {
+        Set<HeartRateRecordInternal.HeartRateSample> samples = new HashSet<>();
+        for (int i = 0; i < beatsPerMinute.length; i++) {
+            samples.add(
+                    new HeartRateRecordInternal.HeartRateSample(
+                            beatsPerMinute[i], startTimeMillis + i * 1000L));
+        }
+        return (HeartRateRecordInternal)
+                new HeartRateRecordInternal()
+                        .setSamples(samples)
+                        .setStartTime(startTimeMillis)
+                        .setEndTime(endTimeMillis);
+    }
+
     /** Creates an exercise sessions with a route. */
     public static ExerciseSessionRecordInternal createExerciseSessionRecordWithRoute(
             Instant startTime) {
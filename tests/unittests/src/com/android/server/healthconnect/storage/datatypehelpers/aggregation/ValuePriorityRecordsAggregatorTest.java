@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.datatypehelpers.aggregation;
+
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.DISTANCE_RECORD_DISTANCE_TOTAL;
+import static android.health.connect.datatypes.AggregationType.AggregationTypeIdentifier.STEPS_RECORD_COUNT_TOTAL;
+
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.END_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.START_TIME_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.IntervalRecordHelper.START_ZONE_OFFSET_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.APP_INFO_ID_COLUMN_NAME;
+import static com.android.server.healthconnect.storage.datatypehelpers.RecordHelper.LAST_MODIFIED_TIME_COLUMN_NAME;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import static org.mockito.Mockito.when;
+
+import android.database.MatrixCursor;
+
+import com.android.modules.utils.testing.ExtendedMockitoRule;
+import com.android.server.healthconnect.HealthConnectDeviceConfigManager;
+import com.android.server.healthconnect.storage.request.AggregateParams;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.quality.Strictness;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class ValuePriorityRecordsAggregatorTest {
+    private static final String VALUE_COLUMN_NAME = "value";
+    private static final String[] COLUMNS = {
+        START_TIME_COLUMN_NAME,
+        END_TIME_COLUMN_NAME,
+        LAST_MODIFIED_TIME_COLUMN_NAME,
+        APP_INFO_ID_COLUMN_NAME,
+        START_ZONE_OFFSET_COLUMN_NAME,
+        VALUE_COLUMN_NAME
+    };
+    private static final List<Long> PRIORITY_LIST = List.of(3L, 1L, 2L);
+
+    @Rule
+    public final ExtendedMockitoRule mExtendedMockitoRule =
+            new ExtendedMockitoRule.Builder(this)
+                    .mockStatic(HealthConnectDeviceConfigManager.class)
+                    .setStrictness(Strictness.LENIENT)
+                    .build();
+
+    @Mock HealthConnectDeviceConfigManager mHealthConnectDeviceConfigManager;
+
+    @Before
+    public void setUp() {
+        when(HealthConnectDeviceConfigManager.getInitialisedInstance())
+                .thenReturn(mHealthConnectDeviceConfigManager);
+    }
+
+    @Test
+    public void overlappingRecords_highestPriorityAccounted() {
+        List<Object[]> rows =
+                List.of(
+                        row(10, 20, 1, /* appId= */ 2, 3600, 100),
+                        row(15, 25, 1, /* appId= */ 3, 7200, 50));
+
+        PriorityAggregator aggregator =
+                aggregate(STEPS_RECORD_COUNT_TOTAL, List.of(0L, 100L), rows);
+
+        // Half of the first record, then all of the second one, which has a higher priority.
+        assertThat(aggregator.getResultForGroup(0)).isEqualTo(100.0);
+        assertThat(aggregator.getZoneOffsetForGroup(0).getTotalSeconds()).isEqualTo(3600);
+        assertThat(aggregator.getResultForGroup(1)).isNull();
+    }
+
+    @Test
+    public void instantRecordsWithSameTime_accountedOnce() {
+        List<Object[]> rows =
+                List.of(
+                        row(15, 15, 1, /* appId= */ 1, 0, 10),
+                        row(15, 15, 1, /* appId= */ 3, 0, 20));
+
+        PriorityAggregator aggregator =
+                aggregate(STEPS_RECORD_COUNT_TOTAL, List.of(10L, 20L), rows);
+
+        assertThat(aggregator.getResultForGroup(0)).isEqualTo(20.0);
+    }
+
+    @Test
+    public void recordsFarApart_groupsInBetweenAreEmpty() {
+        List<Long> groupSplits = new ArrayList<>();
+        for (long split = 0; split <= 10_000; split += 10) {
+            groupSplits.add(split);
+        }
+        List<Object[]> rows =
+                List.of(
+                        row(22, 24, 1, /* appId= */ 1, 0, 10),
+                        row(8005, 8015, 1, /* appId= */ 1, 3600, 30));
+
+        for (PriorityAggregator aggregator :
+                List.of(
+                        aggregate(STEPS_RECORD_COUNT_TOTAL, groupSplits, rows),
+                        aggregateWithPriorityRecordsAggregator(groupSplits, rows))) {
+            assertThat(aggregator.getResultForGroup(2)).isEqualTo(10.0);
+            assertThat(aggregator.getResultForGroup(800)).isEqualTo(15.0);
+            assertThat(aggregator.getResultForGroup(801)).isEqualTo(15.0);
+            assertThat(aggregator.getZoneOffsetForGroup(801).getTotalSeconds()).isEqualTo(3600);
+            for (int group = 0; group < groupSplits.size() - 1; group++) {
+                if (group != 2 && group != 800 && group != 801) {
+                    assertThat(aggregator.getResultForGroup(group)).isNull();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void randomRecords_sameResultsAsPriorityRecordsAggregator() {
+        Random random = new Random(/* seed= */ 20240101);
+        for (int iteration = 0; iteration < 2000; iteration++) {
+            boolean sourceControlsEnabled = random.nextBoolean();
+            when(mHealthConnectDeviceConfigManager.isAggregationSourceControlsEnabled())
+                    .thenReturn(sourceControlsEnabled);
+            int aggregationType =
+                    random.nextBoolean()
+                            ? STEPS_RECORD_COUNT_TOTAL
+                            : DISTANCE_RECORD_DISTANCE_TOTAL;
+            List<Long> groupSplits = createGroupSplits(random);
+            List<Object[]> rows = createRows(random, aggregationType);
+
+            PriorityAggregator expected =
+                    new PriorityRecordsAggregator(
+                            groupSplits,
+                            PRIORITY_LIST,
+                            aggregationType,
+                            createParams(aggregationType),
+                            /* useLocalTime= */ false);
+            expected.calculateAggregation(createCursor(rows));
+            PriorityAggregator actual = aggregate(aggregationType, groupSplits, rows);
+
+            for (int group = 0; group < groupSplits.size() - 1; group++) {
+                String message = "iteration " + iteration + ", group " + group;
+                assertWithMessage(message)
+                        .that(actual.getResultForGroup(group))
+                        .isEqualTo(expected.getResultForGroup(group));
+                assertWithMessage(message)
+                        .that(actual.getZoneOffsetForGroup(group))
+                        .isEqualTo(expected.getZoneOffsetForGroup(group));
+            }
+        }
+    }
+
+    private static PriorityAggregator aggregate(
+            int aggregationType, List<Long> groupSplits, List<Object[]> rows) {
+        PriorityAggregator aggregator =
+                new ValuePriorityRecordsAggregator(
+                        groupSplits,
+                        PRIORITY_LIST,
+                        aggregationType,
+                        createParams(aggregationType),
+                        /* useLocalTime= */ false);
+        aggregator.calculateAggregation(createCursor(rows));
+        return aggregator;
+    }
+
+    private static PriorityAggregator aggregateWithPriorityRecordsAggregator(
+            List<Long> groupSplits, List<Object[]> rows) {
+        PriorityAggregator aggregator =
+                new PriorityRecordsAggregator(
+                        groupSplits,
+                        PRIORITY_LIST,
+                        STEPS_RECORD_COUNT_TOTAL,
+                        createParams(STEPS_RECORD_COUNT_TOTAL),
+                        /* useLocalTime= */ false);
+        aggregator.calculateAggregation(createCursor(rows));
+        return aggregator;
+    }
+
+    private static AggregateParams.PriorityAggregationExtraParams createParams(
+            int aggregationType) {
+        return new AggregateParams.PriorityAggregationExtraParams(
+                VALUE_COLUMN_NAME,
+                aggregationType == STEPS_RECORD_COUNT_TOTAL ? Long.class : Double.class);
+    }
+
+    private static List<Long> createGroupSplits(Random random) {
+        List<Long> groupSplits = new ArrayList<>();
+        long split = random.nextInt(20);
+        int groupCount = 1 + random.nextInt(5);
+        for (int i = 0; i <= groupCount; i++) {
+            groupSplits.add(split);
+            split += 1 + random.nextInt(30);
+        }
+        return groupSplits;
+    }
+
+    /** Returns records in a small time range, so that they often share times, sorted by start. */
+    private static List<Object[]> createRows(Random random, int aggregationType) {
+        List<Object[]> rows = new ArrayList<>();
+        int count = random.nextInt(30);
+        for (int i = 0; i < count; i++) {
+            long start = random.nextInt(150);
+            // Some records are instant, a few end before they start.
+            long end = start + random.nextInt(40) - 2;
+            Object value =
+                    aggregationType == STEPS_RECORD_COUNT_TOTAL
+                            ? (Object) (long) random.nextInt(1000)
+                            : (Object) (random.nextDouble() * 1000);
+            rows.add(
+                    new Object[] {
+                        start,
+                        end,
+                        (long) random.nextInt(3),
+                        (long) random.nextInt(5),
+                        random.nextInt(5) * 900,
+                        value
+                    });
+        }
+        rows.sort(Comparator.comparingLong(row -> (long) row[0]));
+        return rows;
+    }
+
+    private static MatrixCursor createCursor(List<Object[]> rows) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static Object[] row(
+            long start,
+            long end,
+            long lastModifiedTime,
+            long appId,
+            int zoneOffsetSeconds,
+            long value) {
+        return new Object[] {start, end, lastModifiedTime, appId, zoneOffsetSeconds, value};
+    }
+}
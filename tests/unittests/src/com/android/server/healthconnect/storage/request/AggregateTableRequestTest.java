@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.request;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.health.connect.AggregateResult;
+import android.health.connect.LocalTimeRangeFilter;
+import android.health.connect.TimeInstantRangeFilter;
+import android.health.connect.TimeRangeFilter;
+import android.health.connect.TimeRangeFilterHelper;
+import android.health.connect.datatypes.AggregationType;
+import android.health.connect.datatypes.HeightRecord;
+import android.health.connect.datatypes.WeightRecord;
+import android.health.connect.internal.datatypes.RecordInternal;
+import android.health.connect.internal.datatypes.WeightRecordInternal;
+import android.os.Parcel;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.healthconnect.HealthConnectUserContext;
+import com.android.server.healthconnect.storage.TransactionManager;
+import com.android.server.healthconnect.storage.datatypehelpers.DatabaseHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.HealthConnectDatabaseTestRule;
+import com.android.server.healthconnect.storage.datatypehelpers.RecordHelper;
+import com.android.server.healthconnect.storage.datatypehelpers.TransactionTestUtils;
+import com.android.server.healthconnect.storage.utils.RecordHelperProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.Period;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class AggregateTableRequestTest {
+    private static final String TEST_PACKAGE_NAME = "package.name";
+    private static final String OTHER_PACKAGE_NAME = "other.package.name";
+    private static final LocalDateTime JANUARY_31 = LocalDateTime.of(2024, 1, 31, 8, 0);
+
+    @Rule public final HealthConnectDatabaseTestRule testRule = new HealthConnectDatabaseTestRule();
+    private TransactionTestUtils mTransactionTestUtils;
+    private TransactionManager mTransactionManager;
+
+    @Before
+    public void setup() {
+        HealthConnectUserContext context = testRule.getUserContext();
+        mTransactionManager = TransactionManager.getInstance(context);
+        DatabaseHelper.clearAllData(mTransactionManager);
+        mTransactionTestUtils = new TransactionTestUtils(context, mTransactionManager);
+        mTransactionTestUtils.insertApp(TEST_PACKAGE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseHelper.clearAllData(mTransactionManager);
+        TransactionManager.clearInstance();
+    }
+
+    @Test
+    public void groupByDuration_recordsInTheirGroups() {
+        long start = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+        long hour = Duration.ofHours(1).toMillis();
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME,
+                createWeightRecord(start, 60),
+                createWeightRecord(start + 3 * hour - 1, 61),
+                createWeightRecord(start + 3 * hour, 62),
+                createWeightRecord(start + 24 * hour - 1, 63),
+                createWeightRecord(start + 24 * hour, 64));
+
+        List<Double> results =
+                aggregateWeightMax(
+                        new TimeInstantRangeFilter.Builder()
+                                .setStartTime(Instant.ofEpochMilli(start))
+                                .setEndTime(Instant.ofEpochMilli(start + 24 * hour))
+                                .build(),
+                        /* period= */ null,
+                        Duration.ofHours(1));
+
+        assertThat(results).hasSize(24);
+        assertThat(results.get(0)).isEqualTo(60.0);
+        assertThat(results.get(2)).isEqualTo(61.0);
+        assertThat(results.get(3)).isEqualTo(62.0);
+        assertThat(results.get(23)).isEqualTo(63.0);
+        assertThat(results.stream().filter(result -> result != null).count()).isEqualTo(4);
+    }
+
+    @Test
+    public void groupByMonths_recordsInTheirGroups() {
+        // Starting on the 31st, the groups are cut short by February: Jan 31 - Feb 29 - Mar 29...
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME,
+                createWeightRecord(JANUARY_31, 60),
+                createWeightRecord(JANUARY_31.plusDays(29).minusMinutes(1), 61),
+                createWeightRecord(JANUARY_31.plusDays(29), 62),
+                createWeightRecord(LocalDateTime.of(2024, 3, 29, 8, 0), 63),
+                createWeightRecord(LocalDateTime.of(2024, 6, 1, 0, 0), 64));
+
+        List<Double> results =
+                aggregateWeightMax(
+                        new LocalTimeRangeFilter.Builder()
+                                .setStartTime(JANUARY_31)
+                                .setEndTime(LocalDateTime.of(2024, 6, 1, 0, 0))
+                                .build(),
+                        Period.ofMonths(1),
+                        /* duration= */ null);
+
+        assertThat(results).containsExactly(61.0, 62.0, 63.0, null, null).inOrder();
+    }
+
+    @Test
+    public void planAggregationStatements_fusesRequestsOfTheSameTable() {
+        TimeRangeFilter timeRangeFilter = getDayFilter();
+        AggregateTableRequest weightMin = createRequest(WeightRecord.WEIGHT_MIN, timeRangeFilter);
+        AggregateTableRequest weightMax = createRequest(WeightRecord.WEIGHT_MAX, timeRangeFilter);
+        AggregateTableRequest weightAvg = createRequest(WeightRecord.WEIGHT_AVG, timeRangeFilter);
+        AggregateTableRequest heightMax = createRequest(HeightRecord.HEIGHT_MAX, timeRangeFilter);
+
+        // One MIN or MAX per statement, so that each reads the zone offset of its extreme record.
+        assertThat(
+                        AggregateTableRequest.planAggregationStatements(
+                                List.of(weightMin, weightMax, weightAvg, heightMax)))
+                .containsExactly(
+                        List.of(weightMin, weightAvg), List.of(weightMax), List.of(heightMax))
+                .inOrder();
+    }
+
+    @Test
+    public void populateWithAggregations_sameResultsAsOneByOne() {
+        mTransactionTestUtils.insertApp(OTHER_PACKAGE_NAME);
+        long start = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+        long hour = Duration.ofHours(1).toMillis();
+        mTransactionTestUtils.insertRecords(
+                TEST_PACKAGE_NAME,
+                createWeightRecord(start + hour, 60, 3600),
+                createWeightRecord(start + 2 * hour, 70, 7200),
+                createWeightRecord(start + 30 * hour, 65, 0));
+        mTransactionTestUtils.insertRecords(
+                OTHER_PACKAGE_NAME,
+                createWeightRecord(start + 3 * hour, 50, -3600),
+                createWeightRecord(start + 50 * hour, 80, 1800));
+        TimeRangeFilter timeRangeFilter =
+                new TimeInstantRangeFilter.Builder()
+                        .setStartTime(Instant.ofEpochMilli(start))
+                        .setEndTime(Instant.ofEpochMilli(start + 72 * hour))
+                        .build();
+        List<AggregationType<?>> aggregationTypes =
+                List.of(
+                        WeightRecord.WEIGHT_MIN,
+                        WeightRecord.WEIGHT_MAX,
+                        WeightRecord.WEIGHT_AVG,
+                        HeightRecord.HEIGHT_MAX);
+
+        List<AggregateTableRequest> fusedRequests = new ArrayList<>();
+        for (AggregationType<?> aggregationType : aggregationTypes) {
+            fusedRequests.add(createDailyRequest(aggregationType, timeRangeFilter));
+        }
+        mTransactionManager.populateWithAggregations(fusedRequests);
+
+        for (int i = 0; i < aggregationTypes.size(); i++) {
+            AggregationType<?> aggregationType = aggregationTypes.get(i);
+            AggregateTableRequest request = createDailyRequest(aggregationType, timeRangeFilter);
+            mTransactionManager.populateWithAggregation(request);
+
+            // The zone offset of an average is the one of any of its records.
+            boolean withZoneOffset = aggregationType != WeightRecord.WEIGHT_AVG;
+            assertThat(describe(fusedRequests.get(i).getAggregateResults(), withZoneOffset))
+                    .isEqualTo(describe(request.getAggregateResults(), withZoneOffset));
+        }
+        assertThat(getValues(fusedRequests.get(0).getAggregateResults()))
+                .containsExactly(50.0, 65.0, 80.0)
+                .inOrder();
+        assertThat(fusedRequests.get(1).getAggregateResults().get(0).getZoneOffset())
+                .isEqualTo(ZoneOffset.ofHours(2));
+        assertThat(fusedRequests.get(2).getAggregateResults().get(0).getDataOrigins())
+                .hasSize(2);
+    }
+
+    private List<Double> aggregateWeightMax(
+            TimeRangeFilter timeRangeFilter, Period period, Duration duration) {
+        AggregateTableRequest request = createRequest(WeightRecord.WEIGHT_MAX, timeRangeFilter);
+        request.setGroupBy(
+                getHelper(WeightRecord.WEIGHT_MAX).getDurationGroupByColumnName(),
+                period,
+                duration,
+                timeRangeFilter);
+        mTransactionManager.populateWithAggregation(request);
+        return getValues(request.getAggregateResults());
+    }
+
+    private static AggregateTableRequest createRequest(
+            AggregationType<?> aggregationType, TimeRangeFilter timeRangeFilter) {
+        return getHelper(aggregationType)
+                .getAggregateTableRequest(
+                        aggregationType,
+                        TEST_PACKAGE_NAME,
+                        /* packageFilters= */ List.of(),
+                        TimeRangeFilterHelper.getFilterStartTimeMillis(timeRangeFilter),
+                        TimeRangeFilterHelper.getFilterEndTimeMillis(timeRangeFilter),
+                        /* startDateAccess= */ 0,
+                        TimeRangeFilterHelper.isLocalTimeFilter(timeRangeFilter));
+    }
+
+    private static AggregateTableRequest createDailyRequest(
+            AggregationType<?> aggregationType, TimeRangeFilter timeRangeFilter) {
+        AggregateTableRequest request = createRequest(aggregationType, timeRangeFilter);
+        request.setGroupBy(
+                getHelper(aggregationType).getDurationGroupByColumnName(),
+                /* period= */ null,
+                Duration.ofDays(1),
+                timeRangeFilter);
+        return request;
+    }
+
+    private static RecordHelper<?> getHelper(AggregationType<?> aggregationType) {
+        return RecordHelperProvider.getInstance()
+                .getRecordHelper(aggregationType.getApplicableRecordTypeIds().get(0));
+    }
+
+    private static TimeRangeFilter getDayFilter() {
+        return new TimeInstantRangeFilter.Builder()
+                .setStartTime(Instant.parse("2024-01-01T00:00:00Z"))
+                .setEndTime(Instant.parse("2024-01-02T00:00:00Z"))
+                .build();
+    }
+
+    /** Returns the value, zone offset if requested, and data origins of each result. */
+    private static List<String> describe(
+            List<AggregateResult<?>> results, boolean withZoneOffset) {
+        List<Double> values = getValues(results);
+        List<String> descriptions = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            AggregateResult<?> result = results.get(i);
+            descriptions.add(
+                    result == null
+                            ? "null"
+                            : values.get(i)
+                                    + " "
+                                    + (withZoneOffset ? result.getZoneOffset() : "")
+                                    + " "
+                                    + result.getDataOrigins());
+        }
+        return descriptions;
+    }
+
+    private static List<Double> getValues(List<AggregateResult<?>> results) {
+        List<Double> values = new ArrayList<>();
+        for (AggregateResult<?> result : results) {
+            if (result == null) {
+                values.add(null);
+                continue;
+            }
+            Parcel parcel = Parcel.obtain();
+            try {
+                result.putToParcel(parcel);
+                parcel.setDataPosition(0);
+                values.add(parcel.readDouble());
+            } finally {
+                parcel.recycle();
+            }
+        }
+        return values;
+    }
+
+    private static RecordInternal<WeightRecord> createWeightRecord(
+            LocalDateTime localTime, double weight) {
+        return createWeightRecord(TimeRangeFilterHelper.getMillisOfLocalTime(localTime), weight);
+    }
+
+    private static RecordInternal<WeightRecord> createWeightRecord(long timeMillis, double weight) {
+        return createWeightRecord(timeMillis, weight, /* zoneOffsetSeconds= */ 0);
+    }
+
+    private static RecordInternal<WeightRecord> createWeightRecord(
+            long timeMillis, double weight, int zoneOffsetSeconds) {
+        return new WeightRecordInternal()
+                .setWeight(weight)
+                .setTime(timeMillis)
+                .setZoneOffset(zoneOffsetSeconds);
+    }
+}
@@ -68,4 +68,14 @@ public class CreateTableRequestTest {
         mCreateTableRequest.setChildTableRequests(childTables);
         assertThat(mCreateTableRequest.getChildTableRequests()).isNotNull();
     }
+
+    @Test
+    public void testCreateTable_compositeIndex() {
+        mCreateTableRequest.createIndexOn(List.of(REFERENCE_COULMN, COLUMN_NAME));
+
+        assertThat(mCreateTableRequest.getCreateIndexStatements())
+                .containsExactly(
+                        "CREATE INDEX IF NOT EXISTS idx_sample_table_referenceColumn_sampleColumn"
+                                + " ON sample_table(referenceColumn,sampleColumn)");
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import static com.android.server.healthconnect.storage.utils.SeriesSamplesCodec.VALUE_TYPE_DOUBLE;
+import static com.android.server.healthconnect.storage.utils.SeriesSamplesCodec.VALUE_TYPE_LONG;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+public class SeriesSamplesCodecTest {
+
+    @Test
+    public void longValues_roundTrip() {
+        long[] times = {1_700_000_000_000L, 1_700_000_001_000L, 1_700_000_002_000L, 1_699_999_999L};
+        double[] values = {72, 180, 35, 72};
+
+        assertDecodedEquals(
+                SeriesSamplesCodec.decode(
+                        SeriesSamplesCodec.encode(times, values, VALUE_TYPE_LONG)),
+                times,
+                values);
+    }
+
+    @Test
+    public void doubleValues_roundTrip() {
+        long[] times = {-5, 0, 3, 3};
+        double[] values = {1.25, -0.1, Double.MAX_VALUE, Double.NaN};
+
+        assertDecodedEquals(
+                SeriesSamplesCodec.decode(
+                        SeriesSamplesCodec.encode(times, values, VALUE_TYPE_DOUBLE)),
+                times,
+                values);
+    }
+
+    @Test
+    public void emptySamples_roundTrip() {
+        SeriesSamplesCodec.Samples samples =
+                SeriesSamplesCodec.decode(
+                        SeriesSamplesCodec.encode(new long[0], new double[0], VALUE_TYPE_LONG));
+
+        assertThat(samples.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void regularSamples_useFewBytesPerSample() {
+        int count = 3600;
+        long[] times = new long[count];
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            times[i] = 1_700_000_000_000L + i * 1000L;
+            values[i] = 60 + i % 5;
+        }
+
+        byte[] blob = SeriesSamplesCodec.encode(times, values, VALUE_TYPE_LONG);
+
+        // One byte for each time and value, plus the header.
+        assertThat(blob.length).isLessThan(count * 2 + 16);
+    }
+
+    @Test
+    public void decode_truncatedBlob_throws() {
+        byte[] blob =
+                SeriesSamplesCodec.encode(
+                        new long[] {1000, 2000}, new double[] {1.5, 2.5}, VALUE_TYPE_DOUBLE);
+        byte[] truncated = new byte[blob.length - 1];
+        System.arraycopy(blob, 0, truncated, 0, truncated.length);
+
+        assertThrows(IllegalArgumentException.class, () -> SeriesSamplesCodec.decode(truncated));
+    }
+
+    private static void assertDecodedEquals(
+            SeriesSamplesCodec.Samples samples, long[] times, double[] values) {
+        assertThat(samples.size()).isEqualTo(times.length);
+        for (int i = 0; i < times.length; i++) {
+            assertThat(samples.getEpochMillis(i)).isEqualTo(times[i]);
+            assertThat(samples.getValue(i)).isEqualTo(values[i]);
+        }
+    }
+}
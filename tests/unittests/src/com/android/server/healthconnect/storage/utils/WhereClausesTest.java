@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.healthconnect.storage.utils;
+
+import static com.android.server.healthconnect.storage.utils.WhereClauses.LogicalOperator.AND;
+import static com.android.server.healthconnect.storage.utils.WhereClauses.LogicalOperator.OR;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class WhereClausesTest {
+    private static final UUID UUID_1 = UUID.fromString("b6a5c7f0-8c4d-4e7a-9b3e-3f4f2c1d0e9a");
+    private static final UUID UUID_2 = UUID.fromString("0d9f4a21-5e6b-4c8d-a1f2-7e3b9c6d5a40");
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE test_table (uuid BLOB, name TEXT, time INTEGER)");
+        insert(UUID_1, "first", 100);
+        insert(UUID_2, "it's", 200);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void getStatement_keepsValuesOutOfSql() {
+        WhereClauses whereClauses =
+                new WhereClauses(AND)
+                        .addWhereBetweenClause("time", 10, 20)
+                        .addWhereEqualsClause("name", "value")
+                        .addWhereInLongsClause("id", List.of(1L, 2L, 1L));
+
+        SqlStatement statement = whereClauses.getStatement(/* withWhereKeyword= */ true);
+
+        assertThat(statement.getSql())
+                .isEqualTo(" WHERE time BETWEEN ? AND ? AND name = ? AND id IN (?, ?)");
+        assertThat(statement.getBindArgs()).asList().containsExactly(10L, 20L, "value", 1L, 2L);
+    }
+
+    @Test
+    public void get_writesValuesInline() {
+        WhereClauses whereClauses =
+                new WhereClauses(OR)
+                        .addWhereLessThanClause("time", 10)
+                        .addWhereEqualsClause("name", "it's")
+                        .addWhereInUuidsClause("uuid", List.of(UUID_1));
+
+        assertThat(whereClauses.get(/* withWhereKeyword= */ false))
+                .isEqualTo(
+                        "time < 10 OR name = 'it''s' OR uuid IN ("
+                                + StorageUtils.getHexString(UUID_1)
+                                + ")");
+    }
+
+    @Test
+    public void query_bindsValuesWithTheirTypes() {
+        WhereClauses whereClauses =
+                new WhereClauses(AND)
+                        .addWhereInUuidsClause("uuid", List.of(UUID_1, UUID_2))
+                        .addWhereGreaterThanClause("time", 150);
+
+        assertThat(readNames(whereClauses)).containsExactly("it's");
+    }
+
+    @Test
+    public void query_nestedClauses_bindsValuesInOrder() {
+        WhereClauses whereClauses =
+                new WhereClauses(AND)
+                        .addWhereEqualsClause("name", "it's")
+                        .addNestedWhereClauses(
+                                new WhereClauses(OR)
+                                        .addWhereLessThanClause("time", 150)
+                                        .addWhereEqualsClause(
+                                                "uuid", StorageUtils.convertUUIDToBytes(UUID_2)));
+
+        assertThat(readNames(whereClauses)).containsExactly("it's");
+    }
+
+    private List<String> readNames(WhereClauses whereClauses) {
+        SqlStatement statement =
+                new SqlStatement.Builder()
+                        .append("SELECT name FROM test_table")
+                        .append(whereClauses.getStatement(/* withWhereKeyword= */ true))
+                        .build();
+        try (Cursor cursor = statement.query(mDb)) {
+            List<String> names = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+            return names;
+        }
+    }
+
+    private void insert(UUID uuid, String name, long time) {
+        new SqlStatement(
+                        "INSERT INTO test_table (uuid, name, time) VALUES (?, ?, ?)",
+                        StorageUtils.convertUUIDToBytes(uuid),
+                        name,
+                        time)
+                .execute(mDb);
+    }
+}